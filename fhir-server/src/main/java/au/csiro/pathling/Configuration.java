@@ -14,6 +14,7 @@ import javax.validation.constraints.*;
 import lombok.*;
 import org.hibernate.validator.constraints.URL;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
 /**
@@ -211,6 +212,101 @@ public class Configuration {
     @Min(0)
     private Integer socketTimeout;
 
+    /**
+     * The maximum number of distinct codings within the input to the memberOf function for which
+     * the terminology service is called once, with the result being broadcast to the executors.
+     * Inputs with more distinct codings than this are checked separately within each partition.
+     * Setting this to zero means that the codings are always checked within each partition.
+     */
+    @NotNull
+    @Min(0)
+    private Integer broadcastThreshold;
+
+    /**
+     * If true, terminology functions first find the distinct codings across the whole input, and
+     * resolve each of them once. Otherwise, the codings are resolved separately within each
+     * partition, which means that a coding that appears in many partitions is resolved many times.
+     * The subsumes and subsumedBy functions only do this when there are no more distinct codings
+     * than the broadcast threshold, as the relationships between them are broadcast.
+     */
+    @NotNull
+    private boolean resolveDistinctCodings;
+
+    /**
+     * The maximum number of terminology results of each type that are cached within each executor,
+     * and reused across partitions and requests. Subsumption is cached as the relationship between
+     * each pair of codings from the same code system. Setting this to zero disables the cache.
+     */
+    @NotNull
+    @Min(0)
+    private Long cacheSize;
+
+    /**
+     * The number of seconds for which a cached terminology result is used before it is requested
+     * again.
+     */
+    @NotNull
+    @Min(0)
+    private Long cacheTtl;
+
+    /**
+     * A local directory in which terminology results are persisted, so that they survive restarts
+     * of the server. If this is not set, results are only cached in memory.
+     */
+    @Nullable
+    private String persistentCacheDirectory;
+
+    /**
+     * The number of seconds for which a persisted terminology result is used before it is requested
+     * again.
+     */
+    @NotNull
+    @Min(0)
+    private Long persistentCacheTtl;
+
+    /**
+     * The maximum number of codings that are sent to the terminology service within a single
+     * request. Larger sets of codings are split across several requests.
+     */
+    @NotNull
+    @Min(1)
+    private Integer requestBatchSize;
+
+    /**
+     * The maximum number of requests that each executor makes to the terminology service at once.
+     */
+    @NotNull
+    @Min(1)
+    private Integer maxConcurrentRequests;
+
+    /**
+     * The number of seconds for which the list of code systems known to the terminology service is
+     * reused. The list is loaded on the driver and sent to the executors along with each query.
+     * Setting this to zero means that each code system is searched for within each partition.
+     */
+    @NotNull
+    @Min(0)
+    private Long knownCodeSystemsTtl;
+
+    /**
+     * The location of an NDJSON file containing CodeSystem resources. The concept hierarchies of
+     * these code systems are used to test subsumption within the server, rather than asking the
+     * terminology service. If this is not set, all subsumption tests are sent to the terminology
+     * service.
+     */
+    @Nullable
+    private String localCodeSystemsUrl;
+
+    @Nonnull
+    public Optional<String> getPersistentCacheDirectory() {
+      return Optional.ofNullable(persistentCacheDirectory);
+    }
+
+    @Nonnull
+    public Optional<String> getLocalCodeSystemsUrl() {
+      return Optional.ofNullable(localCodeSystemsUrl);
+    }
+
   }
 
   /**
@@ -332,6 +428,30 @@ public class Configuration {
     @Min(0)
     private Long resourceReaderCacheSize;
 
+    /**
+     * Controls the maximum total size of the resource tables held in memory, as estimated from the
+     * size of the underlying files. Tables are evicted based upon their size and how recently they
+     * were used.
+     */
+    @NotNull
+    private DataSize resourceReaderCacheBudget;
+
+    /**
+     * The Spark storage level used when caching resource tables, e.g. {@code MEMORY_AND_DISK},
+     * {@code MEMORY_ONLY_SER} or {@code OFF_HEAP}.
+     */
+    @NotBlank
+    @Pattern(regexp = "NONE|DISK_ONLY(_2)?|MEMORY_ONLY(_SER)?(_2)?|MEMORY_AND_DISK(_SER)?(_2)?"
+        + "|OFF_HEAP")
+    private String resourceReaderStorageLevel;
+
+    /**
+     * Setting this option to {@code true} will cause aggregate queries to read and cache only the
+     * elements of each resource that they reference, rather than the whole resource.
+     */
+    @NotNull
+    private boolean resourceReaderColumnPruning;
+
   }
 
   /**
@@ -374,6 +494,22 @@ public class Configuration {
     @NotNull
     private List<String> allowableSources;
 
+    /**
+     * Setting this option to true will parse each imported resource using the HAPI FHIR parser in
+     * strict mode, rejecting resources that contain unknown elements or invalid values. Otherwise,
+     * resources are decoded directly into the storage format without validation, which is
+     * considerably faster.
+     */
+    private boolean validation;
+
+    /**
+     * The maximum number of sources within an import request that are read, parsed and written
+     * concurrently.
+     */
+    @NotNull
+    @Min(1)
+    private Integer parallelism;
+
   }
 
 }
@@ -13,18 +13,25 @@ import au.csiro.pathling.QueryHelpers.JoinType;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.fhirpath.FhirPath;
+import au.csiro.pathling.fhirpath.ResourceProjection;
 import au.csiro.pathling.fhirpath.parser.ParserContext;
 import au.csiro.pathling.io.ResourceReader;
 import ca.uhn.fhir.context.FhirContext;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.QueryPlanningTracker;
+import org.apache.spark.sql.catalyst.QueryPlanningTracker.PhaseSummary;
+import scala.collection.JavaConverters;
 
 /**
  * Contains functionality common to query executors.
@@ -32,6 +39,7 @@ import org.apache.spark.sql.SparkSession;
  * @author John Grimes
  */
 @Getter
+@Slf4j
 public abstract class QueryExecutor {
 
   @Nonnull
@@ -88,6 +96,33 @@ public abstract class QueryExecutor {
     return result;
   }
 
+  /**
+   * Logs the time spent on the driver preparing a query for execution. This is made up of the time
+   * taken to parse the request into a dataset, followed by the analysis, optimization and planning
+   * of the final query. This should be called after the dataset has been executed.
+   *
+   * @param operation the name of the operation, for use within the log message
+   * @param parseMillis the time taken to parse the request into a dataset, in milliseconds
+   * @param dataset the {@link Dataset} that was executed
+   */
+  protected static void logPlanningTime(@Nonnull final String operation, final long parseMillis,
+      @Nonnull final Dataset<?> dataset) {
+    final Map<String, PhaseSummary> phases = JavaConverters
+        .mapAsJavaMap(dataset.queryExecution().tracker().phases());
+    log.info("{} planning time: parse={} ms, analysis={} ms, optimization={} ms, planning={} ms",
+        operation, parseMillis, phaseMillis(phases, QueryPlanningTracker.ANALYSIS()),
+        phaseMillis(phases, QueryPlanningTracker.OPTIMIZATION()),
+        phaseMillis(phases, QueryPlanningTracker.PLANNING()));
+  }
+
+  private static long phaseMillis(@Nonnull final Map<String, PhaseSummary> phases,
+      @Nonnull final String phase) {
+    @Nullable final PhaseSummary summary = phases.get(phase);
+    return summary == null
+           ? 0
+           : summary.durationMs();
+  }
+
   @Nonnull
   protected static Dataset<Row> applyFilters(@Nonnull final Dataset<Row> dataset,
       @Nonnull final Collection<FhirPath> filters) {
@@ -105,8 +140,16 @@ public abstract class QueryExecutor {
 
   protected ParserContext buildParserContext(@Nonnull final FhirPath inputContext,
       @Nonnull final Optional<List<Column>> groupingColumns) {
+    return buildParserContext(inputContext, groupingColumns, Optional.empty());
+  }
+
+  protected ParserContext buildParserContext(@Nonnull final FhirPath inputContext,
+      @Nonnull final Optional<List<Column>> groupingColumns,
+      @Nonnull final Optional<ResourceProjection> projection) {
     return new ParserContext(inputContext, fhirContext, sparkSession, resourceReader,
-        terminologyClient, terminologyClientFactory, groupingColumns);
+        terminologyClient, terminologyClientFactory, groupingColumns, projection,
+        configuration.getTerminology().getBroadcastThreshold(),
+        configuration.getTerminology().isResolveDistinctCodings());
   }
 
 }
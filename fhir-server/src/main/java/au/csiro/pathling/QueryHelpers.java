@@ -6,12 +6,14 @@
 
 package au.csiro.pathling;
 
+import static au.csiro.pathling.sql.SqlExtensions.collapseProjections;
 import static au.csiro.pathling.utilities.Preconditions.checkArgument;
 import static au.csiro.pathling.utilities.Strings.randomAlias;
 import static org.apache.spark.sql.functions.col;
 
 import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.NonLiteralPath;
+import au.csiro.pathling.fhirpath.literal.LiteralPath;
 import au.csiro.pathling.fhirpath.parser.ParserContext;
 import au.csiro.pathling.utilities.Strings;
 import java.util.*;
@@ -108,8 +110,10 @@ public abstract class QueryHelpers {
       columnMap.put(column, col(alias));
     }
 
-    // Create a new dataset from the selection.
-    final Dataset<Row> result = dataset.select(selection.toArray(new Column[0]));
+    // Create a new dataset from the selection. The new projection is merged with any projection
+    // beneath it, so that the plan does not grow taller with each column that is added.
+    final Dataset<Row> result = collapseProjections(
+        dataset.select(selection.toArray(new Column[0])));
 
     return new DatasetWithColumnMap(result, columnMap);
   }
@@ -251,6 +255,14 @@ public abstract class QueryHelpers {
   public static Dataset<Row> join(@Nonnull final ParserContext parserContext,
       @Nonnull final FhirPath left, @Nonnull final FhirPath right,
       @Nonnull final JoinType joinType) {
+    // A literal on the right hand side has the same value for every row, so we can add its value to
+    // the left dataset rather than joining to it.
+    if (right instanceof LiteralPath && joinType == JoinType.LEFT_OUTER) {
+      final LiteralPath literal = (LiteralPath) right;
+      return left.getDataset()
+          .withColumn(literal.getValueColumn().toString(), literal.buildValueColumn());
+    }
+
     final List<Column> leftColumns = new ArrayList<>();
     final List<Column> rightColumns = new ArrayList<>();
     leftColumns.add(left.getIdColumn());
@@ -345,10 +357,10 @@ public abstract class QueryHelpers {
   @Nonnull
   private static Dataset<Row> applySelection(@Nonnull final Dataset<Row> dataset,
       @Nonnull final Collection<String> includes, @Nonnull final Collection<String> excludes) {
-    return dataset.select(Stream.of(dataset.columns())
+    return collapseProjections(dataset.select(Stream.of(dataset.columns())
         .filter(column -> includes.contains(column) || !excludes.contains(column))
         .map(dataset::col)
-        .toArray(Column[]::new));
+        .toArray(Column[]::new)));
   }
 
   /**
@@ -8,6 +8,8 @@ package au.csiro.pathling.aggregate;
 
 import au.csiro.pathling.Configuration;
 import au.csiro.pathling.caching.Cacheable;
+import au.csiro.pathling.caching.ResourceDependencies;
+import au.csiro.pathling.caching.ResourceDependencies.Dependent;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.io.ResourceReader;
@@ -16,9 +18,11 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import java.util.Optional;
+import java.util.Set;
 import javax.annotation.Nonnull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
@@ -36,7 +40,7 @@ public class CachingAggregateExecutor implements AggregateExecutor, Cacheable {
   private final AggregateExecutor delegate;
 
   @Nonnull
-  private final LoadingCache<AggregateRequest, AggregateResponse> cache;
+  private final LoadingCache<AggregateRequest, Dependent<AggregateResponse>> cache;
 
   /**
    * @param configuration A {@link Configuration} object to control the behaviour of the executor
@@ -56,15 +60,17 @@ public class CachingAggregateExecutor implements AggregateExecutor, Cacheable {
     cache = initializeCache(configuration.getCaching().getAggregateRequestCacheSize());
   }
 
-  private LoadingCache<AggregateRequest, AggregateResponse> initializeCache(
+  private LoadingCache<AggregateRequest, Dependent<AggregateResponse>> initializeCache(
       final long maximumSize) {
     return CacheBuilder.newBuilder()
         .maximumSize(maximumSize)
         .build(
             new CacheLoader<>() {
               @Override
-              public AggregateResponse load(@Nonnull final AggregateRequest request) {
-                return delegate.execute(request);
+              public Dependent<AggregateResponse> load(@Nonnull final AggregateRequest request) {
+                // We record the resource types read by the request, so that the response can be
+                // invalidated when any of them change.
+                return ResourceDependencies.record(() -> delegate.execute(request));
               }
             }
         );
@@ -75,7 +81,7 @@ public class CachingAggregateExecutor implements AggregateExecutor, Cacheable {
     log.info("Received request: {}", query);
     // We use `getUnchecked` here to avoid wrapping HAPI exceptions with a checked
     // ExecutionException.
-    return cache.getUnchecked(query);
+    return cache.getUnchecked(query).getValue();
   }
 
   @Override
@@ -83,4 +89,13 @@ public class CachingAggregateExecutor implements AggregateExecutor, Cacheable {
     cache.invalidateAll();
   }
 
+  @Override
+  public void invalidateCache(@Nonnull final Set<ResourceType> resourceTypes) {
+    // The subject resource is always a dependency, even if it was read from somewhere other than
+    // the resource reader.
+    cache.asMap().entrySet().removeIf(
+        entry -> resourceTypes.contains(entry.getKey().getSubjectResource())
+            || entry.getValue().dependsOnAny(resourceTypes));
+  }
+
 }
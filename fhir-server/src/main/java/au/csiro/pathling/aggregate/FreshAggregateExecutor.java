@@ -7,7 +7,13 @@
 package au.csiro.pathling.aggregate;
 
 import static au.csiro.pathling.QueryHelpers.join;
+import static au.csiro.pathling.QueryHelpers.union;
 import static au.csiro.pathling.utilities.Preconditions.checkUserInput;
+import static au.csiro.pathling.utilities.Strings.randomAlias;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.max;
+import static org.apache.spark.sql.functions.when;
 
 import au.csiro.pathling.Configuration;
 import au.csiro.pathling.QueryExecutor;
@@ -17,23 +23,35 @@ import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.Materializable;
 import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.ResourceProjection;
 import au.csiro.pathling.fhirpath.element.BooleanPath;
+import au.csiro.pathling.fhirpath.function.AggregationSource;
 import au.csiro.pathling.fhirpath.parser.Parser;
 import au.csiro.pathling.fhirpath.parser.ParserContext;
 import au.csiro.pathling.io.ResourceReader;
+import au.csiro.pathling.sql.AggregateMasking;
 import ca.uhn.fhir.context.FhirContext;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.Nonnull;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.StructField;
 import org.hl7.fhir.r4.model.Type;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
@@ -70,43 +88,71 @@ public class FreshAggregateExecutor extends QueryExecutor implements AggregateEx
   @Override
   public AggregateResponse execute(@Nonnull final AggregateRequest query) {
     log.info("Executing request: {}", query);
+    final long start = System.nanoTime();
 
-    // Build a new expression parser, and parse all of the filter and grouping expressions within
-    // the query.
+    final Optional<ResourceProjection> projection;
+    if (getConfiguration().getCaching().isResourceReaderColumnPruning()) {
+      // Parse the query once to record the elements of each resource that it reaches, and then
+      // parse it again reading only those columns. Nothing is executed during the first parse.
+      final ResourceProjection recorded = new ResourceProjection();
+      parseQuery(query, Optional.of(recorded));
+      recorded.freeze();
+      projection = Optional.of(recorded);
+    } else {
+      projection = Optional.empty();
+    }
+    final ParsedQuery parsed = parseQuery(query, projection);
+    final long parseMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    // Translate the result into a response object to be passed back to the user.
+    final AggregateResponse response = buildResponse(parsed.getDataset(),
+        parsed.getAggregations(), parsed.getGroupings(), parsed.getFilters());
+    logPlanningTime("$aggregate", parseMillis, parsed.getDataset());
+    return response;
+  }
+
+  @Nonnull
+  private ParsedQuery parseQuery(@Nonnull final AggregateRequest query,
+      @Nonnull final Optional<ResourceProjection> projection) {
+    // Build a new expression parser, and parse all of the filter expressions within the query.
     final ResourcePath inputContext = ResourcePath
         .build(getFhirContext(), getResourceReader(), query.getSubjectResource(),
-            query.getSubjectResource().toCode(), true);
-    final ParserContext groupingAndFilterContext = buildParserContext(inputContext);
-    final Parser parser = new Parser(groupingAndFilterContext);
-    final List<FhirPath> filters = parseFilters(parser, query.getFilters());
-    final List<FhirPath> groupings = parseGroupings(parser, query.getGroupings());
+            query.getSubjectResource().toCode(), true, false, projection);
+    final Parser filterParser = new Parser(
+        buildParserContext(inputContext, Optional.empty(), projection));
+    final List<FhirPath> filters = parseFilters(filterParser, query.getFilters());
 
-    // Join all filter and grouping expressions together.
-    final Column idColumn = inputContext.getIdColumn();
-    Dataset<Row> groupingsAndFilters = filters.size() + groupings.size() > 0
-                                       ? joinGroupingsAndFilters(inputContext, groupings, filters,
-        idColumn)
-                                       : inputContext.getDataset();
+    // Restrict the subject resource to the resources that satisfy the filters before parsing the
+    // groupings, so that the groupings (and any joins that they require) are only evaluated over
+    // the resources that survive the filters.
+    final ResourcePath filteredContext = filters.isEmpty()
+                                         ? inputContext
+                                         : filterSubject(inputContext, filters);
+    final Parser groupingParser = new Parser(
+        buildParserContext(filteredContext, Optional.empty(), projection));
+    final List<FhirPath> groupings = parseGroupings(groupingParser, query.getGroupings());
 
-    // Apply filters.
-    groupingsAndFilters = applyFilters(groupingsAndFilters, filters);
+    // Join all grouping expressions together.
+    final Column idColumn = filteredContext.getIdColumn();
+    final Dataset<Row> groupingsDataset = groupings.isEmpty()
+                                          ? filteredContext.getDataset()
+                                          : joinGroupings(filteredContext, groupings, idColumn);
 
     // Create a new parser context for aggregation that includes the groupings.
     final Optional<List<Column>> groupingColumns = Optional.of(groupings.stream()
         .map(FhirPath::getValueColumn)
         .collect(Collectors.toList()));
 
-    // The input context will be identical to that used for the groupings and filters, except that
-    // it will use the dataset that resulted from the parsing of the groupings and filters,
-    // instead of just the raw resource. This is so that any aggregations that are performed
-    // during the parse can use these columns for grouping, rather than the identity of each
-    // resource.
-    final ResourcePath aggregationContext = inputContext
-        .copy(inputContext.getExpression(), groupingsAndFilters, idColumn,
-            inputContext.getEidColumn(), inputContext.getValueColumn(), inputContext.isSingular(),
-            Optional.empty());
+    // The input context will be identical to that used for the groupings, except that it will use
+    // the dataset that resulted from the parsing of the groupings, instead of just the filtered
+    // resource. This is so that any aggregations that are performed during the parse can use these
+    // columns for grouping, rather than the identity of each resource.
+    final ResourcePath aggregationContext = filteredContext
+        .copy(filteredContext.getExpression(), groupingsDataset, idColumn,
+            filteredContext.getEidColumn(), filteredContext.getValueColumn(),
+            filteredContext.isSingular(), Optional.empty());
     final ParserContext aggregationParserContext = buildParserContext(aggregationContext,
-        groupingColumns);
+        groupingColumns, projection);
     final Parser aggregationParser = new Parser(aggregationParserContext);
 
     // Parse the aggregations, and grab the updated grouping columns. When aggregations are
@@ -115,33 +161,168 @@ public class FreshAggregateExecutor extends QueryExecutor implements AggregateEx
     final List<FhirPath> aggregations = parseAggregations(aggregationParser,
         query.getAggregations());
 
-    // Join the aggregations together, using equality of the grouping column values as the join
-    // condition.
-    final List<Column> aggregationColumns = aggregations.stream()
-        .map(FhirPath::getValueColumn)
-        .collect(Collectors.toList());
-    final Dataset<Row> joinedAggregations = joinExpressions(aggregations);
-
     // The final column selection will be the grouping columns, followed by the aggregation
     // columns.
     final List<Column> finalSelection = new ArrayList<>();
     groupingColumns.ifPresent(finalSelection::addAll);
-    finalSelection.addAll(aggregationColumns);
-    final Dataset<Row> finalDataset = joinedAggregations
-        .select(finalSelection.toArray(new Column[0]))
-        // This is needed to cater for the scenario where a literal value is used within an
-        // aggregation expression.
-        .distinct();
+    aggregations.stream()
+        .map(FhirPath::getValueColumn)
+        .forEach(finalSelection::add);
 
-    // Translate the result into a response object to be passed back to the user.
-    return buildResponse(finalDataset, aggregations, groupings, filters);
+    // Where possible, compute all the aggregations within a single grouping operation. Otherwise,
+    // join the aggregations together, using equality of the grouping column values as the join
+    // condition.
+    final Dataset<Row> finalDataset = combineAggregations(aggregationParserContext, aggregations,
+        groupingColumns.orElse(Collections.emptyList()))
+        .map(combined -> combined.select(finalSelection.toArray(new Column[0])))
+        .orElseGet(() -> joinExpressions(aggregations)
+            .select(finalSelection.toArray(new Column[0]))
+            // This is needed to cater for the scenario where a literal value is used within an
+            // aggregation expression.
+            .distinct());
+
+    return new ParsedQuery(finalDataset, aggregations, groupings, filters);
+  }
+
+  /**
+   * Computes a set of aggregations within a single grouping operation, instead of grouping each of
+   * them separately and joining the results.
+   * <p>
+   * This is possible when each aggregation is the direct result of an aggregate function, all of
+   * them are grouped by the same columns, and all of their aggregate functions ignore null values.
+   * The datasets that were grouped are tagged and unioned together, and the inputs to each
+   * aggregate function are masked so that it only sees the rows from its own dataset.
+   *
+   * @param context the {@link ParserContext} that the aggregations were parsed within
+   * @param aggregations the parsed aggregation expressions
+   * @param groupingColumns the grouping columns
+   * @return a dataset containing the grouping columns and the value column of each aggregation, or
+   * empty if the aggregations cannot be combined
+   */
+  @Nonnull
+  private static Optional<Dataset<Row>> combineAggregations(@Nonnull final ParserContext context,
+      @Nonnull final List<FhirPath> aggregations, @Nonnull final List<Column> groupingColumns) {
+    if (aggregations.size() < 2) {
+      return Optional.empty();
+    }
+
+    final List<String> groupingNames = columnNames(groupingColumns);
+    final List<AggregationSource> sources = new ArrayList<>();
+    final Map<String, DataType> columnTypes = new LinkedHashMap<>();
+    for (final FhirPath aggregation : aggregations) {
+      final Optional<AggregationSource> optionalSource = context
+          .getAggregationSource(aggregation.getDataset());
+      if (optionalSource.isEmpty()
+          || !columnNames(optionalSource.get().getGroupBy()).equals(groupingNames)
+          || !AggregateMasking.isMaskable(optionalSource.get().getValueColumn())) {
+        log.debug("Aggregation cannot be combined: {}", aggregation.getExpression());
+        return Optional.empty();
+      }
+      final AggregationSource source = optionalSource.get();
+
+      // The union will contain every column from each of the grouped datasets, so columns that
+      // share a name need to share a type.
+      final StructField[] fields = source.getDataset().schema().fields();
+      for (final StructField field : fields) {
+        final DataType existing = columnTypes.putIfAbsent(field.name(), field.dataType());
+        if (existing != null && !existing.equals(field.dataType())) {
+          log.debug("Aggregation cannot be combined, conflicting type for column {}: {}",
+              field.name(), aggregation.getExpression());
+          return Optional.empty();
+        }
+      }
+      if (Stream.of(fields).map(StructField::name).distinct().count() < fields.length) {
+        return Optional.empty();
+      }
+      sources.add(source);
+    }
+
+    // Tag each row with the index of the aggregation that it belongs to, filling the columns that
+    // are not present within each dataset with nulls.
+    final Column tag = col(randomAlias());
+    final List<Dataset<Row>> tagged = new ArrayList<>();
+    for (int i = 0; i < sources.size(); i++) {
+      final Set<String> present = Set.of(sources.get(i).getDataset().columns());
+      final List<Column> selection = columnTypes.entrySet().stream()
+          .map(entry -> present.contains(entry.getKey())
+                        ? col(entry.getKey())
+                        : lit(null).cast(entry.getValue()).alias(entry.getKey()))
+          .collect(Collectors.toList());
+      selection.add(lit(i).alias(tag.toString()));
+      tagged.add(sources.get(i).getDataset().select(selection.toArray(new Column[0])));
+    }
+
+    // Each aggregation is computed over only the rows with its tag. We also keep track of whether
+    // each group was present within the dataset for each aggregation, as these would otherwise
+    // have been missing from the result of the join.
+    final List<Column> aggregateColumns = new ArrayList<>();
+    final List<Column> selection = new ArrayList<>(groupingColumns);
+    final List<Column> presence = new ArrayList<>();
+    for (int i = 0; i < sources.size(); i++) {
+      final Column condition = tag.equalTo(i);
+      final String valueName = aggregations.get(i).getValueColumn().toString();
+      final String presentName = randomAlias();
+      aggregateColumns.add(
+          AggregateMasking.mask(sources.get(i).getValueColumn(), condition).alias(valueName));
+      aggregateColumns.add(max(condition).alias(presentName));
+      selection.add(groupingColumns.isEmpty()
+                    ? col(valueName)
+                    : when(col(presentName), col(valueName)).alias(valueName));
+      presence.add(col(presentName));
+    }
+
+    Dataset<Row> result = union(tagged)
+        .groupBy(groupingColumns.toArray(new Column[0]))
+        .agg(aggregateColumns.get(0), aggregateColumns.stream()
+            .skip(1)
+            .toArray(Column[]::new));
+    // The groups within the result are those of the first aggregation, as they would be had the
+    // aggregations been left outer joined.
+    if (!groupingColumns.isEmpty()) {
+      result = result.filter(presence.get(0));
+    }
+    return Optional.of(result.select(selection.toArray(new Column[0])));
+  }
+
+  @Nonnull
+  private static List<String> columnNames(@Nonnull final Collection<Column> columns) {
+    return columns.stream()
+        .map(Column::toString)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Reduces the subject resource to the resources that satisfy all of the filters. The filters are
+   * joined together and applied, and the subject resource is then semi-joined to the IDs of the
+   * resources that remain.
+   *
+   * @param inputContext the subject resource
+   * @param filters the parsed filter expressions
+   * @return a copy of the subject resource, containing only the resources that satisfy the filters
+   */
+  @Nonnull
+  private static ResourcePath filterSubject(@Nonnull final ResourcePath inputContext,
+      @Nonnull final Collection<FhirPath> filters) {
+    final Column idColumn = inputContext.getIdColumn();
+    final Dataset<Row> joinedFilters = filters.stream()
+        .map(FhirPath::getDataset)
+        .reduce((a, b) -> join(a, idColumn, b, idColumn, JoinType.LEFT_OUTER))
+        .orElseThrow();
+    final Column filteredIdColumn = col(randomAlias());
+    final Dataset<Row> filteredIds = applyFilters(joinedFilters, filters)
+        .select(idColumn.alias(filteredIdColumn.toString()));
+    final Dataset<Row> dataset = join(inputContext.getDataset(), idColumn, filteredIds,
+        filteredIdColumn, JoinType.LEFT_SEMI);
+
+    return inputContext.copy(inputContext.getExpression(), dataset, idColumn,
+        inputContext.getEidColumn(), inputContext.getValueColumn(), inputContext.isSingular(),
+        inputContext.getThisColumn());
   }
 
   @Nonnull
-  private Dataset<Row> joinGroupingsAndFilters(final FhirPath inputContext,
-      @Nonnull final Collection<FhirPath> groupings,
-      @Nonnull final Collection<FhirPath> filters, @Nonnull final Column idColumn) {
-    final List<Dataset<Row>> datasets = groupings.stream()
+  private static Dataset<Row> joinGroupings(@Nonnull final FhirPath inputContext,
+      @Nonnull final Collection<FhirPath> groupings, @Nonnull final Column idColumn) {
+    return groupings.stream()
         .map(grouping -> {
           // We need to remove any trailing null values from non-empty collections, so that
           // aggregations do not count non-empty collections in the empty collection grouping. We do
@@ -149,12 +330,7 @@ public class FreshAggregateExecutor extends QueryExecutor implements AggregateEx
           // where the value is not null.
           return join(grouping.getDataset(), idColumn, inputContext.getDataset(),
               idColumn, grouping.getValueColumn().isNotNull(), JoinType.RIGHT_OUTER);
-        }).collect(Collectors.toList());
-    datasets.addAll(filters.stream()
-        .map(FhirPath::getDataset)
-        .collect(Collectors.toList()));
-
-    return datasets.stream()
+        })
         .reduce((a, b) -> join(a, idColumn, b, idColumn, JoinType.LEFT_OUTER))
         .orElseThrow();
   }
@@ -258,4 +434,21 @@ public class FreshAggregateExecutor extends QueryExecutor implements AggregateEx
     };
   }
 
+  @Value
+  private static class ParsedQuery {
+
+    @Nonnull
+    Dataset<Row> dataset;
+
+    @Nonnull
+    List<FhirPath> aggregations;
+
+    @Nonnull
+    List<FhirPath> groupings;
+
+    @Nonnull
+    List<FhirPath> filters;
+
+  }
+
 }
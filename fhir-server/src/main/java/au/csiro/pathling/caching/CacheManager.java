@@ -7,7 +7,9 @@
 package au.csiro.pathling.caching;
 
 import java.util.Set;
+import javax.annotation.Nonnull;
 import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
@@ -37,4 +39,15 @@ public class CacheManager {
     underManagement.forEach(Cacheable::invalidateCache);
   }
 
+  /**
+   * Invalidates the cached content that may depend upon resources of the specified types, within
+   * all cachables under management.
+   *
+   * @param resourceTypes the types of resource that have changed
+   */
+  public void invalidate(@Nonnull final Set<ResourceType> resourceTypes) {
+    log.info("Invalidating caches for resource types: {}", resourceTypes);
+    underManagement.forEach(cacheable -> cacheable.invalidateCache(resourceTypes));
+  }
+
 }
@@ -6,6 +6,10 @@
 
 package au.csiro.pathling.caching;
 
+import java.util.Set;
+import javax.annotation.Nonnull;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
 /**
  * Describes an executor that has responses that can be cached. This is used for centralised
  * invalidation of cached content.
@@ -19,4 +23,14 @@ public interface Cacheable {
    */
   void invalidateCache();
 
+  /**
+   * Invalidates any cached responses that may depend upon resources of the specified types. Unless
+   * overridden, this invalidates all cached responses.
+   *
+   * @param resourceTypes the types of resource that have changed
+   */
+  default void invalidateCache(@Nonnull final Set<ResourceType> resourceTypes) {
+    invalidateCache();
+  }
+
 }
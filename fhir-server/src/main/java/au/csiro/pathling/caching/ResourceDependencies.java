@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.caching;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.Value;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * Records the types of resource that are read while a cacheable result is being computed, so that
+ * the result can be invalidated when resources of those types change.
+ * <p>
+ * Reads are recorded against the current thread, which is the thread on which queries are parsed
+ * and their resources retrieved. This includes resources that are reached through {@code
+ * resolve()}, {@code reverseResolve()} and {@code ofType()}, as these are read in the same way as
+ * the subject resource.
+ *
+ * @author John Grimes
+ */
+public abstract class ResourceDependencies {
+
+  private static final ThreadLocal<Set<ResourceType>> RECORDING = new ThreadLocal<>();
+
+  /**
+   * Computes a result, recording the types of resource that are read during the computation.
+   * Recordings may be nested, in which case the types read within the inner recording are also
+   * included within the outer one.
+   *
+   * @param computation the computation to perform
+   * @param <T> the type of the result
+   * @return the result, along with the resource types that it depends upon
+   */
+  @Nonnull
+  public static <T> Dependent<T> record(@Nonnull final Supplier<T> computation) {
+    @Nullable final Set<ResourceType> outer = RECORDING.get();
+    final Set<ResourceType> resourceTypes = EnumSet.noneOf(ResourceType.class);
+    RECORDING.set(resourceTypes);
+    try {
+      final T result = computation.get();
+      return new Dependent<>(result, Collections.unmodifiableSet(resourceTypes));
+    } finally {
+      if (outer == null) {
+        RECORDING.remove();
+      } else {
+        outer.addAll(resourceTypes);
+        RECORDING.set(outer);
+      }
+    }
+  }
+
+  /**
+   * Notes that resources of the specified type have been read. This has no effect if there is no
+   * recording in progress on the current thread.
+   *
+   * @param resourceType the type of resource that has been read
+   */
+  public static void recordRead(@Nonnull final ResourceType resourceType) {
+    @Nullable final Set<ResourceType> resourceTypes = RECORDING.get();
+    if (resourceTypes != null) {
+      resourceTypes.add(resourceType);
+    }
+  }
+
+  /**
+   * A result along with the types of resource that it depends upon.
+   *
+   * @param <T> the type of the result
+   */
+  @Value
+  public static class Dependent<T> {
+
+    T value;
+
+    @Nonnull
+    Set<ResourceType> resourceTypes;
+
+    /**
+     * @param changed a set of resource types that have changed
+     * @return true if this result depends upon any of the changed resource types
+     */
+    public boolean dependsOnAny(@Nonnull final Set<ResourceType> changed) {
+      return !Collections.disjoint(resourceTypes, changed);
+    }
+
+  }
+
+}
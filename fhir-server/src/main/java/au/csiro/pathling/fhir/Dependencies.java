@@ -66,6 +66,7 @@ public class Dependencies {
         terminology.getServerUrl(),
         terminology.getSocketTimeout(),
         configuration.getVerboseRequestLogging(),
+        terminology.getMaxConcurrentRequests(),
         log);
   }
 
@@ -80,7 +81,15 @@ public class Dependencies {
     return new TerminologyClientFactory(fhirContext,
         terminology.getServerUrl(),
         terminology.getSocketTimeout(),
-        configuration.getVerboseRequestLogging());
+        configuration.getVerboseRequestLogging(),
+        terminology.getCacheSize(),
+        terminology.getCacheTtl(),
+        terminology.getPersistentCacheDirectory().orElse(null),
+        terminology.getPersistentCacheTtl(),
+        terminology.getRequestBatchSize(),
+        terminology.getMaxConcurrentRequests(),
+        terminology.getKnownCodeSystemsTtl(),
+        terminology.getLocalCodeSystemsUrl().orElse(null));
   }
 
 }
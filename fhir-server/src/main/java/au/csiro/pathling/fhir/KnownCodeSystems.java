@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.CodeSystem;
+
+/**
+ * A registry of the code systems that are known to a terminology server.
+ * <p>
+ * The registry is loaded on the driver by listing all of the CodeSystem resources on the server,
+ * and is reused until it expires. It is broadcast to the executors, so that they do not need to
+ * search for each code system within each partition.
+ *
+ * @author John Grimes
+ */
+@Slf4j
+public class KnownCodeSystems implements Serializable {
+
+  private static final long serialVersionUID = -2207496542846424317L;
+
+  private static final int PAGE_SIZE = 1000;
+
+  private static final Map<String, Loaded> INSTANCES = new ConcurrentHashMap<>();
+
+  /**
+   * Ensures that each registry is only loaded by one thread at a time, without holding up the
+   * lookups for other terminology servers.
+   */
+  private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+  @Nonnull
+  private final Map<String, Set<String>> systems;
+
+  KnownCodeSystems(@Nonnull final Map<String, Set<String>> systems) {
+    this.systems = systems;
+  }
+
+  /**
+   * Gets the registry for a terminology server, loading it if it has not been loaded yet or has
+   * expired. A failure to list the code systems is also remembered for the time to live, so that
+   * the server is not asked again for each request.
+   *
+   * @param terminologyServerUrl the URL of the terminology server
+   * @param timeToLive the period for which a loaded registry is reused
+   * @param terminologyClient the {@link TerminologyClient} used to load the registry
+   * @return the registry, or nothing if the code systems could not be listed
+   */
+  @Nonnull
+  public static Optional<KnownCodeSystems> getInstance(@Nonnull final String terminologyServerUrl,
+      @Nonnull final Duration timeToLive, @Nonnull final TerminologyClient terminologyClient) {
+    @Nullable final Loaded current = INSTANCES.get(terminologyServerUrl);
+    if (current != null && current.isFresh(timeToLive)) {
+      return current.getRegistry();
+    }
+    synchronized (LOCKS.computeIfAbsent(terminologyServerUrl, url -> new Object())) {
+      // Another thread may have loaded the registry while this one was waiting.
+      @Nullable final Loaded latest = INSTANCES.get(terminologyServerUrl);
+      if (latest != null && latest.isFresh(timeToLive)) {
+        return latest.getRegistry();
+      }
+      final Loaded loaded = new Loaded(load(terminologyClient).orElse(null), Instant.now());
+      INSTANCES.put(terminologyServerUrl, loaded);
+      return loaded.getRegistry();
+    }
+  }
+
+  /**
+   * Lists all of the code systems on a terminology server, following each page of the results.
+   *
+   * @param terminologyClient the {@link TerminologyClient} to use
+   * @return the registry, or nothing if the server does not allow the code systems to be listed
+   */
+  @Nonnull
+  static Optional<KnownCodeSystems> load(@Nonnull final TerminologyClient terminologyClient) {
+    final Map<String, Set<String>> systems = new HashMap<>();
+    try {
+      Bundle page = terminologyClient.searchAllCodeSystems(
+          new HashSet<>(Arrays.asList("url", "version")), PAGE_SIZE);
+      @Nullable IGenericClient pagingClient = null;
+      while (true) {
+        page.getEntry().stream()
+            .map(BundleEntryComponent::getResource)
+            .filter(CodeSystem.class::isInstance)
+            .map(CodeSystem.class::cast)
+            .filter(codeSystem -> codeSystem.getUrl() != null)
+            .forEach(codeSystem -> {
+              final Set<String> versions = systems
+                  .computeIfAbsent(codeSystem.getUrl(), url -> new TreeSet<>());
+              if (codeSystem.getVersion() != null) {
+                versions.add(codeSystem.getVersion());
+              }
+            });
+        if (page.getLink(IBaseBundle.LINK_NEXT) == null) {
+          break;
+        }
+        if (pagingClient == null) {
+          pagingClient = terminologyClient.getFhirContext()
+              .newRestfulGenericClient(terminologyClient.getServerBase());
+        }
+        page = pagingClient.loadPage().next(page).execute();
+      }
+    } catch (final BaseServerResponseException e) {
+      log.warn("Unable to list the code systems known to the terminology server, they will be "
+          + "searched for individually: {}", e.getMessage());
+      return Optional.empty();
+    }
+    log.info("Loaded {} known code systems from terminology server", systems.size());
+    return Optional.of(new KnownCodeSystems(systems));
+  }
+
+  /**
+   * Finds out whether a code system is known to the terminology server. If there is a registry, it
+   * is used to answer the question. Otherwise, the server is searched for the code system, unless
+   * the answer is already in the cache.
+   *
+   * @param system the URI of the code system
+   * @param registry the registry of known code systems, if any
+   * @param cache the {@link TerminologyCache} to use, if any
+   * @param terminologyClient supplies the {@link TerminologyClient} to use
+   * @return true if the code system is known
+   */
+  public static boolean isKnown(@Nonnull final String system,
+      @Nonnull final Optional<KnownCodeSystems> registry,
+      @Nonnull final Optional<TerminologyCache> cache,
+      @Nonnull final Supplier<TerminologyClient> terminologyClient) {
+    if (registry.isPresent()) {
+      return registry.get().contains(system);
+    }
+    final Predicate<String> search = codeSystem -> !terminologyClient.get()
+        .searchCodeSystems(new UriParam(codeSystem), new HashSet<>(Collections.singletonList("id")))
+        .isEmpty();
+    return cache
+        .map(c -> c.isKnownCodeSystem(system, search))
+        .orElseGet(() -> search.test(system));
+  }
+
+  /**
+   * @param system the URI of a code system
+   * @return true if the code system is known to the terminology server
+   */
+  public boolean contains(@Nonnull final String system) {
+    return systems.containsKey(system);
+  }
+
+  /**
+   * Gets the versions of a code system that are held by the terminology server. This is what an
+   * unversioned coding is evaluated against, so it can be used to tell whether an answer received
+   * earlier may have been superseded by a new release.
+   *
+   * @param system the URI of a code system
+   * @return the versions held by the server, separated by commas, or nothing if the code system is
+   * unknown or unversioned
+   */
+  @Nonnull
+  public Optional<String> getVersions(@Nullable final String system) {
+    return Optional.ofNullable(system)
+        .map(systems::get)
+        .filter(versions -> !versions.isEmpty())
+        .map(versions -> String.join(",", versions));
+  }
+
+  /**
+   * The outcome of loading the registry for a terminology server, which is empty if the code
+   * systems could not be listed.
+   */
+  @Value
+  private static class Loaded {
+
+    @Nullable
+    KnownCodeSystems registry;
+
+    @Nonnull
+    Instant loaded;
+
+    @Nonnull
+    Optional<KnownCodeSystems> getRegistry() {
+      return Optional.ofNullable(registry);
+    }
+
+    boolean isFresh(@Nonnull final Duration timeToLive) {
+      return loaded.plus(timeToLive).isAfter(Instant.now());
+    }
+
+  }
+
+}
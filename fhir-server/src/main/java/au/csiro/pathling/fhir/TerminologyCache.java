@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import au.csiro.pathling.errors.UnexpectedServerError;
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import au.csiro.pathling.fhirpath.function.subsumes.Mapping;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Holds the answers received from a terminology service, so that they can be reused by all the
+ * partitions and requests that are processed within the same JVM.
+ * <p>
+ * There is one instance of this class per terminology server (and cache configuration) within each
+ * executor, which is obtained using {@link #getInstance}. Entries expire a fixed period after they
+ * are written, and each type of entry is bounded in number. Subsumption is cached as the
+ * relationship between each pair of codings, rather than as the closure of the set of codings
+ * within a partition, so that it can be reused by partitions that share some of their codings.
+ * <p>
+ * If a {@link TerminologyStore} is provided, memberships and closures that are not held in memory
+ * are looked for within the store before the terminology server is asked, and new answers are
+ * written to it.
+ *
+ * @author John Grimes
+ */
+@Slf4j
+public class TerminologyCache {
+
+  private static final Map<Key, TerminologyCache> INSTANCES = new ConcurrentHashMap<>();
+
+  @Nonnull
+  private final Cache<String, Boolean> codeSystems;
+
+  @Nonnull
+  private final Cache<Membership, Boolean> memberships;
+
+  @Nonnull
+  private final Cache<Mapping, Boolean> subsumptions;
+
+  @Nonnull
+  private final Optional<TerminologyStore> store;
+
+  /**
+   * @param maximumSize the maximum number of entries held for each type of request
+   * @param timeToLive the period after which an entry expires
+   */
+  public TerminologyCache(final long maximumSize, @Nonnull final Duration timeToLive) {
+    this(maximumSize, timeToLive, Optional.empty());
+  }
+
+  /**
+   * @param maximumSize the maximum number of entries held for each type of request
+   * @param timeToLive the period after which an entry expires
+   * @param store a {@link TerminologyStore} that persists memberships and closures, if any
+   */
+  public TerminologyCache(final long maximumSize, @Nonnull final Duration timeToLive,
+      @Nonnull final Optional<TerminologyStore> store) {
+    codeSystems = newCache(maximumSize, timeToLive);
+    memberships = newCache(maximumSize, timeToLive);
+    subsumptions = newCache(maximumSize, timeToLive);
+    this.store = store;
+  }
+
+  /**
+   * Gets the cache for a terminology server within this JVM, creating it if it does not already
+   * exist.
+   *
+   * @param terminologyServerUrl the URL of the terminology server
+   * @param maximumSize the maximum number of entries held for each type of request
+   * @param timeToLive the period after which an entry expires
+   * @param storeDirectory a directory in which to persist memberships and closures, if any
+   * @param storeTimeToLive the period after which a persisted entry expires
+   * @return the shared {@link TerminologyCache}
+   */
+  @Nonnull
+  public static TerminologyCache getInstance(@Nonnull final String terminologyServerUrl,
+      final long maximumSize, @Nonnull final Duration timeToLive,
+      @Nonnull final Optional<Path> storeDirectory, @Nonnull final Duration storeTimeToLive) {
+    final Key key = new Key(terminologyServerUrl, maximumSize, timeToLive, storeDirectory,
+        storeTimeToLive);
+    return INSTANCES.computeIfAbsent(key, k -> {
+      log.debug("Creating terminology cache for {}", k);
+      final Optional<TerminologyStore> store = storeDirectory.map(
+          directory -> TerminologyStore.forServer(directory, terminologyServerUrl,
+              storeTimeToLive));
+      return new TerminologyCache(maximumSize, timeToLive, store);
+    });
+  }
+
+  @Nonnull
+  private static <K, V> Cache<K, V> newCache(final long maximumSize,
+      @Nonnull final Duration timeToLive) {
+    return CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(timeToLive)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Finds out whether a code system is known to the terminology server, asking the server only if
+   * the answer is not already cached.
+   *
+   * @param system the URI of the code system
+   * @param lookup a function that asks the terminology server
+   * @return true if the code system is known
+   */
+  public boolean isKnownCodeSystem(@Nonnull final String system,
+      @Nonnull final Predicate<String> lookup) {
+    try {
+      return codeSystems.get(system, () -> lookup.test(system));
+    } catch (final ExecutionException | UncheckedExecutionException e) {
+      throw rethrow(e);
+    }
+  }
+
+  /**
+   * Finds which of a set of codings are members of a ValueSet. Only the codings for which the
+   * answer is not already cached or stored are passed to the terminology server.
+   *
+   * @param valueSetUri the URI of the ValueSet
+   * @param codings the codings to check
+   * @param knownCodeSystems the code systems known to the terminology server, if they have been
+   * loaded, which determine the versions under which answers are stored
+   * @param intersect a function that asks the terminology server which of a set of codings are
+   * members of the ValueSet
+   * @return the codings that are members of the ValueSet
+   */
+  @Nonnull
+  public Set<SimpleCoding> intersect(@Nonnull final String valueSetUri,
+      @Nonnull final Set<SimpleCoding> codings,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems,
+      @Nonnull final Function<Set<SimpleCoding>, Set<SimpleCoding>> intersect) {
+    final Set<Membership> keys = codings.stream()
+        .map(coding -> new Membership(valueSetUri, coding))
+        .collect(Collectors.toSet());
+    final Map<Membership, Boolean> cached = memberships.getAllPresent(keys);
+    final Set<SimpleCoding> members = cached.entrySet().stream()
+        .filter(Map.Entry::getValue)
+        .map(entry -> entry.getKey().getCoding())
+        .collect(Collectors.toCollection(HashSet::new));
+
+    final Set<SimpleCoding> uncached = keys.stream()
+        .filter(key -> !cached.containsKey(key))
+        .map(Membership::getCoding)
+        .collect(Collectors.toCollection(HashSet::new));
+    log.debug("Found {} of {} codings in terminology cache for {}", cached.size(), keys.size(),
+        valueSetUri);
+
+    if (!uncached.isEmpty() && store.isPresent()) {
+      final Map<SimpleCoding, Boolean> stored = store.get()
+          .getMemberships(valueSetUri, uncached, knownCodeSystems);
+      log.debug("Found {} of {} codings in terminology store for {}", stored.size(),
+          uncached.size(), valueSetUri);
+      stored.forEach((coding, member) -> {
+        memberships.put(new Membership(valueSetUri, coding), member);
+        if (member) {
+          members.add(coding);
+        }
+      });
+      uncached.removeAll(stored.keySet());
+    }
+
+    if (!uncached.isEmpty()) {
+      final Set<SimpleCoding> newMembers = intersect.apply(uncached);
+      final Map<SimpleCoding, Boolean> results = uncached.stream()
+          .collect(Collectors.toMap(coding -> coding, newMembers::contains));
+      results.forEach(
+          (coding, member) -> memberships.put(new Membership(valueSetUri, coding), member));
+      store.ifPresent(s -> s.putMemberships(valueSetUri, results, knownCodeSystems));
+      members.addAll(newMembers);
+    }
+    return members;
+  }
+
+  /**
+   * Gets the subsumption relationships between a set of codings. The relationship between each
+   * ordered pair of codings from the same code system is cached, so that it can be reused by any
+   * later set of codings that contains the same pair. The terminology server is only asked about
+   * the codings that are part of a pair that is not already cached, and the closure of these
+   * codings is looked for within the store before the server is asked.
+   * <p>
+   * Codings from different code systems are never related.
+   *
+   * @param codings the codings to find the relationships between
+   * @param knownCodeSystems the code systems known to the terminology server, if they have been
+   * loaded, which determine the versions under which answers are stored
+   * @param closure a function that asks the terminology server for the closure of a set of
+   * codings
+   * @return the relationships between the codings, each of which points from a coding to a coding
+   * that it subsumes, expressed using the codings that were supplied
+   */
+  @Nonnull
+  public List<Mapping> closure(@Nonnull final Set<SimpleCoding> codings,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems,
+      @Nonnull final Function<Set<SimpleCoding>, List<Mapping>> closure) {
+    final Set<Mapping> pairs = pairsOf(codings);
+    final Map<Mapping, Boolean> cached = subsumptions.getAllPresent(pairs);
+    final List<Mapping> mappings = cached.entrySet().stream()
+        .filter(Map.Entry::getValue)
+        .map(Map.Entry::getKey)
+        .collect(Collectors.toCollection(ArrayList::new));
+    final Set<SimpleCoding> uncached = pairs.stream()
+        .filter(pair -> !cached.containsKey(pair))
+        .flatMap(pair -> Stream.of(pair.getFrom(), pair.getTo()))
+        .collect(Collectors.toSet());
+    log.debug("Found {} of {} coding pairs in terminology cache", cached.size(), pairs.size());
+    if (uncached.isEmpty()) {
+      return mappings;
+    }
+
+    final Optional<List<Mapping>> stored = store
+        .flatMap(s -> s.getClosure(uncached, knownCodeSystems));
+    final List<Mapping> response = stored.orElseGet(() -> closure.apply(uncached));
+    if (stored.isEmpty()) {
+      store.ifPresent(s -> s.putClosure(uncached, response, knownCodeSystems));
+    }
+    final Set<Mapping> related = relate(uncached, response);
+    for (final Mapping pair : pairsOf(uncached)) {
+      final boolean subsumes = related.contains(pair);
+      subsumptions.put(pair, subsumes);
+      if (subsumes && !cached.containsKey(pair)) {
+        mappings.add(pair);
+      }
+    }
+    return mappings;
+  }
+
+  /**
+   * @return every ordered pair of distinct codings from the same code system
+   */
+  @Nonnull
+  private static Set<Mapping> pairsOf(@Nonnull final Set<SimpleCoding> codings) {
+    final Map<String, List<SimpleCoding>> bySystem = codings.stream()
+        .collect(Collectors.groupingBy(SimpleCoding::getSystem));
+    final Set<Mapping> pairs = new HashSet<>();
+    for (final List<SimpleCoding> system : bySystem.values()) {
+      for (final SimpleCoding from : system) {
+        for (final SimpleCoding to : system) {
+          if (!from.equals(to)) {
+            pairs.add(Mapping.of(from, to));
+          }
+        }
+      }
+    }
+    return pairs;
+  }
+
+  /**
+   * Expresses the mappings returned by the terminology server using the codings that were sent to
+   * it. The server may return a versioned coding for an unversioned one, in which case the mapping
+   * applies to the unversioned coding.
+   */
+  @Nonnull
+  private static Set<Mapping> relate(@Nonnull final Set<SimpleCoding> codings,
+      @Nonnull final List<Mapping> response) {
+    final Map<SimpleCoding, List<SimpleCoding>> byConcept = codings.stream()
+        .collect(Collectors.groupingBy(SimpleCoding::toNonVersioned));
+    final Function<SimpleCoding, Stream<SimpleCoding>> matching = returned -> byConcept
+        .getOrDefault(returned.toNonVersioned(), Collections.emptyList()).stream()
+        .filter(coding -> !coding.isVersioned() || !returned.isVersioned()
+            || coding.equals(returned));
+    return response.stream()
+        .flatMap(mapping -> matching.apply(mapping.getFrom())
+            .flatMap(from -> matching.apply(mapping.getTo())
+                .filter(to -> !to.equals(from))
+                .map(to -> Mapping.of(from, to))))
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Errors from the terminology client are passed through unwrapped, so that they are handled in
+   * the same way as when there is no cache.
+   */
+  @Nonnull
+  private static RuntimeException rethrow(@Nonnull final Exception e) {
+    Throwables.throwIfUnchecked(e.getCause());
+    return new UnexpectedServerError(e.getCause());
+  }
+
+  /**
+   * @return the statistics for each type of request, which include the hit rates
+   */
+  @Nonnull
+  public Statistics getStatistics() {
+    return new Statistics(codeSystems.stats(), memberships.stats(), subsumptions.stats());
+  }
+
+  @Value
+  private static class Key {
+
+    @Nonnull
+    String terminologyServerUrl;
+
+    long maximumSize;
+
+    @Nonnull
+    Duration timeToLive;
+
+    @Nonnull
+    Optional<Path> storeDirectory;
+
+    @Nonnull
+    Duration storeTimeToLive;
+
+  }
+
+  @Value
+  private static class Membership {
+
+    @Nonnull
+    String valueSetUri;
+
+    @Nonnull
+    SimpleCoding coding;
+
+  }
+
+  /**
+   * The statistics for each type of request held within a {@link TerminologyCache}.
+   */
+  @Value
+  public static class Statistics {
+
+    @Nonnull
+    CacheStats codeSystems;
+
+    @Nonnull
+    CacheStats memberships;
+
+    @Nonnull
+    CacheStats subsumptions;
+
+  }
+
+}
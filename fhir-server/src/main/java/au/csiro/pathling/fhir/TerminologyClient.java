@@ -8,6 +8,7 @@ package au.csiro.pathling.fhir;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.rest.annotation.Count;
 import ca.uhn.fhir.rest.client.api.IRestfulClient;
 import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
@@ -39,6 +40,16 @@ public interface TerminologyClient extends IRestfulClient {
   List<CodeSystem> searchCodeSystems(@RequiredParam(name = CodeSystem.SP_URL) UriParam uri,
       @Elements Set<String> elements);
 
+  /**
+   * Performs a CodeSystem search that returns all of the code systems on the server.
+   *
+   * @param elements a set of elements to return within the response
+   * @param count the maximum number of code systems to return within each page
+   * @return a {@link Bundle} containing the first page of results
+   */
+  @Search(type = CodeSystem.class)
+  Bundle searchAllCodeSystems(@Elements Set<String> elements, @Count Integer count);
+
   /**
    * Invokes an "expand" request against the terminology server, using an inline ValueSet resource
    *
@@ -76,16 +87,27 @@ public interface TerminologyClient extends IRestfulClient {
    * with
    * @param socketTimeout the number of milliseconds to wait for response data
    * @param verboseRequestLogging whether to log out verbose details of each request
+   * @param maxConnections the minimum number of pooled connections that should be available to the
+   * terminology server
    * @param logger a {@link Logger} to use for logging
    * @return a shiny new TerminologyClient instance
    */
   @Nonnull
   static TerminologyClient build(@Nonnull final FhirContext fhirContext,
       @Nonnull final String terminologyServerUrl, final int socketTimeout,
-      final boolean verboseRequestLogging, @Nonnull final Logger logger) {
+      final boolean verboseRequestLogging, final int maxConnections,
+      @Nonnull final Logger logger) {
     final IRestfulClientFactory restfulClientFactory = fhirContext.getRestfulClientFactory();
     restfulClientFactory.setSocketTimeout(socketTimeout);
     restfulClientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+    // The connection pool is shared by all clients created from the same FhirContext, so it is only
+    // ever enlarged. Changing its size causes the underlying HTTP client to be recreated.
+    if (restfulClientFactory.getPoolMaxPerRoute() < maxConnections) {
+      restfulClientFactory.setPoolMaxPerRoute(maxConnections);
+    }
+    if (restfulClientFactory.getPoolMaxTotal() < maxConnections) {
+      restfulClientFactory.setPoolMaxTotal(maxConnections);
+    }
 
     final TerminologyClient terminologyClient = restfulClientFactory
         .newClient(TerminologyClient.class, terminologyServerUrl);
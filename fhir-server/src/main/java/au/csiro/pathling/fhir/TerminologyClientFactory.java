@@ -10,7 +10,11 @@ import au.csiro.pathling.encoders.FhirEncoders;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 
 /**
@@ -33,20 +37,61 @@ public class TerminologyClientFactory implements Serializable {
 
   private final boolean verboseRequestLogging;
 
+  private final long cacheSize;
+
+  private final long cacheTtl;
+
+  @Nullable
+  private final String persistentCacheDirectory;
+
+  private final long persistentCacheTtl;
+
+  private final int requestBatchSize;
+
+  private final int maxConcurrentRequests;
+
+  private final long knownCodeSystemsTtl;
+
+  @Nullable
+  private final String localCodeSystemsUrl;
+
   /**
    * @param fhirContext the {@link FhirContext} used to build the client
    * @param terminologyServerUrl the URL of the terminology server this client will communicate
    * with
    * @param socketTimeout the number of milliseconds to wait for response data
    * @param verboseRequestLogging whether to log out verbose details of each request
+   * @param cacheSize the maximum number of results of each type to cache within each executor, or
+   * zero to disable caching
+   * @param cacheTtl the number of seconds for which a cached result is used
+   * @param persistentCacheDirectory a local directory in which to persist results, or null to only
+   * cache results in memory
+   * @param persistentCacheTtl the number of seconds for which a persisted result is used
+   * @param requestBatchSize the maximum number of codings sent within each request
+   * @param maxConcurrentRequests the maximum number of requests made at once within each executor
+   * @param knownCodeSystemsTtl the number of seconds for which the list of known code systems is
+   * reused, or zero to search for each code system within each partition
+   * @param localCodeSystemsUrl the location of CodeSystem resources with hierarchies that are used
+   * to test subsumption locally, or null to send all subsumption tests to the terminology server
    */
   public TerminologyClientFactory(@Nonnull final FhirContext fhirContext,
       @Nonnull final String terminologyServerUrl, final int socketTimeout,
-      final boolean verboseRequestLogging) {
+      final boolean verboseRequestLogging, final long cacheSize, final long cacheTtl,
+      @Nullable final String persistentCacheDirectory, final long persistentCacheTtl,
+      final int requestBatchSize, final int maxConcurrentRequests,
+      final long knownCodeSystemsTtl, @Nullable final String localCodeSystemsUrl) {
     this.fhirVersion = fhirContext.getVersion().getVersion();
     this.terminologyServerUrl = terminologyServerUrl;
     this.socketTimeout = socketTimeout;
     this.verboseRequestLogging = verboseRequestLogging;
+    this.cacheSize = cacheSize;
+    this.cacheTtl = cacheTtl;
+    this.persistentCacheDirectory = persistentCacheDirectory;
+    this.persistentCacheTtl = persistentCacheTtl;
+    this.requestBatchSize = requestBatchSize;
+    this.maxConcurrentRequests = maxConcurrentRequests;
+    this.knownCodeSystemsTtl = knownCodeSystemsTtl;
+    this.localCodeSystemsUrl = localCodeSystemsUrl;
   }
 
   /**
@@ -59,7 +104,66 @@ public class TerminologyClientFactory implements Serializable {
   public TerminologyClient build(@Nonnull final Logger logger) {
     return TerminologyClient
         .build(FhirEncoders.contextFor(fhirVersion), terminologyServerUrl, socketTimeout,
-            verboseRequestLogging, logger);
+            verboseRequestLogging, maxConcurrentRequests, logger);
+  }
+
+  /**
+   * Gets the cache of terminology results that is shared by all the partitions and requests that
+   * use this terminology server within the current JVM.
+   *
+   * @return the {@link TerminologyCache}, or nothing if caching is disabled
+   */
+  @Nonnull
+  public Optional<TerminologyCache> getCache() {
+    if (cacheSize <= 0 && persistentCacheDirectory == null) {
+      return Optional.empty();
+    }
+    return Optional.of(TerminologyCache
+        .getInstance(terminologyServerUrl, cacheSize, Duration.ofSeconds(cacheTtl),
+            Optional.ofNullable(persistentCacheDirectory).map(Path::of),
+            Duration.ofSeconds(persistentCacheTtl)));
+  }
+
+  /**
+   * Gets the registry of code systems that are known to this terminology server. This is intended
+   * to be called on the driver, the registry is reused until it expires.
+   *
+   * @param terminologyClient the {@link TerminologyClient} used to load the registry, if needed
+   * @return the {@link KnownCodeSystems}, or nothing if the registry is disabled or could not be
+   * loaded
+   */
+  @Nonnull
+  public Optional<KnownCodeSystems> getKnownCodeSystems(
+      @Nonnull final TerminologyClient terminologyClient) {
+    if (knownCodeSystemsTtl <= 0) {
+      return Optional.empty();
+    }
+    return KnownCodeSystems.getInstance(terminologyServerUrl,
+        Duration.ofSeconds(knownCodeSystemsTtl), terminologyClient);
+  }
+
+  /**
+   * @return the location of the CodeSystem resources with hierarchies that are used to test
+   * subsumption locally, if configured
+   */
+  @Nonnull
+  public Optional<String> getLocalCodeSystemsUrl() {
+    return Optional.ofNullable(localCodeSystemsUrl);
+  }
+
+  /**
+   * @return the maximum number of codings sent within each request to the terminology server
+   */
+  public int getRequestBatchSize() {
+    return requestBatchSize;
+  }
+
+  /**
+   * @return the maximum number of requests made to the terminology server at once within each
+   * executor
+   */
+  public int getMaxConcurrentRequests() {
+    return maxConcurrentRequests;
   }
 
 }
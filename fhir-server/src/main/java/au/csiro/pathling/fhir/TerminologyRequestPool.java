@@ -0,0 +1,162 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import au.csiro.pathling.errors.UnexpectedServerError;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+
+/**
+ * Splits large requests to a terminology service into batches, and runs independent requests
+ * concurrently.
+ * <p>
+ * When concurrency is enabled, requests are run using a pool of threads that is shared by
+ * everything within the same JVM that uses the same level of concurrency, so that the number of
+ * concurrent requests made by each executor is bounded regardless of how many partitions it is
+ * processing at once.
+ *
+ * @author John Grimes
+ */
+@Slf4j
+public class TerminologyRequestPool {
+
+  private static final Map<Integer, ExecutorService> THREAD_POOLS = new ConcurrentHashMap<>();
+
+  private final int batchSize;
+
+  @Nonnull
+  private final Optional<ExecutorService> executorService;
+
+  /**
+   * @param batchSize the maximum number of items within each request, or zero for no limit
+   * @param maxConcurrentRequests the maximum number of requests that are run at once within this
+   * JVM, one or less means that requests are run one after another on the calling thread
+   */
+  public TerminologyRequestPool(final int batchSize, final int maxConcurrentRequests) {
+    this.batchSize = batchSize > 0
+                     ? batchSize
+                     : Integer.MAX_VALUE;
+    executorService = maxConcurrentRequests > 1
+                      ? Optional.of(THREAD_POOLS.computeIfAbsent(maxConcurrentRequests,
+                          TerminologyRequestPool::newThreadPool))
+                      : Optional.empty();
+  }
+
+  /**
+   * Creates a pool that uses the batch size and concurrency configured for a terminology server.
+   *
+   * @param terminologyClientFactory the {@link TerminologyClientFactory} for the terminology server
+   * @return a new {@link TerminologyRequestPool}
+   */
+  @Nonnull
+  public static TerminologyRequestPool forFactory(
+      @Nonnull final TerminologyClientFactory terminologyClientFactory) {
+    return new TerminologyRequestPool(terminologyClientFactory.getRequestBatchSize(),
+        terminologyClientFactory.getMaxConcurrentRequests());
+  }
+
+  @Nonnull
+  private static ExecutorService newThreadPool(final int size) {
+    log.debug("Creating terminology request pool with {} threads", size);
+    return Executors.newFixedThreadPool(size, new ThreadFactoryBuilder()
+        .setNameFormat("terminology-request-" + size + "-%d")
+        .setDaemon(true)
+        .build());
+  }
+
+  /**
+   * Splits a collection of items into batches, each of which is no larger than the batch size.
+   *
+   * @param items the items to split
+   * @param <T> the type of the items
+   * @return a list of batches
+   */
+  @Nonnull
+  public <T> List<List<T>> batches(@Nonnull final Collection<T> items) {
+    return Lists.partition(new ArrayList<>(items), batchSize);
+  }
+
+  /**
+   * Runs a request within the pool, and waits for it to complete.
+   *
+   * @param request the request to run
+   * @param <R> the type of the result of the request
+   * @return the result of the request
+   */
+  public <R> R invoke(@Nonnull final Supplier<R> request) {
+    return invokeAll(Collections.singletonList(request)).get(0);
+  }
+
+  /**
+   * Runs a list of requests, concurrently if the pool allows it, and waits for all of them to
+   * complete. If any of the requests fail, the remaining requests are cancelled and the error is
+   * thrown.
+   *
+   * @param requests the requests to run
+   * @param <R> the type of the result of each request
+   * @return the results of the requests, in the same order as the requests
+   */
+  @Nonnull
+  public <R> List<R> invokeAll(@Nonnull final List<Supplier<R>> requests) {
+    if (executorService.isEmpty()) {
+      return requests.stream()
+          .map(Supplier::get)
+          .collect(Collectors.toList());
+    }
+
+    // Carry the logging context of the calling thread (e.g. the request ID) over to the threads
+    // that make the requests.
+    @Nullable final Map<String, String> context = MDC.getCopyOfContextMap();
+    final List<Future<R>> futures = requests.stream()
+        .map(request -> executorService.get().submit(() -> {
+          if (context != null) {
+            MDC.setContextMap(context);
+          }
+          try {
+            return request.get();
+          } finally {
+            MDC.clear();
+          }
+        }))
+        .collect(Collectors.toList());
+
+    final List<R> results = new ArrayList<>();
+    try {
+      for (final Future<R> future : futures) {
+        results.add(future.get());
+      }
+    } catch (final ExecutionException e) {
+      futures.forEach(future -> future.cancel(true));
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new UnexpectedServerError(e.getCause());
+    } catch (final InterruptedException e) {
+      futures.forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new UnexpectedServerError("Interrupted while waiting for terminology requests", e);
+    }
+    return results;
+  }
+
+}
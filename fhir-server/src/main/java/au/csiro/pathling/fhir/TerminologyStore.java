@@ -0,0 +1,498 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import au.csiro.pathling.fhirpath.function.subsumes.Mapping;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persists the answers received from a terminology service within a local directory, so that they
+ * survive restarts of the server and its executors.
+ * <p>
+ * Memberships are stored in one file for each combination of ValueSet and code system version.
+ * Closures are stored in one file for each set of codings, grouped by the code system versions that
+ * they contain. The version of an unversioned coding is taken to be the versions of its code
+ * system that are held by the terminology server, so that a new release of a code system is not
+ * answered using results from the old one. Each entry records the time at which it was written,
+ * and is ignored once it is older than the configured time to live.
+ * <p>
+ * Entries are stored as JSON. New memberships are appended to their file, and the file is compacted
+ * once most of its lines have been superseded or have expired. Writers hold a lock on the file, so
+ * that the store can be shared by more than one process, and files are only ever replaced using an
+ * atomic move. Problems reading from or writing to the store are logged, and treated as though the
+ * entry was not present.
+ *
+ * @author John Grimes
+ */
+@Slf4j
+public class TerminologyStore {
+
+  private static final String MEMBERSHIPS = "memberships";
+
+  private static final String CLOSURES = "closures";
+
+  private static final String LOCK_SUFFIX = ".lock";
+
+  /**
+   * A membership file is compacted once it holds more than this many lines for each live entry.
+   */
+  private static final int COMPACTION_RATIO = 2;
+
+  /**
+   * Membership files with fewer lines than this are never compacted.
+   */
+  private static final int COMPACTION_MINIMUM = 1000;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+      .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+  /**
+   * Serialises writers to the same file within this JVM, as a file lock is held on behalf of the
+   * whole process.
+   */
+  private static final Striped<Lock> LOCKS = Striped.lock(64);
+
+  @Nonnull
+  private final Path directory;
+
+  @Nonnull
+  private final Duration timeToLive;
+
+  @Nonnull
+  private final Clock clock;
+
+  /**
+   * @param directory the directory in which to store the entries
+   * @param timeToLive the period after which an entry expires
+   */
+  public TerminologyStore(@Nonnull final Path directory, @Nonnull final Duration timeToLive) {
+    this(directory, timeToLive, Clock.systemUTC());
+  }
+
+  /**
+   * @param directory the directory in which to store the entries
+   * @param timeToLive the period after which an entry expires
+   * @param clock the {@link Clock} used to record when entries are written
+   */
+  public TerminologyStore(@Nonnull final Path directory, @Nonnull final Duration timeToLive,
+      @Nonnull final Clock clock) {
+    this.directory = directory;
+    this.timeToLive = timeToLive;
+    this.clock = clock;
+  }
+
+  /**
+   * Creates a store for the results from a terminology server, within a subdirectory of a shared
+   * directory.
+   *
+   * @param directory the directory that is shared by all terminology servers
+   * @param terminologyServerUrl the URL of the terminology server
+   * @param timeToLive the period after which an entry expires
+   * @return a new {@link TerminologyStore}
+   */
+  @Nonnull
+  public static TerminologyStore forServer(@Nonnull final Path directory,
+      @Nonnull final String terminologyServerUrl, @Nonnull final Duration timeToLive) {
+    return new TerminologyStore(directory.resolve(hash(terminologyServerUrl)), timeToLive);
+  }
+
+  /**
+   * Gets the stored membership of a set of codings within a ValueSet.
+   *
+   * @param valueSetUri the URI of the ValueSet
+   * @param codings the codings to look up
+   * @param knownCodeSystems the code systems known to the terminology server, if they have been
+   * loaded
+   * @return a map from each coding that was found to whether it is a member of the ValueSet
+   */
+  @Nonnull
+  public Map<SimpleCoding, Boolean> getMemberships(@Nonnull final String valueSetUri,
+      @Nonnull final Collection<SimpleCoding> codings,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems) {
+    final Map<SimpleCoding, Boolean> result = new HashMap<>();
+    final Map<CodeSystemVersion, List<SimpleCoding>> codingsBySystem = codings.stream()
+        .collect(Collectors.groupingBy(coding -> CodeSystemVersion.of(coding, knownCodeSystems)));
+    for (final Map.Entry<CodeSystemVersion, List<SimpleCoding>> group : codingsBySystem
+        .entrySet()) {
+      final Path file = membershipFile(valueSetUri, group.getKey());
+      final List<String> lines = readLines(file);
+      final Map<String, StoredMembership> stored = liveMemberships(lines);
+      for (final SimpleCoding coding : group.getValue()) {
+        final StoredMembership membership = stored.get(coding.getCode());
+        if (membership != null) {
+          result.put(coding, membership.isMember());
+        }
+      }
+      if (lines.size() >= COMPACTION_MINIMUM
+          && lines.size() > COMPACTION_RATIO * stored.size()) {
+        compact(file);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Stores the membership of a set of codings within a ValueSet, alongside any memberships that are
+   * already stored for the same ValueSet.
+   *
+   * @param valueSetUri the URI of the ValueSet
+   * @param memberships a map from each coding to whether it is a member of the ValueSet
+   * @param knownCodeSystems the code systems known to the terminology server, if they have been
+   * loaded
+   */
+  public void putMemberships(@Nonnull final String valueSetUri,
+      @Nonnull final Map<SimpleCoding, Boolean> memberships,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems) {
+    final Map<CodeSystemVersion, List<SimpleCoding>> codingsBySystem = memberships.keySet()
+        .stream()
+        .collect(Collectors.groupingBy(coding -> CodeSystemVersion.of(coding, knownCodeSystems)));
+    final long written = clock.millis();
+    for (final Map.Entry<CodeSystemVersion, List<SimpleCoding>> group : codingsBySystem
+        .entrySet()) {
+      final Path file = membershipFile(valueSetUri, group.getKey());
+      try {
+        final StringBuilder lines = new StringBuilder();
+        for (final SimpleCoding coding : group.getValue()) {
+          lines.append(toJson(new StoredMembership(coding.getCode(), memberships.get(coding),
+              written))).append('\n');
+        }
+        append(file, lines.toString());
+      } catch (final IOException e) {
+        log.warn("Unable to write terminology store entry: {}", file, e);
+      }
+    }
+  }
+
+  /**
+   * Gets the stored subsumption relationships between a set of codings.
+   *
+   * @param codings the codings that the closure was requested for
+   * @param knownCodeSystems the code systems known to the terminology server, if they have been
+   * loaded
+   * @return the relationships between the codings, if they have been stored
+   */
+  @Nonnull
+  public Optional<List<Mapping>> getClosure(@Nonnull final Set<SimpleCoding> codings,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems) {
+    final Path file = closureFile(codings, knownCodeSystems);
+    return readLines(file).stream()
+        .findFirst()
+        .flatMap(line -> fromJson(line, StoredClosure.class, file))
+        .filter(closure -> isLive(closure.getWritten()))
+        // Guard against the very unlikely case of two sets of codings with the same hash.
+        .filter(closure -> new HashSet<>(closure.getCodings()).equals(codings))
+        .map(closure -> closure.getMappings().stream()
+            .filter(mapping -> mapping.getFrom() != null && mapping.getTo() != null)
+            .map(mapping -> Mapping.of(mapping.getFrom(), mapping.getTo()))
+            .collect(Collectors.toList()));
+  }
+
+  /**
+   * Stores the subsumption relationships between a set of codings.
+   *
+   * @param codings the codings that the closure was requested for
+   * @param mappings the relationships between the codings
+   * @param knownCodeSystems the code systems known to the terminology server, if they have been
+   * loaded
+   */
+  public void putClosure(@Nonnull final Set<SimpleCoding> codings,
+      @Nonnull final List<Mapping> mappings,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems) {
+    final StoredClosure closure = new StoredClosure(new ArrayList<>(codings),
+        mappings.stream()
+            .map(mapping -> new StoredMapping(mapping.getFrom(), mapping.getTo()))
+            .collect(Collectors.toList()), clock.millis());
+    final Path file = closureFile(codings, knownCodeSystems);
+    try {
+      Files.createDirectories(file.getParent());
+      replace(file, toJson(closure) + "\n");
+    } catch (final IOException e) {
+      log.warn("Unable to write terminology store entry: {}", file, e);
+    }
+  }
+
+  private boolean isLive(final long written) {
+    return clock.millis() - written < timeToLive.toMillis();
+  }
+
+  /**
+   * Reads the latest live membership of each code within a membership file. Later lines supersede
+   * earlier ones, and lines that cannot be read, such as one that is still being written, are
+   * skipped.
+   */
+  @Nonnull
+  private Map<String, StoredMembership> liveMemberships(@Nonnull final List<String> lines) {
+    final Map<String, StoredMembership> memberships = new HashMap<>();
+    for (final String line : lines) {
+      final Optional<StoredMembership> membership = fromJson(line, StoredMembership.class, null);
+      membership.filter(m -> m.getCode() != null)
+          .ifPresent(m -> memberships.put(m.getCode(), m));
+    }
+    memberships.values().removeIf(membership -> !isLive(membership.getWritten()));
+    return memberships;
+  }
+
+  /**
+   * Rewrites a membership file so that it only contains the latest live membership of each code.
+   */
+  private void compact(@Nonnull final Path file) {
+    try {
+      withLock(file, () -> {
+        // The file is read again while holding the lock, as another writer may have appended to it.
+        final StringBuilder content = new StringBuilder();
+        for (final StoredMembership membership : liveMemberships(readLines(file)).values()) {
+          content.append(toJson(membership)).append('\n');
+        }
+        replace(file, content.toString());
+      });
+      log.debug("Compacted terminology store entry: {}", file);
+    } catch (final IOException e) {
+      log.warn("Unable to compact terminology store entry: {}", file, e);
+    }
+  }
+
+  /**
+   * Appends lines to a file while holding its lock. Each batch is written in a single operation, so
+   * that a reader sees either nothing or a prefix of the batch that ends in a partial line.
+   */
+  private static void append(@Nonnull final Path file, @Nonnull final String lines)
+      throws IOException {
+    Files.createDirectories(file.getParent());
+    withLock(file, () -> {
+      try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        final long size = channel.size();
+        String content = lines;
+        if (size > 0) {
+          // If the previous write was cut short, the partial line is terminated so that it does
+          // not run into the new entries.
+          final ByteBuffer last = ByteBuffer.allocate(1);
+          channel.read(last, size - 1);
+          if (last.get(0) != '\n') {
+            content = "\n" + content;
+          }
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+        long position = size;
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+    });
+  }
+
+  /**
+   * Replaces the content of a file by writing to a temporary file first, so that readers never see
+   * a partially written file.
+   */
+  private static void replace(@Nonnull final Path file, @Nonnull final String content)
+      throws IOException {
+    final Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(),
+        ".tmp");
+    try {
+      Files.writeString(temporary, content, StandardCharsets.UTF_8);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Runs an action while holding the lock on a file, which excludes writers within this JVM and
+   * within any other process that shares the directory.
+   */
+  private static void withLock(@Nonnull final Path file, @Nonnull final IOAction action)
+      throws IOException {
+    final Path lockFile = file.resolveSibling(file.getFileName() + LOCK_SUFFIX);
+    final Lock lock = LOCKS.get(lockFile);
+    lock.lock();
+    try (final FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+        final FileLock ignored = channel.lock()) {
+      action.run();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Nonnull
+  private static List<String> readLines(@Nonnull final Path file) {
+    if (!Files.exists(file)) {
+      return new ArrayList<>();
+    }
+    try {
+      // Malformed characters within a partially written line are replaced rather than rejected.
+      final String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+      return content.lines()
+          .filter(line -> !line.isBlank())
+          .collect(Collectors.toList());
+    } catch (final IOException e) {
+      log.warn("Unable to read terminology store entry: {}", file, e);
+      return new ArrayList<>();
+    }
+  }
+
+  @Nonnull
+  private static String toJson(@Nonnull final Object value) throws IOException {
+    return MAPPER.writeValueAsString(value);
+  }
+
+  @Nonnull
+  private static <T> Optional<T> fromJson(@Nonnull final String line, @Nonnull final Class<T> type,
+      @Nullable final Path file) {
+    try {
+      return Optional.ofNullable(MAPPER.readValue(line, type));
+    } catch (final JsonProcessingException e) {
+      if (file != null) {
+        log.warn("Unable to read terminology store entry: {}", file, e);
+      }
+      return Optional.empty();
+    }
+  }
+
+  @Nonnull
+  private Path membershipFile(@Nonnull final String valueSetUri,
+      @Nonnull final CodeSystemVersion codeSystem) {
+    return directory.resolve(MEMBERSHIPS)
+        .resolve(hash(valueSetUri))
+        .resolve(hash(codeSystem.toString()));
+  }
+
+  @Nonnull
+  private Path closureFile(@Nonnull final Set<SimpleCoding> codings,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems) {
+    final String codeSystems = codings.stream()
+        .map(coding -> CodeSystemVersion.of(coding, knownCodeSystems).toString())
+        .distinct()
+        .sorted()
+        .collect(Collectors.joining("\n"));
+    final String key = codings.stream()
+        .map(coding -> coding.getSystem() + "|" + coding.getVersion() + "|" + coding.getCode())
+        .sorted()
+        .collect(Collectors.joining("\n"));
+    return directory.resolve(CLOSURES)
+        .resolve(hash(codeSystems))
+        .resolve(hash(key));
+  }
+
+  @Nonnull
+  private static String hash(@Nonnull final String value) {
+    return Hashing.sha256().hashString(value, StandardCharsets.UTF_8).toString();
+  }
+
+  @FunctionalInterface
+  private interface IOAction {
+
+    void run() throws IOException;
+
+  }
+
+  @Value
+  private static class CodeSystemVersion {
+
+    @Nullable
+    String system;
+
+    @Nullable
+    String version;
+
+    @Nonnull
+    static CodeSystemVersion of(@Nonnull final SimpleCoding coding,
+        @Nonnull final Optional<KnownCodeSystems> knownCodeSystems) {
+      final String version = coding.isVersioned()
+                             ? coding.getVersion()
+                             : knownCodeSystems
+                                 .flatMap(registry -> registry.getVersions(coding.getSystem()))
+                                 .orElse(null);
+      return new CodeSystemVersion(coding.getSystem(), version);
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toString(system) + "|" + Objects.toString(version);
+    }
+
+  }
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  private static class StoredMembership {
+
+    @Nullable
+    private String code;
+
+    private boolean member;
+
+    private long written;
+
+  }
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  private static class StoredMapping {
+
+    @Nullable
+    private SimpleCoding from;
+
+    @Nullable
+    private SimpleCoding to;
+
+  }
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  private static class StoredClosure {
+
+    @Nonnull
+    private List<SimpleCoding> codings = new ArrayList<>();
+
+    @Nonnull
+    private List<StoredMapping> mappings = new ArrayList<>();
+
+    private long written;
+
+  }
+
+}
@@ -13,6 +13,7 @@ import static org.apache.spark.sql.functions.col;
 import au.csiro.pathling.QueryHelpers.DatasetWithColumnMap;
 import au.csiro.pathling.fhirpath.element.ElementDefinition;
 import au.csiro.pathling.io.ResourceReader;
+import au.csiro.pathling.io.TemporalColumns;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import java.util.Map;
@@ -43,15 +44,20 @@ public class ResourcePath extends NonLiteralPath {
   @Nonnull
   private final Map<String, Column> elementsToColumns;
 
+  @Nonnull
+  private final Optional<ResourceProjection> projection;
+
   protected ResourcePath(@Nonnull final String expression, @Nonnull final Dataset<Row> dataset,
       @Nonnull final Column idColumn, @Nonnull final Optional<Column> eidColumn,
       @Nonnull final Column valueColumn, final boolean singular,
       @Nonnull final Optional<Column> thisColumn, @Nonnull final ResourceDefinition definition,
-      @Nonnull final Map<String, Column> elementsToColumns) {
+      @Nonnull final Map<String, Column> elementsToColumns,
+      @Nonnull final Optional<ResourceProjection> projection) {
     super(expression, dataset, idColumn, eidColumn, valueColumn, singular, Optional.empty(),
         thisColumn);
     this.definition = definition;
     this.elementsToColumns = elementsToColumns;
+    this.projection = projection;
   }
 
   /**
@@ -86,6 +92,28 @@ public class ResourcePath extends NonLiteralPath {
   public static ResourcePath build(@Nonnull final FhirContext fhirContext,
       @Nonnull final ResourceReader resourceReader, @Nonnull final ResourceType resourceType,
       @Nonnull final String expression, final boolean singular, final boolean skipAliasing) {
+    return build(fhirContext, resourceReader, resourceType, expression, singular, skipAliasing,
+        Optional.empty());
+  }
+
+  /**
+   * Build a new ResourcePath using the supplied {@link FhirContext} and {@link ResourceReader}.
+   *
+   * @param fhirContext the {@link FhirContext} to use for sourcing the resource definition
+   * @param resourceReader the {@link ResourceReader} to use for retrieving the Dataset
+   * @param resourceType the type of the resource
+   * @param expression the expression to use in the resulting path
+   * @param singular whether the resulting path should be flagged as a single item collection
+   * @param skipAliasing set to true to skip column aliasing
+   * @param projection a {@link ResourceProjection} that records the elements accessed through this
+   * path, and restricts the columns that are read
+   * @return A shiny new ResourcePath
+   */
+  @Nonnull
+  public static ResourcePath build(@Nonnull final FhirContext fhirContext,
+      @Nonnull final ResourceReader resourceReader, @Nonnull final ResourceType resourceType,
+      @Nonnull final String expression, final boolean singular, final boolean skipAliasing,
+      @Nonnull final Optional<ResourceProjection> projection) {
 
     // Get the resource definition from HAPI.
     final String resourceCode = resourceType.toCode();
@@ -93,8 +121,11 @@ public class ResourcePath extends NonLiteralPath {
         .getResourceDefinition(resourceCode);
     final ResourceDefinition definition = new ResourceDefinition(resourceType, hapiDefinition);
 
-    // Retrieve the dataset for the resource type using the supplied resource reader.
-    final Dataset<Row> dataset = resourceReader.read(resourceType);
+    // Retrieve the dataset for the resource type using the supplied resource reader. If there is a
+    // projection, it decides which of the columns are read.
+    final Dataset<Row> dataset = projection
+        .map(p -> p.read(resourceReader, resourceType))
+        .orElseGet(() -> resourceReader.read(resourceType));
 
     final Column idColumn = col("id");
     final Column finalIdColumn;
@@ -123,7 +154,7 @@ public class ResourcePath extends NonLiteralPath {
     // We use the ID column as the value column for a ResourcePath.
     return new ResourcePath(expression, finalDataset, finalIdColumn, Optional.empty(),
         finalIdColumn, singular,
-        Optional.empty(), definition, elementsToColumns);
+        Optional.empty(), definition, elementsToColumns, projection);
   }
 
   /**
@@ -132,9 +163,25 @@ public class ResourcePath extends NonLiteralPath {
    */
   @Nonnull
   public Column getElementColumn(@Nonnull final String elementName) {
+    projection.ifPresent(p -> p.record(getResourceType(), elementName));
     return Objects.requireNonNull(elementsToColumns.get(elementName));
   }
 
+  /**
+   * @param elementName the name of a date or dateTime element
+   * @return the {@link Column} within the dataset containing the instant at the start of each value
+   * of the element, if the resources were written with one
+   * @see TemporalColumns
+   */
+  @Nonnull
+  public Optional<Column> getInstantColumn(@Nonnull final String elementName) {
+    final String columnName = TemporalColumns.instantColumnName(elementName);
+    final Optional<Column> instantColumn = Optional.ofNullable(elementsToColumns.get(columnName));
+    instantColumn.ifPresent(column -> projection
+        .ifPresent(p -> p.record(getResourceType(), columnName)));
+    return instantColumn;
+  }
+
   public ResourceType getResourceType() {
     return definition.getResourceType();
   }
@@ -162,7 +209,7 @@ public class ResourcePath extends NonLiteralPath {
     return new ResourcePath(expression, datasetWithColumns.getDataset(), idColumn,
         eidColumn.map(datasetWithColumns::getColumn),
         datasetWithColumns.getColumn(valueColumn), singular, thisColumn, definition,
-        elementsToColumns);
+        elementsToColumns, projection);
   }
 
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath;
+
+import static au.csiro.pathling.utilities.Preconditions.checkState;
+
+import au.csiro.pathling.io.ResourceReader;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import lombok.Getter;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * Keeps track of the elements of each resource type that are reached by a set of FHIRPath
+ * expressions, so that only those columns need to be read and cached.
+ * <p>
+ * A projection starts out recording: resources are read using their full schema (without loading
+ * or caching any data), and each element that is accessed through {@link
+ * ResourcePath#getElementColumn(String)} is noted. Once all of the expressions within a query have
+ * been parsed, the projection is frozen, and a second parse will read only the recorded columns.
+ *
+ * @author John Grimes
+ */
+public class ResourceProjection {
+
+  private static final String ID_COLUMN = "id";
+
+  @Nonnull
+  private final Map<ResourceType, Set<String>> elements = new EnumMap<>(ResourceType.class);
+
+  /**
+   * Whether this projection has been frozen, after which resources will be read using only the
+   * recorded columns.
+   */
+  @Getter
+  private boolean frozen = false;
+
+  /**
+   * Reads the dataset for a resource type. While recording, this will contain all the columns of
+   * the resource. Once frozen, it will contain only the ID column and the columns that were
+   * recorded.
+   *
+   * @param resourceReader the {@link ResourceReader} to read the resources from
+   * @param resourceType the type of resource to read
+   * @return a {@link Dataset} containing the resources
+   */
+  @Nonnull
+  public Dataset<Row> read(@Nonnull final ResourceReader resourceReader,
+      @Nonnull final ResourceType resourceType) {
+    return frozen
+           ? resourceReader.read(resourceType, getColumns(resourceType))
+           : resourceReader.readSchema(resourceType);
+  }
+
+  /**
+   * Notes that an element of a resource type has been accessed.
+   *
+   * @param resourceType the type of the resource
+   * @param elementName the name of the element
+   */
+  public synchronized void record(@Nonnull final ResourceType resourceType,
+      @Nonnull final String elementName) {
+    if (frozen) {
+      checkState(getColumns(resourceType).contains(elementName),
+          "Element not within projection: " + resourceType.toCode() + "." + elementName);
+    } else {
+      elements.computeIfAbsent(resourceType, key -> new HashSet<>()).add(elementName);
+    }
+  }
+
+  /**
+   * Stops the recording of elements, subsequent reads will only include recorded columns.
+   */
+  public synchronized void freeze() {
+    frozen = true;
+  }
+
+  /**
+   * @param resourceType the type of the resource
+   * @return the names of the columns that need to be read for the resource type, which always
+   * includes the ID
+   */
+  @Nonnull
+  public synchronized Set<String> getColumns(@Nonnull final ResourceType resourceType) {
+    final Set<String> columns = new HashSet<>(
+        elements.getOrDefault(resourceType, Collections.emptySet()));
+    columns.add(ID_COLUMN);
+    return columns;
+  }
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath;
+
+import au.csiro.pathling.io.TemporalColumns;
+import java.util.Optional;
+import javax.annotation.Nonnull;
+import org.apache.spark.sql.Column;
+
+/**
+ * Describes a path that represents a date or date/time, which may have a precomputed instant that
+ * can be used in place of its value within comparisons.
+ *
+ * @author John Grimes
+ * @see TemporalColumns
+ */
+public interface Temporal {
+
+  /**
+   * @return a {@link Column} containing the instant at the start of each value as a timestamp, if
+   * one is available
+   */
+  @Nonnull
+  Optional<Column> getInstantColumn();
+
+}
@@ -6,7 +6,7 @@
 
 package au.csiro.pathling.fhirpath.element;
 
-import static org.apache.spark.sql.functions.callUDF;
+import static au.csiro.pathling.sql.SqlExtensions.codingsEqual;
 import static org.apache.spark.sql.functions.not;
 
 import au.csiro.pathling.errors.InvalidUserInputError;
@@ -15,6 +15,7 @@ import au.csiro.pathling.fhirpath.Materializable;
 import au.csiro.pathling.fhirpath.ResourcePath;
 import au.csiro.pathling.fhirpath.literal.CodingLiteralPath;
 import au.csiro.pathling.fhirpath.literal.NullLiteralPath;
+import au.csiro.pathling.sql.SqlExtensions;
 import com.google.common.collect.ImmutableSet;
 import java.util.Optional;
 import java.util.function.Function;
@@ -95,10 +96,10 @@ public class CodingPath extends ElementPath implements Materializable<Coding>, C
       @Nonnull final ComparisonOperation operation) {
     if (operation.equals(ComparisonOperation.EQUALS)) {
       return Comparable
-          .buildComparison(source, (left, right) -> callUDF("codings_equal", left, right));
+          .buildComparison(source, SqlExtensions::codingsEqual);
     } else if (operation.equals(ComparisonOperation.NOT_EQUALS)) {
       return Comparable
-          .buildComparison(source, (left, right) -> not(callUDF("codings_equal", left, right)));
+          .buildComparison(source, (left, right) -> not(codingsEqual(left, right)));
     } else {
       throw new InvalidUserInputError(
           "Coding type does not support comparison operator: " + operation);
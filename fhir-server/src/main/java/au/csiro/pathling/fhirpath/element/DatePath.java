@@ -11,6 +11,7 @@ import static org.apache.spark.sql.functions.to_timestamp;
 import au.csiro.pathling.fhirpath.Comparable;
 import au.csiro.pathling.fhirpath.Materializable;
 import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.Temporal;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -31,7 +32,8 @@ import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
  * @author John Grimes
  */
 @Slf4j
-public class DatePath extends ElementPath implements Materializable<DateType>, Comparable {
+public class DatePath extends ElementPath implements Materializable<DateType>, Comparable,
+    Temporal {
 
   private static final ThreadLocal<SimpleDateFormat> FULL_DATE_FORMAT = ThreadLocal
       .withInitial(() -> {
@@ -52,13 +54,24 @@ public class DatePath extends ElementPath implements Materializable<DateType>, C
         return format;
       });
 
+  @Nonnull
+  private final Optional<Column> instantColumn;
+
   protected DatePath(@Nonnull final String expression, @Nonnull final Dataset<Row> dataset,
       @Nonnull final Column idColumn, @Nonnull final Optional<Column> eidColumn,
       @Nonnull final Column valueColumn, final boolean singular,
       @Nonnull final Optional<ResourcePath> foreignResource,
-      @Nonnull final Optional<Column> thisColumn, @Nonnull final FHIRDefinedType fhirType) {
+      @Nonnull final Optional<Column> thisColumn, @Nonnull final FHIRDefinedType fhirType,
+      @Nonnull final Optional<Column> instantColumn) {
     super(expression, dataset, idColumn, eidColumn, valueColumn, singular, foreignResource,
         thisColumn, fhirType);
+    this.instantColumn = instantColumn;
+  }
+
+  @Nonnull
+  @Override
+  public Optional<Column> getInstantColumn() {
+    return instantColumn;
   }
 
   /**
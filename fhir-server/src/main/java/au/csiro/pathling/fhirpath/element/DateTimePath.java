@@ -11,6 +11,7 @@ import static org.apache.spark.sql.functions.to_timestamp;
 import au.csiro.pathling.fhirpath.Comparable;
 import au.csiro.pathling.fhirpath.Materializable;
 import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.Temporal;
 import au.csiro.pathling.fhirpath.literal.DateLiteralPath;
 import au.csiro.pathling.fhirpath.literal.DateTimeLiteralPath;
 import au.csiro.pathling.fhirpath.literal.NullLiteralPath;
@@ -35,7 +36,7 @@ import org.hl7.fhir.r4.model.InstantType;
  * @author John Grimes
  */
 public class DateTimePath extends ElementPath implements Materializable<BaseDateTimeType>,
-    Comparable {
+    Comparable, Temporal {
 
   private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("GMT");
   private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = ThreadLocal
@@ -49,13 +50,24 @@ public class DateTimePath extends ElementPath implements Materializable<BaseDate
       .of(DatePath.class, DateTimePath.class, DateLiteralPath.class, DateTimeLiteralPath.class,
           NullLiteralPath.class);
 
+  @Nonnull
+  private final Optional<Column> instantColumn;
+
   protected DateTimePath(@Nonnull final String expression, @Nonnull final Dataset<Row> dataset,
       @Nonnull final Column idColumn, @Nonnull final Optional<Column> eidColumn,
       @Nonnull final Column valueColumn, final boolean singular,
       @Nonnull final Optional<ResourcePath> foreignResource,
-      @Nonnull final Optional<Column> thisColumn, @Nonnull final FHIRDefinedType fhirType) {
+      @Nonnull final Optional<Column> thisColumn, @Nonnull final FHIRDefinedType fhirType,
+      @Nonnull final Optional<Column> instantColumn) {
     super(expression, dataset, idColumn, eidColumn, valueColumn, singular, foreignResource,
         thisColumn, fhirType);
+    this.instantColumn = instantColumn;
+  }
+
+  @Nonnull
+  @Override
+  public Optional<Column> getInstantColumn() {
+    return instantColumn;
   }
 
   @Nonnull
@@ -101,11 +113,19 @@ public class DateTimePath extends ElementPath implements Materializable<BaseDate
   @Nonnull
   public static Function<Comparable, Column> buildComparison(@Nonnull final Comparable source,
       @Nonnull final BiFunction<Column, Column, Column> sparkFunction) {
-    // The value columns are converted to native Spark timestamps before comparison. The reason that
-    // we don't use an explicit format string here is that we require flexibility to accommodate the
-    // optionality of the milliseconds component of the FHIR date time format.
-    return target -> sparkFunction
-        .apply(to_timestamp(source.getValueColumn()), to_timestamp(target.getValueColumn()));
+    return target -> sparkFunction.apply(instantOf(source), instantOf(target));
+  }
+
+  @Nonnull
+  private static Column instantOf(@Nonnull final Comparable path) {
+    // The precomputed instant is used where the path has one. Otherwise, the value column is
+    // converted to a native Spark timestamp. The reason that we don't use an explicit format string
+    // here is that we require flexibility to accommodate the optionality of the milliseconds
+    // component of the FHIR date time format.
+    final Optional<Column> instantColumn = path instanceof Temporal
+                                           ? ((Temporal) path).getInstantColumn()
+                                           : Optional.empty();
+    return instantColumn.orElseGet(() -> to_timestamp(path.getValueColumn()));
   }
 
   public static SimpleDateFormat getDateFormat() {
@@ -11,6 +11,7 @@ import static au.csiro.pathling.QueryHelpers.createColumns;
 import au.csiro.pathling.QueryHelpers.DatasetWithColumnMap;
 import au.csiro.pathling.fhirpath.NonLiteralPath;
 import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.Temporal;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Optional;
@@ -79,12 +80,43 @@ public class ElementPath extends NonLiteralPath {
       @Nonnull final Optional<Column> eidColumn, @Nonnull final Column valueColumn,
       final boolean singular, @Nonnull final Optional<ResourcePath> foreignResource,
       @Nonnull final Optional<Column> thisColumn, @Nonnull final ElementDefinition definition) {
+    return build(expression, dataset, idColumn, eidColumn, valueColumn, singular, foreignResource,
+        thisColumn, definition, Optional.empty());
+  }
+
+  /**
+   * Builds the appropriate subtype of ElementPath based upon the supplied {@link
+   * ElementDefinition}, along with the precomputed instant of its values.
+   * <p>
+   * Use this builder for date and dateTime elements that have been read along with their instant
+   * column, see {@link Temporal}. The instant column is ignored for elements of any other type.
+   *
+   * @param expression the FHIRPath representation of this path
+   * @param dataset a {@link Dataset} that can be used to evaluate this path against data
+   * @param idColumn a {@link Column} within the dataset containing the identity of the subject
+   * resource
+   * @param eidColumn a {@link Column} within the dataset containing the element identity
+   * @param valueColumn a {@link Column} within the dataset containing the values of the nodes
+   * @param singular an indicator of whether this path represents a single-valued collection
+   * @param foreignResource a foreign resource this path originated from, if any
+   * @param thisColumn collection values where this path originated from {@code $this}
+   * @param definition the HAPI element definition that this path should be based upon
+   * @param instantColumn a {@link Column} within the dataset containing the instant at the start
+   * of each value as a timestamp, if one is available
+   * @return a new ElementPath
+   */
+  @Nonnull
+  public static ElementPath build(@Nonnull final String expression,
+      @Nonnull final Dataset<Row> dataset, @Nonnull final Column idColumn,
+      @Nonnull final Optional<Column> eidColumn, @Nonnull final Column valueColumn,
+      final boolean singular, @Nonnull final Optional<ResourcePath> foreignResource,
+      @Nonnull final Optional<Column> thisColumn, @Nonnull final ElementDefinition definition,
+      @Nonnull final Optional<Column> instantColumn) {
     final Optional<FHIRDefinedType> optionalFhirType = definition.getFhirType();
     if (optionalFhirType.isPresent()) {
       final FHIRDefinedType fhirType = optionalFhirType.get();
-      final ElementPath path = ElementPath
-          .build(expression, dataset, idColumn, eidColumn, valueColumn, singular, foreignResource,
-              thisColumn, fhirType);
+      final ElementPath path = getInstance(expression, dataset, idColumn, eidColumn, valueColumn,
+          singular, foreignResource, thisColumn, fhirType, instantColumn);
       path.definition = Optional.of(definition);
       return path;
     } else {
@@ -117,7 +149,7 @@ public class ElementPath extends NonLiteralPath {
       final boolean singular, @Nonnull final Optional<ResourcePath> foreignResource,
       @Nonnull final Optional<Column> thisColumn, @Nonnull final FHIRDefinedType fhirType) {
     return getInstance(expression, dataset, idColumn, eidColumn, valueColumn, singular,
-        foreignResource, thisColumn, fhirType);
+        foreignResource, thisColumn, fhirType, Optional.empty());
   }
 
   @Nonnull
@@ -125,16 +157,30 @@ public class ElementPath extends NonLiteralPath {
       @Nonnull final Dataset<Row> dataset, @Nonnull final Column idColumn,
       @Nonnull final Optional<Column> eidColumn, @Nonnull final Column valueColumn,
       final boolean singular, @Nonnull final Optional<ResourcePath> foreignResource,
-      @Nonnull final Optional<Column> thisColumn, @Nonnull final FHIRDefinedType fhirType) {
+      @Nonnull final Optional<Column> thisColumn, @Nonnull final FHIRDefinedType fhirType,
+      @Nonnull final Optional<Column> instantColumn) {
     // Look up the class that represents an element with the specified FHIR type.
     final Class<? extends ElementPath> elementPathClass = ElementDefinition
         .elementClassForType(fhirType).orElse(ElementPath.class);
+    // Temporal paths take their precomputed instant as an additional argument.
+    final boolean temporal = Temporal.class.isAssignableFrom(elementPathClass);
 
     final DatasetWithColumnMap datasetWithColumns = eidColumn.map(eidCol -> createColumns(dataset,
         eidCol, valueColumn)).orElseGet(() -> createColumns(dataset, valueColumn));
 
     try {
       // Call its constructor and return.
+      if (temporal) {
+        final Constructor<? extends ElementPath> constructor = elementPathClass
+            .getDeclaredConstructor(String.class, Dataset.class, Column.class, Optional.class,
+                Column.class, boolean.class, Optional.class, Optional.class,
+                FHIRDefinedType.class, Optional.class);
+        return constructor
+            .newInstance(expression, datasetWithColumns.getDataset(), idColumn,
+                eidColumn.map(datasetWithColumns::getColumn),
+                datasetWithColumns.getColumn(valueColumn), singular, foreignResource, thisColumn,
+                fhirType, instantColumn);
+      }
       final Constructor<? extends ElementPath> constructor = elementPathClass
           .getDeclaredConstructor(String.class, Dataset.class, Column.class, Optional.class,
               Column.class, boolean.class, Optional.class, Optional.class, FHIRDefinedType.class);
@@ -161,14 +207,19 @@ public class ElementPath extends NonLiteralPath {
       @Nonnull final Column idColumn, @Nonnull final Optional<Column> eidColumn,
       @Nonnull final Column valueColumn, final boolean singular,
       @Nonnull final Optional<Column> thisColumn) {
+    // The instant describes the values of this path, so it is only carried into a copy that has the
+    // same value column.
+    final Optional<Column> instantColumn = this instanceof Temporal
+                                           && valueColumn.equals(getValueColumn())
+                                           ? ((Temporal) this).getInstantColumn()
+                                           : Optional.empty();
     return definition
         .map(elementDefinition -> ElementPath
             .build(expression, dataset, idColumn, eidColumn, valueColumn, singular, foreignResource,
-                thisColumn, elementDefinition))
+                thisColumn, elementDefinition, instantColumn))
         .orElseGet(
-            () -> ElementPath
-                .build(expression, dataset, idColumn, eidColumn, valueColumn, singular,
-                    foreignResource, thisColumn, fhirType));
+            () -> getInstance(expression, dataset, idColumn, eidColumn, valueColumn, singular,
+                foreignResource, thisColumn, fhirType, instantColumn));
   }
 
 }
@@ -159,9 +159,15 @@ public abstract class AggregateFunction {
     final Column finalValueColumn = col("value");
 
     // empty eid column as the result is singular
-    return resultPathFactory
+    final T result = resultPathFactory
         .create(expression, finalDataset, idColumn, Optional.empty(), finalValueColumn, true,
             thisColumn);
+
+    // Record how this result was produced, so that it can be recomputed alongside other
+    // aggregations that share the same groupings.
+    parserContext.addAggregationSource(result.getDataset(),
+        new AggregationSource(dataset, Arrays.asList(groupBy), valueColumn));
+    return result;
   }
 
   /**
@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.function;
+
+import java.util.List;
+import javax.annotation.Nonnull;
+import lombok.Value;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+/**
+ * Describes how the result of an aggregate function was produced, so that aggregations that share
+ * the same groupings can be recomputed together within a single grouping operation.
+ *
+ * @author John Grimes
+ */
+@Value
+public class AggregationSource {
+
+  /**
+   * The dataset that was grouped.
+   */
+  @Nonnull
+  Dataset<Row> dataset;
+
+  /**
+   * The columns that the dataset was grouped by.
+   */
+  @Nonnull
+  List<Column> groupBy;
+
+  /**
+   * The column describing the aggregate value, in terms of the columns of the grouped dataset.
+   */
+  @Nonnull
+  Column valueColumn;
+
+}
@@ -8,7 +8,9 @@ package au.csiro.pathling.fhirpath.function;
 
 import static au.csiro.pathling.fhirpath.function.NamedFunction.checkNoArguments;
 import static au.csiro.pathling.fhirpath.function.NamedFunction.expressionFromInput;
+import static au.csiro.pathling.sql.SqlExtensions.minBy;
 import static org.apache.spark.sql.functions.first;
+import static org.apache.spark.sql.functions.when;
 
 import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.NonLiteralPath;
@@ -37,11 +39,20 @@ public class FirstFunction extends AggregateFunction implements NamedFunction {
     checkNoArguments("first", input);
 
     final NonLiteralPath inputPath = input.getInput();
-    final Dataset<Row> dataset = inputPath.getOrderedDataset();
+    inputPath.checkHasOrder();
+    final Dataset<Row> dataset = inputPath.getDataset();
     final String expression = expressionFromInput(input, NAME);
-    final Column finalValueColumn = first(inputPath.getValueColumn(), true);
+    final Column value = inputPath.getValueColumn();
 
-    return buildAggregateResult(dataset, input.getContext(), inputPath, finalValueColumn,
+    if (inputPath.getEidColumn().isEmpty()) {
+      return buildAggregateResult(dataset, input.getContext(), inputPath, first(value, true),
+          expression);
+    }
+
+    // Rather than sorting the whole dataset by element ID, we take the value with the lowest
+    // element ID within each group. Empty values are given no ordering, so that they are skipped.
+    final Column ordering = when(value.isNotNull(), inputPath.getEidColumn().get());
+    return buildAggregateResult(dataset, input.getContext(), inputPath, minBy(value, ordering),
         expression);
   }
 }
@@ -17,14 +17,17 @@ import static au.csiro.pathling.utilities.Strings.randomAlias;
 import static org.apache.spark.sql.functions.lit;
 
 import au.csiro.pathling.QueryHelpers.JoinType;
+import au.csiro.pathling.caching.ResourceDependencies;
 import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.ResourceProjection;
 import au.csiro.pathling.fhirpath.UntypedResourcePath;
 import au.csiro.pathling.fhirpath.element.ReferencePath;
 import au.csiro.pathling.io.ResourceReader;
 import ca.uhn.fhir.context.FhirContext;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.Optional;
 import java.util.Set;
 import javax.annotation.Nonnull;
@@ -56,10 +59,17 @@ public class ResolveFunction implements NamedFunction {
     checkNoArguments(NAME, input);
     final ReferencePath inputPath = (ReferencePath) input.getInput();
     final ResourceReader resourceReader = input.getContext().getResourceReader();
+    final Optional<ResourceProjection> projection = input.getContext().getProjection();
 
     // Get the allowed types for the input reference. This gives us the set of possible resource
     // types that this reference could resolve to.
     Set<ResourceType> referenceTypes = inputPath.getResourceTypes();
+    // The result depends upon every type that the reference could resolve to, including those
+    // that are not currently available, as importing them would change the result.
+    final Set<ResourceType> candidateTypes = referenceTypes.contains(ResourceType.RESOURCE)
+                                             ? EnumSet.allOf(ResourceType.class)
+                                             : referenceTypes;
+    candidateTypes.forEach(ResourceDependencies::recordRead);
     // If the type is Resource, all resource types need to be looked at.
     if (referenceTypes.contains(ResourceType.RESOURCE)) {
       referenceTypes = resourceReader.getAvailableResourceTypes();
@@ -70,18 +80,20 @@ public class ResolveFunction implements NamedFunction {
     final String expression = expressionFromInput(input, NAME);
 
     if (isPolymorphic) {
-      return resolvePolymorphicReference(inputPath, resourceReader, referenceTypes, expression);
+      return resolvePolymorphicReference(inputPath, resourceReader, projection, referenceTypes,
+          expression);
     } else {
       final FhirContext fhirContext = input.getContext().getFhirContext();
-      return resolveMonomorphicReference(inputPath, resourceReader, fhirContext, referenceTypes,
-          expression);
+      return resolveMonomorphicReference(inputPath, resourceReader, projection, fhirContext,
+          referenceTypes, expression);
     }
   }
 
   @Nonnull
   private static FhirPath resolvePolymorphicReference(@Nonnull final ReferencePath referencePath,
-      @Nonnull final ResourceReader resourceReader, @Nonnull final Set<ResourceType> referenceTypes,
-      final String expression) {
+      @Nonnull final ResourceReader resourceReader,
+      @Nonnull final Optional<ResourceProjection> projection,
+      @Nonnull final Set<ResourceType> referenceTypes, final String expression) {
     // If this is a polymorphic reference, create a dataset for each reference type, and union
     // them together to produce the target dataset. The dataset will not contain the resources
     // themselves, only a type and identifier for later resolution.
@@ -90,7 +102,9 @@ public class ResolveFunction implements NamedFunction {
       if (resourceReader.getAvailableResourceTypes().contains(referenceType)) {
         // We can't include the full content of the resource, as you can't union two datasets with
         // different schema. The content of the resource is added later, when ofType is invoked.
-        final Dataset<Row> typeDatasetWithColumns = resourceReader.read(referenceType);
+        final Dataset<Row> typeDatasetWithColumns = projection
+            .map(p -> p.read(resourceReader, referenceType))
+            .orElseGet(() -> resourceReader.read(referenceType));
         final Column idColumn = typeDatasetWithColumns.col("id");
         Dataset<Row> typeDataset = typeDatasetWithColumns
             .withColumn("type", lit(referenceType.toCode()));
@@ -127,13 +141,16 @@ public class ResolveFunction implements NamedFunction {
 
   @Nonnull
   private FhirPath resolveMonomorphicReference(@Nonnull final ReferencePath referencePath,
-      @Nonnull final ResourceReader resourceReader, @Nonnull final FhirContext fhirContext,
+      @Nonnull final ResourceReader resourceReader,
+      @Nonnull final Optional<ResourceProjection> projection,
+      @Nonnull final FhirContext fhirContext,
       @Nonnull final Collection<ResourceType> referenceTypes, final String expression) {
     // If this is a monomorphic reference, we just need to retrieve the appropriate table and
     // create a dataset with the full resources.
     final ResourceType resourceType = (ResourceType) referenceTypes.toArray()[0];
     final ResourcePath resourcePath = ResourcePath
-        .build(fhirContext, resourceReader, resourceType, expression, referencePath.isSingular());
+        .build(fhirContext, resourceReader, resourceType, expression, referencePath.isSingular(),
+            false, projection);
 
     // Join the resource dataset to the reference dataset.
     final Column joinCondition = referencePath.getResourceEquality(resourcePath);
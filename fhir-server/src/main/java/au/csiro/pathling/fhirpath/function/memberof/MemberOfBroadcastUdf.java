@@ -0,0 +1,55 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.function.memberof;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.api.java.UDF1;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+/**
+ * Takes an array of Codings and returns a Boolean result indicating if any of the codings belongs
+ * to a ValueSet, using the members of the ValueSet that have already been found on the driver and
+ * broadcast to the executors. Unlike {@link MemberOfMapperWithPreview}, no calls are made to the
+ * terminology service from within the partitions, so each row is checked on its own rather than
+ * buffering the partition to preview it.
+ *
+ * @author John Grimes
+ */
+public class MemberOfBroadcastUdf implements UDF1<Seq<Row>, Boolean> {
+
+  private static final long serialVersionUID = -3318271467093917425L;
+
+  @Nonnull
+  private final Broadcast<Set<SimpleCoding>> members;
+
+  /**
+   * @param members the codings from the input that are members of the ValueSet
+   */
+  public MemberOfBroadcastUdf(@Nonnull final Broadcast<Set<SimpleCoding>> members) {
+    this.members = members;
+  }
+
+  @Override
+  @Nullable
+  public Boolean call(@Nullable final Seq<Row> codings) {
+    if (codings == null) {
+      return null;
+    }
+    final Set<SimpleCoding> value = members.value();
+    return JavaConverters.seqAsJavaList(codings).stream()
+        .anyMatch(coding -> coding != null && value.contains(
+            new SimpleCoding(coding.getAs("system"), coding.getAs("code"),
+                coding.getAs("version"))));
+  }
+
+}
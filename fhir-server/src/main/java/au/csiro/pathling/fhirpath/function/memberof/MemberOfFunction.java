@@ -9,24 +9,40 @@ package au.csiro.pathling.fhirpath.function.memberof;
 import static au.csiro.pathling.fhirpath.function.NamedFunction.expressionFromInput;
 import static au.csiro.pathling.utilities.Preconditions.checkUserInput;
 import static org.apache.spark.sql.functions.array;
+import static org.apache.spark.sql.functions.coalesce;
 import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.explode;
+import static org.apache.spark.sql.functions.explode_outer;
 import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.max;
+import static org.apache.spark.sql.functions.udf;
 import static org.apache.spark.sql.functions.when;
 
+import au.csiro.pathling.fhir.KnownCodeSystems;
+import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
+import au.csiro.pathling.fhir.TerminologyRequestPool;
 import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.element.ElementPath;
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
 import au.csiro.pathling.fhirpath.encoding.SimpleCodingsDecoders;
 import au.csiro.pathling.fhirpath.function.NamedFunction;
 import au.csiro.pathling.fhirpath.function.NamedFunctionInput;
 import au.csiro.pathling.fhirpath.literal.StringLiteralPath;
 import au.csiro.pathling.fhirpath.parser.ParserContext;
+import au.csiro.pathling.sql.MapperWithPreview;
 import au.csiro.pathling.sql.SqlExtensions;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.expressions.UserDefinedFunction;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.Metadata;
 import org.apache.spark.sql.types.StructField;
@@ -37,14 +53,27 @@ import org.slf4j.MDC;
  * A function that takes a set of Codings or CodeableConcepts as inputs and returns a set of boolean
  * values, based upon whether each item is present within the ValueSet identified by the supplied
  * URL.
+ * <p>
+ * When the input contains no more than a configured number of distinct Codings, they are checked
+ * using a single request to the terminology service and the result is broadcast to the executors.
+ * Otherwise, the Codings within each partition are checked separately, unless the context asks for
+ * the distinct Codings across the whole input to be resolved, in which case each distinct Coding
+ * is checked once within a separate stage and the results are joined back to the input.
  *
  * @author John Grimes
  * @see <a href="https://pathling.csiro.au/docs/fhirpath/functions.html#memberof">memberOf</a>
  */
+@Slf4j
 public class MemberOfFunction implements NamedFunction {
 
   private static final String NAME = "memberOf";
 
+  private static final String COL_CODINGS = "codings";
+
+  private static final String COL_CODING = "coding";
+
+  private static final String COL_MEMBER = "member";
+
   @Nonnull
   private final Optional<MemberOfMapperWithPreview> configuredMapper;
 
@@ -84,19 +113,55 @@ public class MemberOfFunction implements NamedFunction {
     final String valueSetUri = argument.getJavaValue();
     final Dataset<Row> dataset = inputPath.getDataset();
 
+    // If there are few enough distinct Codings in the input, they are validated once and the
+    // members of the ValueSet are broadcast to the executors. Otherwise, the Codings are
+    // de-duplicated and validated on a per-partition basis. The Codings are not counted while a
+    // projection is still recording, as the dataset from that parse is never executed.
+    final boolean recording = inputContext.getProjection()
+        .map(projection -> !projection.isFrozen())
+        .orElse(false);
+    final int threshold = recording
+                          ? 0
+                          : inputContext.getTerminologyBroadcastThreshold();
+    final Optional<Set<SimpleCoding>> distinctCodings = distinctCodings(dataset, codingArrayCol,
+        threshold);
+
+    // The code systems known to the terminology server are found once on the driver, rather than
+    // within each partition. They are not looked up while a projection is still recording, as
+    // nothing is executed during that parse.
+    @SuppressWarnings("OptionalGetWithoutIsPresent")
+    final TerminologyClient terminologyClient = inputContext.getTerminologyClient().get();
+    final Optional<KnownCodeSystems> knownCodeSystems = Optional.of(terminologyClientFactory)
+        .filter(factory -> !recording)
+        .flatMap(factory -> factory.getKnownCodeSystems(terminologyClient));
+    final JavaSparkContext sparkContext = JavaSparkContext
+        .fromSparkContext(inputContext.getSparkSession().sparkContext());
+
     // Perform a validate code operation on each Coding or CodeableConcept in the input dataset,
     // then create a new dataset with the boolean results.
-    final MemberOfMapperWithPreview mapper = configuredMapper.orElseGet(() ->
-        new MemberOfMapperWithPreview(MDC.get("requestId"), terminologyClientFactory,
-            valueSetUri));
-
-    // This de-duplicates the Codings to be validated, then performs the validation on a
-    // per-partition basis.
-    final Dataset<Row> resultDataset = SqlExtensions
-        .mapWithPartitionPreview(dataset, codingArrayCol,
-            SimpleCodingsDecoders::decodeList,
-            mapper,
-            StructField.apply("result", DataTypes.BooleanType, true, Metadata.empty()));
+    final Dataset<Row> resultDataset;
+    if (distinctCodings.isPresent()) {
+      final Set<SimpleCoding> members = MemberOfMapperWithPreview
+          .intersect(() -> terminologyClient, terminologyClientFactory.getCache(),
+              knownCodeSystems, TerminologyRequestPool.forFactory(terminologyClientFactory),
+              valueSetUri, distinctCodings.get());
+      final UserDefinedFunction memberOf = udf(
+          new MemberOfBroadcastUdf(sparkContext.broadcast(members)), DataTypes.BooleanType);
+      resultDataset = dataset.select(col("*"), memberOf.apply(codingArrayCol).alias("result"));
+    } else {
+      final MemberOfMapperWithPreview mapper = configuredMapper.orElseGet(() ->
+          new MemberOfMapperWithPreview(MDC.get("requestId"), terminologyClientFactory,
+              valueSetUri, knownCodeSystems.map(sparkContext::broadcast).orElse(null)));
+      if (inputContext.isTerminologyResolveDistinctCodings()) {
+        resultDataset = resolveDistinctCodings(dataset, codingArrayCol, mapper);
+      } else {
+        resultDataset = SqlExtensions
+            .mapWithPartitionPreview(dataset, codingArrayCol,
+                SimpleCodingsDecoders::decodeList,
+                mapper,
+                StructField.apply("result", DataTypes.BooleanType, true, Metadata.empty()));
+      }
+    }
     final Column resultColumn = col("result");
 
     // Construct a new result expression.
@@ -108,6 +173,74 @@ public class MemberOfFunction implements NamedFunction {
             FHIRDefinedType.BOOLEAN);
   }
 
+  /**
+   * Collects the distinct defined Codings within the input, as long as there are no more than the
+   * threshold.
+   */
+  @Nonnull
+  private static Optional<Set<SimpleCoding>> distinctCodings(@Nonnull final Dataset<Row> dataset,
+      @Nonnull final Column codingArrayCol, final int threshold) {
+    if (threshold <= 0) {
+      return Optional.empty();
+    }
+    final Column coding = col("coding");
+    final List<Row> rows = dataset.select(explode(codingArrayCol).alias("coding"))
+        .select(coding.getField("system"), coding.getField("code"), coding.getField("version"))
+        .distinct()
+        .limit(threshold + 1)
+        .collectAsList();
+    if (rows.size() > threshold) {
+      log.debug("More than {} distinct codings in input, checking within each partition",
+          threshold);
+      return Optional.empty();
+    }
+    log.debug("Found {} distinct codings in input, checking once and broadcasting result",
+        rows.size());
+    return Optional.of(rows.stream()
+        .map(row -> new SimpleCoding(row.getString(0), row.getString(1), row.getString(2)))
+        .filter(SimpleCoding::isDefined)
+        .collect(Collectors.toSet()));
+  }
+
+  /**
+   * Checks each distinct Coding across the whole input once, then joins the results back to the
+   * input using the array of Codings within each row. The distinct Codings are spread across the
+   * partitions of a separate stage, so each of them is sent to the terminology service only once.
+   */
+  @Nonnull
+  private static Dataset<Row> resolveDistinctCodings(@Nonnull final Dataset<Row> dataset,
+      @Nonnull final Column codingArrayCol,
+      @Nonnull final MapperWithPreview<List<SimpleCoding>, Boolean, Set<SimpleCoding>> mapper) {
+    final Column codings = col(COL_CODINGS);
+    final Dataset<Row> distinctArrays = dataset.select(codingArrayCol.alias(COL_CODINGS))
+        .where(codings.isNotNull())
+        .distinct();
+    final Dataset<Row> distinctCodings = distinctArrays
+        .select(explode(codings).alias(COL_CODING))
+        .distinct();
+
+    // Check each distinct Coding as an array with a single element.
+    final Dataset<Row> memberships = SqlExtensions
+        .mapWithPartitionPreview(distinctCodings, array(distinctCodings.col(COL_CODING)),
+            SimpleCodingsDecoders::decodeList,
+            mapper,
+            StructField.apply(COL_MEMBER, DataTypes.BooleanType, true, Metadata.empty()));
+
+    // An array of Codings is a member if any of its Codings are. An empty array is not a member.
+    final Dataset<Row> arrayCodings = distinctArrays
+        .select(codings, explode_outer(codings).alias(COL_CODING));
+    final Dataset<Row> arrayResults = arrayCodings
+        .join(memberships,
+            arrayCodings.col(COL_CODING).equalTo(memberships.col(COL_CODING)), "left_outer")
+        .groupBy(arrayCodings.col(COL_CODINGS))
+        .agg(coalesce(max(memberships.col(COL_MEMBER)), lit(false)).alias("result"));
+
+    // Rows with no Codings are not matched, and get a null result.
+    return dataset
+        .join(arrayResults, codingArrayCol.equalTo(arrayResults.col(COL_CODINGS)), "left_outer")
+        .drop(arrayResults.col(COL_CODINGS));
+  }
+
   private void validateInput(@Nonnull final NamedFunctionInput input) {
     final ParserContext context = input.getContext();
     checkUserInput(
@@ -6,20 +6,24 @@
 
 package au.csiro.pathling.fhirpath.function.memberof;
 
+import au.csiro.pathling.fhir.KnownCodeSystems;
+import au.csiro.pathling.fhir.TerminologyCache;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
+import au.csiro.pathling.fhir.TerminologyRequestPool;
 import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
 import au.csiro.pathling.sql.MapperWithPreview;
-import ca.uhn.fhir.rest.param.UriParam;
+import com.google.common.base.Suppliers;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.broadcast.Broadcast;
 import org.hl7.fhir.r4.model.CanonicalType;
-import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
@@ -46,6 +50,9 @@ public class MemberOfMapperWithPreview implements
   @Nonnull
   private final String valueSetUri;
 
+  @Nullable
+  private final Broadcast<KnownCodeSystems> knownCodeSystems;
+
   /**
    * @param requestId An identifier used alongside any logging that the mapper outputs
    * @param terminologyClientFactory Used to create instances of the terminology client on workers
@@ -54,9 +61,24 @@ public class MemberOfMapperWithPreview implements
   public MemberOfMapperWithPreview(@Nonnull final String requestId,
       @Nonnull final TerminologyClientFactory terminologyClientFactory,
       @Nonnull final String valueSetUri) {
+    this(requestId, terminologyClientFactory, valueSetUri, null);
+  }
+
+  /**
+   * @param requestId An identifier used alongside any logging that the mapper outputs
+   * @param terminologyClientFactory Used to create instances of the terminology client on workers
+   * @param valueSetUri The identifier of the ValueSet that codes will be validated against
+   * @param knownCodeSystems The code systems known to the terminology server, or null to search
+   * for each code system within each partition
+   */
+  public MemberOfMapperWithPreview(@Nonnull final String requestId,
+      @Nonnull final TerminologyClientFactory terminologyClientFactory,
+      @Nonnull final String valueSetUri,
+      @Nullable final Broadcast<KnownCodeSystems> knownCodeSystems) {
     this.requestId = requestId;
     this.terminologyClientFactory = terminologyClientFactory;
     this.valueSetUri = valueSetUri;
+    this.knownCodeSystems = knownCodeSystems;
   }
 
   @Override
@@ -76,6 +98,52 @@ public class MemberOfMapperWithPreview implements
         .filter(SimpleCoding::isDefined)
         .collect(Collectors.toSet());
 
+    // The client is only built if some of the codings are not already in the cache.
+    final Supplier<TerminologyClient> terminologyClient = Suppliers
+        .memoize(() -> terminologyClientFactory.build(log));
+    return intersect(terminologyClient, terminologyClientFactory.getCache(),
+        Optional.ofNullable(knownCodeSystems).map(Broadcast::value),
+        TerminologyRequestPool.forFactory(terminologyClientFactory), valueSetUri, codings);
+  }
+
+  /**
+   * Uses the terminology service to find which of a set of codings are members of a ValueSet. If a
+   * cache is provided, the terminology service is only asked about the codings that are not already
+   * in the cache. Large sets of codings are split into batches, which are expanded concurrently.
+   *
+   * @param terminologyClient supplies the {@link TerminologyClient} to use
+   * @param cache the {@link TerminologyCache} to use, if any
+   * @param knownCodeSystems the code systems known to the terminology server, if they have been
+   * loaded
+   * @param requestPool the {@link TerminologyRequestPool} used to split and run the requests
+   * @param valueSetUri the identifier of the ValueSet that the codings will be validated against
+   * @param codings the codings to validate, all of which must be defined
+   * @return the codings that are members of the ValueSet
+   */
+  @Nonnull
+  static Set<SimpleCoding> intersect(@Nonnull final Supplier<TerminologyClient> terminologyClient,
+      @Nonnull final Optional<TerminologyCache> cache,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems,
+      @Nonnull final TerminologyRequestPool requestPool, @Nonnull final String valueSetUri,
+      @Nonnull final Set<SimpleCoding> codings) {
+    if (cache.isEmpty()) {
+      return expand(terminologyClient, cache, knownCodeSystems, requestPool, valueSetUri,
+          codings);
+    }
+    final Set<SimpleCoding> members = cache.get().intersect(valueSetUri, codings, knownCodeSystems,
+        uncached -> expand(terminologyClient, cache, knownCodeSystems, requestPool, valueSetUri,
+            uncached));
+    log.debug("Terminology cache statistics: {}", cache.get().getStatistics());
+    return members;
+  }
+
+  @Nonnull
+  private static Set<SimpleCoding> expand(
+      @Nonnull final Supplier<TerminologyClient> terminologyClient,
+      @Nonnull final Optional<TerminologyCache> cache,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems,
+      @Nonnull final TerminologyRequestPool requestPool, @Nonnull final String valueSetUri,
+      @Nonnull final Set<SimpleCoding> codings) {
     final Set<CodeSystemReference> codeSystems = codings.stream()
         .map(coding -> new CodeSystemReference(Optional.ofNullable(coding.getSystem()),
             Optional.ofNullable(coding.getVersion())))
@@ -83,16 +151,14 @@ public class MemberOfMapperWithPreview implements
         .collect(Collectors.toSet());
 
     // Filter the set of code systems to only those known by the terminology server. We determine
-    // this by performing a CodeSystem search operation.
-    final TerminologyClient terminologyClient = terminologyClientFactory.build(log);
+    // this using the registry of known code systems, or by performing a CodeSystem search
+    // operation.
     final Collection<String> uniqueKnownUris = new HashSet<>();
     for (final CodeSystemReference codeSystem : codeSystems) {
       //noinspection OptionalGetWithoutIsPresent
-      final UriParam uri = new UriParam(codeSystem.getSystem().get());
-      final List<CodeSystem> knownSystems = terminologyClient.searchCodeSystems(
-          uri, new HashSet<>(Collections.singletonList("id")));
-      if (knownSystems.size() > 0) {
-        uniqueKnownUris.add(codeSystem.getSystem().get());
+      final String system = codeSystem.getSystem().get();
+      if (KnownCodeSystems.isKnown(system, knownCodeSystems, cache, terminologyClient)) {
+        uniqueKnownUris.add(system);
       }
     }
     //noinspection OptionalGetWithoutIsPresent
@@ -100,6 +166,26 @@ public class MemberOfMapperWithPreview implements
         .filter(codeSystem -> uniqueKnownUris.contains(codeSystem.getSystem().get()))
         .collect(Collectors.toSet());
 
+    // Only the codings from known code systems are sent to the terminology service, in batches
+    // that are expanded concurrently.
+    final List<SimpleCoding> knownCodings = codings.stream()
+        .filter(coding -> filteredCodeSystems.stream()
+            .anyMatch(codeSystem -> codeSystem.matchesCoding(coding)))
+        .collect(Collectors.toList());
+    final List<Supplier<Set<SimpleCoding>>> requests = requestPool.batches(knownCodings).stream()
+        .map(batch -> (Supplier<Set<SimpleCoding>>) () -> expandBatch(terminologyClient,
+            valueSetUri, filteredCodeSystems, batch))
+        .collect(Collectors.toList());
+    return requestPool.invokeAll(requests).stream()
+        .flatMap(Set::stream)
+        .collect(Collectors.toSet());
+  }
+
+  @Nonnull
+  private static Set<SimpleCoding> expandBatch(
+      @Nonnull final Supplier<TerminologyClient> terminologyClient,
+      @Nonnull final String valueSetUri, @Nonnull final Set<CodeSystemReference> codeSystems,
+      @Nonnull final List<SimpleCoding> codings) {
     // Create a ValueSet to represent the intersection of the input codings and the ValueSet
     // described by the URI in the argument.
     final ValueSet intersection = new ValueSet();
@@ -107,7 +193,7 @@ public class MemberOfMapperWithPreview implements
     final List<ConceptSetComponent> includes = new ArrayList<>();
 
     // Create an include section for each unique code system present within the input codings.
-    for (final CodeSystemReference codeSystem : filteredCodeSystems) {
+    for (final CodeSystemReference codeSystem : codeSystems) {
       final ConceptSetComponent include = new ConceptSetComponent();
       include.setValueSet(Collections.singletonList(new CanonicalType(valueSetUri)));
       //noinspection OptionalGetWithoutIsPresent
@@ -141,7 +227,7 @@ public class MemberOfMapperWithPreview implements
       // and the ValueSet identified by the URI in the argument.
       log.info("Intersecting {} concepts with {} using terminology service", codings.size(),
           valueSetUri);
-      final ValueSet expansion = terminologyClient
+      final ValueSet expansion = terminologyClient.get()
           .expand(intersection, new IntegerType(codings.size()));
 
       // Build a set of SimpleCodings to represent the codings present in the intersection.
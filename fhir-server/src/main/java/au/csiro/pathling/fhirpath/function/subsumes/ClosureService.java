@@ -7,9 +7,11 @@
 package au.csiro.pathling.fhirpath.function.subsumes;
 
 import au.csiro.pathling.fhir.TerminologyClient;
+import au.csiro.pathling.fhir.TerminologyRequestPool;
 import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -40,8 +42,21 @@ class ClosureService {
   @Nonnull
   private final TerminologyClient terminologyClient;
 
+  @Nonnull
+  private final TerminologyRequestPool requestPool;
+
   public ClosureService(@Nonnull final TerminologyClient terminologyClient) {
+    this(terminologyClient, new TerminologyRequestPool(0, 1));
+  }
+
+  /**
+   * @param terminologyClient the {@link TerminologyClient} to use
+   * @param requestPool the {@link TerminologyRequestPool} used to split and run the requests
+   */
+  public ClosureService(@Nonnull final TerminologyClient terminologyClient,
+      @Nonnull final TerminologyRequestPool requestPool) {
     this.terminologyClient = terminologyClient;
+    this.requestPool = requestPool;
   }
 
   /**
@@ -94,18 +109,45 @@ class ClosureService {
   @Nonnull
   public Closure getSubsumesRelation(
       @Nonnull final Collection<SimpleCoding> systemAndCodes) {
-    final List<Coding> codings =
-        systemAndCodes.stream().map(SimpleCoding::toCoding).collect(Collectors.toList());
-    // recreate the systemAndCodes dataset from the list not to execute the query again.
-    // Create a unique name for the closure table for this code system, based upon the
-    // expressions of the input, argument and the CodeSystem URI.
+    return Closure.fromMappings(getSubsumesMappings(systemAndCodes));
+  }
+
+  /**
+   * Gets the subsumption relationships between a set of codings from the terminology service.
+   * <p>
+   * The codings are added to a new closure table in batches. The batches are sent one after
+   * another, as the response to each batch relates its codings to all the codings that are already
+   * in the table. The requests count towards the limit on concurrent requests within the executor.
+   *
+   * @param systemAndCodes the codings to find the relationships between
+   * @return a list of {@link Mapping} objects, each of which points from a coding to a coding that
+   * it subsumes
+   */
+  @Nonnull
+  public List<Mapping> getSubsumesMappings(
+      @Nonnull final Collection<SimpleCoding> systemAndCodes) {
+    if (systemAndCodes.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return requestPool.invoke(() -> getClosure(systemAndCodes));
+  }
+
+  @Nonnull
+  private List<Mapping> getClosure(@Nonnull final Collection<SimpleCoding> systemAndCodes) {
+    // Create a unique name for the closure table.
     final String closureName = UUID.randomUUID().toString();
-    log.info("Sending $closure request to terminology service with name '{}' and {} codings",
-        closureName, codings.size());
     terminologyClient.closure(new StringType(closureName), null);
-    final ConceptMap closureResponse =
-        terminologyClient.closure(new StringType(closureName), codings);
-    return conceptMapToClosure(closureResponse);
+    final List<Mapping> mappings = new ArrayList<>();
+    for (final List<SimpleCoding> batch : requestPool.batches(systemAndCodes)) {
+      final List<Coding> codings =
+          batch.stream().map(SimpleCoding::toCoding).collect(Collectors.toList());
+      log.info("Sending $closure request to terminology service with name '{}' and {} codings",
+          closureName, codings.size());
+      final ConceptMap closureResponse =
+          terminologyClient.closure(new StringType(closureName), codings);
+      mappings.addAll(conceptMapToMappings(closureResponse));
+    }
+    return mappings;
   }
 
   @Nonnull
@@ -0,0 +1,453 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.function.subsumes;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemHierarchyMeaning;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.CodeSystem.PropertyComponent;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * An index of the subsumption relationships within a set of code systems, built from the concept
+ * hierarchies of their CodeSystem resources. This allows {@code subsumes} and {@code subsumedBy}
+ * to be answered without calling the terminology service.
+ * <p>
+ * Each concept is given an integer identifier, and the transitive closure of the hierarchy is
+ * stored as a bitmap of the ancestors of each concept. Finding out whether one concept subsumes
+ * another is then a single lookup. Identifiers are given in topological order, so that the
+ * ancestors of a concept have lower identifiers than the concept itself, and the bitmaps are
+ * compressed. The size of the index then grows with the size of the transitive closure, rather
+ * than with the square of the number of concepts.
+ * <p>
+ * Each version of a code system is indexed separately, and codings are only related to other
+ * codings from the same version.
+ *
+ * @author John Grimes
+ */
+@Slf4j
+public class CodeSystemHierarchy implements Serializable {
+
+  private static final long serialVersionUID = -3591482087402916317L;
+
+  private static final String PARENT_PROPERTY = "parent";
+  private static final String CHILD_PROPERTY = "child";
+  private static final String CONCEPT_PROPERTIES = "http://hl7.org/fhir/concept-properties#";
+
+  private static final Map<String, CodeSystemHierarchy> INSTANCES = new ConcurrentHashMap<>();
+
+  /**
+   * Ensures that each index is only loaded by one thread at a time, without holding up the loading
+   * of indexes from other locations.
+   */
+  private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+  /**
+   * The versions of each code system within the index, which include null for CodeSystem resources
+   * that were not versioned.
+   */
+  @Nonnull
+  private final Map<String, Set<String>> systems;
+
+  /**
+   * The identifier of each concept within the index, keyed by its coding and the version of the
+   * CodeSystem resource that it was read from.
+   */
+  @Nonnull
+  private final Map<SimpleCoding, Integer> concepts;
+
+  /**
+   * The ancestors of each concept, indexed by its identifier.
+   */
+  @Nonnull
+  private final RoaringBitmap[] ancestors;
+
+  private CodeSystemHierarchy(@Nonnull final Map<String, Set<String>> systems,
+      @Nonnull final Map<SimpleCoding, Integer> concepts,
+      @Nonnull final RoaringBitmap[] ancestors) {
+    this.systems = systems;
+    this.concepts = concepts;
+    this.ancestors = ancestors;
+  }
+
+  /**
+   * @return an index that does not contain any code systems
+   */
+  @Nonnull
+  public static CodeSystemHierarchy empty() {
+    return new CodeSystemHierarchy(Collections.emptyMap(), Collections.emptyMap(),
+        new RoaringBitmap[0]);
+  }
+
+  /**
+   * Gets the index of the CodeSystem resources at a location, loading it on the first call. The
+   * index is built on the driver, and is then reused until the server is restarted. If the
+   * resources could not be read, the empty index is reused in the same way.
+   *
+   * @param url the location of an NDJSON file containing CodeSystem resources
+   * @param spark the {@link SparkSession} used to read the file
+   * @param fhirContext the {@link FhirContext} used to parse the resources
+   * @return the {@link CodeSystemHierarchy}, which is empty if the resources could not be read
+   */
+  @Nonnull
+  public static CodeSystemHierarchy getInstance(@Nonnull final String url,
+      @Nonnull final SparkSession spark, @Nonnull final FhirContext fhirContext) {
+    @Nullable final CodeSystemHierarchy current = INSTANCES.get(url);
+    if (current != null) {
+      return current;
+    }
+    synchronized (LOCKS.computeIfAbsent(url, u -> new Object())) {
+      // Another thread may have loaded the index while this one was waiting.
+      @Nullable final CodeSystemHierarchy latest = INSTANCES.get(url);
+      if (latest != null) {
+        return latest;
+      }
+      final CodeSystemHierarchy loaded = load(url, spark, fhirContext)
+          .orElseGet(CodeSystemHierarchy::empty);
+      INSTANCES.put(url, loaded);
+      return loaded;
+    }
+  }
+
+  /**
+   * Reads the CodeSystem resources within an NDJSON file and builds an index from them. Any other
+   * types of resource within the file are ignored.
+   *
+   * @param url the location of the NDJSON file
+   * @param spark the {@link SparkSession} used to read the file
+   * @param fhirContext the {@link FhirContext} used to parse the resources
+   * @return the {@link CodeSystemHierarchy}, or nothing if the file could not be read
+   */
+  @Nonnull
+  static Optional<CodeSystemHierarchy> load(@Nonnull final String url,
+      @Nonnull final SparkSession spark, @Nonnull final FhirContext fhirContext) {
+    log.info("Loading code system hierarchies from {}", url);
+    final List<String> jsonStrings;
+    try {
+      jsonStrings = spark.read().textFile(url).collectAsList();
+    } catch (final Exception e) {
+      log.warn("Unable to read code systems from {}, subsumption will be tested by the "
+          + "terminology service: {}", url, e.getMessage());
+      return Optional.empty();
+    }
+    final IParser parser = fhirContext.newJsonParser();
+    final List<CodeSystem> codeSystems = new ArrayList<>();
+    for (final String json : jsonStrings) {
+      if (json.isBlank()) {
+        continue;
+      }
+      try {
+        final IBaseResource resource = parser.parseResource(json);
+        if (resource instanceof CodeSystem) {
+          codeSystems.add((CodeSystem) resource);
+        }
+      } catch (final DataFormatException e) {
+        log.warn("Skipping resource that could not be parsed in {}: {}", url, e.getMessage());
+      }
+    }
+    return Optional.of(fromCodeSystems(codeSystems));
+  }
+
+  /**
+   * Builds an index from a collection of CodeSystem resources. The hierarchy of each code system is
+   * taken from the nesting of its concepts, along with any {@code parent} or {@code child}
+   * properties. Code systems with a hierarchy that does not mean "is-a" are not included.
+   *
+   * @param codeSystems the CodeSystem resources
+   * @return a new {@link CodeSystemHierarchy}
+   */
+  @Nonnull
+  public static CodeSystemHierarchy fromCodeSystems(
+      @Nonnull final Collection<CodeSystem> codeSystems) {
+    final Map<String, Set<String>> systems = new HashMap<>();
+    final Map<SimpleCoding, Integer> concepts = new HashMap<>();
+    final List<Set<Integer>> parents = new ArrayList<>();
+
+    for (final CodeSystem codeSystem : codeSystems) {
+      final String system = codeSystem.getUrl();
+      if (system == null) {
+        continue;
+      }
+      if (codeSystem.hasHierarchyMeaning()
+          && codeSystem.getHierarchyMeaning() != CodeSystemHierarchyMeaning.ISA) {
+        log.warn("Not indexing code system {} as its hierarchy does not mean is-a: {}", system,
+            codeSystem.getHierarchyMeaning().toCode());
+        continue;
+      }
+      @Nullable final String version = codeSystem.getVersion();
+      systems.computeIfAbsent(system, s -> new HashSet<>()).add(version);
+      final Set<String> parentProperties = propertyCodes(codeSystem, PARENT_PROPERTY);
+      final Set<String> childProperties = propertyCodes(codeSystem, CHILD_PROPERTY);
+      final Deque<ConceptDefinitionComponent> stack = new ArrayDeque<>(codeSystem.getConcept());
+      while (!stack.isEmpty()) {
+        final ConceptDefinitionComponent concept = stack.pop();
+        final int id = intern(system, version, concept.getCode(), concepts, parents);
+        for (final ConceptDefinitionComponent child : concept.getConcept()) {
+          parents.get(intern(system, version, child.getCode(), concepts, parents)).add(id);
+          stack.push(child);
+        }
+        for (final ConceptPropertyComponent property : concept.getProperty()) {
+          if (!property.hasValueCodeType()) {
+            continue;
+          }
+          final String value = property.getValueCodeType().getCode();
+          if (parentProperties.contains(property.getCode())) {
+            parents.get(id).add(intern(system, version, value, concepts, parents));
+          } else if (childProperties.contains(property.getCode())) {
+            parents.get(intern(system, version, value, concepts, parents)).add(id);
+          }
+        }
+      }
+    }
+
+    // Renumber the concepts so that each one follows all of its parents.
+    final int[] order = topologicalOrder(parents);
+    final int[] ids = new int[order.length];
+    for (int id = 0; id < order.length; id++) {
+      ids[order[id]] = id;
+    }
+    concepts.replaceAll((coding, id) -> ids[id]);
+    final List<int[]> renumbered = new ArrayList<>(order.length);
+    for (final int previous : order) {
+      renumbered.add(parents.get(previous).stream().mapToInt(parent -> ids[parent]).toArray());
+    }
+
+    final CodeSystemHierarchy hierarchy = new CodeSystemHierarchy(systems, concepts,
+        transitiveClosure(renumbered));
+    log.info("Indexed {} concepts from {} code systems", concepts.size(), systems.size());
+    return hierarchy;
+  }
+
+  /**
+   * Checks whether a coding belongs to one of the code systems within the index. The relationships
+   * of the codings that belong to the index can be found using {@link #subsumes}, while those of
+   * all other codings are left to the terminology service.
+   *
+   * @param coding the coding to check
+   * @return true if the coding belongs to the index
+   */
+  public boolean covers(@Nonnull final SimpleCoding coding) {
+    return indexKey(coding).isPresent();
+  }
+
+  /**
+   * Checks whether one coding subsumes another, i.e. they are the same concept or the first is an
+   * ancestor of the second. Both codings must be covered by the index, and must belong to the same
+   * version of the same code system.
+   *
+   * @param ancestor the coding that may subsume the other
+   * @param descendant the coding that may be subsumed
+   * @return true if the first coding subsumes the second
+   */
+  public boolean subsumes(@Nonnull final SimpleCoding ancestor,
+      @Nonnull final SimpleCoding descendant) {
+    final Optional<SimpleCoding> ancestorKey = indexKey(ancestor);
+    final Optional<SimpleCoding> descendantKey = indexKey(descendant);
+    if (ancestorKey.isEmpty() || descendantKey.isEmpty()
+        || !Objects.equals(ancestor.getSystem(), descendant.getSystem())
+        || !Objects.equals(ancestorKey.get().getVersion(), descendantKey.get().getVersion())) {
+      return false;
+    }
+    if (Objects.equals(ancestor.getCode(), descendant.getCode())) {
+      return true;
+    }
+    final Integer ancestorId = concepts.get(ancestorKey.get());
+    final Integer descendantId = concepts.get(descendantKey.get());
+    return ancestorId != null && descendantId != null
+        && ancestors[descendantId].contains(ancestorId);
+  }
+
+  /**
+   * Finds the key of a coding within the index, which carries the version of the CodeSystem
+   * resource that the coding is looked up within. A versioned coding uses its own version, or an
+   * unversioned CodeSystem resource if that version has not been indexed. An unversioned coding can
+   * only be looked up if there is a single version of its code system within the index.
+   *
+   * @param coding the coding to find the key for
+   * @return the key, or nothing if the coding is not covered by the index
+   */
+  @Nonnull
+  private Optional<SimpleCoding> indexKey(@Nonnull final SimpleCoding coding) {
+    if (!coding.isDefined()) {
+      return Optional.empty();
+    }
+    final Set<String> versions = systems.get(coding.getSystem());
+    if (versions == null) {
+      return Optional.empty();
+    }
+    final String version;
+    if (coding.getVersion() != null && versions.contains(coding.getVersion())) {
+      version = coding.getVersion();
+    } else if (coding.getVersion() != null && versions.contains(null)) {
+      version = null;
+    } else if (coding.getVersion() == null && versions.size() == 1) {
+      version = versions.iterator().next();
+    } else {
+      return Optional.empty();
+    }
+    return Optional.of(new SimpleCoding(coding.getSystem(), coding.getCode(), version));
+  }
+
+  /**
+   * Checks if any of the Codings in the left set subsumes any of the Codings in the right set.
+   */
+  public boolean anySubsumes(@Nonnull final Collection<SimpleCoding> left,
+      @Nonnull final Collection<SimpleCoding> right) {
+    return left.stream()
+        .filter(Objects::nonNull)
+        .anyMatch(l -> right.stream()
+            .filter(Objects::nonNull)
+            .anyMatch(r -> subsumes(l, r)));
+  }
+
+  /**
+   * @return the number of concepts within the index
+   */
+  public int size() {
+    return concepts.size();
+  }
+
+  @Nonnull
+  private static Set<String> propertyCodes(@Nonnull final CodeSystem codeSystem,
+      @Nonnull final String property) {
+    final Set<String> codes = codeSystem.getProperty().stream()
+        .filter(p -> (CONCEPT_PROPERTIES + property).equals(p.getUri()))
+        .map(PropertyComponent::getCode)
+        .collect(Collectors.toSet());
+    codes.add(property);
+    return codes;
+  }
+
+  private static int intern(@Nonnull final String system, @Nullable final String version,
+      @Nullable final String code, @Nonnull final Map<SimpleCoding, Integer> concepts,
+      @Nonnull final List<Set<Integer>> parents) {
+    return concepts.computeIfAbsent(new SimpleCoding(system, code, version), coding -> {
+      parents.add(new HashSet<>());
+      return parents.size() - 1;
+    });
+  }
+
+  /**
+   * Orders the concepts so that each one follows all of its parents. Any concepts that are part of
+   * a cycle, or descend from one, cannot be ordered in this way and are placed at the end.
+   *
+   * @return the identifiers of the concepts, in order
+   */
+  @Nonnull
+  private static int[] topologicalOrder(@Nonnull final List<Set<Integer>> parents) {
+    final int size = parents.size();
+    final List<List<Integer>> children = new ArrayList<>(size);
+    final int[] remainingParents = new int[size];
+    final Deque<Integer> ready = new ArrayDeque<>();
+    for (int id = 0; id < size; id++) {
+      children.add(new ArrayList<>());
+    }
+    for (int id = 0; id < size; id++) {
+      parents.get(id).remove(id);
+      remainingParents[id] = parents.get(id).size();
+      for (final int parent : parents.get(id)) {
+        children.get(parent).add(id);
+      }
+      if (remainingParents[id] == 0) {
+        ready.add(id);
+      }
+    }
+
+    final int[] order = new int[size];
+    int visited = 0;
+    while (!ready.isEmpty()) {
+      final int id = ready.pop();
+      order[visited++] = id;
+      for (final int child : children.get(id)) {
+        if (--remainingParents[child] == 0) {
+          ready.add(child);
+        }
+      }
+    }
+    if (visited < size) {
+      log.warn("Concept hierarchy contains cycles, {} concepts are affected", size - visited);
+      for (int id = 0; id < size; id++) {
+        if (remainingParents[id] > 0) {
+          order[visited++] = id;
+        }
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Finds the ancestors of each concept. Concepts are expected to be numbered in topological order,
+   * which means that the ancestors of the parents of each concept are already complete when it is
+   * visited. Any concepts with a parent that comes after them are part of a cycle, and from that
+   * point on the ancestors are found by repeating the union of the ancestors of their parents until
+   * nothing changes.
+   */
+  @Nonnull
+  private static RoaringBitmap[] transitiveClosure(@Nonnull final List<int[]> parents) {
+    final int size = parents.size();
+    final RoaringBitmap[] ancestors = new RoaringBitmap[size];
+    int firstCyclic = size;
+    for (int id = 0; id < size; id++) {
+      ancestors[id] = new RoaringBitmap();
+      for (final int parent : parents.get(id)) {
+        if (parent < id) {
+          ancestors[id].add(parent);
+          ancestors[id].or(ancestors[parent]);
+        } else {
+          firstCyclic = Math.min(firstCyclic, id);
+        }
+      }
+    }
+
+    boolean changed = firstCyclic < size;
+    while (changed) {
+      changed = false;
+      for (int id = firstCyclic; id < size; id++) {
+        final RoaringBitmap updated = ancestors[id].clone();
+        for (final int parent : parents.get(id)) {
+          updated.add(parent);
+          updated.or(ancestors[parent]);
+        }
+        if (!updated.equals(ancestors[id])) {
+          ancestors[id] = updated;
+          changed = true;
+        }
+      }
+    }
+
+    for (final RoaringBitmap bitmap : ancestors) {
+      bitmap.runOptimize();
+    }
+    return ancestors;
+  }
+
+}
@@ -10,17 +10,30 @@ import static au.csiro.pathling.fhirpath.function.NamedFunction.expressionFromIn
 import static au.csiro.pathling.utilities.Preconditions.checkUserInput;
 import static org.apache.spark.sql.functions.*;
 
+import au.csiro.pathling.fhir.KnownCodeSystems;
+import au.csiro.pathling.fhir.TerminologyClient;
+import au.csiro.pathling.fhir.TerminologyClientFactory;
+import au.csiro.pathling.fhir.TerminologyRequestPool;
 import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.NonLiteralPath;
 import au.csiro.pathling.fhirpath.element.ElementPath;
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
 import au.csiro.pathling.fhirpath.encoding.SimpleCodingsDecoders;
 import au.csiro.pathling.fhirpath.function.NamedFunction;
 import au.csiro.pathling.fhirpath.function.NamedFunctionInput;
 import au.csiro.pathling.fhirpath.literal.CodingLiteralPath;
 import au.csiro.pathling.fhirpath.parser.ParserContext;
+import au.csiro.pathling.sql.MapperWithPreview;
 import au.csiro.pathling.sql.SqlExtensions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
@@ -35,6 +48,12 @@ import org.slf4j.MDC;
  * A function that takes a set of Codings or CodeableConcepts as inputs and returns a set of boolean
  * values whether based upon whether each item subsumes or is subsumedBy one or more Codings or
  * CodeableConcepts in the argument set.
+ * <p>
+ * By default, the relationships between the Codings are found separately within each partition. If
+ * the context asks for the distinct Codings across the whole input to be resolved, the
+ * relationships between all of them are found once and broadcast to the executors. If the
+ * hierarchies of some code systems have been loaded into a {@link CodeSystemHierarchy}, the
+ * Codings from those code systems are tested locally instead.
  *
  * @author John Grimes
  * @author Piotr Szul
@@ -104,11 +123,65 @@ public class SubsumesFunction implements NamedFunction {
     final Column codingPairCol = struct(idAndCodingSet.col(COL_INPUT_CODINGS),
         idAndCodingSet.col(COL_ARG_CODINGS));
 
-    @SuppressWarnings({"OptionalGetWithoutIsPresent", "TypeMayBeWeakened"})
-    final SubsumptionMapperWithPreview mapper =
-        new SubsumptionMapperWithPreview(MDC.get("requestId"),
-            input.getContext().getTerminologyClientFactory().get(),
-            inverted);
+    // If there are few enough distinct Codings in the input, the relationships between them are
+    // found once and broadcast to the executors. Otherwise, they are found on a per-partition
+    // basis. The distinct Codings are not collected while a projection is still recording, as the
+    // dataset from that parse is never executed.
+    final ParserContext context = input.getContext();
+    final boolean recording = context.getProjection()
+        .map(projection -> !projection.isFrozen())
+        .orElse(false);
+    final int threshold = context.isTerminologyResolveDistinctCodings() && !recording
+                          ? context.getTerminologyBroadcastThreshold()
+                          : 0;
+    final Optional<Set<SimpleCoding>> distinctCodings = distinctCodings(idAndCodingSet,
+        threshold);
+    @SuppressWarnings("OptionalGetWithoutIsPresent")
+    final TerminologyClientFactory terminologyClientFactory = context
+        .getTerminologyClientFactory().get();
+
+    // The code systems known to the terminology server are found once on the driver, rather than
+    // within each partition. They are not looked up while a projection is still recording, as
+    // nothing is executed during that parse.
+    @SuppressWarnings("OptionalGetWithoutIsPresent")
+    final TerminologyClient terminologyClient = context.getTerminologyClient().get();
+    final Optional<KnownCodeSystems> knownCodeSystems = Optional.of(terminologyClientFactory)
+        .filter(factory -> !recording)
+        .flatMap(factory -> factory.getKnownCodeSystems(terminologyClient));
+    final JavaSparkContext sparkContext = JavaSparkContext
+        .fromSparkContext(context.getSparkSession().sparkContext());
+
+    // If hierarchies have been loaded for some code systems, the codings from those code systems
+    // are tested on the executors and are not sent to the terminology service. The hierarchies are
+    // not loaded while recording.
+    final Optional<CodeSystemHierarchy> hierarchy = terminologyClientFactory
+        .getLocalCodeSystemsUrl()
+        .filter(url -> !recording)
+        .map(url -> CodeSystemHierarchy
+            .getInstance(url, context.getSparkSession(), context.getFhirContext()));
+
+    final MapperWithPreview<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>, Boolean, Closure>
+        remoteMapper;
+    if (distinctCodings.isPresent()) {
+      final Set<SimpleCoding> codings = distinctCodings.get().stream()
+          .filter(coding -> hierarchy.map(h -> !h.covers(coding)).orElse(true))
+          .collect(Collectors.toSet());
+      final List<Mapping> mappings = SubsumptionMapperWithPreview
+          .getMappings(() -> terminologyClient, terminologyClientFactory.getCache(),
+              knownCodeSystems, TerminologyRequestPool.forFactory(terminologyClientFactory),
+              codings);
+      remoteMapper = new SubsumptionBroadcastMapper(
+          sparkContext.broadcast(new ArrayList<>(mappings)), inverted);
+    } else {
+      remoteMapper = new SubsumptionMapperWithPreview(MDC.get("requestId"),
+          terminologyClientFactory, inverted,
+          knownCodeSystems.map(sparkContext::broadcast).orElse(null));
+    }
+    final MapperWithPreview<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>, Boolean, Closure>
+        mapper = hierarchy.isPresent()
+                 ? new SubsumptionHierarchyMapper(sparkContext.broadcast(hierarchy.get()),
+                     remoteMapper, inverted)
+                 : remoteMapper;
 
     final Dataset<Row> resultDataset = SqlExtensions
         .mapWithPartitionPreview(idAndCodingSet, codingPairCol,
@@ -125,6 +198,38 @@ public class SubsumesFunction implements NamedFunction {
             FHIRDefinedType.BOOLEAN);
   }
 
+  /**
+   * Collects the distinct defined Codings within the rows that have both input and argument
+   * Codings, as long as there are no more than the threshold.
+   */
+  @Nonnull
+  private static Optional<Set<SimpleCoding>> distinctCodings(
+      @Nonnull final Dataset<Row> idAndCodingSet, final int threshold) {
+    if (threshold <= 0) {
+      return Optional.empty();
+    }
+    final Dataset<Row> pairs = idAndCodingSet
+        .where(col(COL_INPUT_CODINGS).isNotNull().and(col(COL_ARG_CODINGS).isNotNull()));
+    final Column coding = col(COL_CODING);
+    final List<Row> rows = pairs.select(explode(col(COL_INPUT_CODINGS)).alias(COL_CODING))
+        .union(pairs.select(explode(col(COL_ARG_CODINGS)).alias(COL_CODING)))
+        .select(coding.getField("system"), coding.getField("code"), coding.getField("version"))
+        .distinct()
+        .limit(threshold + 1)
+        .collectAsList();
+    if (rows.size() > threshold) {
+      log.debug("More than {} distinct codings in input, finding relationships within each "
+          + "partition", threshold);
+      return Optional.empty();
+    }
+    log.debug("Found {} distinct codings in input, finding relationships once and broadcasting "
+        + "result", rows.size());
+    return Optional.of(rows.stream()
+        .map(row -> new SimpleCoding(row.getString(0), row.getString(1), row.getString(2)))
+        .filter(SimpleCoding::isDefined)
+        .collect(Collectors.toSet()));
+  }
+
   /**
    * Creates a dataset that preserves previous columns and adds three new ones: resource ID, input
    * codings and argument codings.
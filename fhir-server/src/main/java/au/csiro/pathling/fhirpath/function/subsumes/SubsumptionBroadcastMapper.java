@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.function.subsumes;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import au.csiro.pathling.sql.MapperWithPreview;
+import java.util.Iterator;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.spark.broadcast.Broadcast;
+
+/**
+ * Takes a pair of {@link List} of {@link SimpleCoding}. Returns a Boolean value indicating if any
+ * coding in the left list is in the subsumption relation with any coding in the right list, using
+ * the relationships between all of the codings in the input that have already been found on the
+ * driver and broadcast to the executors. Unlike {@link SubsumptionMapperWithPreview}, no calls are
+ * made to the terminology service from within the partitions.
+ *
+ * @author John Grimes
+ */
+public class SubsumptionBroadcastMapper implements
+    MapperWithPreview<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>, Boolean, Closure> {
+
+  private static final long serialVersionUID = 6386934460713436447L;
+
+  @Nonnull
+  private final Broadcast<List<Mapping>> mappings;
+
+  private final boolean inverted;
+
+  /**
+   * @param mappings the subsumption relationships between the codings in the input
+   * @param inverted if true checks for `subsumedBy` relation, otherwise for `subsumes`
+   */
+  public SubsumptionBroadcastMapper(@Nonnull final Broadcast<List<Mapping>> mappings,
+      final boolean inverted) {
+    this.mappings = mappings;
+    this.inverted = inverted;
+  }
+
+  @Override
+  @Nonnull
+  public Closure preview(
+      @Nonnull final Iterator<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>> input) {
+    return Closure.fromMappings(mappings.value());
+  }
+
+  @Override
+  @Nullable
+  public Boolean call(@Nullable final ImmutablePair<List<SimpleCoding>, List<SimpleCoding>> input,
+      @Nonnull final Closure subsumeClosure) {
+    return SubsumptionMapperWithPreview.relates(input, subsumeClosure, inverted);
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.function.subsumes;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import au.csiro.pathling.sql.MapperWithPreview;
+import com.google.common.collect.Iterators;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.spark.broadcast.Broadcast;
+
+/**
+ * Takes a pair of {@link List} of {@link SimpleCoding}. Returns a Boolean value indicating if any
+ * coding in the left list is in the subsumption relation with any coding in the right list. The
+ * codings that belong to the {@link CodeSystemHierarchy} that has been broadcast to the executors
+ * are tested locally, and all other codings are passed on to another mapper that uses the
+ * terminology service.
+ *
+ * @author John Grimes
+ */
+public class SubsumptionHierarchyMapper implements
+    MapperWithPreview<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>, Boolean, Closure> {
+
+  private static final long serialVersionUID = -4407395925372585112L;
+
+  @Nonnull
+  private final Broadcast<CodeSystemHierarchy> hierarchy;
+
+  @Nonnull
+  private final MapperWithPreview<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>, Boolean,
+      Closure> delegate;
+
+  private final boolean inverted;
+
+  /**
+   * @param hierarchy the index of the code systems that can be tested locally
+   * @param delegate the mapper used for the codings that do not belong to the index
+   * @param inverted if true checks for `subsumedBy` relation, otherwise for `subsumes`
+   */
+  public SubsumptionHierarchyMapper(@Nonnull final Broadcast<CodeSystemHierarchy> hierarchy,
+      @Nonnull final MapperWithPreview<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>,
+          Boolean, Closure> delegate,
+      final boolean inverted) {
+    this.hierarchy = hierarchy;
+    this.delegate = delegate;
+    this.inverted = inverted;
+  }
+
+  @Override
+  @Nonnull
+  public Closure preview(
+      @Nonnull final Iterator<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>> input)
+      throws Exception {
+    // Only the codings that cannot be tested locally are seen by the delegate.
+    final CodeSystemHierarchy value = hierarchy.value();
+    return delegate.preview(Iterators.transform(input, pair -> uncovered(pair, value)));
+  }
+
+  @Override
+  @Nullable
+  public Boolean call(@Nullable final ImmutablePair<List<SimpleCoding>, List<SimpleCoding>> input,
+      @Nonnull final Closure subsumeClosure) throws Exception {
+    if (input == null || input.getLeft() == null) {
+      return null;
+    }
+    final CodeSystemHierarchy value = hierarchy.value();
+    if (input.getRight() != null) {
+      final boolean local = !inverted
+                            ? value.anySubsumes(input.getLeft(), input.getRight())
+                            : value.anySubsumes(input.getRight(), input.getLeft());
+      if (local) {
+        return true;
+      }
+    }
+    return delegate.call(uncovered(input, value), subsumeClosure);
+  }
+
+  /**
+   * Removes the codings that belong to the index from both sides of a pair.
+   */
+  @Nullable
+  private static ImmutablePair<List<SimpleCoding>, List<SimpleCoding>> uncovered(
+      @Nullable final ImmutablePair<List<SimpleCoding>, List<SimpleCoding>> pair,
+      @Nonnull final CodeSystemHierarchy hierarchy) {
+    return pair == null
+           ? null
+           : ImmutablePair.of(uncovered(pair.getLeft(), hierarchy),
+               uncovered(pair.getRight(), hierarchy));
+  }
+
+  @Nullable
+  private static List<SimpleCoding> uncovered(@Nullable final List<SimpleCoding> codings,
+      @Nonnull final CodeSystemHierarchy hierarchy) {
+    return codings == null
+           ? null
+           : codings.stream()
+               .filter(coding -> coding == null || !hierarchy.covers(coding))
+               .collect(Collectors.toList());
+  }
+
+}
@@ -6,13 +6,17 @@
 
 package au.csiro.pathling.fhirpath.function.subsumes;
 
+import au.csiro.pathling.fhir.KnownCodeSystems;
+import au.csiro.pathling.fhir.TerminologyCache;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
+import au.csiro.pathling.fhir.TerminologyRequestPool;
 import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
 import au.csiro.pathling.sql.MapperWithPreview;
-import ca.uhn.fhir.rest.param.UriParam;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Streams;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -20,7 +24,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.hl7.fhir.r4.model.CodeSystem;
+import org.apache.spark.broadcast.Broadcast;
 import org.slf4j.MDC;
 
 /**
@@ -41,6 +45,8 @@ public class SubsumptionMapperWithPreview implements
   private final TerminologyClientFactory terminologyClientFactory;
   private final boolean inverted;
 
+  @Nullable
+  private final Broadcast<KnownCodeSystems> knownCodeSystems;
 
   /**
    * @param requestId an identifier used alongside any logging that the mapper outputs
@@ -51,9 +57,24 @@ public class SubsumptionMapperWithPreview implements
   public SubsumptionMapperWithPreview(@Nonnull final String requestId,
       @Nonnull final TerminologyClientFactory terminologyClientFactory,
       final boolean inverted) {
+    this(requestId, terminologyClientFactory, inverted, null);
+  }
+
+  /**
+   * @param requestId an identifier used alongside any logging that the mapper outputs
+   * @param terminologyClientFactory the factory to use to create the {@link
+   * au.csiro.pathling.fhir.TerminologyClient}
+   * @param inverted if true checks for `subsumedBy` relation, otherwise for `subsumes`
+   * @param knownCodeSystems the code systems known to the terminology server, or null to search
+   * for each code system within each partition
+   */
+  public SubsumptionMapperWithPreview(@Nonnull final String requestId,
+      @Nonnull final TerminologyClientFactory terminologyClientFactory,
+      final boolean inverted, @Nullable final Broadcast<KnownCodeSystems> knownCodeSystems) {
     this.requestId = requestId;
     this.terminologyClientFactory = terminologyClientFactory;
     this.inverted = inverted;
+    this.knownCodeSystems = knownCodeSystems;
   }
 
   @Override
@@ -82,33 +103,65 @@ public class SubsumptionMapperWithPreview implements
         .filter(SimpleCoding::isDefined)
         .collect(Collectors.toSet());
 
-    final TerminologyClient terminologyClient = terminologyClientFactory.build(log);
+    // The client is only built if some of the answers are not already in the cache.
+    final Supplier<TerminologyClient> terminologyClient = Suppliers
+        .memoize(() -> terminologyClientFactory.build(log));
+    return Closure.fromMappings(
+        getMappings(terminologyClient, terminologyClientFactory.getCache(),
+            Optional.ofNullable(knownCodeSystems).map(Broadcast::value),
+            TerminologyRequestPool.forFactory(terminologyClientFactory), allCodings));
+  }
 
+  /**
+   * Uses the terminology service to find the subsumption relationships between a set of codings.
+   * Codings from code systems that are not known to the terminology service are ignored. If a cache
+   * is provided, it is consulted before the terminology service.
+   *
+   * @param terminologyClient supplies the {@link TerminologyClient} to use
+   * @param cache the {@link TerminologyCache} to use, if any
+   * @param knownCodeSystems the code systems known to the terminology server, if they have been
+   * loaded
+   * @param requestPool the {@link TerminologyRequestPool} used to split and run the requests
+   * @param allCodings the codings to find the relationships between, all of which must be defined
+   * @return a list of {@link Mapping} objects, each of which points from a coding to a coding that
+   * it subsumes
+   */
+  @Nonnull
+  static List<Mapping> getMappings(@Nonnull final Supplier<TerminologyClient> terminologyClient,
+      @Nonnull final Optional<TerminologyCache> cache,
+      @Nonnull final Optional<KnownCodeSystems> knownCodeSystems,
+      @Nonnull final TerminologyRequestPool requestPool,
+      @Nonnull final Set<SimpleCoding> allCodings) {
     // filter out codings with code systems unknown to the terminology server
     final Set<String> allCodeSystems = allCodings.stream()
         .map(SimpleCoding::getSystem)
         .collect(Collectors.toSet());
 
-    final Set<String> knownCodeSystems = allCodeSystems.stream().filter(codeSystem -> {
-      final UriParam uri = new UriParam(codeSystem);
-      final List<CodeSystem> knownSystems = terminologyClient.searchCodeSystems(
-          uri, new HashSet<>(Collections.singletonList("id")));
-      return !knownSystems.isEmpty();
-    }).collect(Collectors.toSet());
+    final Set<String> knownCodeSystemUris = allCodeSystems.stream()
+        .filter(codeSystem -> KnownCodeSystems
+            .isKnown(codeSystem, knownCodeSystems, cache, terminologyClient))
+        .collect(Collectors.toSet());
 
-    if (!knownCodeSystems.equals(allCodeSystems)) {
+    if (!knownCodeSystemUris.equals(allCodeSystems)) {
       final Collection<String> unrecognizedCodeSystems = new HashSet<>(allCodeSystems);
-      unrecognizedCodeSystems.removeAll(knownCodeSystems);
+      unrecognizedCodeSystems.removeAll(knownCodeSystemUris);
       log.warn("Terminology server does not recognize these coding systems: {}",
           unrecognizedCodeSystems);
     }
 
     final Set<SimpleCoding> knownCodings = allCodings.stream()
-        .filter(coding -> knownCodeSystems.contains(coding.getSystem()))
+        .filter(coding -> knownCodeSystemUris.contains(coding.getSystem()))
         .collect(Collectors.toSet());
 
-    final ClosureService closureService = new ClosureService(terminologyClient);
-    return closureService.getSubsumesRelation(knownCodings);
+    if (cache.isEmpty()) {
+      return new ClosureService(terminologyClient.get(), requestPool)
+          .getSubsumesMappings(knownCodings);
+    }
+    final List<Mapping> mappings = cache.get().closure(knownCodings, knownCodeSystems,
+        codings -> new ClosureService(terminologyClient.get(), requestPool)
+            .getSubsumesMappings(codings));
+    log.debug("Terminology cache statistics: {}", cache.get().getStatistics());
+    return mappings;
   }
 
   @Nonnull
@@ -122,6 +175,22 @@ public class SubsumptionMapperWithPreview implements
   @Nullable
   public Boolean call(@Nullable final ImmutablePair<List<SimpleCoding>, List<SimpleCoding>> input,
       @Nonnull final Closure subsumeClosure) {
+    return relates(input, subsumeClosure, inverted);
+  }
+
+  /**
+   * Checks whether any coding in the left list of a pair is in the subsumption relation with any
+   * coding in the right list.
+   *
+   * @param input the pair of lists of codings
+   * @param subsumeClosure the {@link Closure} that defines the relation
+   * @param inverted if true checks for `subsumedBy` relation, otherwise for `subsumes`
+   * @return the result, or null if there is no left list
+   */
+  @Nullable
+  static Boolean relates(
+      @Nullable final ImmutablePair<List<SimpleCoding>, List<SimpleCoding>> input,
+      @Nonnull final Closure subsumeClosure, final boolean inverted) {
 
     if (Objects.isNull(input) || Objects.isNull(input.getLeft())) {
       return null;
@@ -6,11 +6,13 @@
 
 package au.csiro.pathling.fhirpath.operator;
 
+import static au.csiro.pathling.QueryHelpers.createColumns;
 import static au.csiro.pathling.utilities.Preconditions.checkUserInput;
 import static org.apache.spark.sql.functions.lit;
 import static org.apache.spark.sql.functions.posexplode_outer;
 import static org.apache.spark.sql.functions.when;
 
+import au.csiro.pathling.QueryHelpers.DatasetWithColumnMap;
 import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.NonLiteralPath;
 import au.csiro.pathling.fhirpath.ResourcePath;
@@ -63,14 +65,21 @@ public class PathTraversalOperator {
     // If the input path is a ResourcePath, we look for a bare column. Otherwise, we will need to
     // extract it from a struct.
     final Column field;
+    final Optional<Column> instantField;
     if (left instanceof ResourcePath) {
       final ResourcePath resourcePath = (ResourcePath) left;
       // When the value column of the ResourcePath is null, the path traversal results in null. This
       // can happen when attempting to do a path traversal on the result of a function like when.
-      field = when(resourcePath.getValueColumn().isNull(), lit(null))
+      final Column resourceIsNull = resourcePath.getValueColumn().isNull();
+      field = when(resourceIsNull, lit(null))
           .otherwise(resourcePath.getElementColumn(right));
+      // Singular date and dateTime elements may have been written with a precomputed instant, which
+      // is carried along with the path so that comparisons do not need to parse the value.
+      instantField = resourcePath.getInstantColumn(right)
+          .map(instant -> when(resourceIsNull, lit(null)).otherwise(instant));
     } else {
       field = left.getValueColumn().getField(right);
+      instantField = Optional.empty();
     }
 
     // If the element has a max cardinality of more than one, it will need to be "exploded" out into
@@ -81,11 +90,20 @@ public class PathTraversalOperator {
     final Column valueColumn;
     final Optional<Column> eidColumnCandidate;
     final Dataset<Row> resultDataset;
+    Optional<Column> instantColumn = Optional.empty();
 
     if (maxCardinalityOfOne) {
-      valueColumn = field;
       eidColumnCandidate = left.getEidColumn();
-      resultDataset = leftDataset;
+      if (instantField.isPresent()) {
+        final DatasetWithColumnMap datasetWithColumns = createColumns(leftDataset, field,
+            instantField.get());
+        resultDataset = datasetWithColumns.getDataset();
+        valueColumn = datasetWithColumns.getColumn(field);
+        instantColumn = Optional.of(datasetWithColumns.getColumn(instantField.get()));
+      } else {
+        valueColumn = field;
+        resultDataset = leftDataset;
+      }
     } else {
       // If the element has a cardinality of more than one, create a dataset with all existing
       // columns and then explode the array value field into `index` and `value` columns using
@@ -104,7 +122,8 @@ public class PathTraversalOperator {
                                        ? Optional.empty()
                                        : eidColumnCandidate;
     return ElementPath.build(expression, resultDataset, left.getIdColumn(), eidColumn, valueColumn,
-        resultSingular, left.getForeignResource(), left.getThisColumn(), childDefinition);
+        resultSingular, left.getForeignResource(), left.getThisColumn(), childDefinition,
+        instantColumn);
   }
 
 }
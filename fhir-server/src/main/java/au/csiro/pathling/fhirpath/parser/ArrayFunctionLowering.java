@@ -0,0 +1,376 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.parser;
+
+import static org.apache.spark.sql.functions.coalesce;
+import static org.apache.spark.sql.functions.element_at;
+import static org.apache.spark.sql.functions.filter;
+import static org.apache.spark.sql.functions.flatten;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.size;
+import static org.apache.spark.sql.functions.transform;
+import static org.apache.spark.sql.functions.when;
+
+import au.csiro.pathling.fhirpath.FhirPath;
+import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.element.BooleanPath;
+import au.csiro.pathling.fhirpath.element.ElementDefinition;
+import au.csiro.pathling.fhirpath.element.ElementPath;
+import au.csiro.pathling.fhirpath.element.IntegerPath;
+import au.csiro.pathling.fhirpath.element.StringPath;
+import au.csiro.pathling.fhirpath.function.NamedFunction;
+import au.csiro.pathling.fhirpath.literal.BooleanLiteralPath;
+import au.csiro.pathling.fhirpath.literal.IntegerLiteralPath;
+import au.csiro.pathling.fhirpath.literal.LiteralPath;
+import au.csiro.pathling.fhirpath.literal.StringLiteralPath;
+import au.csiro.pathling.fhirpath.parser.PlanNode.FunctionNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.LiteralNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.MemberNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.OperatorNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.ThisNode;
+import com.google.common.collect.ImmutableMap;
+import java.util.Optional;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.Value;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.types.DataTypes;
+import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
+
+/**
+ * Lowers functions over the elements of the subject resource to Spark array functions, which
+ * operate on the original columns of the resource dataset.
+ * <p>
+ * Otherwise, each traversal of a multi-valued element explodes the dataset into a row per element,
+ * and functions such as {@code count()} and {@code first()} group these rows back together again.
+ * This is only necessary when the function aggregates across resources, or across the items of an
+ * enclosing collection.
+ * <p>
+ * The expressions that are lowered are {@code count()}, {@code empty()} and {@code first()},
+ * invoked on a chain of elements that starts at the subject resource. The chain may include
+ * {@code first()} and {@code where()}, where the criteria are comparisons of singular string,
+ * Boolean or integer elements using {@code =} or {@code !=}, combined using {@code and} or
+ * {@code or}. Anything else is left to be evaluated in the usual way.
+ *
+ * @author John Grimes
+ */
+class ArrayFunctionLowering {
+
+  /**
+   * The literal types that can be compared to each type of element within a lowered criteria.
+   */
+  private static final ImmutableMap<Class<? extends ElementPath>, Class<? extends LiteralPath>>
+      COMPARABLE_LITERALS = ImmutableMap.of(
+      StringPath.class, StringLiteralPath.class,
+      BooleanPath.class, BooleanLiteralPath.class,
+      IntegerPath.class, IntegerLiteralPath.class);
+
+  @Nonnull
+  private final ParserContext context;
+
+  /**
+   * @param context The {@link ParserContext} that the function is being evaluated within
+   */
+  ArrayFunctionLowering(@Nonnull final ParserContext context) {
+    this.context = context;
+  }
+
+  /**
+   * @param node a {@link FunctionNode}
+   * @return the lowered result, or nothing if the function cannot be lowered
+   */
+  @Nonnull
+  Optional<FhirPath> lower(@Nonnull final FunctionNode node) {
+    // Functions within arguments or aggregations are evaluated within the context of more than one
+    // item, so they cannot be lowered.
+    if (context.getThisContext().isPresent() || context.getGroupingColumns().isPresent()
+        || !(context.getInputContext() instanceof ResourcePath)
+        || !node.getArguments().isEmpty() || node.getInvoker().isEmpty()) {
+      return Optional.empty();
+    }
+    final ResourcePath resource = (ResourcePath) context.getInputContext();
+    final Optional<Collection> optionalInput = collection(node.getInvoker().get(), resource);
+    if (optionalInput.isEmpty()) {
+      return Optional.empty();
+    }
+    final Collection input = optionalInput.get();
+    final String expression = input.getExpression() + "." + node.getName() + "()";
+
+    switch (node.getName()) {
+      case "count":
+        return Optional.of(ElementPath.build(expression, resource.getDataset(),
+            resource.getIdColumn(), Optional.empty(), count(input), true, Optional.empty(),
+            Optional.empty(), FHIRDefinedType.UNSIGNEDINT));
+      case "empty":
+        return Optional.of(ElementPath.build(expression, resource.getDataset(),
+            resource.getIdColumn(), Optional.empty(), count(input).equalTo(0), true,
+            Optional.empty(), Optional.empty(), FHIRDefinedType.BOOLEAN));
+      case "first":
+        if (input.getDefinition().getFhirType().isEmpty()) {
+          return Optional.empty();
+        }
+        final Collection first = first(input, expression);
+        return Optional.of(ElementPath.build(expression, resource.getDataset(),
+            resource.getIdColumn(), Optional.empty(), first.getValue(), true, Optional.empty(),
+            Optional.empty(), first.getDefinition()));
+      default:
+        return Optional.empty();
+    }
+  }
+
+  /**
+   * Lowers an expression that evaluates to a collection of elements within the subject resource.
+   */
+  @Nonnull
+  private Optional<Collection> collection(@Nonnull final PlanNode node,
+      @Nonnull final ResourcePath resource) {
+    if (node instanceof MemberNode) {
+      final MemberNode member = (MemberNode) node;
+      if (member.getInvoker().isEmpty()) {
+        // A member at the root of the expression is a traversal from the subject resource, unless
+        // it is a reference to the subject resource itself.
+        return member.getName().equals(resource.getExpression())
+               ? Optional.empty()
+               : traverse(resource, member.getName());
+      }
+      final PlanNode invoker = member.getInvoker().get();
+      if (invoker instanceof MemberNode && ((MemberNode) invoker).getInvoker().isEmpty()
+          && ((MemberNode) invoker).getName().equals(resource.getExpression())) {
+        return traverse(resource, member.getName());
+      }
+      return collection(invoker, resource)
+          .flatMap(parent -> traverse(parent, member.getName()));
+
+    } else if (node instanceof FunctionNode) {
+      final FunctionNode function = (FunctionNode) node;
+      if (function.getInvoker().isEmpty()) {
+        return Optional.empty();
+      }
+      final Optional<Collection> input = collection(function.getInvoker().get(), resource);
+      if (function.getName().equals("first") && function.getArguments().isEmpty()) {
+        return input.map(parent -> first(parent, parent.getExpression() + ".first()"));
+      } else if (function.getName().equals("where") && function.getArguments().size() == 1) {
+        return input.flatMap(parent -> where(parent, function.getArguments().get(0)));
+      }
+    }
+    return Optional.empty();
+  }
+
+  @Nonnull
+  private static Optional<Collection> traverse(@Nonnull final ResourcePath resource,
+      @Nonnull final String name) {
+    return resource.getChildElement(name).map(definition -> {
+      // This mirrors the null check performed by the path traversal operator.
+      final Column value = when(resource.getValueColumn().isNull(), lit(null))
+          .otherwise(resource.getElementColumn(name));
+      return new Collection(name, value, definition.getMaxCardinality() == 1, definition);
+    });
+  }
+
+  @Nonnull
+  private static Optional<Collection> traverse(@Nonnull final Collection parent,
+      @Nonnull final String name) {
+    return parent.getDefinition().getChildElement(name).map(definition -> {
+      final boolean maxCardinalityOfOne = definition.getMaxCardinality() == 1;
+      final String expression = parent.getExpression() + "." + name;
+      if (parent.isSingular()) {
+        return new Collection(expression, parent.getValue().getField(name), maxCardinalityOfOne,
+            definition);
+      }
+      // Take the child from each item in the parent, omitting those that are not present. Children
+      // that are themselves arrays are concatenated together.
+      final Column children = filter(transform(parent.getValue(), item -> item.getField(name)),
+          Column::isNotNull);
+      return new Collection(expression, maxCardinalityOfOne
+                                        ? children
+                                        : flatten(children), false, definition);
+    });
+  }
+
+  @Nonnull
+  private static Collection first(@Nonnull final Collection input,
+      @Nonnull final String expression) {
+    final Column value = input.isSingular()
+                         ? input.getValue()
+                         : element_at(input.getValue(), 1);
+    return new Collection(expression, value, true, input.getDefinition());
+  }
+
+  @Nonnull
+  private Optional<Collection> where(@Nonnull final Collection input,
+      @Nonnull final PlanNode argument) {
+    final Operand self = new Operand(NamedFunction.THIS, input.getValue(),
+        Optional.of(input.getDefinition()), null);
+    if (input.isSingular()) {
+      // As with the where function, a singular input is kept only when the criteria are true.
+      return criteria(argument, self).map(criteria -> new Collection(
+          whereExpression(input, criteria), when(criteria.getValue().equalTo(true),
+          input.getValue()), true, input.getDefinition()));
+    }
+    // The criteria are lowered once to check that they are supported and to build the expression,
+    // and then again relative to the lambda variable that represents each item in the filter.
+    return criteria(argument, self).map(criteria -> new Collection(
+        whereExpression(input, criteria),
+        filter(input.getValue(), item -> coalesce(
+            criteria(argument, self.withValue(item)).get().getValue(), lit(false))),
+        false, input.getDefinition()));
+  }
+
+  @Nonnull
+  private static String whereExpression(@Nonnull final Collection input,
+      @Nonnull final Operand criteria) {
+    return input.getExpression() + ".where(" + criteria.getExpression() + ")";
+  }
+
+  /**
+   * Lowers the criteria of a {@code where()} function to a Boolean column, relative to a column
+   * that represents each item in the input.
+   */
+  @Nonnull
+  private Optional<Operand> criteria(@Nonnull final PlanNode node, @Nonnull final Operand self) {
+    if (!(node instanceof OperatorNode)) {
+      return Optional.empty();
+    }
+    final OperatorNode operator = (OperatorNode) node;
+    final String name = operator.getOperator();
+    if (name.equals("and") || name.equals("or")) {
+      final Optional<Operand> left = criteria(operator.getLeft(), self);
+      final Optional<Operand> right = criteria(operator.getRight(), self);
+      if (left.isEmpty() || right.isEmpty()) {
+        return Optional.empty();
+      }
+      final Column value = name.equals("and")
+                           ? left.get().getValue().and(right.get().getValue())
+                           : left.get().getValue().or(right.get().getValue());
+      return Optional.of(new Operand(
+          left.get().getExpression() + " " + name + " " + right.get().getExpression(), value,
+          Optional.empty(), null));
+
+    } else if (name.equals("=") || name.equals("!=")) {
+      final Optional<Operand> left = operand(operator.getLeft(), self);
+      final Optional<Operand> right = operand(operator.getRight(), self);
+      if (left.isEmpty() || right.isEmpty() || !comparable(left.get(), right.get())) {
+        return Optional.empty();
+      }
+      final Column value = name.equals("=")
+                           ? left.get().getValue().equalTo(right.get().getValue())
+                           : left.get().getValue().notEqual(right.get().getValue());
+      return Optional.of(new Operand(
+          left.get().getExpression() + " " + name + " " + right.get().getExpression(), value,
+          Optional.empty(), null));
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Lowers an operand of a comparison, which may be a literal or a singular element of the item.
+   */
+  @Nonnull
+  private Optional<Operand> operand(@Nonnull final PlanNode node, @Nonnull final Operand self) {
+    if (node instanceof ThisNode) {
+      return Optional.of(self);
+
+    } else if (node instanceof MemberNode) {
+      final MemberNode member = (MemberNode) node;
+      final Optional<Operand> parent = member.getInvoker().isPresent()
+                                       ? operand(member.getInvoker().get(), self)
+                                       : Optional.of(self);
+      return parent.flatMap(p -> p.getDefinition()
+          .flatMap(definition -> definition.getChildElement(member.getName()))
+          .filter(child -> child.getMaxCardinality() == 1)
+          .map(child -> new Operand(p.getExpression() + "." + member.getName(),
+              p.getValue().getField(member.getName()), Optional.of(child), null)));
+
+    } else if (node instanceof LiteralNode) {
+      final FhirPath literal = PlanEvaluator
+          .buildLiteral((LiteralNode) node, context.getInputContext());
+      return COMPARABLE_LITERALS.containsValue(literal.getClass())
+             ? Optional.of(new Operand(literal.getExpression(),
+          ((LiteralPath) literal).buildValueColumn(), Optional.empty(), literal.getClass()))
+             : Optional.empty();
+    }
+    return Optional.empty();
+  }
+
+  private static boolean comparable(@Nonnull final Operand left, @Nonnull final Operand right) {
+    final Optional<Class<? extends ElementPath>> leftElement = left.getElementClass();
+    final Optional<Class<? extends ElementPath>> rightElement = right.getElementClass();
+    // At least one side must refer to the item, otherwise the criteria are not navigable from it.
+    if (leftElement.isPresent() && rightElement.isPresent()) {
+      return COMPARABLE_LITERALS.containsKey(leftElement.get())
+          && leftElement.get().equals(rightElement.get());
+    } else if (leftElement.isPresent()) {
+      return right.getLiteralClass() != null
+          && right.getLiteralClass().equals(COMPARABLE_LITERALS.get(leftElement.get()));
+    } else if (rightElement.isPresent()) {
+      return left.getLiteralClass() != null
+          && left.getLiteralClass().equals(COMPARABLE_LITERALS.get(rightElement.get()));
+    }
+    return false;
+  }
+
+  @Nonnull
+  private static Column count(@Nonnull final Collection input) {
+    final Column count = input.isSingular()
+                         ? lit(1L)
+                         : size(input.getValue()).cast(DataTypes.LongType);
+    return when(input.getValue().isNull(), lit(0L)).otherwise(count);
+  }
+
+  /**
+   * A collection of elements within the subject resource. A singular collection has a value which
+   * is the element itself, otherwise it is an array of elements.
+   */
+  @Value
+  private static class Collection {
+
+    @Nonnull
+    String expression;
+
+    @Nonnull
+    Column value;
+
+    boolean singular;
+
+    @Nonnull
+    ElementDefinition definition;
+
+  }
+
+  /**
+   * A lowered part of the criteria of a {@code where()} function. This is either an element, which
+   * has a definition, a literal, which has a class, or the result of an operator.
+   */
+  @Value
+  private static class Operand {
+
+    @Nonnull
+    String expression;
+
+    @Nonnull
+    Column value;
+
+    @Nonnull
+    Optional<ElementDefinition> definition;
+
+    @Nullable
+    Class<? extends FhirPath> literalClass;
+
+    @Nonnull
+    Operand withValue(@Nonnull final Column value) {
+      return new Operand(expression, value, definition, literalClass);
+    }
+
+    @Nonnull
+    Optional<Class<? extends ElementPath>> getElementClass() {
+      return definition.flatMap(ElementDefinition::getFhirType)
+          .flatMap(ElementDefinition::elementClassForType);
+    }
+
+  }
+
+}
@@ -8,111 +8,77 @@ package au.csiro.pathling.fhirpath.parser;
 
 import static au.csiro.pathling.utilities.Preconditions.checkNotNull;
 
-import au.csiro.pathling.errors.InvalidUserInputError;
 import au.csiro.pathling.fhir.FhirPathBaseVisitor;
 import au.csiro.pathling.fhir.FhirPathParser.*;
-import au.csiro.pathling.fhirpath.FhirPath;
-import au.csiro.pathling.fhirpath.literal.*;
-import java.text.ParseException;
+import au.csiro.pathling.fhirpath.parser.PlanNode.LiteralNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.LiteralType;
+import au.csiro.pathling.fhirpath.parser.PlanNode.UnsupportedNode;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import org.antlr.v4.runtime.ParserRuleContext;
 
 /**
- * This class deals with terms that are literal expressions.
+ * This class deals with terms that are literal expressions. Only the type and text of the literal
+ * are kept within the plan, so that the parse tree is not retained.
  *
  * @author John Grimes
  */
-class LiteralTermVisitor extends FhirPathBaseVisitor<FhirPath> {
+class LiteralTermVisitor extends FhirPathBaseVisitor<PlanNode> {
 
+  @Override
   @Nonnull
-  private final ParserContext context;
-
-  LiteralTermVisitor(@Nonnull final ParserContext context) {
-    this.context = context;
+  public PlanNode visitCodingLiteral(@Nonnull final CodingLiteralContext ctx) {
+    return literal(LiteralType.CODING, ctx);
   }
 
   @Override
   @Nonnull
-  public FhirPath visitCodingLiteral(@Nonnull final CodingLiteralContext ctx) {
-    @Nullable final String fhirPath = ctx.getText();
-    checkNotNull(fhirPath);
-    try {
-      return CodingLiteralPath.fromString(fhirPath, context.getInputContext());
-    } catch (final IllegalArgumentException e) {
-      throw new InvalidUserInputError(e.getMessage(), e);
-    }
+  public PlanNode visitStringLiteral(@Nonnull final StringLiteralContext ctx) {
+    return literal(LiteralType.STRING, ctx);
   }
 
   @Override
   @Nonnull
-  public FhirPath visitStringLiteral(@Nonnull final StringLiteralContext ctx) {
-    @Nullable final String fhirPath = ctx.getText();
-    checkNotNull(fhirPath);
-    return StringLiteralPath.fromString(fhirPath, context.getInputContext());
+  public PlanNode visitDateTimeLiteral(@Nonnull final DateTimeLiteralContext ctx) {
+    return literal(LiteralType.DATE_TIME, ctx);
   }
 
   @Override
   @Nonnull
-  public FhirPath visitDateTimeLiteral(@Nonnull final DateTimeLiteralContext ctx) {
-    @Nullable final String fhirPath = ctx.getText();
-    checkNotNull(fhirPath);
-    // The FHIRPath grammar lumps these two types together, so we tease them apart by trying to 
-    // parse them. A better way of doing this would be to modify the grammar.
-    try {
-      return DateTimeLiteralPath.fromString(fhirPath, context.getInputContext());
-    } catch (final ParseException e) {
-      try {
-        return DateLiteralPath.fromString(fhirPath, context.getInputContext());
-      } catch (final ParseException ex) {
-        throw new InvalidUserInputError("Invalid date format: " + fhirPath);
-      }
-    }
+  public PlanNode visitTimeLiteral(@Nonnull final TimeLiteralContext ctx) {
+    return literal(LiteralType.TIME, ctx);
   }
 
   @Override
   @Nonnull
-  public FhirPath visitTimeLiteral(@Nonnull final TimeLiteralContext ctx) {
-    @Nullable final String fhirPath = ctx.getText();
-    checkNotNull(fhirPath);
-    return TimeLiteralPath.fromString(fhirPath, context.getInputContext());
+  public PlanNode visitNumberLiteral(@Nonnull final NumberLiteralContext ctx) {
+    return literal(LiteralType.NUMBER, ctx);
   }
 
   @Override
   @Nonnull
-  public FhirPath visitNumberLiteral(@Nonnull final NumberLiteralContext ctx) {
-    @Nullable final String fhirPath = ctx.getText();
-    checkNotNull(fhirPath);
-    // The FHIRPath grammar lumps these two types together, so we tease them apart by trying to 
-    // parse them. A better way of doing this would be to modify the grammar.
-    try {
-      return IntegerLiteralPath.fromString(fhirPath, context.getInputContext());
-    } catch (final NumberFormatException e) {
-      try {
-        return DecimalLiteralPath.fromString(fhirPath, context.getInputContext());
-      } catch (final NumberFormatException ex) {
-        throw new InvalidUserInputError("Invalid date format: " + fhirPath);
-      }
-    }
+  public PlanNode visitBooleanLiteral(@Nonnull final BooleanLiteralContext ctx) {
+    return literal(LiteralType.BOOLEAN, ctx);
   }
 
   @Override
   @Nonnull
-  public FhirPath visitBooleanLiteral(@Nonnull final BooleanLiteralContext ctx) {
-    @Nullable final String fhirPath = ctx.getText();
-    checkNotNull(fhirPath);
-    return BooleanLiteralPath.fromString(fhirPath, context.getInputContext());
+  public PlanNode visitNullLiteral(@Nonnull final NullLiteralContext ctx) {
+    return literal(LiteralType.NULL, ctx);
   }
 
   @Override
   @Nonnull
-  public FhirPath visitNullLiteral(@Nonnull final NullLiteralContext ctx) {
-    return NullLiteralPath.build(context.getInputContext());
+  public PlanNode visitQuantityLiteral(@Nonnull final QuantityLiteralContext ctx) {
+    return new UnsupportedNode("Quantity literals are not supported");
   }
 
-  @Override
   @Nonnull
-  public FhirPath visitQuantityLiteral(@Nonnull final QuantityLiteralContext ctx) {
-    throw new InvalidUserInputError("Quantity literals are not supported");
+  private static LiteralNode literal(@Nonnull final LiteralType type,
+      @Nonnull final ParserRuleContext ctx) {
+    @Nullable final String text = ctx.getText();
+    checkNotNull(text);
+    return new LiteralNode(type, text);
   }
 
 }
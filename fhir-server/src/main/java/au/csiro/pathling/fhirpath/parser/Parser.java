@@ -8,20 +8,43 @@ package au.csiro.pathling.fhirpath.parser;
 
 import au.csiro.pathling.fhir.FhirPathLexer;
 import au.csiro.pathling.fhir.FhirPathParser;
+import au.csiro.pathling.fhir.FhirPathParser.ExpressionContext;
 import au.csiro.pathling.fhirpath.FhirPath;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 /**
  * This is an ANTLR-based parser for processing a FHIRPath expression, and aggregating the results
  * into a FhirPath object. It delegates processing to a number of visitor classes, which contain the
- * logic for parsing specific parts of the grammar.
+ * logic for translating specific parts of the grammar into a {@link PlanNode}. The plan is then
+ * evaluated by a {@link PlanEvaluator}.
+ * <p>
+ * The plan for each expression is cached, keyed by the text of the expression, as the same
+ * expressions tend to be submitted repeatedly. Plans do not depend upon the parser context, so they
+ * can be shared between parsers and threads.
  *
  * @author John Grimes
  */
 public class Parser {
 
+  /**
+   * The maximum number of plans held within the cache.
+   */
+  private static final long PLAN_CACHE_SIZE = 1000;
+
+  @Nonnull
+  private static final Cache<String, PlanNode> PLANS = CacheBuilder.newBuilder()
+      .maximumSize(PLAN_CACHE_SIZE)
+      .build();
+
   @Nonnull
   private final ParserContext context;
 
@@ -40,17 +63,57 @@ public class Parser {
    */
   @Nonnull
   public FhirPath parse(@Nonnull final String expression) {
+    return new PlanEvaluator(context).evaluate(plan(expression));
+  }
+
+  /**
+   * Retrieves the plan for an expression from the cache, parsing it if it is not present.
+   * Expressions that fail to parse are not cached.
+   *
+   * @param expression The String representation of the FHIRPath expression
+   * @return the plan of the expression
+   */
+  @Nonnull
+  static PlanNode plan(@Nonnull final String expression) {
+    @Nullable final PlanNode cached = PLANS.getIfPresent(expression);
+    if (cached != null) {
+      return cached;
+    }
+    final PlanNode plan = new Visitor().visit(buildParseTree(expression));
+    PLANS.put(expression, plan);
+    return plan;
+  }
+
+  /**
+   * Parses an expression, first using the faster SLL prediction mode. Only if this fails is the
+   * expression parsed again using full LL prediction, which is required to either parse the
+   * expression correctly or report a syntax error.
+   *
+   * @param expression The String representation of the FHIRPath expression
+   * @return the parse tree of the expression
+   */
+  @Nonnull
+  static ExpressionContext buildParseTree(@Nonnull final String expression) {
     final FhirPathLexer lexer = new FhirPathLexer(CharStreams.fromString(expression));
     final CommonTokenStream tokens = new CommonTokenStream(lexer);
     final FhirPathParser parser = new FhirPathParser(tokens);
 
-    // Remove the default console error reporter, and add a listener that wraps each parse error in
-    // an invalid request exception.
+    // In the first stage, errors cause the parse to be abandoned rather than reported.
     parser.removeErrorListeners();
-    parser.addErrorListener(new ParserErrorListener());
+    parser.setErrorHandler(new BailErrorStrategy());
+    parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+    try {
+      return parser.expression();
+    } catch (final ParseCancellationException e) {
+      tokens.seek(0);
+      parser.reset();
 
-    final Visitor visitor = new Visitor(context);
-    return visitor.visit(parser.expression());
+      // Add a listener that wraps each parse error in an invalid request exception.
+      parser.addErrorListener(new ParserErrorListener());
+      parser.setErrorHandler(new DefaultErrorStrategy());
+      parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+      return parser.expression();
+    }
   }
 
 }
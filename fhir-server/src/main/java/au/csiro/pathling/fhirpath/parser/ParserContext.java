@@ -9,13 +9,21 @@ package au.csiro.pathling.fhirpath.parser;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.fhirpath.FhirPath;
+import au.csiro.pathling.fhirpath.ResourceProjection;
+import au.csiro.pathling.fhirpath.function.AggregationSource;
 import au.csiro.pathling.io.ResourceReader;
 import ca.uhn.fhir.context.FhirContext;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import javax.annotation.Nonnull;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 
 /**
@@ -80,6 +88,27 @@ public class ParserContext {
   @Nonnull
   private final Optional<List<Column>> groupingColumns;
 
+  /**
+   * If present, resources that are read during the parse will be read through this projection, so
+   * that only the columns that are referenced by the expression are retrieved.
+   */
+  @Nonnull
+  private final Optional<ResourceProjection> projection;
+
+  /**
+   * The maximum number of distinct codings within the input to a terminology function for which
+   * the terminology service is called once from the driver, with the result being broadcast to the
+   * executors. Inputs with more distinct codings than this are handled separately within each
+   * partition. Zero means that the terminology service is always called within each partition.
+   */
+  private final int terminologyBroadcastThreshold;
+
+  /**
+   * If true, terminology functions resolve the distinct codings across the whole input once,
+   * rather than resolving the codings within each partition separately.
+   */
+  private final boolean terminologyResolveDistinctCodings;
+
   /**
    * When within the context of function arguments, this is the {@link FhirPath} that represents the
    * item in a collection currently being iterated over, denoted by the {@code $this} keyword.
@@ -87,6 +116,15 @@ public class ParserContext {
   @Nonnull
   private Optional<FhirPath> thisContext = Optional.empty();
 
+  /**
+   * Describes how the results of aggregate functions within this context were produced, keyed by
+   * the identity of the result dataset.
+   */
+  @Nonnull
+  @Getter(AccessLevel.NONE)
+  private final Map<Dataset<Row>, AggregationSource> aggregationSources = Collections
+      .synchronizedMap(new IdentityHashMap<>());
+
   /**
    * @param inputContext The input context from which the FHIRPath is to be evaluated
    * @param fhirContext A {@link FhirContext} that can be used to do FHIR stuff
@@ -104,6 +142,57 @@ public class ParserContext {
       @Nonnull final Optional<TerminologyClient> terminologyClient,
       @Nonnull final Optional<TerminologyClientFactory> terminologyClientFactory,
       @Nonnull final Optional<List<Column>> groupingColumns) {
+    this(inputContext, fhirContext, sparkSession, resourceReader, terminologyClient,
+        terminologyClientFactory, groupingColumns, Optional.empty());
+  }
+
+  /**
+   * @param inputContext The input context from which the FHIRPath is to be evaluated
+   * @param fhirContext A {@link FhirContext} that can be used to do FHIR stuff
+   * @param sparkSession A {@link SparkSession} that can be used to resolve Spark queries required
+   * for this expression
+   * @param resourceReader For retrieving data relating to resource references
+   * @param terminologyClient The {@link TerminologyClient} that should be used to resolve
+   * terminology queries
+   * @param terminologyClientFactory A factory for {@link TerminologyClient} objects, used for
+   * parallel processing
+   * @param groupingColumns the list of columns to group on when aggregating
+   * @param projection the {@link ResourceProjection} used to restrict the columns that are read
+   */
+  public ParserContext(@Nonnull final FhirPath inputContext, @Nonnull final FhirContext fhirContext,
+      @Nonnull final SparkSession sparkSession, @Nonnull final ResourceReader resourceReader,
+      @Nonnull final Optional<TerminologyClient> terminologyClient,
+      @Nonnull final Optional<TerminologyClientFactory> terminologyClientFactory,
+      @Nonnull final Optional<List<Column>> groupingColumns,
+      @Nonnull final Optional<ResourceProjection> projection) {
+    this(inputContext, fhirContext, sparkSession, resourceReader, terminologyClient,
+        terminologyClientFactory, groupingColumns, projection, 0, false);
+  }
+
+  /**
+   * @param inputContext The input context from which the FHIRPath is to be evaluated
+   * @param fhirContext A {@link FhirContext} that can be used to do FHIR stuff
+   * @param sparkSession A {@link SparkSession} that can be used to resolve Spark queries required
+   * for this expression
+   * @param resourceReader For retrieving data relating to resource references
+   * @param terminologyClient The {@link TerminologyClient} that should be used to resolve
+   * terminology queries
+   * @param terminologyClientFactory A factory for {@link TerminologyClient} objects, used for
+   * parallel processing
+   * @param groupingColumns the list of columns to group on when aggregating
+   * @param projection the {@link ResourceProjection} used to restrict the columns that are read
+   * @param terminologyBroadcastThreshold the maximum number of distinct codings for which
+   * terminology functions call the terminology service once and broadcast the result
+   * @param terminologyResolveDistinctCodings whether terminology functions resolve the distinct
+   * codings across the whole input once
+   */
+  public ParserContext(@Nonnull final FhirPath inputContext, @Nonnull final FhirContext fhirContext,
+      @Nonnull final SparkSession sparkSession, @Nonnull final ResourceReader resourceReader,
+      @Nonnull final Optional<TerminologyClient> terminologyClient,
+      @Nonnull final Optional<TerminologyClientFactory> terminologyClientFactory,
+      @Nonnull final Optional<List<Column>> groupingColumns,
+      @Nonnull final Optional<ResourceProjection> projection,
+      final int terminologyBroadcastThreshold, final boolean terminologyResolveDistinctCodings) {
     this.inputContext = inputContext;
     this.fhirContext = fhirContext;
     this.sparkSession = sparkSession;
@@ -111,10 +200,34 @@ public class ParserContext {
     this.terminologyClient = terminologyClient;
     this.terminologyClientFactory = terminologyClientFactory;
     this.groupingColumns = groupingColumns;
+    this.projection = projection;
+    this.terminologyBroadcastThreshold = terminologyBroadcastThreshold;
+    this.terminologyResolveDistinctCodings = terminologyResolveDistinctCodings;
   }
 
   public void setThisContext(@Nonnull final FhirPath thisContext) {
     this.thisContext = Optional.of(thisContext);
   }
 
+  /**
+   * Records how the result of an aggregate function was produced.
+   *
+   * @param result the {@link Dataset} of the aggregate result
+   * @param source an {@link AggregationSource} describing the grouping that produced the result
+   */
+  public void addAggregationSource(@Nonnull final Dataset<Row> result,
+      @Nonnull final AggregationSource source) {
+    aggregationSources.put(result, source);
+  }
+
+  /**
+   * @param result the {@link Dataset} of an expression parsed within this context
+   * @return the {@link AggregationSource} for the dataset, if it is the direct result of an
+   * aggregate function
+   */
+  @Nonnull
+  public Optional<AggregationSource> getAggregationSource(@Nonnull final Dataset<Row> result) {
+    return Optional.ofNullable(aggregationSources.get(result));
+  }
+
 }
@@ -0,0 +1,365 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.parser;
+
+import static au.csiro.pathling.utilities.Preconditions.check;
+import static au.csiro.pathling.utilities.Preconditions.checkUserInput;
+
+import au.csiro.pathling.errors.InvalidUserInputError;
+import au.csiro.pathling.fhirpath.FhirPath;
+import au.csiro.pathling.fhirpath.NonLiteralPath;
+import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.function.NamedFunction;
+import au.csiro.pathling.fhirpath.function.NamedFunctionInput;
+import au.csiro.pathling.fhirpath.literal.BooleanLiteralPath;
+import au.csiro.pathling.fhirpath.literal.CodingLiteralPath;
+import au.csiro.pathling.fhirpath.literal.DateLiteralPath;
+import au.csiro.pathling.fhirpath.literal.DateTimeLiteralPath;
+import au.csiro.pathling.fhirpath.literal.DecimalLiteralPath;
+import au.csiro.pathling.fhirpath.literal.IntegerLiteralPath;
+import au.csiro.pathling.fhirpath.literal.NullLiteralPath;
+import au.csiro.pathling.fhirpath.literal.StringLiteralPath;
+import au.csiro.pathling.fhirpath.literal.TimeLiteralPath;
+import au.csiro.pathling.fhirpath.operator.Operator;
+import au.csiro.pathling.fhirpath.operator.OperatorInput;
+import au.csiro.pathling.fhirpath.operator.PathTraversalInput;
+import au.csiro.pathling.fhirpath.operator.PathTraversalOperator;
+import au.csiro.pathling.fhirpath.parser.PlanNode.ExternalConstantNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.FunctionNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.LiteralNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.MemberNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.OperatorNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.UnsupportedNode;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Column;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * Evaluates a {@link PlanNode} within a {@link ParserContext}, lowering it to the Spark queries
+ * that are produced by the functions and operators.
+ * <p>
+ * Repeated subexpressions at the root of an expression are evaluated once, and the result is
+ * shared. This is limited to singular results that are not within the context of an element, as
+ * these have a single row for each resource and can be safely joined back to themselves.
+ *
+ * @author John Grimes
+ */
+class PlanEvaluator {
+
+  @Nonnull
+  private final ParserContext context;
+
+  @Nonnull
+  private final Map<PlanNode, FhirPath> shared = new HashMap<>();
+
+  /**
+   * @param context The {@link ParserContext} to use when evaluating the plan
+   */
+  PlanEvaluator(@Nonnull final ParserContext context) {
+    this.context = context;
+  }
+
+  /**
+   * @param node the {@link PlanNode} to evaluate
+   * @return the resulting {@link FhirPath}
+   */
+  @Nonnull
+  FhirPath evaluate(@Nonnull final PlanNode node) {
+    @Nullable final FhirPath previous = shared.get(node);
+    if (previous != null) {
+      return previous;
+    }
+    final FhirPath result = node.accept(this);
+    if (isShareable(result)) {
+      shared.put(node, result);
+    }
+    return result;
+  }
+
+  private boolean isShareable(@Nonnull final FhirPath result) {
+    return context.getThisContext().isEmpty()
+        && result instanceof NonLiteralPath
+        && result.isSingular()
+        && ((NonLiteralPath) result).getEidColumn().isEmpty();
+  }
+
+  /**
+   * A member is either an element on the right-hand side of an invocation expression, or an
+   * identifier that is referred to as a term (e.g. "Encounter" or "type").
+   *
+   * @param node the {@link MemberNode}
+   * @return the resulting {@link FhirPath}
+   */
+  @Nonnull
+  FhirPath evaluateMember(@Nonnull final MemberNode node) {
+    final String fhirPath = node.getName();
+
+    if (node.getInvoker().isPresent()) {
+      // If there is an invoker, we treat this as a path traversal from the invoker.
+      final FhirPath invoker = evaluate(node.getInvoker().get());
+      final PathTraversalInput pathTraversalInput = new PathTraversalInput(context, invoker,
+          fhirPath);
+      return new PathTraversalOperator().invoke(pathTraversalInput);
+
+    } else {
+      // If there is no invoker, we need to interpret what the expression means, based on its
+      // content and context.
+
+      if (context.getThisContext().isEmpty()) {
+        // If we're at the root of the expression, this could be:
+        // (1) a path traversal from the input context; or
+        // (2) a reference to the subject resource.
+
+        // The only type of resource reference that is allowed at the root a reference to the
+        // subject resource.
+        // See https://hl7.org/fhirpath/2018Sep/index.html#path-selection.
+        if (fhirPath.equals(context.getInputContext().getExpression())) {
+          return context.getInputContext();
+
+        } else {
+          // If the expression is not a reference to the subject resource, treat it as a path
+          // traversal from the input context.
+          final PathTraversalInput pathTraversalInput = new PathTraversalInput(context,
+              context.getInputContext(), fhirPath);
+          return new PathTraversalOperator().invoke(pathTraversalInput);
+        }
+      } else {
+        // If we're in the context of a function's arguments, there are two valid things this
+        // could be:
+        // (1) a path traversal from the input context;
+        // (2) a reference to a (potentially foreign) resource type.
+
+        // Check if the expression is a reference to a known resource type.
+        final ResourceType resourceType;
+        try {
+          resourceType = ResourceType.fromCode(fhirPath);
+        } catch (final FHIRException e) {
+          // If the expression is not a resource reference, treat it as a path traversal from the
+          // input context.
+          final PathTraversalInput pathTraversalInput = new PathTraversalInput(context,
+              context.getThisContext().get(), fhirPath);
+          return new PathTraversalOperator().invoke(pathTraversalInput);
+        }
+
+        // If the expression is a resource reference, we build a ResourcePath for it - we call this
+        // a foreign resource reference.
+        final ResourcePath path = ResourcePath
+            .build(context.getFhirContext(), context.getResourceReader(), resourceType, fhirPath,
+                true, false, context.getProjection());
+
+        // This resource path will get preserved within paths derived from this, so that we can come
+        // back to it for things like reverse reference resolution.
+        path.setForeignResource(path);
+
+        return path;
+      }
+    }
+  }
+
+  /**
+   * @param node the {@link FunctionNode}
+   * @return the resulting {@link FhirPath}
+   */
+  @Nonnull
+  FhirPath evaluateFunction(@Nonnull final FunctionNode node) {
+    // Functions over the elements of a single resource can be evaluated without exploding and
+    // regrouping the dataset.
+    final Optional<FhirPath> lowered = new ArrayFunctionLowering(context).lower(node);
+    if (lowered.isPresent()) {
+      return lowered.get();
+    }
+
+    @Nullable final FhirPath invoker = node.getInvoker().map(this::evaluate).orElse(null);
+    final NamedFunction function = NamedFunction.getInstance(node.getName());
+
+    // If there is no invoker, we use either the input context or the this context, depending on
+    // whether we are in the context of function arguments.
+    final FhirPath input = invoker == null
+                           ? context.getThisContext().orElse(context.getInputContext())
+                           : invoker;
+
+    // A literal cannot be used as a function input.
+    checkUserInput(input instanceof NonLiteralPath,
+        "Literal expression cannot be used as input to a function invocation: " + input
+            .getExpression());
+    final NonLiteralPath nonLiteral = (NonLiteralPath) input;
+
+    final List<FhirPath> arguments = new ArrayList<>();
+    if (!node.getArguments().isEmpty()) {
+      // The `$this` path will be the same as the input, but with a different expression and it will
+      // be singular as it represents a single item.
+      // NOTE: This works because for $this the context for aggregation grouping on elements
+      // includes `id` and `this` columns.
+
+      // Create and alias the $this column.
+      final NonLiteralPath thisPath = nonLiteral.toThisPath();
+
+      // If the this context has an element ID, we need to add this to the grouping columns so that
+      // aggregations that occur within the arguments are in the context of an element, not the
+      // resource.
+      final Optional<List<Column>> argumentGroupings = thisPath.getEidColumn()
+          .map(column -> context.getGroupingColumns()
+              .map(groupings -> {
+                final List<Column> newGroupings = new ArrayList<>(groupings);
+                newGroupings.add(column);
+                return Optional.of(newGroupings);
+              })
+              .orElse(Optional.of(Arrays.asList(context.getInputContext().getIdColumn(), column))))
+          .orElse(context.getGroupingColumns());
+
+      // Create a new ParserContext, which includes information about how to evaluate the `$this`
+      // expression.
+      final ParserContext argumentContext = new ParserContext(context.getInputContext(),
+          context.getFhirContext(), context.getSparkSession(),
+          context.getResourceReader(), context.getTerminologyClient(),
+          context.getTerminologyClientFactory(), argumentGroupings, context.getProjection(),
+          context.getTerminologyBroadcastThreshold(),
+          context.isTerminologyResolveDistinctCodings());
+      argumentContext.setThisContext(thisPath);
+
+      // Evaluate each of the expressions passed as arguments to the function.
+      final PlanEvaluator argumentEvaluator = new PlanEvaluator(argumentContext);
+      for (final PlanNode argument : node.getArguments()) {
+        arguments.add(argumentEvaluator.evaluate(argument));
+      }
+    }
+
+    final NamedFunctionInput functionInput = new NamedFunctionInput(context, nonLiteral, arguments);
+    return function.invoke(functionInput);
+  }
+
+  /**
+   * @param node the {@link OperatorNode}
+   * @return the resulting {@link FhirPath}
+   */
+  @Nonnull
+  FhirPath evaluateOperator(@Nonnull final OperatorNode node) {
+    // Evaluate the left and right expressions.
+    final FhirPath left = evaluate(node.getLeft());
+    final FhirPath right = evaluate(node.getRight());
+
+    // Retrieve an Operator instance based upon the operator string.
+    final Operator operator = Operator.getInstance(node.getOperator());
+
+    final OperatorInput operatorInput = new OperatorInput(context, left, right);
+    return operator.invoke(operatorInput);
+  }
+
+  /**
+   * @return the {@link FhirPath} that represents the {@code $this} context
+   */
+  @Nonnull
+  FhirPath evaluateThis() {
+    checkUserInput(context.getThisContext().isPresent(),
+        "$this can only be used within the context of arguments to a function");
+    return context.getThisContext().get();
+  }
+
+  /**
+   * @param node the {@link LiteralNode}
+   * @return the resulting {@link FhirPath}
+   */
+  @Nonnull
+  FhirPath evaluateLiteral(@Nonnull final LiteralNode node) {
+    return buildLiteral(node, context.getInputContext());
+  }
+
+  /**
+   * Builds a literal from its type and text.
+   *
+   * @param node the {@link LiteralNode}
+   * @param inputContext the input context of the parse
+   * @return the resulting {@link FhirPath}
+   */
+  @Nonnull
+  static FhirPath buildLiteral(@Nonnull final LiteralNode node,
+      @Nonnull final FhirPath inputContext) {
+    final String fhirPath = node.getText();
+    switch (node.getType()) {
+      case CODING:
+        try {
+          return CodingLiteralPath.fromString(fhirPath, inputContext);
+        } catch (final IllegalArgumentException e) {
+          throw new InvalidUserInputError(e.getMessage(), e);
+        }
+      case STRING:
+        return StringLiteralPath.fromString(fhirPath, inputContext);
+      case DATE_TIME:
+        // The FHIRPath grammar lumps these two types together, so we tease them apart by trying to
+        // parse them. A better way of doing this would be to modify the grammar.
+        try {
+          return DateTimeLiteralPath.fromString(fhirPath, inputContext);
+        } catch (final ParseException e) {
+          try {
+            return DateLiteralPath.fromString(fhirPath, inputContext);
+          } catch (final ParseException ex) {
+            throw new InvalidUserInputError("Invalid date format: " + fhirPath);
+          }
+        }
+      case TIME:
+        return TimeLiteralPath.fromString(fhirPath, inputContext);
+      case NUMBER:
+        // The FHIRPath grammar lumps these two types together, so we tease them apart by trying to
+        // parse them. A better way of doing this would be to modify the grammar.
+        try {
+          return IntegerLiteralPath.fromString(fhirPath, inputContext);
+        } catch (final NumberFormatException e) {
+          try {
+            return DecimalLiteralPath.fromString(fhirPath, inputContext);
+          } catch (final NumberFormatException ex) {
+            throw new InvalidUserInputError("Invalid date format: " + fhirPath);
+          }
+        }
+      case BOOLEAN:
+        return BooleanLiteralPath.fromString(fhirPath, inputContext);
+      case NULL:
+        return NullLiteralPath.build(inputContext);
+      default:
+        throw new AssertionError("Unexpected literal type: " + node.getType());
+    }
+  }
+
+  /**
+   * @param node the {@link ExternalConstantNode}
+   * @return the resulting {@link FhirPath}
+   */
+  @Nonnull
+  FhirPath evaluateExternalConstant(@Nonnull final ExternalConstantNode node) {
+    final String term = node.getName();
+    checkUserInput(term.equals("%resource") || term.equals("%context"),
+        "Unsupported environment variable: " + term);
+    check(context.getInputContext() instanceof NonLiteralPath);
+
+    // The %resource and %context elements both return the input context.
+    final NonLiteralPath inputContext = (NonLiteralPath) context.getInputContext();
+
+    // In the case of %resource and %context, the new expression will be the input context with the
+    // expression updated to match the external constant term.
+    return inputContext.copy(term, inputContext.getDataset(), inputContext.getIdColumn(),
+        inputContext.getEidColumn(), inputContext.getValueColumn(), inputContext.isSingular(),
+        inputContext.getThisColumn());
+  }
+
+  /**
+   * @param node the {@link UnsupportedNode}
+   * @return never returns, as an error is always raised
+   */
+  @Nonnull
+  FhirPath evaluateUnsupported(@Nonnull final UnsupportedNode node) {
+    throw new InvalidUserInputError(node.getMessage());
+  }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.parser;
+
+import au.csiro.pathling.fhirpath.FhirPath;
+import java.util.List;
+import java.util.Optional;
+import javax.annotation.Nonnull;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+
+/**
+ * A node within the logical plan of a FHIRPath expression. The plan is built from the parse tree,
+ * and is then evaluated against a {@link ParserContext} to produce a {@link FhirPath}.
+ * <p>
+ * Plans do not depend upon the context in which they are evaluated, so the plan for an expression
+ * can be shared between parsers and threads. Nodes are compared structurally, which allows
+ * repeated subexpressions within a plan to be recognised.
+ *
+ * @author John Grimes
+ */
+abstract class PlanNode {
+
+  /**
+   * Evaluates this node using the supplied evaluator.
+   *
+   * @param evaluator a {@link PlanEvaluator}
+   * @return the resulting {@link FhirPath}
+   */
+  @Nonnull
+  abstract FhirPath accept(@Nonnull PlanEvaluator evaluator);
+
+  /**
+   * A reference to an element, or to a resource type. If there is no invoker, the member is
+   * resolved against the input context or the {@code $this} context.
+   */
+  @Value
+  @EqualsAndHashCode(callSuper = false)
+  static class MemberNode extends PlanNode {
+
+    @Nonnull
+    Optional<PlanNode> invoker;
+
+    @Nonnull
+    String name;
+
+    @Nonnull
+    @Override
+    FhirPath accept(@Nonnull final PlanEvaluator evaluator) {
+      return evaluator.evaluateMember(this);
+    }
+
+  }
+
+  /**
+   * An invocation of a named function. If there is no invoker, the function is invoked upon the
+   * input context or the {@code $this} context.
+   */
+  @Value
+  @EqualsAndHashCode(callSuper = false)
+  static class FunctionNode extends PlanNode {
+
+    @Nonnull
+    Optional<PlanNode> invoker;
+
+    @Nonnull
+    String name;
+
+    @Nonnull
+    List<PlanNode> arguments;
+
+    @Nonnull
+    @Override
+    FhirPath accept(@Nonnull final PlanEvaluator evaluator) {
+      return evaluator.evaluateFunction(this);
+    }
+
+  }
+
+  /**
+   * An application of a binary operator.
+   */
+  @Value
+  @EqualsAndHashCode(callSuper = false)
+  static class OperatorNode extends PlanNode {
+
+    @Nonnull
+    String operator;
+
+    @Nonnull
+    PlanNode left;
+
+    @Nonnull
+    PlanNode right;
+
+    @Nonnull
+    @Override
+    FhirPath accept(@Nonnull final PlanEvaluator evaluator) {
+      return evaluator.evaluateOperator(this);
+    }
+
+  }
+
+  /**
+   * A reference to the {@code $this} context.
+   */
+  @Value
+  @EqualsAndHashCode(callSuper = false)
+  static class ThisNode extends PlanNode {
+
+    @Nonnull
+    @Override
+    FhirPath accept(@Nonnull final PlanEvaluator evaluator) {
+      return evaluator.evaluateThis();
+    }
+
+  }
+
+  /**
+   * A literal value, which is built from its type and text when it is evaluated.
+   */
+  @Value
+  @EqualsAndHashCode(callSuper = false)
+  static class LiteralNode extends PlanNode {
+
+    @Nonnull
+    LiteralType type;
+
+    @Nonnull
+    String text;
+
+    @Nonnull
+    @Override
+    FhirPath accept(@Nonnull final PlanEvaluator evaluator) {
+      return evaluator.evaluateLiteral(this);
+    }
+
+  }
+
+  /**
+   * A reference to an environment variable, such as {@code %resource}.
+   */
+  @Value
+  @EqualsAndHashCode(callSuper = false)
+  static class ExternalConstantNode extends PlanNode {
+
+    @Nonnull
+    String name;
+
+    @Nonnull
+    @Override
+    FhirPath accept(@Nonnull final PlanEvaluator evaluator) {
+      return evaluator.evaluateExternalConstant(this);
+    }
+
+  }
+
+  /**
+   * A construct that is not supported. The error is raised when the node is evaluated, so that
+   * errors are reported in the same order as the expression is read.
+   */
+  @Value
+  @EqualsAndHashCode(callSuper = false)
+  static class UnsupportedNode extends PlanNode {
+
+    @Nonnull
+    String message;
+
+    @Nonnull
+    @Override
+    FhirPath accept(@Nonnull final PlanEvaluator evaluator) {
+      return evaluator.evaluateUnsupported(this);
+    }
+
+  }
+
+  /**
+   * The types of literal within the FHIRPath grammar.
+   */
+  enum LiteralType {
+    CODING, STRING, DATE_TIME, TIME, NUMBER, BOOLEAN, NULL
+  }
+
+}
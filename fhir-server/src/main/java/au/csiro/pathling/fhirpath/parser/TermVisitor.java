@@ -6,17 +6,14 @@
 
 package au.csiro.pathling.fhirpath.parser;
 
-import static au.csiro.pathling.utilities.Preconditions.check;
 import static au.csiro.pathling.utilities.Preconditions.checkNotNull;
-import static au.csiro.pathling.utilities.Preconditions.checkUserInput;
 
 import au.csiro.pathling.fhir.FhirPathBaseVisitor;
 import au.csiro.pathling.fhir.FhirPathParser.ExternalConstantTermContext;
 import au.csiro.pathling.fhir.FhirPathParser.InvocationTermContext;
 import au.csiro.pathling.fhir.FhirPathParser.LiteralTermContext;
 import au.csiro.pathling.fhir.FhirPathParser.ParenthesizedTermContext;
-import au.csiro.pathling.fhirpath.FhirPath;
-import au.csiro.pathling.fhirpath.NonLiteralPath;
+import au.csiro.pathling.fhirpath.parser.PlanNode.ExternalConstantNode;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -25,51 +22,33 @@ import javax.annotation.Nullable;
  *
  * @author John Grimes
  */
-class TermVisitor extends FhirPathBaseVisitor<FhirPath> {
-
-  @Nonnull
-  private final ParserContext context;
-
-  TermVisitor(@Nonnull final ParserContext context) {
-    this.context = context;
-  }
+class TermVisitor extends FhirPathBaseVisitor<PlanNode> {
 
   @Override
   @Nonnull
-  public FhirPath visitInvocationTerm(@Nonnull final InvocationTermContext ctx) {
-    return new InvocationVisitor(context).visit(ctx.invocation());
+  public PlanNode visitInvocationTerm(@Nonnull final InvocationTermContext ctx) {
+    return new InvocationVisitor().visit(ctx.invocation());
   }
 
   @Override
   @Nonnull
-  public FhirPath visitLiteralTerm(@Nonnull final LiteralTermContext ctx) {
-    return new LiteralTermVisitor(context).visit(ctx.literal());
+  public PlanNode visitLiteralTerm(@Nonnull final LiteralTermContext ctx) {
+    return new LiteralTermVisitor().visit(ctx.literal());
   }
 
   @Override
   @Nonnull
-  public FhirPath visitExternalConstantTerm(@Nonnull final ExternalConstantTermContext ctx) {
+  public PlanNode visitExternalConstantTerm(@Nonnull final ExternalConstantTermContext ctx) {
     @Nullable final String term = ctx.getText();
     checkNotNull(term);
-    checkUserInput(term.equals("%resource") || term.equals("%context"),
-        "Unsupported environment variable: " + term);
-    check(context.getInputContext() instanceof NonLiteralPath);
-
-    // The %resource and %context elements both return the input context.
-    final NonLiteralPath inputContext = (NonLiteralPath) context.getInputContext();
-
-    // In the case of %resource and %context, the new expression will be the input context with the
-    // expression updated to match the external constant term.
-    return inputContext.copy(term, inputContext.getDataset(), inputContext.getIdColumn(),
-        inputContext.getEidColumn(), inputContext.getValueColumn(), inputContext.isSingular(),
-        inputContext.getThisColumn());
+    return new ExternalConstantNode(term);
   }
 
   @Override
   @Nonnull
-  public FhirPath visitParenthesizedTerm(@Nonnull final ParenthesizedTermContext ctx) {
+  public PlanNode visitParenthesizedTerm(@Nonnull final ParenthesizedTermContext ctx) {
     // Parentheses are ignored in the standalone term case.
-    return new Visitor(context).visit(ctx.expression());
+    return new Visitor().visit(ctx.expression());
   }
 
 }
@@ -0,0 +1,331 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.io;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.storage.StorageLevel;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * A cache of persisted resource tables, which is bounded by both a number of entries and a memory
+ * budget. Tables are unpersisted when they are evicted from the cache, or when the cache is
+ * invalidated.
+ * <p>
+ * When room needs to be made for a new table, the victims are chosen based upon both their size
+ * and how recently they were accessed, with large tables that have not been used for a while being
+ * evicted first.
+ * <p>
+ * Tables may be cached with only a subset of their columns, in which case the cached table for a
+ * resource type is widened as further columns are requested.
+ *
+ * @author John Grimes
+ */
+@Slf4j
+public class ResourceCache {
+
+  @Nonnull
+  private final Function<ResourceType, Dataset<Row>> loader;
+
+  @Nonnull
+  private final Function<Dataset<Row>, Long> sizeEstimator;
+
+  @Nonnull
+  private final StorageLevel storageLevel;
+
+  private final long maximumSize;
+
+  private final long maximumBytes;
+
+  @Nonnull
+  private final Map<ResourceType, Entry> entries = new EnumMap<>(ResourceType.class);
+
+  @Nonnull
+  private final Map<ResourceType, Counters> counters = new EnumMap<>(ResourceType.class);
+
+  private long clock = 0;
+
+  private long totalBytes = 0;
+
+  /**
+   * Incremented each time the cache is invalidated. A table that was loaded while an invalidation
+   * took place may have been built from the files that were there before it, and is not cached.
+   */
+  private long generation = 0;
+
+  /**
+   * @param loader a function that can be used to retrieve the table for a resource type
+   * @param sizeEstimator a function that estimates the size of a table in bytes
+   * @param storageLevel the {@link StorageLevel} to use when persisting tables
+   * @param maximumSize the maximum number of tables held within the cache
+   * @param maximumBytes the maximum total estimated size of the tables held within the cache
+   */
+  public ResourceCache(@Nonnull final Function<ResourceType, Dataset<Row>> loader,
+      @Nonnull final Function<Dataset<Row>, Long> sizeEstimator,
+      @Nonnull final StorageLevel storageLevel, final long maximumSize, final long maximumBytes) {
+    this.loader = loader;
+    this.sizeEstimator = sizeEstimator;
+    this.storageLevel = storageLevel;
+    this.maximumSize = maximumSize;
+    this.maximumBytes = maximumBytes;
+  }
+
+  /**
+   * Retrieves the table for a resource type, loading and persisting it if it is not already within
+   * the cache.
+   *
+   * @param resourceType the type of resource to retrieve
+   * @return a {@link Dataset} containing the resources
+   */
+  @Nonnull
+  public Dataset<Row> get(@Nonnull final ResourceType resourceType) {
+    return get(resourceType, Optional.empty());
+  }
+
+  /**
+   * Retrieves a subset of the columns of the table for a resource type.
+   * <p>
+   * Only the columns that have been requested are loaded and persisted. Each resource type has a
+   * single cached table, and requests for columns that are not within it cause it to be replaced
+   * with a table containing the union of the cached and the requested columns. Requests for a
+   * subset of the cached columns are served by selecting from the cached table.
+   *
+   * @param resourceType the type of resource to retrieve
+   * @param columns the names of the columns to retrieve, or empty if all columns are required
+   * @return a {@link Dataset} containing the requested columns of the resources
+   */
+  @Nonnull
+  public Dataset<Row> get(@Nonnull final ResourceType resourceType,
+      @Nonnull final Optional<Set<String>> columns) {
+    final Optional<Set<String>> required;
+    final long loadGeneration;
+    synchronized (this) {
+      @Nullable final Entry entry = entries.get(resourceType);
+      if (entry != null && covers(entry.getColumns(), columns)) {
+        entry.setLastAccess(++clock);
+        countersFor(resourceType).hits++;
+        return project(entry.getDataset(), columns);
+      }
+      countersFor(resourceType).misses++;
+      // If there is a cached table that does not have all the columns we need, we replace it with
+      // one that has the columns from both.
+      required = entry == null
+                 ? columns
+                 : union(entry.getColumns(), columns);
+      loadGeneration = generation;
+    }
+
+    // The table is loaded outside of the lock, as this may involve listing files within a remote
+    // file system.
+    final Dataset<Row> dataset = project(loader.apply(resourceType), required);
+    final long bytes = sizeEstimator.apply(dataset);
+
+    synchronized (this) {
+      // If the cache was invalidated while we were loading, the table may already be out of date.
+      // It is still returned to the caller, which started before the invalidation, but it is not
+      // cached.
+      if (generation != loadGeneration) {
+        log.info("Not caching {}, cache was invalidated while it was being loaded",
+            resourceType.toCode());
+        return project(dataset, columns);
+      }
+
+      // Another thread may have loaded the same table while we were loading ours.
+      @Nullable final Entry existing = entries.get(resourceType);
+      if (existing != null && covers(existing.getColumns(), required)) {
+        existing.setLastAccess(++clock);
+        return project(existing.getDataset(), columns);
+      }
+
+      // If the table is never going to fit within the budget, we don't persist it at all.
+      if (maximumSize < 1 || bytes > maximumBytes) {
+        log.info("Not caching {}, estimated size of {} bytes exceeds cache limits",
+            resourceType.toCode(), bytes);
+        return project(dataset, columns);
+      }
+
+      // The narrower table is superseded by the one we have just loaded.
+      if (existing != null) {
+        remove(resourceType, existing);
+      }
+      while (!entries.isEmpty()
+          && (entries.size() + 1 > maximumSize || totalBytes + bytes > maximumBytes)) {
+        evictVictim();
+      }
+
+      dataset.persist(storageLevel);
+      entries.put(resourceType, new Entry(dataset, required, bytes, ++clock));
+      totalBytes += bytes;
+      log.info("Cached {} ({} bytes, columns: {}), cache now holds {} bytes",
+          resourceType.toCode(), bytes, required.map(Object::toString).orElse("all"), totalBytes);
+      return project(dataset, columns);
+    }
+  }
+
+  /**
+   * Removes the table for a resource type from the cache, unpersisting it.
+   *
+   * @param resourceType the type of resource to invalidate
+   */
+  public synchronized void invalidate(@Nonnull final ResourceType resourceType) {
+    generation++;
+    Optional.ofNullable(entries.get(resourceType))
+        .ifPresent(entry -> remove(resourceType, entry));
+  }
+
+  /**
+   * Removes all tables from the cache, unpersisting them.
+   */
+  public synchronized void invalidateAll() {
+    generation++;
+    Map.copyOf(entries).forEach(this::remove);
+  }
+
+  /**
+   * @return a snapshot of the hit, miss, eviction and size statistics for each resource type that
+   * has been requested from this cache
+   */
+  @Nonnull
+  public synchronized Map<ResourceType, Statistics> getStatistics() {
+    final Map<ResourceType, Statistics> result = new EnumMap<>(ResourceType.class);
+    counters.forEach((resourceType, counts) -> {
+      final long bytes = Optional.ofNullable(entries.get(resourceType))
+          .map(Entry::getBytes)
+          .orElse(0L);
+      result.put(resourceType,
+          new Statistics(counts.hits, counts.misses, counts.evictions, bytes));
+    });
+    return result;
+  }
+
+  private void evictVictim() {
+    // The victim is the entry with the highest product of its size and the time since it was last
+    // accessed.
+    final ResourceType victim = entries.entrySet().stream()
+        .max(Comparator.comparingDouble(
+            e -> (double) Math.max(1, e.getValue().getBytes()) * (clock - e.getValue()
+                .getLastAccess() + 1)))
+        .map(Map.Entry::getKey)
+        .orElseThrow();
+    final Entry entry = entries.get(victim);
+    countersFor(victim).evictions++;
+    log.info("Evicting {} ({} bytes) from cache", victim.toCode(), entry.getBytes());
+    remove(victim, entry);
+  }
+
+  private void remove(@Nonnull final ResourceType resourceType, @Nonnull final Entry entry) {
+    entries.remove(resourceType);
+    totalBytes -= entry.getBytes();
+    entry.getDataset().unpersist(false);
+  }
+
+  private static boolean covers(@Nonnull final Optional<Set<String>> cached,
+      @Nonnull final Optional<Set<String>> requested) {
+    return cached.isEmpty() || requested.map(cached.get()::containsAll).orElse(false);
+  }
+
+  @Nonnull
+  private static Optional<Set<String>> union(@Nonnull final Optional<Set<String>> a,
+      @Nonnull final Optional<Set<String>> b) {
+    if (a.isEmpty() || b.isEmpty()) {
+      return Optional.empty();
+    }
+    final Set<String> result = new HashSet<>(a.get());
+    result.addAll(b.get());
+    return Optional.of(result);
+  }
+
+  @Nonnull
+  private static Dataset<Row> project(@Nonnull final Dataset<Row> dataset,
+      @Nonnull final Optional<Set<String>> columns) {
+    // The columns are selected in the order in which they appear within the table, so that the
+    // same set of columns always results in the same plan.
+    return columns
+        .map(names -> dataset.select(Stream.of(dataset.columns())
+            .filter(names::contains)
+            .map(dataset::col)
+            .toArray(Column[]::new)))
+        .orElse(dataset);
+  }
+
+  @Nonnull
+  private Counters countersFor(@Nonnull final ResourceType resourceType) {
+    return counters.computeIfAbsent(resourceType, key -> new Counters());
+  }
+
+  /**
+   * Cache statistics for a single resource type.
+   */
+  @Value
+  public static class Statistics {
+
+    /**
+     * The number of requests that were served from the cache.
+     */
+    long hits;
+
+    /**
+     * The number of requests that required the table to be loaded.
+     */
+    long misses;
+
+    /**
+     * The number of times that the table has been evicted to make room for other tables.
+     */
+    long evictions;
+
+    /**
+     * The estimated size of the table currently held in the cache, or zero if it is not cached.
+     */
+    long bytes;
+
+  }
+
+  @Getter
+  @AllArgsConstructor
+  private static class Entry {
+
+    @Nonnull
+    private final Dataset<Row> dataset;
+
+    @Nonnull
+    private final Optional<Set<String>> columns;
+
+    private final long bytes;
+
+    @Setter
+    private long lastAccess;
+
+  }
+
+  private static class Counters {
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+  }
+
+}
@@ -11,28 +11,32 @@ import static au.csiro.pathling.io.PersistenceScheme.fileNameForResource;
 import static au.csiro.pathling.utilities.Preconditions.checkNotNull;
 
 import au.csiro.pathling.Configuration;
+import au.csiro.pathling.Configuration.Caching;
 import au.csiro.pathling.caching.Cacheable;
+import au.csiro.pathling.caching.ResourceDependencies;
 import au.csiro.pathling.errors.ResourceNotFoundError;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
@@ -62,7 +66,7 @@ public class ResourceReader implements Cacheable {
       .unmodifiableSet(EnumSet.noneOf(ResourceType.class));
 
   @Nullable
-  private LoadingCache<ResourceType, Dataset<Row>> cache = null;
+  private ResourceCache cache = null;
 
   /**
    * @param configuration A {@link Configuration} object which controls the behaviour of the reader
@@ -73,25 +77,15 @@ public class ResourceReader implements Cacheable {
     this.spark = spark;
     this.warehouseUrl = convertS3ToS3aUrl(configuration.getStorage().getWarehouseUrl());
     this.databaseName = configuration.getStorage().getDatabaseName();
-    if (configuration.getCaching().isEnabled()) {
-      cache = initializeCache(configuration.getCaching().getResourceReaderCacheSize());
+    final Caching caching = configuration.getCaching();
+    if (caching.isEnabled()) {
+      cache = new ResourceCache(this::getDatasetForResourceType, ResourceReader::estimateSize,
+          StorageLevel.fromString(caching.getResourceReaderStorageLevel()),
+          caching.getResourceReaderCacheSize(), caching.getResourceReaderCacheBudget().toBytes());
     }
     updateAvailableResourceTypes();
   }
 
-  private LoadingCache<ResourceType, Dataset<Row>> initializeCache(final long maximumSize) {
-    return CacheBuilder.newBuilder()
-        .maximumSize(maximumSize)
-        .build(
-            new CacheLoader<>() {
-              @Override
-              public Dataset<Row> load(@Nonnull final ResourceType resourceType) {
-                return getDatasetForResourceType(resourceType);
-              }
-            }
-        );
-  }
-
   /**
    * Checks the warehouse location and updates the available resource types.
    */
@@ -168,13 +162,62 @@ public class ResourceReader implements Cacheable {
    */
   @Nonnull
   public Dataset<Row> read(@Nonnull final ResourceType resourceType) {
+    ResourceDependencies.recordRead(resourceType);
     if (cache == null) {
       return getDatasetForResourceType(resourceType);
     } else {
-      return cache.getUnchecked(resourceType);
+      return cache.get(resourceType);
+    }
+  }
+
+  /**
+   * Reads a subset of the columns of a set of resources of a particular type from the warehouse
+   * location. When caching is enabled, only these columns will be held within the cache.
+   *
+   * @param resourceType The desired {@link ResourceType}.
+   * @param columns The names of the columns to read.
+   * @return A {@link Dataset} containing the requested columns of the raw resource.
+   */
+  @Nonnull
+  public Dataset<Row> read(@Nonnull final ResourceType resourceType,
+      @Nonnull final Set<String> columns) {
+    ResourceDependencies.recordRead(resourceType);
+    if (cache == null) {
+      final Dataset<Row> resources = getDatasetForResourceType(resourceType);
+      return resources.select(Stream.of(resources.columns())
+          .filter(columns::contains)
+          .map(resources::col)
+          .toArray(Column[]::new));
+    } else {
+      return cache.get(resourceType, Optional.of(columns));
     }
   }
 
+  /**
+   * Reads a set of resources of a particular type from the warehouse location, bypassing the cache.
+   * This is intended for use when only the schema of the resource is of interest, e.g. when working
+   * out which columns a query needs.
+   *
+   * @param resourceType The desired {@link ResourceType}.
+   * @return A {@link Dataset} containing the raw resource, which is not cached.
+   */
+  @Nonnull
+  public Dataset<Row> readSchema(@Nonnull final ResourceType resourceType) {
+    ResourceDependencies.recordRead(resourceType);
+    return getDatasetForResourceType(resourceType);
+  }
+
+  /**
+   * @return hit, miss, eviction and size statistics for each resource type that has been read,
+   * or an empty map if caching is disabled
+   */
+  @Nonnull
+  public Map<ResourceType, ResourceCache.Statistics> getCacheStatistics() {
+    return cache == null
+           ? Collections.emptyMap()
+           : cache.getStatistics();
+  }
+
   @Nonnull
   private Dataset<Row> getDatasetForResourceType(@Nonnull final ResourceType resourceType) {
     if (!getAvailableResourceTypes().contains(resourceType)) {
@@ -189,14 +232,29 @@ public class ResourceReader implements Cacheable {
     @Nullable final Dataset<Row> resources = spark.read().parquet(tableUrl);
     checkNotNull(resources);
 
-    resources.cache();
     return resources;
   }
 
+  private static long estimateSize(@Nonnull final Dataset<Row> resources) {
+    // This uses the size of the underlying files, as reported by the data source.
+    return resources.queryExecution().analyzed().stats().sizeInBytes().longValue();
+  }
+
   @Override
   public void invalidateCache() {
     if (cache != null) {
+      log.info("Invalidating resource cache, statistics: {}", cache.getStatistics());
       cache.invalidateAll();
     }
   }
+
+  @Override
+  public void invalidateCache(@Nonnull final Set<ResourceType> resourceTypes) {
+    if (cache != null) {
+      log.info("Invalidating resource cache for {}, statistics: {}", resourceTypes,
+          cache.getStatistics());
+      resourceTypes.forEach(cache::invalidate);
+    }
+  }
+
 }
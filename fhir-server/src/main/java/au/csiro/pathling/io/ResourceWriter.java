@@ -8,12 +8,47 @@ package au.csiro.pathling.io;
 
 import static au.csiro.pathling.io.PersistenceScheme.convertS3ToS3aUrl;
 import static au.csiro.pathling.io.PersistenceScheme.fileNameForResource;
+import static au.csiro.pathling.io.TemporalColumns.temporalElements;
+import static au.csiro.pathling.io.TemporalColumns.withInstantColumns;
+import static au.csiro.pathling.utilities.Preconditions.checkNotNull;
 import static org.apache.spark.sql.functions.asc;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.input_file_name;
 
 import au.csiro.pathling.Configuration;
+import au.csiro.pathling.fhirpath.ResourceDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
+import org.apache.parquet.schema.MessageType;
 import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
@@ -25,37 +60,305 @@ import org.springframework.stereotype.Component;
  */
 @Component
 @Profile("core")
+@Slf4j
 public class ResourceWriter {
 
+  /**
+   * The prefix of the directories within a table that hold the files produced by a merge before
+   * they are committed. Spark ignores directories that begin with an underscore when reading a
+   * table.
+   */
+  private static final String STAGING_PREFIX = "_merge-";
+
+  /**
+   * The name of the file within a staging directory that lists the files superseded by the merge.
+   */
+  private static final String SUPERSEDED_FILE = "_superseded";
+
+  @Nonnull
+  private final SparkSession spark;
+
   @Nonnull
   private final String warehouseUrl;
 
   @Nonnull
   private final String databaseName;
 
+  @Nonnull
+  private final FhirContext fhirContext;
+
+  /**
+   * A lock for each resource type, used to serialise the writes to each table.
+   */
+  @Nonnull
+  private final Map<ResourceType, Object> locks = new ConcurrentHashMap<>();
+
   /**
    * @param configuration A {@link Configuration} object which controls the behaviour of the writer
+   * @param spark A {@link SparkSession} for interacting with Spark
+   * @param fhirContext A {@link FhirContext} for looking up the definitions of the resources
    */
-  public ResourceWriter(@Nonnull final Configuration configuration) {
+  public ResourceWriter(@Nonnull final Configuration configuration,
+      @Nonnull final SparkSession spark, @Nonnull final FhirContext fhirContext) {
+    this.spark = spark;
+    this.fhirContext = fhirContext;
     this.warehouseUrl = convertS3ToS3aUrl(configuration.getStorage().getWarehouseUrl());
     this.databaseName = configuration.getStorage().getDatabaseName();
   }
 
   /**
    * Overwrites the resources for a particular type with the contents of the supplied {@link
-   * Dataset}.
+   * Dataset}. The resources are written along with their {@link TemporalColumns}.
    *
    * @param resourceType The type of the resource to write.
    * @param resources The {@link Dataset} containing the resource data.
    */
   public void write(@Nonnull final ResourceType resourceType, @Nonnull final Dataset resources) {
-    final String tableUrl =
-        warehouseUrl + "/" + databaseName + "/" + fileNameForResource(resourceType);
-    // We order the resources here to reduce the amount of sorting necessary at query time.
-    resources.orderBy(asc("id"))
-        .write()
-        .mode(SaveMode.Overwrite)
-        .parquet(tableUrl);
+    synchronized (lockFor(resourceType)) {
+      final String tableUrl = tableUrl(resourceType);
+      // We order the resources here to reduce the amount of sorting necessary at query time.
+      withInstantColumns(resources, definitionOf(resourceType))
+          .orderBy(asc("id"))
+          .write()
+          .mode(SaveMode.Overwrite)
+          .parquet(tableUrl);
+    }
+  }
+
+  /**
+   * Merges the supplied resources into the existing resources for a particular type. Resources
+   * with an ID that is already present replace the existing resource, and all other resources are
+   * added. If more than one of the supplied resources has the same ID, only one of them is kept.
+   * <p>
+   * Only the files that contain resources being replaced are rewritten, along with any files that
+   * were written before the {@link TemporalColumns} were added. The retained contents of these
+   * files are written together with the new resources into a staging directory within the table,
+   * which is not visible to queries. Once the staged files are complete, a list of the files that
+   * they supersede is written alongside them, and the merge is committed by moving the staged files
+   * into the table and deleting the superseded files.
+   * <p>
+   * If a merge is interrupted, it is recovered at the start of the next merge into the same table:
+   * a merge that was interrupted while staging is discarded, and one that was interrupted while
+   * committing is completed. Queries that read the table while a merge is being committed may see
+   * both versions of a replaced resource.
+   * <p>
+   * Writes to the same table are serialised within this server, but concurrent writes from other
+   * processes are not supported.
+   * <p>
+   * If there are no existing resources of the type, this is equivalent to {@link #write}.
+   *
+   * @param resourceType The type of the resource to write.
+   * @param resources The {@link Dataset} containing the resource data.
+   */
+  public void merge(@Nonnull final ResourceType resourceType, @Nonnull final Dataset<?> resources) {
+    synchronized (lockFor(resourceType)) {
+      final String tableUrl = tableUrl(resourceType);
+      final Path tablePath = new Path(tableUrl);
+      final FileSystem fileSystem = fileSystemFor(tableUrl);
+      try {
+        if (!fileSystem.exists(tablePath)) {
+          write(resourceType, resources);
+          return;
+        }
+      } catch (final IOException e) {
+        throw new RuntimeException("Problem accessing table: " + tableUrl, e);
+      }
+      recover(fileSystem, tablePath);
+
+      // The incoming resources are used to find the affected files, and then again to write the
+      // merged table, so we persist them to avoid parsing them twice.
+      final ResourceDefinition definition = definitionOf(resourceType);
+      final Dataset<Row> incoming = withInstantColumns(resources, definition)
+          .dropDuplicates("id")
+          .persist(StorageLevel.MEMORY_AND_DISK());
+      try {
+        final Dataset<Row> incomingIds = incoming.select(col("id"));
+
+        // Find the files that contain a resource with the same ID as one of the incoming
+        // resources. Only the ID column is read from each file.
+        final List<String> replacingFiles = spark.read().parquet(tableUrl)
+            .select(col("id"), input_file_name().alias("file"))
+            .join(incomingIds, "id")
+            .select(col("file"))
+            .distinct()
+            .as(Encoders.STRING())
+            .collectAsList();
+        final List<URI> legacyFiles = legacyFiles(fileSystem, tablePath,
+            temporalElements(incoming, definition));
+        // The files are compared as URIs, as the names returned by Spark and by the file system
+        // may be written differently.
+        final Set<URI> affectedFileSet = replacingFiles.stream()
+            .map(URI::create)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+        affectedFileSet.addAll(legacyFiles);
+        final List<String> affectedFiles = affectedFileSet.stream()
+            .map(URI::toString)
+            .collect(Collectors.toList());
+        log.info("Merging {} resources, {} existing files affected, {} without instant columns",
+            resourceType.toCode(), affectedFiles.size(), legacyFiles.size());
+
+        // The resources within the affected files that are not being replaced are written out
+        // again alongside the incoming resources. Their instant columns are recalculated, as the
+        // files may have been written before these columns were added.
+        final Dataset<Row> merged;
+        if (affectedFiles.isEmpty()) {
+          merged = incoming;
+        } else {
+          final Dataset<Row> affected = withInstantColumns(spark.read()
+              .parquet(affectedFileSet.stream()
+                  .map(file -> new Path(file).toString())
+                  .toArray(String[]::new)), definition);
+          final Dataset<Row> replacedIds = incomingIds.withColumnRenamed("id", "replacedId");
+          merged = affected
+              .join(replacedIds, affected.col("id").equalTo(replacedIds.col("replacedId")),
+                  "left_anti")
+              .unionByName(incoming);
+        }
+        final Path stagingPath = new Path(tablePath, STAGING_PREFIX + UUID.randomUUID());
+        merged.orderBy(asc("id"))
+            .write()
+            .parquet(stagingPath.toString());
+        writeLines(fileSystem, new Path(stagingPath, SUPERSEDED_FILE), affectedFiles);
+        commit(fileSystem, tablePath, stagingPath);
+      } finally {
+        incoming.unpersist(false);
+      }
+    }
+  }
+
+  /**
+   * Finds the files within a table that were written before the instant columns were added. These
+   * are rewritten by the next merge into the table, so that each of the instant columns is complete
+   * across the whole table.
+   * <p>
+   * Only the footer of each file is read, so this does not depend upon the amount of data within
+   * the table.
+   */
+  @Nonnull
+  private List<URI> legacyFiles(@Nonnull final FileSystem fileSystem,
+      @Nonnull final Path tablePath, @Nonnull final List<String> temporalElements) {
+    if (temporalElements.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final List<URI> legacyFiles = new ArrayList<>();
+    try {
+      final FileStatus[] dataFiles = fileSystem.listStatus(tablePath,
+          path -> !path.getName().startsWith("_") && !path.getName().startsWith("."));
+      for (final FileStatus dataFile : dataFiles) {
+        final MessageType schema;
+        try (final ParquetFileReader reader = ParquetFileReader.open(
+            HadoopInputFile.fromStatus(dataFile, fileSystem.getConf()))) {
+          schema = reader.getFooter().getFileMetaData().getSchema();
+        }
+        final boolean complete = temporalElements.stream()
+            .map(TemporalColumns::instantColumnName)
+            .allMatch(schema::containsField);
+        if (!complete) {
+          legacyFiles.add(dataFile.getPath().toUri());
+        }
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException("Problem reading table: " + tablePath, e);
+    }
+    return legacyFiles;
+  }
+
+  /**
+   * Discards or completes any merges into a table that were previously interrupted.
+   */
+  private static void recover(@Nonnull final FileSystem fileSystem, @Nonnull final Path tablePath) {
+    try {
+      final FileStatus[] staged = fileSystem.listStatus(tablePath,
+          path -> path.getName().startsWith(STAGING_PREFIX));
+      for (final FileStatus status : staged) {
+        if (fileSystem.exists(new Path(status.getPath(), SUPERSEDED_FILE))) {
+          log.warn("Completing interrupted merge: {}", status.getPath());
+          commit(fileSystem, tablePath, status.getPath());
+        } else {
+          log.warn("Discarding incomplete merge: {}", status.getPath());
+          fileSystem.delete(status.getPath(), true);
+        }
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException("Problem recovering interrupted merges: " + tablePath, e);
+    }
+  }
+
+  /**
+   * Moves the data files within a staging directory into the table, then deletes the files that
+   * they supersede along with the staging directory. This can be safely repeated if it is
+   * interrupted.
+   */
+  private static void commit(@Nonnull final FileSystem fileSystem, @Nonnull final Path tablePath,
+      @Nonnull final Path stagingPath) {
+    try {
+      final FileStatus[] dataFiles = fileSystem.listStatus(stagingPath,
+          path -> !path.getName().startsWith("_") && !path.getName().startsWith("."));
+      for (final FileStatus dataFile : dataFiles) {
+        final Path target = new Path(tablePath, dataFile.getPath().getName());
+        if (!fileSystem.rename(dataFile.getPath(), target)) {
+          throw new IOException("Unable to move " + dataFile.getPath() + " to " + target);
+        }
+      }
+      for (final String file : readLines(fileSystem, new Path(stagingPath, SUPERSEDED_FILE))) {
+        fileSystem.delete(new Path(URI.create(file)), false);
+      }
+      fileSystem.delete(stagingPath, true);
+    } catch (final IOException e) {
+      throw new RuntimeException("Problem committing merge: " + stagingPath, e);
+    }
+  }
+
+  private static void writeLines(@Nonnull final FileSystem fileSystem, @Nonnull final Path path,
+      @Nonnull final List<String> lines) {
+    try (final BufferedWriter writer = new BufferedWriter(
+        new OutputStreamWriter(fileSystem.create(path, false), StandardCharsets.UTF_8))) {
+      for (final String line : lines) {
+        writer.write(line);
+        writer.newLine();
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException("Problem writing file: " + path, e);
+    }
+  }
+
+  @Nonnull
+  private static List<String> readLines(@Nonnull final FileSystem fileSystem,
+      @Nonnull final Path path) throws IOException {
+    try (final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(fileSystem.open(path), StandardCharsets.UTF_8))) {
+      return reader.lines()
+          .filter(line -> !line.isEmpty())
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Nonnull
+  private Object lockFor(@Nonnull final ResourceType resourceType) {
+    return locks.computeIfAbsent(resourceType, type -> new Object());
+  }
+
+  @Nonnull
+  private ResourceDefinition definitionOf(@Nonnull final ResourceType resourceType) {
+    return new ResourceDefinition(resourceType,
+        fhirContext.getResourceDefinition(resourceType.toCode()));
+  }
+
+  @Nonnull
+  private String tableUrl(@Nonnull final ResourceType resourceType) {
+    return warehouseUrl + "/" + databaseName + "/" + fileNameForResource(resourceType);
+  }
+
+  @Nonnull
+  private FileSystem fileSystemFor(@Nonnull final String url) {
+    @Nullable final org.apache.hadoop.conf.Configuration hadoopConfiguration = spark.sparkContext()
+        .hadoopConfiguration();
+    checkNotNull(hadoopConfiguration);
+    try {
+      return FileSystem.get(URI.create(url), hadoopConfiguration);
+    } catch (final IOException e) {
+      throw new RuntimeException("Problem accessing warehouse location: " + url, e);
+    }
   }
 
 }
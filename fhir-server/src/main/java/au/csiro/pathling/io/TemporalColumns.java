@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.io;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.to_timestamp;
+
+import au.csiro.pathling.fhirpath.ResourceDefinition;
+import au.csiro.pathling.fhirpath.element.ElementDefinition;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
+
+/**
+ * Knows how to add normalized versions of the date and dateTime elements of a resource, which are
+ * stored alongside the resources within the warehouse.
+ * <p>
+ * Each singular date and dateTime element at the root of the resource is given a hidden column
+ * containing the instant at the start of its value, as a timestamp. This respects the precision
+ * of the value, e.g. {@code 2021-03} is stored as the start of March 2021. Comparisons can then use
+ * this column instead of parsing the string value of every row within every query, and the minimum
+ * and maximum statistics within the Parquet files can be used to skip row groups when filtering on
+ * a date range.
+ * <p>
+ * Instant elements are already stored as timestamps, and do not need a normalized column.
+ *
+ * @author John Grimes
+ */
+public abstract class TemporalColumns {
+
+  private static final Set<FHIRDefinedType> TEMPORAL_TYPES = EnumSet
+      .of(FHIRDefinedType.DATE, FHIRDefinedType.DATETIME);
+
+  /**
+   * @param elementName the name of a date or dateTime element
+   * @return the name of the column that holds the instant for the element
+   */
+  @Nonnull
+  public static String instantColumnName(@Nonnull final String elementName) {
+    return "_" + elementName + "_instant";
+  }
+
+  /**
+   * Adds an instant column for each singular date and dateTime element of a set of resources. Any
+   * instant columns that are already present are recalculated.
+   *
+   * @param resources the resources to add the columns to
+   * @param definition the {@link ResourceDefinition} describing the resources
+   * @return a new {@link Dataset} containing the resources and their instant columns
+   */
+  @Nonnull
+  public static Dataset<Row> withInstantColumns(@Nonnull final Dataset<?> resources,
+      @Nonnull final ResourceDefinition definition) {
+    final List<String> temporalElements = temporalElements(resources, definition);
+    final Set<String> instantColumns = temporalElements.stream()
+        .map(TemporalColumns::instantColumnName)
+        .collect(Collectors.toSet());
+
+    // The new columns are added within a single projection, replacing any that already exist.
+    final Stream<Column> retained = Stream.of(resources.columns())
+        .filter(column -> !instantColumns.contains(column))
+        .map(resources::col);
+    final Stream<Column> added = temporalElements.stream()
+        .map(element -> to_timestamp(col(element)).alias(instantColumnName(element)));
+    return resources.toDF()
+        .select(Stream.concat(retained, added).toArray(Column[]::new));
+  }
+
+  /**
+   * @param resources a set of resources
+   * @param definition the {@link ResourceDefinition} describing the resources
+   * @return the names of the elements of the resources that are given an instant column
+   */
+  @Nonnull
+  public static List<String> temporalElements(@Nonnull final Dataset<?> resources,
+      @Nonnull final ResourceDefinition definition) {
+    return Stream.of(resources.columns())
+        .filter(column -> isTemporal(definition.getChildElement(column)))
+        .collect(Collectors.toList());
+  }
+
+  private static boolean isTemporal(@Nonnull final Optional<ElementDefinition> element) {
+    return element.isPresent()
+        && element.get().getMaxCardinality() == 1
+        && element.get().getFhirType().map(TEMPORAL_TYPES::contains).orElse(false);
+  }
+
+}
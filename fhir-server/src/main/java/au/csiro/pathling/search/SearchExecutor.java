@@ -31,6 +31,9 @@ import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -66,9 +69,27 @@ public class SearchExecutor extends QueryExecutor implements IBundleProvider {
   @Nonnull
   private final Dataset<Row> result;
 
+  /**
+   * The time taken to parse the filters and build the result dataset, in milliseconds.
+   */
+  private final long parseMillis;
+
   @Nonnull
   private Optional<Integer> count;
 
+  /**
+   * The maximum number of page boundaries that are remembered for each search.
+   */
+  static final int MAX_BOOKMARKS = 1000;
+
+  /**
+   * A map of result offsets to the ID of the resource immediately preceding that offset, for page
+   * boundaries that have been served so far. This is used to retrieve subsequent pages using a
+   * range predicate over the ID column. It holds no more than {@link #MAX_BOOKMARKS} entries.
+   */
+  @Nonnull
+  private final NavigableMap<Integer, String> bookmarks = new ConcurrentSkipListMap<>();
+
   /**
    * @param configuration A {@link Configuration} object to control the behaviour of the executor
    * @param fhirContext A {@link FhirContext} for doing FHIR stuff
@@ -94,7 +115,9 @@ public class SearchExecutor extends QueryExecutor implements IBundleProvider {
     this.fhirEncoders = fhirEncoders;
     this.subjectResource = subjectResource;
     this.filters = filters;
+    final long start = System.nanoTime();
     this.result = initializeDataset();
+    this.parseMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
     this.count = Optional.empty();
 
     final String filterStrings = filters.map(SearchExecutor::filtersToString).orElse("none");
@@ -198,16 +221,30 @@ public class SearchExecutor extends QueryExecutor implements IBundleProvider {
   public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
     log.info("Retrieving search results ({}-{})", theFromIndex + 1, theToIndex);
 
-    Dataset<Row> resources = result;
-    if (theFromIndex != 0) {
+    // Find the closest page boundary at or before the requested offset for which we know the last
+    // ID that was served. As the resources are ordered by ID, we can use a range predicate on the
+    // ID column to skip directly to the start of that page, rather than excluding each of the rows
+    // that came before it.
+    final Column idColumn = result.col("id");
+    @Nullable final Entry<Integer, String> bookmark = bookmarks.floorEntry(theFromIndex);
+    Dataset<Row> resources = bookmark == null
+                             ? result
+                             : result.filter(idColumn.gt(bookmark.getValue()));
+    final int offset = bookmark == null
+                       ? theFromIndex
+                       : theFromIndex - bookmark.getKey();
+
+    if (offset != 0) {
       // Spark does not have an "offset" concept, so we create a list of rows to exclude and
-      // subtract them from the dataset using a left anti-join.
+      // subtract them from the dataset using a left anti-join. This is only required when a page is
+      // requested that does not follow on from a page that has already been served.
       final String excludeAlias = randomAlias();
-      final Dataset<Row> exclude = resources.limit(theFromIndex)
-          .select(resources.col("id").alias(excludeAlias));
+      final Dataset<Row> exclude = resources.orderBy(idColumn).limit(offset)
+          .select(idColumn.alias(excludeAlias));
       resources = resources
-          .join(exclude, resources.col("id").equalTo(exclude.col(excludeAlias)), "left_anti");
+          .join(exclude, idColumn.equalTo(exclude.col(excludeAlias)), "left_anti");
     }
+    resources = resources.orderBy(idColumn);
     // The dataset is trimmed to the requested size.
     if (theToIndex != 0) {
       resources = resources.limit(theToIndex - theFromIndex);
@@ -219,7 +256,40 @@ public class SearchExecutor extends QueryExecutor implements IBundleProvider {
     checkNotNull(encoder);
     reportQueryPlan(resources);
 
-    return resources.as(encoder).collectAsList();
+    final Dataset<IBaseResource> typedResources = resources.as(encoder);
+    final List<IBaseResource> collected = typedResources.collectAsList();
+    logPlanningTime("Search", parseMillis, typedResources);
+
+    // Record the ID of the last resource in this page, so that the next page can be retrieved using
+    // a range predicate.
+    if (!collected.isEmpty()) {
+      final IBaseResource last = collected.get(collected.size() - 1);
+      addBookmark(bookmarks, theFromIndex + collected.size(), last.getIdElement().getIdPart(),
+          MAX_BOOKMARKS);
+    }
+    return collected;
+  }
+
+  /**
+   * Records a page boundary. If this takes the number of bookmarks over the maximum, every second
+   * bookmark is dropped, apart from the new one. The remaining bookmarks are still spread across
+   * the results that have been served, so any page can be reached from a nearby bookmark.
+   */
+  static void addBookmark(@Nonnull final NavigableMap<Integer, String> bookmarks,
+      final int offset, @Nonnull final String id, final int maximum) {
+    synchronized (bookmarks) {
+      bookmarks.put(offset, id);
+      if (bookmarks.size() <= maximum) {
+        return;
+      }
+      int position = 0;
+      for (final Iterator<Integer> offsets = bookmarks.keySet().iterator(); offsets.hasNext(); ) {
+        final int next = offsets.next();
+        if (position++ % 2 == 1 && next != offset) {
+          offsets.remove();
+        }
+      }
+    }
   }
 
   private void reportQueryPlan(@Nonnull final Dataset<Row> resources) {
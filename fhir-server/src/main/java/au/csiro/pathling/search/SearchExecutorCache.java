@@ -8,6 +8,8 @@ package au.csiro.pathling.search;
 
 import au.csiro.pathling.Configuration;
 import au.csiro.pathling.caching.Cacheable;
+import au.csiro.pathling.caching.ResourceDependencies;
+import au.csiro.pathling.caching.ResourceDependencies.Dependent;
 import au.csiro.pathling.encoders.FhirEncoders;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
@@ -20,6 +22,7 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import javax.annotation.Nonnull;
 import lombok.Getter;
 import org.apache.spark.sql.SparkSession;
@@ -38,7 +41,7 @@ import org.springframework.stereotype.Component;
 public class SearchExecutorCache implements Cacheable {
 
   @Nonnull
-  private final LoadingCache<SearchExecutorCacheKey, IBundleProvider> cache;
+  private final LoadingCache<SearchExecutorCacheKey, Dependent<IBundleProvider>> cache;
 
   /**
    * @param configuration A {@link Configuration} to control the behaviour of the cache
@@ -55,7 +58,7 @@ public class SearchExecutorCache implements Cacheable {
    */
   @Nonnull
   public IBundleProvider get(@Nonnull final SearchExecutorCacheKey key) {
-    return cache.getUnchecked(key);
+    return cache.getUnchecked(key).getValue();
   }
 
   @Override
@@ -63,16 +66,25 @@ public class SearchExecutorCache implements Cacheable {
     cache.invalidateAll();
   }
 
+  @Override
+  public void invalidateCache(@Nonnull final Set<ResourceType> resourceTypes) {
+    cache.asMap().entrySet().removeIf(
+        entry -> resourceTypes.contains(entry.getKey().getSubjectResource())
+            || entry.getValue().dependsOnAny(resourceTypes));
+  }
+
   private static class SearchExecutorCacheLoader extends
-      CacheLoader<SearchExecutorCacheKey, IBundleProvider> {
+      CacheLoader<SearchExecutorCacheKey, Dependent<IBundleProvider>> {
 
     @Nonnull
     @Override
-    public IBundleProvider load(@Nonnull final SearchExecutorCacheKey key) {
-      return new CachingSearchExecutor(key.getConfiguration(), key.getFhirContext(),
-          key.getSparkSession(), key.getResourceReader(), key.getTerminologyClient(),
-          key.getTerminologyClientFactory(), key.getFhirEncoders(), key.getSubjectResource(),
-          key.getFilters());
+    public Dependent<IBundleProvider> load(@Nonnull final SearchExecutorCacheKey key) {
+      // The resources that the search depends upon are all read when the executor is constructed.
+      return ResourceDependencies.record(
+          () -> new CachingSearchExecutor(key.getConfiguration(), key.getFhirContext(),
+              key.getSparkSession(), key.getResourceReader(), key.getTerminologyClient(),
+              key.getTerminologyClientFactory(), key.getFhirEncoders(), key.getSubjectResource(),
+              key.getFilters()));
     }
 
   }
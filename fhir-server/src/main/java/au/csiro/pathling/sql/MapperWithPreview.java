@@ -22,9 +22,9 @@ public interface MapperWithPreview<I, R, S> extends Serializable {
   /**
    * The preview operation that gives access to all of input object that will be later passed to the
    * mapping function and can use them to create a state object, which is also passed to the mapping
-   * function.
+   * function. Each distinct input object is only previewed once.
    *
-   * @param inputIterator the iterator over all objects to be mapped.
+   * @param inputIterator the iterator over all distinct objects to be mapped.
    * @return the state object that should be passed to the mapping function together with each input
    * object.
    * @throws Exception when an error occurs during processing
@@ -10,6 +10,8 @@ import javax.annotation.Nonnull;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.expressions.aggregate.MinBy;
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan;
 import org.apache.spark.sql.types.StructField;
 
 
@@ -48,4 +50,56 @@ public interface SqlExtensions {
         MapWithPartitionPreview
             .fromJava(inputColumn.expr(), columnDecoder, mapper, resultField, ds.logicalPlan()));
   }
+
+  /**
+   * Merges the projection at the top of the plan of a dataset with the projection beneath it. This
+   * is used when columns are added to a dataset one at a time, which would otherwise add a new
+   * projection to the plan for each column and make the plan slow to analyze and optimize.
+   *
+   * @param ds the input dataset
+   * @return an equivalent dataset with a shallower plan, or the input dataset if its top
+   * projections cannot be merged
+   */
+  @Nonnull
+  static Dataset<Row> collapseProjections(@Nonnull final Dataset<Row> ds) {
+    final LogicalPlan plan = ds.logicalPlan();
+    final LogicalPlan collapsed = Projections.collapse(plan);
+    return collapsed == plan
+           ? ds
+           : Dataset.ofRows(ds.sparkSession(), collapsed);
+  }
+
+  /**
+   * Creates an aggregate column that returns the value associated with the lowest ordering within
+   * each group. Unlike sorting the dataset before taking the first value, this only compares the
+   * rows within each group, and does not require a shuffle of its own.
+   * <p>
+   * Rows with a null ordering are never returned, and the result is null if every row within the
+   * group has a null ordering. Giving null values a null ordering therefore returns the first
+   * non-null value. This only applies to the returned value, so the other columns of the group
+   * should not be aggregated in this way unless they are null wherever the ordering is.
+   *
+   * @param value the value to return
+   * @param ordering the ordering to minimise
+   * @return the aggregate column
+   */
+  @Nonnull
+  static Column minBy(@Nonnull final Column value, @Nonnull final Column ordering) {
+    return new Column(new MinBy(value.expr(), ordering.expr()).toAggregateExpression());
+  }
+
+  /**
+   * Creates a column that tests whether two Coding structs are equal, taking into account their
+   * versions where both Codings have one.
+   *
+   * @param left the left Coding
+   * @param right the right Coding
+   * @return a Boolean column, which is null if either Coding is null or incomplete
+   * @see CodingsEqual
+   */
+  @Nonnull
+  static Column codingsEqual(@Nonnull final Column left, @Nonnull final Column right) {
+    return new Column(new CodingsEqual(left.expr(), right.expr()));
+  }
+
 }
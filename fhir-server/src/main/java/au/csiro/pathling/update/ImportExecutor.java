@@ -6,21 +6,35 @@
 
 package au.csiro.pathling.update;
 
+import au.csiro.pathling.Configuration;
 import au.csiro.pathling.caching.CacheManager;
 import au.csiro.pathling.encoders.FhirEncoders;
 import au.csiro.pathling.errors.InvalidUserInputError;
 import au.csiro.pathling.errors.SecurityError;
+import au.csiro.pathling.errors.UnexpectedServerError;
 import au.csiro.pathling.fhir.FhirContextFactory;
 import au.csiro.pathling.io.AccessRules;
 import au.csiro.pathling.io.PersistenceScheme;
 import au.csiro.pathling.io.ResourceReader;
 import au.csiro.pathling.io.ResourceWriter;
 import ca.uhn.fhir.rest.annotation.ResourceParam;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.spark.api.java.function.MapFunction;
+import org.apache.spark.SparkContext;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
@@ -47,6 +61,17 @@ import org.springframework.stereotype.Component;
 @Slf4j
 public class ImportExecutor {
 
+  private static final String SCHEDULER_POOL_PROPERTY = "spark.scheduler.pool";
+
+  /**
+   * The name of the Spark scheduler pool that import jobs are submitted to, which is defined
+   * within {@code fairscheduler.xml}.
+   */
+  private static final String SCHEDULER_POOL = "import";
+
+  @Nonnull
+  private final Configuration configuration;
+
   @Nonnull
   private final SparkSession spark;
 
@@ -69,6 +94,7 @@ public class ImportExecutor {
   private final AccessRules accessRules;
 
   /**
+   * @param configuration A {@link Configuration} object to control the behaviour of the executor
    * @param spark A {@link SparkSession} for resolving Spark queries
    * @param resourceReader A {@link ResourceReader} for retrieving resources
    * @param resourceWriter A {@link ResourceWriter} for saving resources
@@ -78,12 +104,14 @@ public class ImportExecutor {
    * @param cacheManager A {@link CacheManager} for invalidating caches upon import
    * @param accessRules A {@link AccessRules} for validating access to URLs
    */
-  public ImportExecutor(@Nonnull final SparkSession spark,
+  public ImportExecutor(@Nonnull final Configuration configuration,
+      @Nonnull final SparkSession spark,
       @Nonnull final ResourceReader resourceReader, @Nonnull final ResourceWriter resourceWriter,
       @Nonnull final FhirEncoders fhirEncoders,
       @Nonnull final FhirContextFactory fhirContextFactory,
       @Nonnull final CacheManager cacheManager,
       @Nonnull final AccessRules accessRules) {
+    this.configuration = configuration;
     this.spark = spark;
     this.resourceReader = resourceReader;
     this.resourceWriter = resourceWriter;
@@ -94,7 +122,10 @@ public class ImportExecutor {
   }
 
   /**
-   * Executes an import request.
+   * Executes an import request. The sources within the request are imported concurrently, up to
+   * the configured parallelism, except that sources of the same resource type are imported one
+   * after another. A failure to import one source does not prevent the others from being imported,
+   * and the outcome reports on each source individually.
    *
    * @param inParams A FHIR {@link Parameters} object describing the import request
    * @return A FHIR {@link OperationOutcome} resource describing the result
@@ -109,62 +140,201 @@ public class ImportExecutor {
     }
     log.info("Received $import request");
 
-    // For each input within the request, read the resources of the declared type and create
-    // the corresponding table in the warehouse.
-    for (final ParametersParameterComponent sourceParam : sourceParams) {
-      final ParametersParameterComponent resourceTypeParam = sourceParam.getPart().stream()
-          .filter(param -> "resourceType".equals(param.getName()))
-          .findFirst()
-          .orElseThrow(
-              () -> new InvalidUserInputError("Must provide resourceType for each source"));
-      final ParametersParameterComponent urlParam = sourceParam.getPart().stream()
-          .filter(param -> "url".equals(param.getName()))
-          .findFirst()
-          .orElseThrow(
-              () -> new InvalidUserInputError("Must provide url for each source"));
-
-      final String resourceCode = ((CodeType) resourceTypeParam.getValue()).getCode();
-      final ResourceType resourceType = ResourceType.fromCode(resourceCode);
-      final ExpressionEncoder<IBaseResource> fhirEncoder = fhirEncoders.of(resourceType.toCode());
-      @SuppressWarnings("UnnecessaryLocalVariable")
-      final FhirContextFactory localFhirContextFactory = this.fhirContextFactory;
+    // All sources are validated before any of them are imported, so that a malformed request does
+    // not result in a partial import.
+    final List<ImportSource> sources = sourceParams.stream()
+        .map(ImportExecutor::parseSource)
+        .collect(Collectors.toList());
+
+    // Access to each URL is checked on the request thread, before any of the sources are imported.
+    for (final ImportSource source : sources) {
+      try {
+        accessRules.checkCanImportFrom(source.getUrl());
+      } catch (final SecurityError e) {
+        throw new InvalidUserInputError("Not allowed to import from URL: " + source.getUrl(), e);
+      }
+    }
+
+    // The sources of each resource type are read, parsed and written in turn within their own
+    // thread, so that the jobs for small sources can make use of the parts of the cluster not
+    // occupied by larger ones. Sources of the same type are never written concurrently, as they
+    // write to the same table.
+    final Map<ResourceType, List<Integer>> sourcesByType = new LinkedHashMap<>();
+    for (int i = 0; i < sources.size(); i++) {
+      sourcesByType.computeIfAbsent(sources.get(i).getResourceType(), type -> new ArrayList<>())
+          .add(i);
+    }
+    final List<CompletableFuture<Void>> futures = sources.stream()
+        .map(source -> new CompletableFuture<Void>())
+        .collect(Collectors.toList());
+    final int parallelism = Math
+        .min(configuration.getImport().getParallelism(), sourcesByType.size());
+    final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+    try {
+      final String requestId = UUID.randomUUID().toString();
+      for (final List<Integer> indexes : sourcesByType.values()) {
+        executorService.submit(() -> {
+          for (final int i : indexes) {
+            try {
+              importSource(sources.get(i), "import-" + requestId + "-" + i);
+              futures.get(i).complete(null);
+            } catch (final Throwable e) {
+              futures.get(i).completeExceptionally(e);
+            }
+          }
+        });
+      }
+      final List<OperationOutcomeIssueComponent> issues = new ArrayList<>();
+      @Nullable RuntimeException firstError = null;
+      final Set<ResourceType> imported = EnumSet.noneOf(ResourceType.class);
+      for (int i = 0; i < sources.size(); i++) {
+        final ImportSource source = sources.get(i);
+        try {
+          futures.get(i).get();
+          imported.add(source.getResourceType());
+          issues.add(issue(IssueSeverity.INFORMATION, IssueType.INFORMATIONAL,
+              "Imported " + source.getResourceType().toCode() + " resources from " + source
+                  .getUrl()));
+        } catch (final ExecutionException e) {
+          final RuntimeException error = e.getCause() instanceof RuntimeException
+                                         ? (RuntimeException) e.getCause()
+                                         : new UnexpectedServerError(e.getCause());
+          log.warn("Failed to import {} resources from {}", source.getResourceType().toCode(),
+              source.getUrl(), error);
+          issues.add(issue(IssueSeverity.ERROR, IssueType.EXCEPTION,
+              "Failed to import " + source.getResourceType().toCode() + " resources from "
+                  + source.getUrl() + ": " + error.getMessage()));
+          if (firstError == null) {
+            firstError = error;
+          }
+        }
+      }
+      // If nothing was imported, the request as a whole has failed.
+      if (firstError != null && imported.isEmpty()) {
+        throw firstError;
+      }
+
+      // Update the list of available resources within the resource reader.
+      log.info("Updating available resource types");
+      resourceReader.updateAvailableResourceTypes();
+
+      // We return 200, as this operation is currently synchronous.
+      log.info("Import complete");
+
+      // Invalidate the cached content that depends upon the imported resource types.
+      cacheManager.invalidate(imported);
+
+      // Construct a response.
+      final OperationOutcome opOutcome = new OperationOutcome();
+      opOutcome.getIssue().add(issue(IssueSeverity.INFORMATION, IssueType.INFORMATIONAL,
+          firstError == null
+          ? "Data import completed successfully"
+          : "Data import completed with errors"));
+      opOutcome.getIssue().addAll(issues);
+      return opOutcome;
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnexpectedServerError("Interrupted while waiting for import to complete", e);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Nonnull
+  private static ImportSource parseSource(@Nonnull final ParametersParameterComponent sourceParam) {
+    final ParametersParameterComponent resourceTypeParam = sourceParam.getPart().stream()
+        .filter(param -> "resourceType".equals(param.getName()))
+        .findFirst()
+        .orElseThrow(
+            () -> new InvalidUserInputError("Must provide resourceType for each source"));
+    final ParametersParameterComponent urlParam = sourceParam.getPart().stream()
+        .filter(param -> "url".equals(param.getName()))
+        .findFirst()
+        .orElseThrow(
+            () -> new InvalidUserInputError("Must provide url for each source"));
+
+    final String resourceCode = ((CodeType) resourceTypeParam.getValue()).getCode();
+    final ResourceType resourceType = ResourceType.fromCode(resourceCode);
+    final String url = PersistenceScheme.convertS3ToS3aUrl(
+        ((UrlType) urlParam.getValue()).getValueAsString());
+    final ImportMode mode = sourceParam.getPart().stream()
+        .filter(param -> "mode".equals(param.getName()))
+        .findFirst()
+        .map(param -> ImportMode.fromCode(((CodeType) param.getValue()).getCode()))
+        .orElse(ImportMode.OVERWRITE);
+    return new ImportSource(resourceType, url, mode);
+  }
 
-      String url = ((UrlType) urlParam.getValue()).getValueAsString();
-      url = PersistenceScheme.convertS3ToS3aUrl(url);
+  /**
+   * Reads the resources from a single source and creates the corresponding table in the
+   * warehouse. The Spark jobs are submitted to the import scheduler pool, and are labelled with a
+   * job group so that the progress of each source can be followed within the Spark UI.
+   *
+   * @param source the source to import
+   * @param jobGroup the Spark job group to use for the jobs that import the source
+   */
+  private void importSource(@Nonnull final ImportSource source, @Nonnull final String jobGroup) {
+    final ResourceType resourceType = source.getResourceType();
+    final String url = source.getUrl();
+    final SparkContext sparkContext = spark.sparkContext();
+    sparkContext.setLocalProperty(SCHEDULER_POOL_PROPERTY, SCHEDULER_POOL);
+    sparkContext.setJobGroup(jobGroup,
+        "Importing " + resourceType.toCode() + " resources from " + url, false);
+    try {
+      log.info("Importing {} resources from {}", resourceType.toCode(), url);
+      final ExpressionEncoder<IBaseResource> fhirEncoder = fhirEncoders.of(resourceType.toCode());
       final Dataset<String> jsonStrings;
       try {
-        accessRules.checkCanImportFrom(url);
         jsonStrings = spark.read().textFile(url);
-      } catch (final SecurityError e) {
-        throw new InvalidUserInputError("Not allowed to import from URL: " + url, e);
       } catch (final Exception e) {
         throw new InvalidUserInputError("Error reading from URL: " + url, e);
       }
-      final Dataset<IBaseResource> resources = jsonStrings
-          .map((MapFunction<String, IBaseResource>) json -> localFhirContextFactory
-              .build().newJsonParser().parseResource(json), fhirEncoder);
+      final Dataset<?> resources;
+      if (configuration.getImport().isValidation()) {
+        resources = jsonStrings.mapPartitions(
+            new ResourceParser(fhirContextFactory, resourceType.toCode(), true), fhirEncoder);
+      } else {
+        // Unless validation has been requested, the JSON is decoded straight into rows, rather
+        // than being parsed into HAPI resources and then encoded.
+        resources = ResourceDecoder.decode(jsonStrings, fhirContextFactory, fhirEncoder.schema(),
+            resourceType.toCode());
+      }
 
       log.info("Saving resources: {}", resourceType.toCode());
-      resourceWriter.write(resourceType, resources);
+      if (source.getMode() == ImportMode.MERGE) {
+        resourceWriter.merge(resourceType, resources);
+      } else {
+        resourceWriter.write(resourceType, resources);
+      }
+      log.info("Finished importing {} resources from {}", resourceType.toCode(), url);
+    } finally {
+      sparkContext.clearJobGroup();
+      sparkContext.setLocalProperty(SCHEDULER_POOL_PROPERTY, null);
     }
+  }
+
+  @Nonnull
+  private static OperationOutcomeIssueComponent issue(@Nonnull final IssueSeverity severity,
+      @Nonnull final IssueType code, @Nonnull final String diagnostics) {
+    final OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+    issue.setSeverity(severity);
+    issue.setCode(code);
+    issue.setDiagnostics(diagnostics);
+    return issue;
+  }
 
-    // Update the list of available resources within the resource reader.
-    log.info("Updating available resource types");
-    resourceReader.updateAvailableResourceTypes();
+  @Value
+  private static class ImportSource {
 
-    // We return 200, as this operation is currently synchronous.
-    log.info("Import complete");
+    @Nonnull
+    ResourceType resourceType;
 
-    // Invalidate all caches following the import.
-    cacheManager.invalidateAll();
+    @Nonnull
+    String url;
+
+    @Nonnull
+    ImportMode mode;
 
-    // Construct a response.
-    final OperationOutcome opOutcome = new OperationOutcome();
-    final OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-    issue.setSeverity(IssueSeverity.INFORMATION);
-    issue.setCode(IssueType.INFORMATIONAL);
-    issue.setDiagnostics("Data import completed successfully");
-    opOutcome.getIssue().add(issue);
-    return opOutcome;
   }
+
 }
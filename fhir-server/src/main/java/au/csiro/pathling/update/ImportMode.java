@@ -0,0 +1,55 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import au.csiro.pathling.errors.InvalidUserInputError;
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+
+/**
+ * Represents the way in which the resources within an import source are combined with the
+ * resources that are already stored.
+ *
+ * @author John Grimes
+ */
+public enum ImportMode {
+  /**
+   * Replaces all existing resources of the type with the imported resources.
+   */
+  OVERWRITE("overwrite"),
+  /**
+   * Adds the imported resources to the existing resources of the type, replacing any existing
+   * resources that have the same ID.
+   */
+  MERGE("merge");
+
+  @Nonnull
+  private final String code;
+
+  ImportMode(@Nonnull final String code) {
+    this.code = code;
+  }
+
+  /**
+   * @param code the code used to request the mode within an import request
+   * @return the corresponding {@link ImportMode}
+   * @throws InvalidUserInputError if the code does not correspond to a mode
+   */
+  @Nonnull
+  public static ImportMode fromCode(@Nonnull final String code) {
+    return Arrays.stream(values())
+        .filter(mode -> mode.code.equals(code))
+        .findFirst()
+        .orElseThrow(() -> new InvalidUserInputError("Unsupported import mode: " + code));
+  }
+
+  @Override
+  public String toString() {
+    return code;
+  }
+
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import static au.csiro.pathling.utilities.Preconditions.checkArgument;
+
+import au.csiro.pathling.fhir.FhirContextFactory;
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.RuntimeChildChoiceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.catalyst.expressions.GenericInternalRow;
+import org.apache.spark.sql.catalyst.util.DateTimeUtils;
+import org.apache.spark.sql.catalyst.util.GenericArrayData;
+import org.apache.spark.sql.types.ArrayType;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.Decimal;
+import org.apache.spark.sql.types.DecimalType;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.unsafe.types.UTF8String;
+import scala.Option;
+
+/**
+ * Decodes FHIR resources in JSON format directly into Spark {@link InternalRow} objects that
+ * conform to the schema produced by the FHIR encoders, without building an intermediate HAPI object
+ * graph.
+ * <p>
+ * The JSON is read using a streaming parser, and each element is decoded based upon the type of
+ * its column within the schema. Elements that are not represented within the schema, such as
+ * extensions and contained resources, are skipped. No validation is performed beyond checking that
+ * the structure of each element matches its column.
+ * <p>
+ * The FHIR encoders read each element through the HAPI accessors, which create empty instances of
+ * absent lists and complex elements. The definitions of the resource type are used to produce the
+ * same values for absent elements: empty arrays for lists, and structs containing the defaults of
+ * their own children for complex elements (except for choice elements, which are null).
+ *
+ * @author John Grimes
+ */
+public class JsonResourceDecoder implements Serializable {
+
+  private static final long serialVersionUID = 6165497683218643707L;
+
+  /**
+   * The suffix of the column which accompanies each decimal column, recording the scale of the
+   * original value.
+   */
+  private static final String SCALE_SUFFIX = "_scale";
+
+  @Nonnull
+  private final FhirContextFactory fhirContextFactory;
+
+  @Nonnull
+  private final String resourceCode;
+
+  @Nonnull
+  private final StructType schema;
+
+  @Nullable
+  private transient JsonFactory jsonFactory;
+
+  @Nullable
+  private transient StructDecoder rootDecoder;
+
+  /**
+   * @param fhirContextFactory a {@link FhirContextFactory} for obtaining the definition of the
+   * resource type on the executor
+   * @param resourceCode the code of the type of resource being decoded
+   * @param schema the schema of the resource type, as produced by the FHIR encoders
+   */
+  public JsonResourceDecoder(@Nonnull final FhirContextFactory fhirContextFactory,
+      @Nonnull final String resourceCode, @Nonnull final StructType schema) {
+    this.fhirContextFactory = fhirContextFactory;
+    this.resourceCode = resourceCode;
+    this.schema = schema;
+  }
+
+  /**
+   * Decodes a single resource.
+   *
+   * @param json the UTF-8 encoded JSON representation of the resource
+   * @return an {@link InternalRow} conforming to the schema
+   * @throws DataFormatException if the JSON is malformed, does not match the schema, or is not a
+   * resource of the type being decoded
+   */
+  @Nonnull
+  public InternalRow decode(@Nonnull final byte[] json) {
+    if (jsonFactory == null || rootDecoder == null) {
+      jsonFactory = new JsonFactory();
+      rootDecoder = new StructDecoder(schema,
+          fhirContextFactory.build().getResourceDefinition(resourceCode), resourceCode);
+    }
+    try (final JsonParser parser = jsonFactory.createParser(json)) {
+      parser.nextToken();
+      return (InternalRow) rootDecoder.decode(parser);
+    } catch (final IOException e) {
+      throw new DataFormatException("Problem parsing resource: " + e.getMessage(), e);
+    }
+  }
+
+  @Nonnull
+  private static ValueDecoder decoderFor(@Nonnull final DataType type,
+      @Nullable final BaseRuntimeElementDefinition<?> definition) {
+    if (type instanceof StructType) {
+      checkArgument(definition instanceof BaseRuntimeElementCompositeDefinition,
+          "Struct column does not correspond to a complex element: " + type);
+      return new StructDecoder((StructType) type,
+          (BaseRuntimeElementCompositeDefinition<?>) definition, null);
+    } else if (type instanceof ArrayType) {
+      return new ArrayDecoder(decoderFor(((ArrayType) type).elementType(), definition));
+    } else if (type instanceof DecimalType) {
+      return new DecimalDecoder((DecimalType) type);
+    } else if (type.equals(DataTypes.StringType)) {
+      return parser -> {
+        expect(parser, parser.currentToken() == JsonToken.VALUE_STRING);
+        return UTF8String.fromString(parser.getText());
+      };
+    } else if (type.equals(DataTypes.IntegerType)) {
+      return parser -> {
+        expect(parser, parser.currentToken().isNumeric());
+        return parser.getIntValue();
+      };
+    } else if (type.equals(DataTypes.BooleanType)) {
+      return parser -> {
+        expect(parser, parser.currentToken().isBoolean());
+        return parser.getBooleanValue();
+      };
+    } else if (type.equals(DataTypes.TimestampType)) {
+      return parser -> {
+        expect(parser, parser.currentToken() == JsonToken.VALUE_STRING);
+        final Option<Object> micros = DateTimeUtils.stringToTimestamp(
+            UTF8String.fromString(parser.getText()), ZoneOffset.UTC);
+        expect(parser, micros.isDefined());
+        return micros.get();
+      };
+    } else if (type.equals(DataTypes.BinaryType)) {
+      return parser -> {
+        expect(parser, parser.currentToken() == JsonToken.VALUE_STRING);
+        return Base64.getMimeDecoder().decode(parser.getText());
+      };
+    } else {
+      throw new IllegalArgumentException("Unsupported data type: " + type);
+    }
+  }
+
+  private static void expect(@Nonnull final JsonParser parser, final boolean condition)
+      throws IOException {
+    if (!condition) {
+      throw new DataFormatException(
+          "Unexpected value for element " + parser.getCurrentName() + ": " + parser.getText());
+    }
+  }
+
+  @FunctionalInterface
+  private interface ValueDecoder {
+
+    /**
+     * Decodes the value at the current token of a parser. On return, the current token will be
+     * the last token of the value.
+     *
+     * @param parser the parser, positioned at the first token of a non-null value
+     * @return the decoded value
+     * @throws IOException if there is a problem reading from the parser
+     */
+    @Nullable
+    Object decode(@Nonnull JsonParser parser) throws IOException;
+
+  }
+
+  private static class StructDecoder implements ValueDecoder {
+
+    @Nonnull
+    private final Map<String, Integer> indexes = new HashMap<>();
+
+    @Nonnull
+    private final ValueDecoder[] decoders;
+
+    /**
+     * For each decimal column, the index of the column that records its scale. This is -1 for all
+     * other columns.
+     */
+    @Nonnull
+    private final int[] scaleIndexes;
+
+    /**
+     * The values of the columns when the corresponding elements are absent. These are shared
+     * between rows, and must not be modified.
+     */
+    @Nonnull
+    private final Object[] defaults;
+
+    /**
+     * The type of resource that the object must declare within its {@code resourceType} element,
+     * or null if this is not the root of a resource.
+     */
+    @Nullable
+    private final String resourceType;
+
+    private StructDecoder(@Nonnull final StructType type,
+        @Nonnull final BaseRuntimeElementCompositeDefinition<?> definition,
+        @Nullable final String resourceType) {
+      this.resourceType = resourceType;
+      final StructField[] fields = type.fields();
+      decoders = new ValueDecoder[fields.length];
+      scaleIndexes = new int[fields.length];
+      defaults = new Object[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        final String name = fields[i].name();
+        final DataType fieldType = fields[i].dataType();
+        indexes.put(name, i);
+
+        // The child will not be found for columns that are not elements, such as the scale of a
+        // decimal.
+        final BaseRuntimeChildDefinition child = definition.getChildByName(name);
+        final BaseRuntimeElementDefinition<?> childDefinition = child == null
+                                                                ? null
+                                                                : child.getChildByName(name);
+        decoders[i] = decoderFor(fieldType, childDefinition);
+        if (child == null || child instanceof RuntimeChildChoiceDefinition) {
+          defaults[i] = null;
+        } else if (fieldType instanceof ArrayType) {
+          defaults[i] = new GenericArrayData(new Object[0]);
+        } else if (fieldType instanceof StructType) {
+          defaults[i] = ((StructDecoder) decoders[i]).defaultValue();
+        }
+      }
+      for (int i = 0; i < fields.length; i++) {
+        final Integer scaleIndex = fields[i].dataType() instanceof DecimalType
+                                   ? indexes.get(fields[i].name() + SCALE_SUFFIX)
+                                   : null;
+        scaleIndexes[i] = scaleIndex == null
+                          ? -1
+                          : scaleIndex;
+      }
+    }
+
+    @Override
+    @Nonnull
+    public Object decode(@Nonnull final JsonParser parser) throws IOException {
+      expect(parser, parser.currentToken() == JsonToken.START_OBJECT);
+      final Object[] values = defaults.clone();
+      boolean resourceTypeFound = false;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String name = parser.getCurrentName();
+        final Integer index = indexes.get(name);
+        final JsonToken token = parser.nextToken();
+        if (resourceType != null && name.equals("resourceType")) {
+          if (!resourceType.equals(parser.getText())) {
+            throw new DataFormatException(
+                "Resource type " + parser.getText() + " does not match the type being imported: "
+                    + resourceType);
+          }
+          resourceTypeFound = true;
+        } else if (index == null) {
+          // Elements that are not within the schema are skipped, along with any children.
+          parser.skipChildren();
+        } else if (token == JsonToken.VALUE_NULL) {
+          values[index] = defaults[index];
+        } else {
+          if (scaleIndexes[index] >= 0) {
+            final BigDecimal value = parser.getDecimalValue();
+            values[index] = ((DecimalDecoder) decoders[index]).toDecimal(value);
+            values[scaleIndexes[index]] = Math
+                .min(((DecimalDecoder) decoders[index]).type.scale(), value.scale());
+          } else {
+            values[index] = decoders[index].decode(parser);
+          }
+        }
+      }
+      if (resourceType != null && !resourceTypeFound) {
+        throw new DataFormatException("Resource is missing resourceType, expected: " + resourceType);
+      }
+      return new GenericInternalRow(values);
+    }
+
+    /**
+     * @return the value of an absent element of this type
+     */
+    @Nonnull
+    private InternalRow defaultValue() {
+      return new GenericInternalRow(defaults);
+    }
+
+  }
+
+  private static class ArrayDecoder implements ValueDecoder {
+
+    @Nonnull
+    private final ValueDecoder elementDecoder;
+
+    private ArrayDecoder(@Nonnull final ValueDecoder elementDecoder) {
+      this.elementDecoder = elementDecoder;
+    }
+
+    @Override
+    @Nonnull
+    public Object decode(@Nonnull final JsonParser parser) throws IOException {
+      expect(parser, parser.currentToken() == JsonToken.START_ARRAY);
+      final List<Object> elements = new ArrayList<>();
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        elements.add(parser.currentToken() == JsonToken.VALUE_NULL
+                     ? null
+                     : elementDecoder.decode(parser));
+      }
+      return new GenericArrayData(elements.toArray());
+    }
+
+  }
+
+  private static class DecimalDecoder implements ValueDecoder {
+
+    @Nonnull
+    private final DecimalType type;
+
+    private DecimalDecoder(@Nonnull final DecimalType type) {
+      this.type = type;
+    }
+
+    @Override
+    @Nullable
+    public Object decode(@Nonnull final JsonParser parser) throws IOException {
+      return toDecimal(parser.getDecimalValue());
+    }
+
+    /**
+     * Values that cannot be represented with the precision and scale of the column are decoded as
+     * null, in the same way as the FHIR encoders.
+     */
+    @Nullable
+    private Decimal toDecimal(@Nonnull final BigDecimal value) {
+      final Decimal decimal = Decimal.apply(value);
+      return decimal.changePrecision(type.precision(), type.scale())
+             ? decimal
+             : null;
+    }
+
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.TaskContext;
+
+/**
+ * Parses each of the records within a partition as it is consumed, measuring the time spent
+ * parsing. The throughput of the partition is logged once it has been consumed.
+ *
+ * @param <I> the type of the unparsed records
+ * @param <O> the type of the parsed records
+ * @author John Grimes
+ */
+@Slf4j
+class ParseThroughputIterator<I, O> implements Iterator<O> {
+
+  @Nonnull
+  private final Iterator<I> input;
+
+  @Nonnull
+  private final Function<I, O> parser;
+
+  @Nonnull
+  private final String resourceCode;
+
+  private final int partition;
+
+  private long count = 0;
+
+  private long nanos = 0;
+
+  private boolean reported = false;
+
+  /**
+   * @param input the unparsed records within the partition
+   * @param parser the function used to parse each record
+   * @param resourceCode the code of the type of resource being parsed, used for logging
+   */
+  ParseThroughputIterator(@Nonnull final Iterator<I> input, @Nonnull final Function<I, O> parser,
+      @Nonnull final String resourceCode) {
+    this.input = input;
+    this.parser = parser;
+    this.resourceCode = resourceCode;
+    final TaskContext taskContext = TaskContext.get();
+    partition = taskContext == null
+                ? 0
+                : taskContext.partitionId();
+  }
+
+  @Override
+  public boolean hasNext() {
+    final boolean hasNext = input.hasNext();
+    if (!hasNext && !reported) {
+      report();
+    }
+    return hasNext;
+  }
+
+  @Override
+  public O next() {
+    if (!input.hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final I record = input.next();
+    final long start = System.nanoTime();
+    final O result = parser.apply(record);
+    nanos += System.nanoTime() - start;
+    count++;
+    return result;
+  }
+
+  private void report() {
+    reported = true;
+    log.info("Parsed {} {} resources in partition {}: {} records/sec", count, resourceCode,
+        partition, recordsPerSecond(count, nanos));
+  }
+
+  /**
+   * @param records a number of records
+   * @param nanos the time taken to process the records, in nanoseconds
+   * @return the number of records processed per second
+   */
+  private static long recordsPerSecond(final long records, final long nanos) {
+    return nanos == 0
+           ? 0
+           : records * 1_000_000_000L / nanos;
+  }
+
+}
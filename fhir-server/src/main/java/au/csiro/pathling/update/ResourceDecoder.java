@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import au.csiro.pathling.fhir.FhirContextFactory;
+import java.util.Iterator;
+import javax.annotation.Nonnull;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.types.StructType;
+
+/**
+ * Decodes a partition of NDJSON strings directly into Spark rows using a {@link
+ * JsonResourceDecoder}, without building HAPI resources. The time spent decoding is measured, and
+ * the throughput of each partition is logged once it has been consumed.
+ *
+ * @author John Grimes
+ */
+public class ResourceDecoder implements FlatMapFunction<Iterator<InternalRow>, InternalRow> {
+
+  private static final long serialVersionUID = 2309567281950425418L;
+
+  @Nonnull
+  private final JsonResourceDecoder decoder;
+
+  @Nonnull
+  private final String resourceCode;
+
+  /**
+   * @param fhirContextFactory a {@link FhirContextFactory} for obtaining the definition of the
+   * resource type on the executor
+   * @param schema the schema of the resource type, as produced by the FHIR encoders
+   * @param resourceCode the code of the type of resource being decoded
+   */
+  public ResourceDecoder(@Nonnull final FhirContextFactory fhirContextFactory,
+      @Nonnull final StructType schema, @Nonnull final String resourceCode) {
+    this.decoder = new JsonResourceDecoder(fhirContextFactory, resourceCode, schema);
+    this.resourceCode = resourceCode;
+  }
+
+  @Override
+  public Iterator<InternalRow> call(@Nonnull final Iterator<InternalRow> input) {
+    // The JSON is read directly from the bytes of each string, without decoding it first.
+    return new ParseThroughputIterator<>(input, row -> decoder.decode(row.getUTF8String(0)
+        .getBytes()), resourceCode);
+  }
+
+  /**
+   * Decodes a dataset of NDJSON strings into a dataset of resources.
+   *
+   * @param jsonStrings a {@link Dataset} containing one JSON resource per row
+   * @param fhirContextFactory a {@link FhirContextFactory} for obtaining the definition of the
+   * resource type on the executor
+   * @param schema the schema of the resource type, as produced by the FHIR encoders
+   * @param resourceCode the code of the type of resource being decoded
+   * @return a {@link Dataset} of resources with the supplied schema
+   */
+  @Nonnull
+  public static Dataset<Row> decode(@Nonnull final Dataset<String> jsonStrings,
+      @Nonnull final FhirContextFactory fhirContextFactory, @Nonnull final StructType schema,
+      @Nonnull final String resourceCode) {
+    final JavaRDD<InternalRow> rows = jsonStrings.queryExecution().toRdd().toJavaRDD()
+        .mapPartitions(new ResourceDecoder(fhirContextFactory, schema, resourceCode));
+    return jsonStrings.sparkSession().internalCreateDataFrame(rows.rdd(), schema, false);
+  }
+
+}
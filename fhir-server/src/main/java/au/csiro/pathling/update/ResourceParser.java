@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import au.csiro.pathling.fhir.FhirContextFactory;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.StrictErrorHandler;
+import java.util.Iterator;
+import javax.annotation.Nonnull;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Parses a partition of NDJSON strings into HAPI resources. A single JSON parser is created for
+ * each partition and reused for all of the records within it, rather than being created for each
+ * record.
+ * <p>
+ * This path builds a full HAPI object graph for each resource, and is used when validation of the
+ * imported resources is required (see {@link ResourceDecoder} for the faster alternative). The
+ * time spent parsing is measured, and the throughput of each partition is logged once it has been
+ * consumed.
+ *
+ * @author John Grimes
+ */
+public class ResourceParser implements MapPartitionsFunction<String, IBaseResource> {
+
+  private static final long serialVersionUID = -2187370186287441502L;
+
+  @Nonnull
+  private final FhirContextFactory fhirContextFactory;
+
+  @Nonnull
+  private final String resourceCode;
+
+  private final boolean strict;
+
+  /**
+   * @param fhirContextFactory a {@link FhirContextFactory} for obtaining a FhirContext on the
+   * executor
+   * @param resourceCode the code of the type of resource being parsed, used for logging
+   */
+  public ResourceParser(@Nonnull final FhirContextFactory fhirContextFactory,
+      @Nonnull final String resourceCode) {
+    this(fhirContextFactory, resourceCode, false);
+  }
+
+  /**
+   * @param fhirContextFactory a {@link FhirContextFactory} for obtaining a FhirContext on the
+   * executor
+   * @param resourceCode the code of the type of resource being parsed, used for logging
+   * @param strict if true, the parser will reject resources that contain unknown elements or
+   * invalid values, rather than logging a warning
+   */
+  public ResourceParser(@Nonnull final FhirContextFactory fhirContextFactory,
+      @Nonnull final String resourceCode, final boolean strict) {
+    this.fhirContextFactory = fhirContextFactory;
+    this.resourceCode = resourceCode;
+    this.strict = strict;
+  }
+
+  @Override
+  public Iterator<IBaseResource> call(@Nonnull final Iterator<String> input) {
+    // The FhirContext is shared across the executor JVM, the parser is shared across the partition.
+    final IParser parser = fhirContextFactory.build().newJsonParser();
+    if (strict) {
+      parser.setParserErrorHandler(new StrictErrorHandler());
+    }
+    return new ParseThroughputIterator<>(input, parser::parseResource, resourceCode);
+  }
+
+}
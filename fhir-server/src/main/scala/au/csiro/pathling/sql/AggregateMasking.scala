@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.sql
+
+import org.apache.spark.sql.Column
+import org.apache.spark.sql.catalyst.analysis.UnresolvedFunction
+import org.apache.spark.sql.catalyst.expressions.aggregate._
+import org.apache.spark.sql.catalyst.expressions.{CaseWhen, Expression}
+
+/**
+ * Utilities for restricting the rows that are seen by the aggregate functions within a column, so
+ * that several independent aggregations can be computed within a single grouping operation.
+ */
+object AggregateMasking {
+
+  /**
+   * The names of the aggregate functions which ignore null inputs, as they appear within
+   * unresolved expressions (e.g. the result of `countDistinct`).
+   */
+  private val nullIgnoringFunctions = Set("count", "sum", "min", "max", "avg", "collect_list",
+    "collect_set")
+
+  /**
+   * Checks whether all of the aggregate functions within a column can be masked. This is the case
+   * when every aggregate function ignores null inputs, which means that replacing the inputs of
+   * rows that do not match a condition with null is equivalent to filtering them out.
+   *
+   * @param column the column to check
+   * @return true if the column can be masked
+   */
+  def isMaskable(column: Column): Boolean = {
+    val aggregates = column.expr.collect {
+      case e: AggregateExpression => e.filter.isEmpty && (e.aggregateFunction match {
+        case _: Count | _: Sum | _: Min | _: Max | _: Average | _: CollectList | _: CollectSet =>
+          true
+        // Masking both the value and the ordering leaves the masked rows with no ordering, so
+        // they are never chosen over a row that satisfies the condition.
+        case _: MinBy | _: MaxBy => true
+        case f: First => f.ignoreNulls
+        case f: Last => f.ignoreNulls
+        case _ => false
+      })
+      case f: UnresolvedFunction => f.filter.isEmpty &&
+        nullIgnoringFunctions.contains(f.name.funcName.toLowerCase)
+    }
+    aggregates.nonEmpty && aggregates.forall(identity)
+  }
+
+  /**
+   * Rewrites the aggregate functions within a column so that they only take into account the rows
+   * which satisfy a condition.
+   *
+   * @param column    the column to rewrite, which must satisfy [[isMaskable]]
+   * @param condition the condition that rows must satisfy to be included in the aggregation
+   * @return the rewritten column
+   */
+  def mask(column: Column, condition: Column): Column = {
+    def masked(input: Expression): Expression = CaseWhen(Seq((condition.expr, input)))
+
+    new Column(column.expr.transform {
+      case e: AggregateExpression =>
+        val function = e.aggregateFunction match {
+          case f: First => f.copy(child = masked(f.child))
+          case f: Last => f.copy(child = masked(f.child))
+          case f => f.withNewChildren(f.children.map(masked)).asInstanceOf[AggregateFunction]
+        }
+        e.copy(aggregateFunction = function)
+      case f: UnresolvedFunction => f.copy(arguments = f.arguments.map(masked))
+    })
+  }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.sql
+
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.analysis.TypeCheckResult
+import org.apache.spark.sql.catalyst.expressions.codegen.{CodegenContext, ExprCode}
+import org.apache.spark.sql.catalyst.expressions.{BinaryExpression, Expression}
+import org.apache.spark.sql.types.{BooleanType, DataType, StructType}
+
+/**
+ * Tests whether two Coding structs are equal. The result is null if either Coding is null or is
+ * missing a system or code. Otherwise, the Codings are equal if their systems and codes are equal,
+ * and their versions are also equal in the case where both Codings have a version.
+ *
+ * The fields are read directly from the internal representation of each struct, so that the
+ * comparison can be code generated.
+ *
+ * @param left  the left Coding
+ * @param right the right Coding
+ */
+case class CodingsEqual(left: Expression, right: Expression) extends BinaryExpression {
+
+  override def dataType: DataType = BooleanType
+
+  override def nullable: Boolean = true
+
+  override def checkInputDataTypes(): TypeCheckResult =
+    if (CodingFields.isCoding(left.dataType) && CodingFields.isCoding(right.dataType)) {
+      TypeCheckResult.TypeCheckSuccess
+    } else {
+      TypeCheckResult.TypeCheckFailure(
+        s"Arguments to $prettyName must be Coding structs: ${left.dataType}, ${right.dataType}")
+    }
+
+  private lazy val leftFields = CodingFields(left.dataType)
+  private lazy val rightFields = CodingFields(right.dataType)
+
+  override protected def nullSafeEval(input1: Any, input2: Any): Any = {
+    val l = input1.asInstanceOf[InternalRow]
+    val r = input2.asInstanceOf[InternalRow]
+    if (l.isNullAt(leftFields.system) || l.isNullAt(leftFields.code)
+      || r.isNullAt(rightFields.system) || r.isNullAt(rightFields.code)) {
+      null
+    } else {
+      l.getUTF8String(leftFields.system) == r.getUTF8String(rightFields.system) &&
+        l.getUTF8String(leftFields.code) == r.getUTF8String(rightFields.code) &&
+        (l.isNullAt(leftFields.version) || r.isNullAt(rightFields.version) ||
+          l.getUTF8String(leftFields.version) == r.getUTF8String(rightFields.version))
+    }
+  }
+
+  override protected def doGenCode(ctx: CodegenContext, ev: ExprCode): ExprCode = {
+    // The generated code is passed through stripMargin again by the caller, so no line can start
+    // with an operator that begins with a pipe.
+    nullSafeCodeGen(ctx, ev, (l, r) =>
+      s"""
+         |if ($l.isNullAt(${leftFields.system}) || $l.isNullAt(${leftFields.code}) ||
+         |    $r.isNullAt(${rightFields.system}) || $r.isNullAt(${rightFields.code})) {
+         |  ${ev.isNull} = true;
+         |} else {
+         |  ${ev.value} = $l.getUTF8String(${leftFields.system})
+         |      .equals($r.getUTF8String(${rightFields.system})) &&
+         |    $l.getUTF8String(${leftFields.code}).equals($r.getUTF8String(${rightFields.code})) &&
+         |    ($l.isNullAt(${leftFields.version}) || $r.isNullAt(${rightFields.version}) ||
+         |      $l.getUTF8String(${leftFields.version})
+         |        .equals($r.getUTF8String(${rightFields.version})));
+         |}
+         |""".stripMargin)
+  }
+
+  override def prettyName: String = "codings_equal"
+
+}
+
+/**
+ * The ordinals of the fields of a Coding struct that take part in a comparison.
+ */
+private case class CodingFields(system: Int, version: Int, code: Int)
+
+private object CodingFields {
+
+  def isCoding(dataType: DataType): Boolean = dataType match {
+    case struct: StructType => Seq("system", "version", "code").forall(struct.fieldNames.contains)
+    case _ => false
+  }
+
+  def apply(dataType: DataType): CodingFields = {
+    val struct = dataType.asInstanceOf[StructType]
+    CodingFields(struct.fieldIndex("system"), struct.fieldIndex("version"),
+      struct.fieldIndex("code"))
+  }
+
+}
@@ -26,7 +26,8 @@ object PathlingStrategy extends Strategy {
 
 
   /**
-   * Injects PathlingStrategy into a given Spark session.
+   * Injects PathlingStrategy into a given Spark session, and registers the custom Pathling
+   * functions so that they can be used within SQL expressions.
    *
    * @param session Spark session to add PathlingStrategy to
    */
@@ -34,5 +35,10 @@ object PathlingStrategy extends Strategy {
     if (!session.experimental.extraStrategies.contains(PathlingStrategy)) {
       session.experimental.extraStrategies = Seq(PathlingStrategy) ++ session.experimental.extraStrategies
     }
+    session.sessionState.functionRegistry.createOrReplaceTempFunction("codings_equal", {
+      case Seq(left, right) => CodingsEqual(left, right)
+      case arguments => throw new IllegalArgumentException(
+        s"codings_equal requires two arguments, got ${arguments.length}")
+    })
   }
 }
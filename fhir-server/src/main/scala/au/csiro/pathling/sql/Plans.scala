@@ -6,18 +6,21 @@
 
 package au.csiro.pathling.sql
 
+import org.apache.spark.TaskContext
 import org.apache.spark.rdd.RDD
 import org.apache.spark.sql._
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.encoders.RowEncoder
 import org.apache.spark.sql.catalyst.expressions.codegen.GenerateUnsafeRowJoiner
-import org.apache.spark.sql.catalyst.expressions.{Attribute, Expression, NamedExpression, UnsafeRow}
+import org.apache.spark.sql.catalyst.expressions.{Attribute, Expression, NamedExpression,
+  UnsafeProjection, UnsafeRow}
 import org.apache.spark.sql.catalyst.plans.logical.{LogicalPlan, UnaryNode}
 import org.apache.spark.sql.catalyst.plans.physical.Partitioning
 import org.apache.spark.sql.execution._
 import org.apache.spark.sql.types.{StructField, StructType}
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 
 /**
  * This wrapper is needed to make sure that serializing expression is not de-aliased (and it remains
@@ -73,8 +76,8 @@ object MapWithPartitionPreview {
  * a `deserializer` expression with the `mapper` function for each row to the child dataset.
  *
  * In addition to the value to map, the `mapper` function also receives an arbitrary state object
- * created by the `preview` function based all values of `deserializer` expression from all rows in
- * the current partition.
+ * created by the `preview` function based all distinct values of `deserializer` expression from all
+ * rows in the current partition.
  *
  * The raw Spark values deserialized from rows with the `deserializer` expression are converted
  * to Java/Scala objects with the `decoder` function, before being passed to `preview` and `mapper`
@@ -114,6 +117,13 @@ case class MapWithPartitionPreview(serializer: ExpressionWrapper, decoder: Any =
  *
  * This is based on `AppendColumnsExec`.
  *
+ * The rows of each partition are held in a `SpillableRowArray`, which is backed by Spark's
+ * `ExternalAppendOnlyUnsafeRowArray`, while the state is created. Beyond a small number of rows,
+ * this uses the memory managed by Spark for the task, and spills to disk when the partition does
+ * not fit within it. Otherwise, only the distinct decoded values are held on the heap, so memory
+ * use scales with the number of distinct values rather than the size of the partition. The values
+ * are decoded again from each row as it is mapped.
+ *
  * @param serializer        the function that converts the mapper result to the new column to be
  *                          appended to the child produced dataset
  * @param expressionDecoder the function that converts 'raw' spark sql object produced by the
@@ -142,26 +152,64 @@ case class MapWithPartitionPreviewExec(deserializer: Expression,
   override def outputPartitioning: Partitioning = child.outputPartitioning
 
   override protected def doExecute(): RDD[InternalRow] = {
+    val inMemoryThreshold = conf.getConfString(
+      MapWithPartitionPreviewExec.BufferInMemoryThresholdKey,
+      MapWithPartitionPreviewExec.DefaultBufferInMemoryThreshold.toString).toInt
+    val spillThreshold = conf.getConfString(MapWithPartitionPreviewExec.BufferSpillThresholdKey,
+      MapWithPartitionPreviewExec.DefaultBufferSpillThreshold.toString).toInt
+
     child.execute().mapPartitions { it =>
       val getObject = ObjectOperator.deserializeRowToObject(deserializer, child.output)
-
-      // Cache all rows in the partition and the decoded objects.
-      val allRowsAndObjects = it.map(r => (r.copy(), expressionDecoder(getObject(r)))).toSeq
+      val toUnsafe = UnsafeProjection.create(child.schema)
+
+      // Buffer all rows in the partition, spilling them if necessary, and collect the distinct
+      // decoded objects. The buffer is freed when the task completes.
+      val rows = new SpillableRowArray(inMemoryThreshold, spillThreshold)
+      TaskContext.get().addTaskCompletionListener[Unit](_ => rows.clear())
+      val distinctObjects = mutable.LinkedHashSet[Any]()
+      it.foreach { r =>
+        rows.add(r match {
+          case unsafeRow: UnsafeRow => unsafeRow
+          case _ => toUnsafe(r)
+        })
+        distinctObjects += expressionDecoder(getObject(r))
+      }
 
       // Pass the decoded objects to the `preview` function to create the per partition state.
-      val state = preview(allRowsAndObjects.map(_._2).toIterator)
+      val state = preview(distinctObjects.toIterator)
+      distinctObjects.clear()
 
       val combiner = GenerateUnsafeRowJoiner.create(child.schema, elementSchema)
       val outputObject = ObjectOperator.serializeObjectToRow(serializer)
 
       // Map decoded object and the state with mapper` and append the resulting columns to input
-      // rows.
-      allRowsAndObjects.toIterator.map { case (row, obj) =>
-        val newColumns = outputObject(Row(mapper(obj, state)))
-        combiner.join(row.asInstanceOf[UnsafeRow], newColumns): InternalRow
+      // rows, reading the rows back from the buffer in their original order.
+      rows.iterator.map { row =>
+        val newColumns = outputObject(Row(mapper(expressionDecoder(getObject(row)), state)))
+        combiner.join(row, newColumns): InternalRow
       }
     }
   }
 
   override def output: Seq[Attribute] = child.output ++ serializer.map(_.toAttribute)
-}
\ No newline at end of file
+}
+
+object MapWithPartitionPreviewExec {
+
+  /**
+   * The number of rows of a partition that are buffered on the heap, before the buffer switches to
+   * the memory managed by Spark for the task.
+   */
+  val BufferInMemoryThresholdKey = "spark.pathling.mapWithPartitionPreview.buffer.inMemoryThreshold"
+
+  val DefaultBufferInMemoryThreshold: Int = 4096
+
+  /**
+   * The number of rows of a partition that are buffered before they are forced to spill to disk.
+   * Rows also spill when the task runs out of memory.
+   */
+  val BufferSpillThresholdKey = "spark.pathling.mapWithPartitionPreview.buffer.spillThreshold"
+
+  val DefaultBufferSpillThreshold: Int = Int.MaxValue
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.sql
+
+import org.apache.spark.sql.catalyst.optimizer.CollapseProject
+import org.apache.spark.sql.catalyst.plans.logical.{LocalRelation, LogicalPlan, Project}
+
+/**
+ * Utilities for keeping the logical plans of datasets shallow as columns are added to them one at a
+ * time.
+ */
+object Projections {
+
+  /**
+   * Merges the projection at the top of a plan with the projection directly beneath it, using the
+   * same rules as the optimizer. Only the top two projections are examined, the rest of the plan is
+   * left untouched.
+   *
+   * @param plan an analyzed plan
+   * @return the plan with its top two projections merged, or the same plan if they cannot be merged
+   */
+  def collapse(plan: LogicalPlan): LogicalPlan = plan match {
+    case Project(upperList, Project(lowerList, child)) =>
+      // The child is swapped for a leaf with the same output, so that the rule does not need to
+      // traverse it.
+      val placeholder = LocalRelation(child.output)
+      CollapseProject(Project(upperList, Project(lowerList, placeholder))) match {
+        case Project(projectList, leaf) if leaf eq placeholder => Project(projectList, child)
+        case _ => plan
+      }
+    case _ => plan
+  }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package org.apache.spark.sql.execution
+
+import org.apache.spark.sql.catalyst.expressions.UnsafeRow
+
+/**
+ * Exposes the `ExternalAppendOnlyUnsafeRowArray` that Spark uses to buffer the rows of a window,
+ * which is only accessible from within the `org.apache.spark.sql` package.
+ *
+ * Rows are held on the heap up to the in-memory threshold, and then within the memory managed by
+ * Spark for the current task, spilling to disk when the task runs out of memory or the spill
+ * threshold is reached.
+ *
+ * @param inMemoryThreshold the number of rows that are held on the heap
+ * @param spillThreshold    the number of rows after which the buffer is forced to spill to disk
+ */
+class SpillableRowArray(inMemoryThreshold: Int, spillThreshold: Int) {
+
+  private val rows = new ExternalAppendOnlyUnsafeRowArray(inMemoryThreshold, spillThreshold)
+
+  /**
+   * Adds a copy of a row to the buffer.
+   */
+  def add(row: UnsafeRow): Unit = rows.add(row)
+
+  /**
+   * @return an iterator over the rows, in the order in which they were added
+   */
+  def iterator: Iterator[UnsafeRow] = rows.generateIterator()
+
+  /**
+   * Frees the memory and any spill files held by the buffer.
+   */
+  def clear(): Unit = rows.clear()
+
+}
@@ -10,15 +10,22 @@ import static au.csiro.pathling.test.helpers.TestHelpers.getResourceAsStream;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import au.csiro.pathling.errors.InvalidUserInputError;
 import au.csiro.pathling.test.TimingExtension;
 import ca.uhn.fhir.rest.param.UriParam;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan;
+import org.apache.spark.sql.execution.QueryExecution;
+import org.apache.spark.sql.util.QueryExecutionListener;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
@@ -72,6 +79,72 @@ class AggregateQueryTest extends AggregateExecutorTest {
         response);
   }
 
+  @Test
+  void readsOnlyReferencedColumns() {
+    subjectResource = ResourceType.ENCOUNTER;
+    mockResourceReader(subjectResource, ResourceType.ORGANIZATION);
+
+    final AggregateRequest request = new AggregateRequestBuilder(subjectResource)
+        .withAggregation("count()")
+        .withGrouping("class.code")
+        .withFilter("serviceProvider.resolve().name = 'ST ELIZABETH\\'S MEDICAL CENTER'")
+        .build();
+
+    response = executor.execute(request);
+    verify(resourceReader)
+        .read(ResourceType.ENCOUNTER, Set.of("id", "class", "serviceProvider"));
+    verify(resourceReader).read(ResourceType.ORGANIZATION, Set.of("id", "name"));
+  }
+
+  @Test
+  void combinesAggregationsIntoSingleGrouping() throws TimeoutException {
+    subjectResource = ResourceType.PATIENT;
+    mockResourceReader(subjectResource);
+
+    final AggregateRequest request = new AggregateRequestBuilder(subjectResource)
+        .withAggregation("count()")
+        .withAggregation("name.count()")
+        .withAggregation("address.count()")
+        .withAggregation("birthDate.first()")
+        .withAggregation("name.where(use = 'maiden').given.first()")
+        .withGrouping("gender")
+        .build();
+
+    final List<LogicalPlan> plans = new ArrayList<>();
+    final QueryExecutionListener listener = new QueryExecutionListener() {
+      @Override
+      public void onSuccess(final String funcName, final QueryExecution qe,
+          final long durationNs) {
+        plans.add(qe.optimizedPlan());
+      }
+
+      @Override
+      public void onFailure(final String funcName, final QueryExecution qe,
+          final Exception exception) {
+      }
+    };
+    spark.listenerManager().register(listener);
+    try {
+      response = executor.execute(request);
+      spark.sparkContext().listenerBus().waitUntilEmpty(10_000);
+    } finally {
+      spark.listenerManager().unregister(listener);
+    }
+
+    // The only join should be the one between the grouping and the subject resource, the
+    // aggregations should not need to be joined to each other.
+    // All of the aggregations should be computed within a single grouping operation, rather than
+    // being grouped separately and joined together.
+    assertEquals(1, plans.size());
+    final long aggregates = Stream.of(plans.get(0).toString().split("\\n"))
+        .filter(line -> line.contains("Aggregate ["))
+        .count();
+    assertEquals(1, aggregates);
+    // Only female patients have a maiden name, so the last aggregation has no value for males.
+    assertResponse("AggregateQueryTest/combinesAggregationsIntoSingleGrouping.Parameters.json",
+        response);
+  }
+
   @Test
   void queryWithIntegerGroupings() {
     subjectResource = ResourceType.CLAIM;
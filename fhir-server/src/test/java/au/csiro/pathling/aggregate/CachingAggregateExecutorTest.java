@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.aggregate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import au.csiro.pathling.Configuration;
+import au.csiro.pathling.Configuration.Storage;
+import au.csiro.pathling.caching.CacheManager;
+import au.csiro.pathling.caching.Cacheable;
+import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.fhir.FhirContextFactory;
+import au.csiro.pathling.io.AccessRules;
+import au.csiro.pathling.io.ResourceReader;
+import au.csiro.pathling.io.ResourceWriter;
+import au.csiro.pathling.update.ImportExecutor;
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.UnsignedIntType;
+import org.hl7.fhir.r4.model.UrlType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("UnitTest")
+class CachingAggregateExecutorTest {
+
+  @Autowired
+  private Configuration configuration;
+
+  @Autowired
+  private SparkSession spark;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private FhirEncoders fhirEncoders;
+
+  @TempDir
+  Path warehouse;
+
+  @TempDir
+  Path sources;
+
+  private ImportExecutor importExecutor;
+
+  private AggregateExecutor aggregateExecutor;
+
+  private AggregateExecutor freshExecutor;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    Files.createDirectory(warehouse.resolve("default"));
+    final Configuration warehouseConfiguration = new Configuration();
+    final Storage storage = new Storage();
+    storage.setWarehouseUrl(warehouse.toUri().toString().replaceFirst("/$", ""));
+    storage.setDatabaseName("default");
+    warehouseConfiguration.setStorage(storage);
+    warehouseConfiguration.setSpark(configuration.getSpark());
+    warehouseConfiguration.setTerminology(configuration.getTerminology());
+    warehouseConfiguration.setCaching(configuration.getCaching());
+    warehouseConfiguration.setImport(configuration.getImport());
+
+    final ResourceReader resourceReader = new ResourceReader(warehouseConfiguration, spark);
+    final ResourceWriter resourceWriter = new ResourceWriter(warehouseConfiguration, spark,
+        fhirContext);
+    final CachingAggregateExecutor cachingExecutor = new CachingAggregateExecutor(
+        warehouseConfiguration, fhirContext, spark, resourceReader, Optional.empty(),
+        Optional.empty());
+    final Set<Cacheable> cacheables = Set.of(resourceReader, cachingExecutor);
+    importExecutor = new ImportExecutor(warehouseConfiguration, spark, resourceReader,
+        resourceWriter, fhirEncoders, new FhirContextFactory(fhirContext),
+        new CacheManager(cacheables), mock(AccessRules.class));
+    aggregateExecutor = cachingExecutor;
+    freshExecutor = new FreshAggregateExecutor(warehouseConfiguration, fhirContext, spark,
+        resourceReader, Optional.empty(), Optional.empty());
+  }
+
+  @Test
+  void resolveIsInvalidatedByImportOfNewTargetType() throws IOException {
+    // The subject of a Basic resource can be any type of resource. One of them refers to itself,
+    // and the other to a patient that has not been imported. While Basic is the only available
+    // type, the reference resolves to Basic resources alone.
+    importResources(ResourceType.BASIC,
+        "{\"resourceType\":\"Basic\",\"id\":\"b1\",\"code\":{\"text\":\"a\"},"
+            + "\"subject\":{\"reference\":\"Basic/b1\"}}",
+        "{\"resourceType\":\"Basic\",\"id\":\"b2\",\"code\":{\"text\":\"b\"},"
+            + "\"subject\":{\"reference\":\"Patient/p1\"}}");
+    final AggregateRequest request = new AggregateRequestBuilder(ResourceType.BASIC)
+        .withAggregation("count()")
+        .withFilter("subject.resolve().empty() = false")
+        .build();
+    assertEquals(1, countOf(aggregateExecutor.execute(request)));
+
+    // Importing a type that the reference could resolve to, but which was not available when the
+    // query was first executed, must invalidate the cached response.
+    importResources(ResourceType.PATIENT, "{\"resourceType\":\"Patient\",\"id\":\"p1\"}");
+    assertEquals(countOf(freshExecutor.execute(request)),
+        countOf(aggregateExecutor.execute(request)));
+  }
+
+  private void importResources(@Nonnull final ResourceType resourceType,
+      @Nonnull final String... resources) throws IOException {
+    final Path file = sources.resolve(resourceType.toCode() + ".ndjson");
+    Files.write(file, Arrays.asList(resources));
+    final Parameters parameters = new Parameters();
+    final ParametersParameterComponent source = parameters.addParameter().setName("source");
+    source.addPart().setName("resourceType").setValue(new CodeType(resourceType.toCode()));
+    source.addPart().setName("url").setValue(new UrlType(file.toUri().toString()));
+    importExecutor.execute(parameters);
+  }
+
+  private static int countOf(@Nonnull final AggregateResponse response) {
+    final Optional<?> result = response.getGroupings().get(0).getResults().get(0);
+    return ((UnsignedIntType) result.orElseThrow()).getValue();
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.aggregate;
+
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.time;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.Configuration;
+import au.csiro.pathling.Configuration.Caching;
+import au.csiro.pathling.Configuration.Storage;
+import au.csiro.pathling.fhir.TerminologyClient;
+import au.csiro.pathling.fhir.TerminologyClientFactory;
+import au.csiro.pathling.io.ResourceReader;
+import au.csiro.pathling.test.helpers.BenchmarkHelpers.Timed;
+import ca.uhn.fhir.context.FhirContext;
+import java.io.File;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.RDDInfo;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Compares the bytes scanned and the size of the resource cache when aggregating over wide
+ * resources, with and without column pruning. Run using the {@code benchmark} profile.
+ *
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("Benchmark")
+@Slf4j
+class ColumnPruningBenchmark {
+
+  @Autowired
+  private Configuration configuration;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private SparkSession spark;
+
+  @Autowired
+  private TerminologyClient terminologyClient;
+
+  @Autowired
+  private TerminologyClientFactory terminologyClientFactory;
+
+  @Test
+  void patient() throws TimeoutException {
+    compare(new AggregateRequestBuilder(ResourceType.PATIENT)
+        .withAggregation("count()")
+        .withGrouping("gender")
+        .build());
+  }
+
+  @Test
+  void explanationOfBenefit() throws TimeoutException {
+    compare(new AggregateRequestBuilder(ResourceType.EXPLANATIONOFBENEFIT)
+        .withAggregation("count()")
+        .withGrouping("status")
+        .withFilter("total.empty() = false")
+        .build());
+  }
+
+  private void compare(@Nonnull final AggregateRequest request) throws TimeoutException {
+    final Measurement full = measure(request, false);
+    final Measurement pruned = measure(request, true);
+    log.info("{} without pruning: {}", request.getSubjectResource().toCode(), full);
+    log.info("{} with pruning: {}", request.getSubjectResource().toCode(), pruned);
+
+    assertEquals(full.getGroupings(), pruned.getGroupings());
+    assertTrue(pruned.getBytesScanned() <= full.getBytesScanned());
+    assertTrue(pruned.getCachedBytes() < full.getCachedBytes());
+  }
+
+  @Nonnull
+  private Measurement measure(@Nonnull final AggregateRequest request, final boolean pruning)
+      throws TimeoutException {
+    spark.catalog().clearCache();
+    final Configuration benchmarkConfiguration = configure(pruning);
+    final ResourceReader resourceReader = new ResourceReader(benchmarkConfiguration, spark);
+    final AggregateExecutor executor = new FreshAggregateExecutor(benchmarkConfiguration,
+        fhirContext, spark, resourceReader, Optional.of(terminologyClient),
+        Optional.of(terminologyClientFactory));
+
+    // The first execution reads from the Parquet files and populates the cache.
+    final AtomicLong bytesScanned = new AtomicLong();
+    final SparkListener listener = new SparkListener() {
+      @Override
+      public void onTaskEnd(final SparkListenerTaskEnd taskEnd) {
+        bytesScanned.addAndGet(taskEnd.taskMetrics().inputMetrics().bytesRead());
+      }
+    };
+    spark.sparkContext().addSparkListener(listener);
+    final Timed<AggregateResponse> cold = time(() -> executor.execute(request));
+    spark.sparkContext().listenerBus().waitUntilEmpty(10_000);
+    spark.sparkContext().removeSparkListener(listener);
+
+    // The second execution is served from the cache.
+    final Timed<AggregateResponse> warm = time(() -> executor.execute(request));
+
+    long cachedBytes = 0;
+    for (final RDDInfo info : spark.sparkContext().getRDDStorageInfo()) {
+      cachedBytes += info.memSize() + info.diskSize();
+    }
+    resourceReader.invalidateCache();
+
+    return new Measurement(bytesScanned.get(), cachedBytes, cold.getMillis(), warm.getMillis(),
+        cold.getResult().getGroupings().size());
+  }
+
+  @Nonnull
+  private Configuration configure(final boolean pruning) {
+    final Storage storage = new Storage();
+    storage.setWarehouseUrl(
+        new File("src/test/resources/test-data").getAbsoluteFile().toURI().toString());
+    storage.setDatabaseName("parquet");
+    storage.setAws(configuration.getStorage().getAws());
+
+    final Caching caching = new Caching();
+    caching.setEnabled(true);
+    caching.setResourceReaderCacheSize(100L);
+    caching.setResourceReaderCacheBudget(DataSize.ofGigabytes(2));
+    caching.setResourceReaderStorageLevel("MEMORY_ONLY");
+    caching.setResourceReaderColumnPruning(pruning);
+
+    final Configuration result = new Configuration();
+    result.setSpark(configuration.getSpark());
+    result.setStorage(storage);
+    result.setTerminology(configuration.getTerminology());
+    result.setCaching(caching);
+    return result;
+  }
+
+  @Value
+  private static class Measurement {
+
+    long bytesScanned;
+
+    long cachedBytes;
+
+    long coldMillis;
+
+    long warmMillis;
+
+    int groupings;
+
+  }
+
+}
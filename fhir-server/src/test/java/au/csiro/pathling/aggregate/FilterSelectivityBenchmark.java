@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.aggregate;
+
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.syntheticResources;
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.time;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.when;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import au.csiro.pathling.Configuration;
+import au.csiro.pathling.fhir.TerminologyClient;
+import au.csiro.pathling.fhir.TerminologyClientFactory;
+import au.csiro.pathling.io.ResourceReader;
+import au.csiro.pathling.test.helpers.BenchmarkHelpers.Timed;
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Compares the time taken to execute an aggregate query with several groupings over a large table,
+ * using a highly selective filter and a filter that retains every resource. Run using the {@code
+ * benchmark} profile, the number of rows can be controlled using the {@code
+ * pathling.benchmark.rows} system property.
+ *
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("Benchmark")
+@Slf4j
+class FilterSelectivityBenchmark {
+
+  private static final long ROWS = Long.getLong("pathling.benchmark.rows", 2_000_000L);
+  private static final long SELECTIVITY = 1_000L;
+
+  @Autowired
+  private Configuration configuration;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private SparkSession spark;
+
+  @Autowired
+  private TerminologyClient terminologyClient;
+
+  @Autowired
+  private TerminologyClientFactory terminologyClientFactory;
+
+  @Test
+  void selectiveFiltersReduceGroupingCost() {
+    final Column seq = col("seq");
+    final Dataset<Row> patients = syntheticResources(spark, ResourceType.PATIENT, ROWS,
+        when(seq.mod(2).equalTo(0), lit("female")).otherwise(lit("male")).alias("gender"),
+        seq.mod(3).equalTo(0).alias("active"),
+        when(seq.mod(SELECTIVITY).equalTo(0), lit("1970-01-01"))
+            .otherwise(lit("1980-01-01")).alias("birthDate"));
+    final AggregateExecutor executor = buildExecutor(patients);
+
+    // Execute each query once before timing, so that neither measurement includes warm-up costs.
+    execute(executor, "birthDate = @1970-01-01");
+    execute(executor, "birthDate > @1900-01-01");
+
+    final Timed<Long> selective = time(() -> execute(executor, "birthDate = @1970-01-01"));
+    final Timed<Long> nonSelective = time(() -> execute(executor, "birthDate > @1900-01-01"));
+
+    assertEquals((ROWS + SELECTIVITY - 1) / SELECTIVITY, (long) selective.getResult());
+    assertEquals(ROWS, (long) nonSelective.getResult());
+    log.info("Aggregate over {} rows: selective filter took {} ms, non-selective filter took {} ms",
+        ROWS, selective.getMillis(), nonSelective.getMillis());
+  }
+
+  private long execute(@Nonnull final AggregateExecutor executor, @Nonnull final String filter) {
+    final AggregateRequest request = new AggregateRequestBuilder(ResourceType.PATIENT)
+        .withAggregation("count()")
+        .withGrouping("gender")
+        .withGrouping("active")
+        .withFilter(filter)
+        .build();
+    return executor.execute(request).getGroupings().stream()
+        .map(grouping -> grouping.getResults().get(0).orElseThrow())
+        .mapToLong(result -> ((IntegerType) result).getValue())
+        .sum();
+  }
+
+  @Nonnull
+  private AggregateExecutor buildExecutor(@Nonnull final Dataset<Row> patients) {
+    final ResourceReader resourceReader = mock(ResourceReader.class);
+    when(resourceReader.read(ResourceType.PATIENT)).thenReturn(patients);
+    when(resourceReader.readSchema(ResourceType.PATIENT)).thenReturn(patients);
+    when(resourceReader.read(eq(ResourceType.PATIENT), anySet())).thenAnswer(invocation -> {
+      final Set<String> columns = invocation.getArgument(1);
+      return patients.select(Stream.of(patients.columns())
+          .filter(columns::contains)
+          .map(patients::col)
+          .toArray(Column[]::new));
+    });
+    return new FreshAggregateExecutor(configuration, fhirContext, spark, resourceReader,
+        Optional.of(terminologyClient), Optional.of(terminologyClientFactory));
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.caching;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.caching.ResourceDependencies.Dependent;
+import java.util.Set;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author John Grimes
+ */
+@Tag("UnitTest")
+class ResourceDependenciesTest {
+
+  @Test
+  void recordsResourceTypesReadDuringComputation() {
+    final Dependent<String> result = ResourceDependencies.record(() -> {
+      ResourceDependencies.recordRead(ResourceType.PATIENT);
+      ResourceDependencies.recordRead(ResourceType.CONDITION);
+      ResourceDependencies.recordRead(ResourceType.PATIENT);
+      return "result";
+    });
+
+    assertEquals("result", result.getValue());
+    assertEquals(Set.of(ResourceType.PATIENT, ResourceType.CONDITION),
+        result.getResourceTypes());
+    assertTrue(result.dependsOnAny(Set.of(ResourceType.CONDITION, ResourceType.OBSERVATION)));
+    assertFalse(result.dependsOnAny(Set.of(ResourceType.OBSERVATION)));
+  }
+
+  @Test
+  void nestedRecordingsAreIncludedInOuterRecording() {
+    final Dependent<Dependent<String>> outer = ResourceDependencies.record(() -> {
+      ResourceDependencies.recordRead(ResourceType.PATIENT);
+      return ResourceDependencies.record(() -> {
+        ResourceDependencies.recordRead(ResourceType.ENCOUNTER);
+        return "inner";
+      });
+    });
+
+    assertEquals(Set.of(ResourceType.ENCOUNTER), outer.getValue().getResourceTypes());
+    assertEquals(Set.of(ResourceType.PATIENT, ResourceType.ENCOUNTER), outer.getResourceTypes());
+  }
+
+  @Test
+  void readsOutsideRecordingAreIgnored() {
+    ResourceDependencies.recordRead(ResourceType.PATIENT);
+    assertThrows(IllegalStateException.class, () -> ResourceDependencies.record(() -> {
+      throw new IllegalStateException();
+    }));
+    ResourceDependencies.recordRead(ResourceType.CONDITION);
+
+    final Dependent<String> result = ResourceDependencies.record(() -> "result");
+    assertEquals(Set.of(), result.getResourceTypes());
+  }
+
+}
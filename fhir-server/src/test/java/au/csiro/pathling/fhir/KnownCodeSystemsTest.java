@@ -0,0 +1,154 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author John Grimes
+ */
+@Tag("UnitTest")
+class KnownCodeSystemsTest {
+
+  private static final String SNOMED = "http://snomed.info/sct";
+  private static final String LOINC = "http://loinc.org";
+
+  private TerminologyClient terminologyClient;
+
+  @BeforeEach
+  void setUp() {
+    terminologyClient = mock(TerminologyClient.class);
+    final Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(new CodeSystem().setUrl(SNOMED));
+    bundle.addEntry().setResource(new CodeSystem().setUrl(LOINC));
+    bundle.addEntry().setResource(new CodeSystem());
+    when(terminologyClient.searchAllCodeSystems(any(), anyInt())).thenReturn(bundle);
+  }
+
+  @Test
+  void loadsAllCodeSystemsOnServer() {
+    final Optional<KnownCodeSystems> knownCodeSystems = KnownCodeSystems.load(terminologyClient);
+
+    assertTrue(knownCodeSystems.isPresent());
+    assertTrue(knownCodeSystems.get().contains(SNOMED));
+    assertTrue(knownCodeSystems.get().contains(LOINC));
+    assertFalse(knownCodeSystems.get().contains("http://example.com/unknown"));
+  }
+
+  @Test
+  void reusesRegistryUntilExpired() {
+    final String serverUrl = "http://example.com/" + UUID.randomUUID();
+
+    final Optional<KnownCodeSystems> first = KnownCodeSystems
+        .getInstance(serverUrl, Duration.ofHours(1), terminologyClient);
+    final Optional<KnownCodeSystems> second = KnownCodeSystems
+        .getInstance(serverUrl, Duration.ofHours(1), terminologyClient);
+    assertSame(first.orElseThrow(), second.orElseThrow());
+    verify(terminologyClient, times(1)).searchAllCodeSystems(any(), anyInt());
+
+    KnownCodeSystems.getInstance(serverUrl, Duration.ZERO, terminologyClient);
+    verify(terminologyClient, times(2)).searchAllCodeSystems(any(), anyInt());
+  }
+
+  @Test
+  void returnsNothingWhenCodeSystemsCannotBeListed() {
+    final TerminologyClient failingClient = mock(TerminologyClient.class);
+    when(failingClient.searchAllCodeSystems(any(), anyInt()))
+        .thenThrow(new InvalidRequestException("Search parameters are required"));
+
+    final String serverUrl = "http://example.com/" + UUID.randomUUID();
+    assertFalse(KnownCodeSystems.getInstance(serverUrl, Duration.ofHours(1), failingClient)
+        .isPresent());
+    // The failure is remembered until it expires, so the server is not asked again.
+    assertFalse(KnownCodeSystems.getInstance(serverUrl, Duration.ofHours(1), failingClient)
+        .isPresent());
+    verify(failingClient, times(1)).searchAllCodeSystems(any(), anyInt());
+
+    assertFalse(KnownCodeSystems.getInstance(serverUrl, Duration.ZERO, failingClient)
+        .isPresent());
+    verify(failingClient, times(2)).searchAllCodeSystems(any(), anyInt());
+  }
+
+  @Test
+  void concurrentRequestsLoadRegistryOnce() throws Exception {
+    final TerminologyClient slowClient = mock(TerminologyClient.class);
+    final Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(new CodeSystem().setUrl(SNOMED));
+    when(slowClient.searchAllCodeSystems(any(), anyInt())).thenAnswer(invocation -> {
+      Thread.sleep(200);
+      return bundle;
+    });
+
+    final String serverUrl = "http://example.com/" + UUID.randomUUID();
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Optional<KnownCodeSystems>>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        results.add(executor.submit(
+            () -> KnownCodeSystems.getInstance(serverUrl, Duration.ofHours(1), slowClient)));
+      }
+      for (final Future<Optional<KnownCodeSystems>> result : results) {
+        assertTrue(result.get().orElseThrow().contains(SNOMED));
+      }
+    } finally {
+      executor.shutdown();
+    }
+    verify(slowClient, times(1)).searchAllCodeSystems(any(), anyInt());
+  }
+
+  @Test
+  void registryIsUsedInsteadOfSearch() {
+    final KnownCodeSystems knownCodeSystems = new KnownCodeSystems(Map.of(SNOMED, Set.of()));
+    final TerminologyClient searchClient = mock(TerminologyClient.class);
+
+    assertTrue(KnownCodeSystems.isKnown(SNOMED, Optional.of(knownCodeSystems), Optional.empty(),
+        () -> searchClient));
+    assertFalse(KnownCodeSystems.isKnown(LOINC, Optional.of(knownCodeSystems), Optional.empty(),
+        () -> searchClient));
+    verifyNoInteractions(searchClient);
+  }
+
+  @Test
+  void searchesForCodeSystemWithoutRegistry() {
+    final TerminologyClient searchClient = mock(TerminologyClient.class);
+    when(searchClient.searchCodeSystems(any(UriParam.class), any()))
+        .thenReturn(Collections.singletonList(new CodeSystem()));
+
+    assertTrue(KnownCodeSystems.isKnown(SNOMED, Optional.empty(), Optional.empty(),
+        () -> searchClient));
+    verify(searchClient).searchCodeSystems(any(UriParam.class), any());
+  }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import au.csiro.pathling.fhirpath.function.subsumes.Mapping;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author John Grimes
+ */
+@Tag("UnitTest")
+class TerminologyCacheTest {
+
+  private static final String VALUE_SET = "http://example.com/ValueSet/test";
+  private static final SimpleCoding CODING_1 = new SimpleCoding("http://snomed.info/sct", "1");
+  private static final SimpleCoding CODING_2 = new SimpleCoding("http://snomed.info/sct", "2");
+  private static final SimpleCoding CODING_3 = new SimpleCoding("http://snomed.info/sct", "3");
+  private static final SimpleCoding CODING_4 = new SimpleCoding("http://snomed.info/sct", "4");
+
+  @Test
+  void onlyUncachedCodingsAreIntersected() {
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1));
+    final List<Set<SimpleCoding>> requests = new ArrayList<>();
+
+    final Set<SimpleCoding> first = cache.intersect(VALUE_SET, Set.of(CODING_1, CODING_2),
+        Optional.empty(), codings -> {
+          requests.add(codings);
+          return Collections.singleton(CODING_1);
+        });
+    final Set<SimpleCoding> second = cache.intersect(VALUE_SET, Set.of(CODING_1, CODING_3),
+        Optional.empty(), codings -> {
+          requests.add(codings);
+          return Collections.singleton(CODING_3);
+        });
+
+    assertEquals(Set.of(CODING_1), first);
+    assertEquals(Set.of(CODING_1, CODING_3), second);
+    assertEquals(List.of(Set.of(CODING_1, CODING_2), Set.of(CODING_3)), requests);
+
+    final TerminologyCache.Statistics statistics = cache.getStatistics();
+    assertEquals(1, statistics.getMemberships().hitCount());
+    assertEquals(3, statistics.getMemberships().missCount());
+  }
+
+  @Test
+  void membershipIsKeyedByValueSet() {
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1));
+    cache.intersect(VALUE_SET, Set.of(CODING_1), Optional.empty(), codings -> codings);
+
+    final Set<SimpleCoding> result = cache.intersect("http://example.com/ValueSet/other",
+        Set.of(CODING_1), Optional.empty(), codings -> Collections.emptySet());
+    assertTrue(result.isEmpty());
+  }
+
+  @Test
+  void codeSystemLookupsAreCached() {
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1));
+    final AtomicInteger lookups = new AtomicInteger();
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(cache.isKnownCodeSystem("http://snomed.info/sct", system -> {
+        lookups.incrementAndGet();
+        return true;
+      }));
+      assertFalse(cache.isKnownCodeSystem("http://example.com/unknown", system -> {
+        lookups.incrementAndGet();
+        return false;
+      }));
+    }
+    assertEquals(2, lookups.get());
+    assertEquals(4, cache.getStatistics().getCodeSystems().hitCount());
+  }
+
+  @Test
+  void subsumptionIsCachedForEachPairOfCodings() {
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1));
+    final List<Set<SimpleCoding>> requests = new ArrayList<>();
+
+    final List<Mapping> first = cache.closure(Set.of(CODING_1, CODING_2, CODING_3),
+        Optional.empty(), codings -> {
+          requests.add(codings);
+          return List.of(Mapping.of(CODING_1, CODING_3));
+        });
+    // Every pair within this set has already been answered, so the server is not asked.
+    final List<Mapping> second = cache.closure(Set.of(CODING_3, CODING_1), Optional.empty(),
+        codings -> {
+          throw new AssertionError("Closure should have been read from the cache");
+        });
+    // Only the codings within pairs that have not been answered are sent to the server.
+    final List<Mapping> third = cache.closure(Set.of(CODING_1, CODING_2, CODING_4),
+        Optional.empty(), codings -> {
+          requests.add(codings);
+          return List.of(Mapping.of(CODING_4, CODING_2));
+        });
+
+    assertEquals(List.of(Mapping.of(CODING_1, CODING_3)), first);
+    assertEquals(List.of(Mapping.of(CODING_1, CODING_3)), second);
+    assertEquals(List.of(Mapping.of(CODING_4, CODING_2)), third);
+    assertEquals(List.of(Set.of(CODING_1, CODING_2, CODING_3), Set.of(CODING_1, CODING_2,
+        CODING_4)), requests);
+  }
+
+  @Test
+  void subsumptionIsNotRequestedAcrossCodeSystems() {
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1));
+    final SimpleCoding other = new SimpleCoding("http://loinc.org", "1");
+
+    final List<Mapping> mappings = cache.closure(Set.of(CODING_1, other), Optional.empty(),
+        codings -> {
+          throw new AssertionError("Codings from different systems should not be sent");
+        });
+    assertTrue(mappings.isEmpty());
+  }
+
+  @Test
+  void subsumptionIsExpressedUsingRequestedCodings() {
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1));
+    final SimpleCoding versioned = new SimpleCoding("http://snomed.info/sct", "2", "20210131");
+
+    // The server may answer an unversioned coding with a versioned one.
+    final List<Mapping> mappings = cache.closure(Set.of(CODING_1, CODING_2), Optional.empty(),
+        codings -> List.of(Mapping.of(CODING_1, versioned)));
+    assertEquals(List.of(Mapping.of(CODING_1, CODING_2)), mappings);
+  }
+
+  @Test
+  void subsumptionIsBoundedBySize() {
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1));
+    final AtomicInteger requests = new AtomicInteger();
+    final Set<SimpleCoding> codings = IntStream.range(0, 20)
+        .mapToObj(i -> new SimpleCoding("http://snomed.info/sct", String.valueOf(i)))
+        .collect(Collectors.toSet());
+
+    // There are more pairs of these codings than the cache can hold, so they are not all retained.
+    for (int i = 0; i < 2; i++) {
+      cache.closure(codings, Optional.empty(), subset -> {
+        requests.incrementAndGet();
+        return Collections.emptyList();
+      });
+    }
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  void errorsAreNotCached() {
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1));
+    final IllegalStateException error = new IllegalStateException("Server unavailable");
+
+    final IllegalStateException thrown = assertThrows(IllegalStateException.class,
+        () -> cache.isKnownCodeSystem("http://snomed.info/sct", system -> {
+          throw error;
+        }));
+    assertSame(error, thrown);
+    assertTrue(cache.isKnownCodeSystem("http://snomed.info/sct", system -> true));
+  }
+
+  @Test
+  void storedResultsAreUsedAfterRestart(@TempDir final Path directory) {
+    final TerminologyStore store = new TerminologyStore(directory, Duration.ofDays(1));
+    final TerminologyCache cache = new TerminologyCache(100, Duration.ofHours(1),
+        Optional.of(store));
+    cache.intersect(VALUE_SET, Set.of(CODING_1, CODING_2), Optional.empty(),
+        codings -> Set.of(CODING_2));
+    cache.closure(Set.of(CODING_1, CODING_2), Optional.empty(),
+        codings -> List.of(Mapping.of(CODING_1, CODING_2)));
+
+    // A new cache over the same directory is empty in memory, but can use the stored results.
+    final TerminologyCache restarted = new TerminologyCache(100, Duration.ofHours(1),
+        Optional.of(new TerminologyStore(directory, Duration.ofDays(1))));
+    final List<Set<SimpleCoding>> requests = new ArrayList<>();
+    final Set<SimpleCoding> members = restarted.intersect(VALUE_SET,
+        Set.of(CODING_1, CODING_2, CODING_3), Optional.empty(), codings -> {
+          requests.add(codings);
+          return Collections.emptySet();
+        });
+    final List<Mapping> mappings = restarted.closure(Set.of(CODING_1, CODING_2),
+        Optional.empty(), codings -> {
+          throw new AssertionError("Closure should have been read from the store");
+        });
+
+    assertEquals(Set.of(CODING_2), members);
+    assertEquals(List.of(Set.of(CODING_3)), requests);
+    assertEquals(List.of(Mapping.of(CODING_1, CODING_2)), mappings);
+  }
+
+  @Test
+  void instancesAreSharedWithinJvm() {
+    final TerminologyCache first = TerminologyCache
+        .getInstance("https://tx.example.com/fhir", 100, Duration.ofHours(1),
+            Optional.empty(), Duration.ZERO);
+    final TerminologyCache second = TerminologyCache
+        .getInstance("https://tx.example.com/fhir", 100, Duration.ofHours(1),
+            Optional.empty(), Duration.ZERO);
+    final TerminologyCache other = TerminologyCache
+        .getInstance("https://other.example.com/fhir", 100, Duration.ofHours(1),
+            Optional.empty(), Duration.ZERO);
+
+    assertSame(first, second);
+    assertNotSame(first, other);
+  }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+
+/**
+ * @author John Grimes
+ */
+@Tag("UnitTest")
+class TerminologyRequestPoolTest {
+
+  @Test
+  void splitsItemsIntoBatches() {
+    final TerminologyRequestPool pool = new TerminologyRequestPool(2, 1);
+    assertEquals(
+        Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Collections.singletonList(5)),
+        pool.batches(Arrays.asList(1, 2, 3, 4, 5)));
+  }
+
+  @Test
+  void zeroBatchSizeMeansNoLimit() {
+    final TerminologyRequestPool pool = new TerminologyRequestPool(0, 1);
+    assertEquals(Collections.singletonList(Arrays.asList(1, 2, 3)),
+        pool.batches(Arrays.asList(1, 2, 3)));
+    assertTrue(pool.batches(Collections.emptyList()).isEmpty());
+  }
+
+  @Test
+  void runsRequestsConcurrentlyUpToLimit() {
+    final TerminologyRequestPool pool = new TerminologyRequestPool(0, 3);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+
+    final List<Supplier<Integer>> requests = IntStream.range(0, 12)
+        .mapToObj(i -> (Supplier<Integer>) () -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          try {
+            Thread.sleep(50);
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          running.decrementAndGet();
+          return i;
+        })
+        .collect(Collectors.toList());
+    final List<Integer> results = pool.invokeAll(requests);
+
+    // The results are returned in the order of the requests.
+    assertEquals(IntStream.range(0, 12).boxed().collect(Collectors.toList()), results);
+    assertEquals(3, maxRunning.get());
+  }
+
+  @Test
+  void carriesLoggingContextToRequests() {
+    final TerminologyRequestPool pool = new TerminologyRequestPool(0, 2);
+    MDC.put("requestId", "abc123");
+    try {
+      final List<String> results = pool.invokeAll(Arrays.asList(
+          () -> MDC.get("requestId"),
+          () -> MDC.get("requestId")));
+      assertEquals(Arrays.asList("abc123", "abc123"), results);
+    } finally {
+      MDC.remove("requestId");
+    }
+  }
+
+  @Test
+  void throwsErrorFromFailedRequest() {
+    final TerminologyRequestPool pool = new TerminologyRequestPool(0, 2);
+    final IllegalStateException error = new IllegalStateException("Server unavailable");
+
+    final IllegalStateException thrown = assertThrows(IllegalStateException.class,
+        () -> pool.invokeAll(Arrays.asList(
+            () -> "ok",
+            () -> {
+              throw error;
+            })));
+    assertSame(error, thrown);
+  }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import au.csiro.pathling.fhirpath.function.subsumes.Mapping;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author John Grimes
+ */
+@Tag("UnitTest")
+class TerminologyStoreTest {
+
+  private static final String VALUE_SET = "http://example.com/ValueSet/test";
+  private static final SimpleCoding CODING_1 = new SimpleCoding("http://snomed.info/sct", "1");
+  private static final SimpleCoding CODING_2 = new SimpleCoding("http://snomed.info/sct", "2");
+  private static final SimpleCoding CODING_2_VERSIONED = new SimpleCoding(
+      "http://snomed.info/sct", "2", "http://snomed.info/sct/32506021000036107/version/20210331");
+  private static final Instant NOW = Instant.parse("2021-04-01T00:00:00Z");
+  private static final Duration TTL = Duration.ofDays(7);
+  private static final Optional<KnownCodeSystems> NONE = Optional.empty();
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void membershipsSurviveNewInstance() {
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, true), NONE);
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_2, false), NONE);
+
+    final Map<SimpleCoding, Boolean> result = store(NOW.plusSeconds(60))
+        .getMemberships(VALUE_SET, Set.of(CODING_1, CODING_2, CODING_2_VERSIONED), NONE);
+    assertEquals(Map.of(CODING_1, true, CODING_2, false), result);
+  }
+
+  @Test
+  void membershipsAreKeyedByValueSet() {
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, true), NONE);
+
+    assertTrue(store(NOW)
+        .getMemberships("http://example.com/ValueSet/other", Set.of(CODING_1), NONE).isEmpty());
+  }
+
+  @Test
+  void expiredEntriesAreIgnored() {
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, true), NONE);
+    store(NOW).putClosure(Set.of(CODING_1, CODING_2), List.of(Mapping.of(CODING_1, CODING_2)),
+        NONE);
+
+    final TerminologyStore later = store(NOW.plus(TTL));
+    assertTrue(later.getMemberships(VALUE_SET, Set.of(CODING_1), NONE).isEmpty());
+    assertEquals(Optional.empty(), later.getClosure(Set.of(CODING_1, CODING_2), NONE));
+  }
+
+  @Test
+  void closuresAreKeyedBySetOfCodings() {
+    final List<Mapping> mappings = List.of(Mapping.of(CODING_1, CODING_2));
+    store(NOW).putClosure(Set.of(CODING_1, CODING_2), mappings, NONE);
+
+    final TerminologyStore store = store(NOW.plusSeconds(60));
+    assertEquals(Optional.of(mappings), store.getClosure(Set.of(CODING_2, CODING_1), NONE));
+    assertEquals(Optional.empty(), store.getClosure(Set.of(CODING_1, CODING_2_VERSIONED), NONE));
+  }
+
+  @Test
+  void unreadableEntriesAreIgnored() throws Exception {
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, true), NONE);
+    try (final Stream<Path> files = Files.walk(directory)) {
+      files.filter(Files::isRegularFile).forEach(file -> {
+        try {
+          Files.writeString(file, "not an entry");
+        } catch (final Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+    }
+
+    assertTrue(store(NOW).getMemberships(VALUE_SET, Set.of(CODING_1), NONE).isEmpty());
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, false), NONE);
+    assertEquals(Map.of(CODING_1, false),
+        store(NOW).getMemberships(VALUE_SET, Set.of(CODING_1), NONE));
+  }
+
+  @Test
+  void unversionedCodingsAreKeyedByServerVersion() {
+    final Optional<KnownCodeSystems> march = registry("20210331");
+    final Optional<KnownCodeSystems> april = registry("20210430");
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, true), march);
+    store(NOW).putClosure(Set.of(CODING_1, CODING_2), List.of(Mapping.of(CODING_1, CODING_2)),
+        march);
+
+    final TerminologyStore store = store(NOW.plusSeconds(60));
+    assertEquals(Map.of(CODING_1, true), store.getMemberships(VALUE_SET, Set.of(CODING_1), march));
+    assertTrue(store.getClosure(Set.of(CODING_1, CODING_2), march).isPresent());
+    // Once the server has a new release, the stored answers are no longer used.
+    assertTrue(store.getMemberships(VALUE_SET, Set.of(CODING_1), april).isEmpty());
+    assertEquals(Optional.empty(), store.getClosure(Set.of(CODING_1, CODING_2), april));
+  }
+
+  @Test
+  void entriesAreStoredAsJson() throws Exception {
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, true), NONE);
+    store(NOW).putClosure(Set.of(CODING_1, CODING_2), List.of(Mapping.of(CODING_1, CODING_2)),
+        NONE);
+
+    final ObjectMapper mapper = new ObjectMapper();
+    for (final Path file : entryFiles()) {
+      for (final String line : Files.readAllLines(file)) {
+        assertTrue(mapper.readTree(line).isObject());
+      }
+    }
+  }
+
+  @Test
+  void membershipsAreAppendedAndCompacted() throws Exception {
+    for (int i = 0; i < 1200; i++) {
+      store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, i % 2 == 0), NONE);
+    }
+    final Path file = entryFiles().get(0);
+    assertEquals(1200, Files.readAllLines(file).size());
+
+    // Reading a file that is mostly made up of superseded entries compacts it.
+    assertEquals(Map.of(CODING_1, false),
+        store(NOW).getMemberships(VALUE_SET, Set.of(CODING_1), NONE));
+    assertEquals(1, Files.readAllLines(file).size());
+    assertEquals(Map.of(CODING_1, false),
+        store(NOW).getMemberships(VALUE_SET, Set.of(CODING_1), NONE));
+  }
+
+  @Test
+  void partiallyWrittenEntriesAreSkipped() throws Exception {
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_1, true), NONE);
+    final Path file = entryFiles().get(0);
+    Files.writeString(file, "{\"code\":\"2\",\"mem", StandardOpenOption.APPEND);
+
+    assertEquals(Map.of(CODING_1, true),
+        store(NOW).getMemberships(VALUE_SET, Set.of(CODING_1, CODING_2), NONE));
+    store(NOW).putMemberships(VALUE_SET, Map.of(CODING_2, false), NONE);
+    assertEquals(Map.of(CODING_1, true, CODING_2, false),
+        store(NOW).getMemberships(VALUE_SET, Set.of(CODING_1, CODING_2), NONE));
+  }
+
+  @Test
+  void concurrentWritersDoNotLoseEntries() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        final SimpleCoding coding = new SimpleCoding("http://snomed.info/sct", "c" + i);
+        // Each writer has its own instance, as each executor or server process would.
+        futures.add(executor.submit(
+            () -> store(NOW).putMemberships(VALUE_SET, Map.of(coding, true), NONE)));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    final Set<SimpleCoding> codings = IntStream.range(0, 200)
+        .mapToObj(i -> new SimpleCoding("http://snomed.info/sct", "c" + i))
+        .collect(Collectors.toSet());
+    assertEquals(200, store(NOW).getMemberships(VALUE_SET, codings, NONE).size());
+  }
+
+  @Nonnull
+  private static Optional<KnownCodeSystems> registry(@Nonnull final String version) {
+    return Optional.of(new KnownCodeSystems(
+        Map.of("http://snomed.info/sct", new TreeSet<>(Set.of(version)))));
+  }
+
+  @Nonnull
+  private List<Path> entryFiles() throws IOException {
+    try (final Stream<Path> files = Files.walk(directory)) {
+      return files.filter(Files::isRegularFile)
+          .filter(file -> !file.getFileName().toString().endsWith(".lock"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Nonnull
+  private TerminologyStore store(@Nonnull final Instant now) {
+    return new TerminologyStore(directory, TTL, Clock.fixed(now, ZoneOffset.UTC));
+  }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhir;
+
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.time;
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import au.csiro.pathling.fhirpath.function.memberof.MemberOfMapperWithPreview;
+import au.csiro.pathling.fhirpath.function.subsumes.SubsumptionMapperWithPreview;
+import au.csiro.pathling.test.helpers.BenchmarkHelpers.Timed;
+import ca.uhn.fhir.context.FhirContext;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.common.FileSource;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.extension.Parameters;
+import com.github.tomakehurst.wiremock.extension.ResponseDefinitionTransformer;
+import com.github.tomakehurst.wiremock.http.Request;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the throughput of the requests made to a terminology service by the memberOf and
+ * subsumes functions, using different batch sizes and levels of concurrency. The terminology
+ * service is simulated using WireMock, and takes longer to respond to requests that contain more
+ * codings. Run using the {@code benchmark} profile, the number of codings can be controlled using
+ * the {@code pathling.benchmark.codings} system property.
+ *
+ * @author John Grimes
+ */
+@Tag("Benchmark")
+@Slf4j
+class TerminologyThroughputBenchmark {
+
+  private static final int CODINGS = Integer.getInteger("pathling.benchmark.codings", 20_000);
+  private static final int BASE_DELAY = 50;
+  private static final int CODINGS_PER_MILLISECOND = 10;
+  private static final String SYSTEM = "http://snomed.info/sct";
+  private static final String VALUE_SET = "http://snomed.info/sct?fhir_vs";
+  private static final String JSON = "application/fhir+json";
+
+  // The clients built from the same FhirContext all use the server URL of the first client, so the
+  // same server is used for all of the tests.
+  private static WireMockServer wireMockServer;
+
+  @BeforeAll
+  static void setUp() {
+    wireMockServer = new WireMockServer(
+        WireMockConfiguration.options()
+            .dynamicPort()
+            .containerThreads(32)
+            .extensions(new ScaledDelay()));
+    wireMockServer.start();
+    wireMockServer.stubFor(get(urlPathEqualTo("/fhir/CodeSystem"))
+        .willReturn(aResponse().withHeader("Content-Type", JSON).withBody(
+            "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[{\"resource\":"
+                + "{\"resourceType\":\"CodeSystem\",\"id\":\"snomed\"}}]}")));
+    wireMockServer.stubFor(post(urlPathEqualTo("/fhir/ValueSet/$expand"))
+        .willReturn(aResponse().withHeader("Content-Type", JSON).withBody(
+            "{\"resourceType\":\"ValueSet\",\"status\":\"active\",\"expansion\":"
+                + "{\"timestamp\":\"2021-01-01T00:00:00Z\"}}")));
+    wireMockServer.stubFor(post(urlPathEqualTo("/fhir/$closure"))
+        .willReturn(aResponse().withHeader("Content-Type", JSON).withBody(
+            "{\"resourceType\":\"ConceptMap\",\"status\":\"active\"}")));
+  }
+
+  @AfterAll
+  static void tearDown() {
+    wireMockServer.stop();
+  }
+
+  @Test
+  void expandThroughput() {
+    final List<SimpleCoding> codings = IntStream.range(0, CODINGS)
+        .mapToObj(i -> new SimpleCoding(SYSTEM, String.valueOf(i)))
+        .collect(Collectors.toList());
+    for (final int[] settings : new int[][]{{0, 1}, {1000, 1}, {1000, 4}, {1000, 8}}) {
+      final MemberOfMapperWithPreview mapper = new MemberOfMapperWithPreview("benchmark",
+          factory(settings[0], settings[1]), VALUE_SET);
+      wireMockServer.resetRequests();
+      final Timed<Integer> result = time(
+          () -> mapper.preview(Collections.singletonList(codings).iterator()).size());
+
+      assertEquals(0, (int) result.getResult());
+      final int requests = wireMockServer
+          .findAll(postRequestedFor(urlPathEqualTo("/fhir/ValueSet/$expand"))).size();
+      assertEquals(expectedBatches(settings[0]), requests);
+      report("$expand", settings, requests, result);
+    }
+  }
+
+  @Test
+  void closureThroughput() {
+    final List<SimpleCoding> codings = IntStream.range(0, CODINGS)
+        .mapToObj(i -> new SimpleCoding(SYSTEM, String.valueOf(i)))
+        .collect(Collectors.toList());
+    for (final int[] settings : new int[][]{{0, 1}, {1000, 1}, {1000, 4}}) {
+      final SubsumptionMapperWithPreview mapper = new SubsumptionMapperWithPreview("benchmark",
+          factory(settings[0], settings[1]), false);
+      wireMockServer.resetRequests();
+      final Timed<Boolean> result = time(() -> {
+        mapper.preview(Collections.singletonList(ImmutablePair.of(codings,
+            Collections.<SimpleCoding>emptyList())).iterator());
+        return true;
+      });
+
+      assertTrue(result.getResult());
+      // One request initialises the closure table, then one request is made for each batch.
+      final int requests = wireMockServer
+          .findAll(postRequestedFor(urlPathEqualTo("/fhir/$closure"))).size();
+      assertEquals(expectedBatches(settings[0]) + 1, requests);
+      report("$closure", settings, requests, result);
+    }
+  }
+
+  @Nonnull
+  private static TerminologyClientFactory factory(final int batchSize, final int concurrency) {
+    return new TerminologyClientFactory(FhirContext.forR4(), wireMockServer.baseUrl() + "/fhir",
+        60_000, false, 0, 0, null, 0, batchSize, concurrency, 0, null);
+  }
+
+  private static int expectedBatches(final int batchSize) {
+    return batchSize > 0
+           ? (CODINGS + batchSize - 1) / batchSize
+           : 1;
+  }
+
+  private static void report(@Nonnull final String operation, @Nonnull final int[] settings,
+      final int requests, @Nonnull final Timed<?> result) {
+    log.info("{} of {} codings with batch size {} and concurrency {}: {} requests in {} ms "
+            + "({} codings/s)", operation, CODINGS,
+        settings[0] > 0
+        ? settings[0]
+        : "unlimited", settings[1], requests, result.getMillis(),
+        CODINGS * 1000L / Math.max(1, result.getMillis()));
+  }
+
+  /**
+   * Delays each response in proportion to the number of codings within the request, to simulate
+   * the work done by a terminology service.
+   */
+  private static class ScaledDelay extends ResponseDefinitionTransformer {
+
+    private static final Pattern CODE = Pattern.compile("\"code\"|<code ");
+
+    @Override
+    public ResponseDefinition transform(final Request request,
+        final ResponseDefinition responseDefinition, final FileSource files,
+        final Parameters parameters) {
+      final Matcher matcher = CODE.matcher(request.getBodyAsString());
+      int codings = 0;
+      while (matcher.find()) {
+        codings++;
+      }
+      return ResponseDefinitionBuilder.like(responseDefinition)
+          .withFixedDelay(BASE_DELAY + codings / CODINGS_PER_MILLISECOND)
+          .build();
+    }
+
+    @Override
+    public String getName() {
+      return "scaled-delay";
+    }
+
+  }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.function;
+
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.syntheticResources;
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.syntheticStruct;
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.templateSchema;
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.time;
+import static org.apache.spark.sql.functions.array;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.first;
+import static org.apache.spark.sql.functions.format_string;
+import static org.apache.spark.sql.functions.lit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import au.csiro.pathling.fhirpath.FhirPath;
+import au.csiro.pathling.fhirpath.NonLiteralPath;
+import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.parser.Parser;
+import au.csiro.pathling.io.ResourceReader;
+import au.csiro.pathling.test.builders.ParserContextBuilder;
+import au.csiro.pathling.test.helpers.BenchmarkHelpers.Timed;
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Collections;
+import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.ArrayType;
+import org.apache.spark.sql.types.StructType;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Compares the time taken to evaluate {@code name.first().family} over a large table, by sorting
+ * the dataset by element ID before grouping (as was done previously), by taking the value with the
+ * lowest element ID within each group, and by using array functions on the original column. Run
+ * using the {@code benchmark} profile, the number of rows can be controlled using the {@code
+ * pathling.benchmark.rows} system property.
+ *
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("Benchmark")
+@Slf4j
+class FirstFunctionBenchmark {
+
+  private static final long ROWS = Long.getLong("pathling.benchmark.rows", 10_000_000L);
+  private static final String EXPRESSION = "name.first().family";
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private SparkSession spark;
+
+  @Test
+  void firstDoesNotSortDataset() {
+    final StructType humanName = (StructType) ((ArrayType) templateSchema(spark,
+        ResourceType.PATIENT).apply("name").dataType()).elementType();
+    final Column seq = col("seq");
+    final Dataset<Row> patients = syntheticResources(spark, ResourceType.PATIENT, ROWS,
+        array(syntheticStruct(humanName, lit("official").alias("use"),
+            format_string("Family%d", seq.mod(1000)).alias("family")),
+            syntheticStruct(humanName, lit("maiden").alias("use"),
+                lit("Maiden").alias("family"))).alias("name"));
+    final ResourceReader resourceReader = mock(ResourceReader.class);
+    when(resourceReader.read(ResourceType.PATIENT)).thenReturn(patients);
+    final ResourcePath subject = ResourcePath
+        .build(fhirContext, resourceReader, ResourceType.PATIENT, "Patient", true);
+
+    // Evaluating within a grouping on the resource ID prevents the use of array functions, so that
+    // the first function is invoked.
+    final Parser lowered = new Parser(new ParserContextBuilder(spark, fhirContext)
+        .inputContext(subject)
+        .build());
+    final Parser grouped = new Parser(new ParserContextBuilder(spark, fhirContext)
+        .inputContext(subject)
+        .groupingColumns(Collections.singletonList(subject.getIdColumn()))
+        .build());
+
+    // Execute each query once before timing, so that no measurement includes warm-up costs.
+    sorted(grouped);
+    count(grouped.parse(EXPRESSION));
+    count(lowered.parse(EXPRESSION));
+
+    final Timed<Long> sortedResult = time(() -> sorted(grouped));
+    final Timed<Long> groupedResult = time(() -> count(grouped.parse(EXPRESSION)));
+    final Timed<Long> loweredResult = time(() -> count(lowered.parse(EXPRESSION)));
+
+    assertEquals(ROWS, (long) sortedResult.getResult());
+    assertEquals(ROWS, (long) groupedResult.getResult());
+    assertEquals(ROWS, (long) loweredResult.getResult());
+    log.info("{} over {} rows: global sort took {} ms, per-group minimum took {} ms, "
+            + "array functions took {} ms", EXPRESSION, ROWS, sortedResult.getMillis(),
+        groupedResult.getMillis(), loweredResult.getMillis());
+  }
+
+  /**
+   * Evaluates the expression in the way that the first function did before it stopped sorting the
+   * dataset.
+   */
+  private static long sorted(@Nonnull final Parser parser) {
+    final NonLiteralPath name = (NonLiteralPath) parser.parse("name");
+    final Column eid = name.getEidColumn().orElseThrow();
+    final Dataset<Row> result = name.getDataset()
+        .orderBy(eid)
+        .groupBy(name.getIdColumn())
+        .agg(first(name.getValueColumn(), true).alias("value"))
+        .select(col("value").getField("family").alias("value"));
+    return result.where(col("value").isNotNull()).count();
+  }
+
+  private static long count(@Nonnull final FhirPath result) {
+    return result.getDataset().where(result.getValueColumn().isNotNull()).count();
+  }
+
+}
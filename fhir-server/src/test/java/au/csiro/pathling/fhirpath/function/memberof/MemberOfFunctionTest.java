@@ -19,6 +19,10 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
@@ -26,6 +30,7 @@ import au.csiro.pathling.errors.InvalidUserInputError;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.fhirpath.FhirPath;
+import au.csiro.pathling.fhirpath.ResourceProjection;
 import au.csiro.pathling.fhirpath.element.BooleanPath;
 import au.csiro.pathling.fhirpath.element.CodingPath;
 import au.csiro.pathling.fhirpath.element.ElementDefinition;
@@ -41,9 +46,11 @@ import au.csiro.pathling.test.helpers.FhirHelpers;
 import au.csiro.pathling.test.helpers.FhirHelpers.MemberOfTxAnswerer;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.param.UriParam;
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
@@ -52,6 +59,7 @@ import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -71,6 +79,8 @@ class MemberOfFunctionTest {
 
   private static final String MY_VALUE_SET_URL = "https://csiro.au/fhir/ValueSet/my-value-set";
   private static final String TERMINOLOGY_SERVICE_URL = "https://r4.ontoserver.csiro.au/fhir";
+  private static final AtomicReference<TerminologyClient> EXECUTOR_TERMINOLOGY_CLIENT =
+      new AtomicReference<>();
 
   @Test
   public void memberOfCoding() {
@@ -262,6 +272,236 @@ class MemberOfFunctionTest {
         .hasRows(expectedResult);
   }
 
+  @Test
+  public void memberOfBroadcastsResultWhenFewDistinctCodings() {
+    final Coding coding1 = new Coding(LOINC_URL, "10337-4",
+        "Procollagen type I [Mass/volume] in Serum");
+    final Coding coding2 = new Coding(LOINC_URL, "10428-1",
+        "Varicella zoster virus immune globulin given [Volume]");
+    final Coding coding3 = new Coding(SNOMED_URL, "416399002",
+        "Procollagen type I amino-terminal propeptide level");
+
+    final CodeableConcept codeableConcept1 = new CodeableConcept(coding1);
+    codeableConcept1.addCoding(coding3);
+    final CodeableConcept codeableConcept2 = new CodeableConcept(coding2);
+    final CodeableConcept codeableConcept3 = new CodeableConcept(coding1);
+
+    final Optional<ElementDefinition> optionalDefinition = FhirHelpers
+        .getChildOfResource(fhirContext, "DiagnosticReport", "code");
+    assertTrue(optionalDefinition.isPresent());
+    final ElementDefinition definition = optionalDefinition.get();
+
+    final Dataset<Row> inputDataset = new DatasetBuilder(spark)
+        .withIdColumn()
+        .withStructTypeColumns(codeableConceptStructType())
+        .withRow("diagnosticreport-1", rowFromCodeableConcept(codeableConcept1))
+        .withRow("diagnosticreport-2", rowFromCodeableConcept(codeableConcept2))
+        .withRow("diagnosticreport-3", rowFromCodeableConcept(codeableConcept3))
+        .withRow("diagnosticreport-4", null)
+        .buildWithStructValue();
+
+    final ElementPath inputExpression = new ElementPathBuilder(spark)
+        .dataset(inputDataset)
+        .idAndValueColumns()
+        .expression("DiagnosticReport.code")
+        .singular(true)
+        .definition(definition)
+        .buildDefined();
+
+    final StringLiteralPath argumentExpression = StringLiteralPath
+        .fromString("'" + MY_VALUE_SET_URL + "'", inputExpression);
+
+    // Create a mock terminology client, which will be used from the driver.
+    final TerminologyClient terminologyClient = mock(TerminologyClient.class,
+        withSettings().serializable());
+    final Answer<ValueSet> memberOfTxAnswerer = new MemberOfTxAnswerer(coding1);
+    when(terminologyClient.getServerBase()).thenReturn(TERMINOLOGY_SERVICE_URL);
+    when(terminologyClient.expand(any(ValueSet.class), any(IntegerType.class)))
+        .thenAnswer(memberOfTxAnswerer);
+    when(terminologyClient.searchCodeSystems(any(UriParam.class), any()))
+        .thenReturn(Collections.singletonList(new CodeSystem()));
+    final TerminologyClientFactory terminologyClientFactory = mock(TerminologyClientFactory.class,
+        withSettings().serializable());
+
+    // There are three distinct codings in the input, which is within the threshold.
+    final ParserContext parserContext = new ParserContextBuilder(spark, fhirContext)
+        .terminologyClient(terminologyClient)
+        .terminologyClientFactory(terminologyClientFactory)
+        .terminologyBroadcastThreshold(3)
+        .build();
+
+    final NamedFunctionInput memberOfInput = new NamedFunctionInput(parserContext, inputExpression,
+        Collections.singletonList(argumentExpression));
+    final FhirPath result = new MemberOfFunction().invoke(memberOfInput);
+
+    final Dataset<Row> expectedResult = new DatasetBuilder(spark)
+        .withIdColumn()
+        .withColumn(DataTypes.BooleanType)
+        .withRow("diagnosticreport-1", true)
+        .withRow("diagnosticreport-2", false)
+        .withRow("diagnosticreport-3", true)
+        .withRow("diagnosticreport-4", null)
+        .build();
+    assertThat((BooleanPath) result)
+        .selectOrderedResult()
+        .hasRows(expectedResult);
+
+    // The intersection is found using a single expansion on the driver, and no clients are built
+    // within the partitions.
+    verify(terminologyClient, times(1)).expand(any(ValueSet.class), any(IntegerType.class));
+    verify(terminologyClientFactory, never()).build(any());
+  }
+
+  @Test
+  public void memberOfMakesNoRequestsWhileRecording() {
+    final Coding coding = new Coding(LOINC_URL, "10337-4",
+        "Procollagen type I [Mass/volume] in Serum");
+    final Optional<ElementDefinition> optionalDefinition = FhirHelpers
+        .getChildOfResource(fhirContext, "Encounter", "class");
+    assertTrue(optionalDefinition.isPresent());
+    final ElementDefinition definition = optionalDefinition.get();
+
+    final Dataset<Row> inputDataset = new DatasetBuilder(spark)
+        .withIdColumn()
+        .withStructTypeColumns(codingStructType())
+        .withRow("encounter-1", rowFromCoding(coding))
+        .buildWithStructValue();
+    final CodingPath inputExpression = (CodingPath) new ElementPathBuilder(spark)
+        .dataset(inputDataset)
+        .idAndValueColumns()
+        .expression("Encounter.class")
+        .singular(true)
+        .definition(definition)
+        .buildDefined();
+    final StringLiteralPath argumentExpression = StringLiteralPath
+        .fromString("'" + MY_VALUE_SET_URL + "'", inputExpression);
+
+    final TerminologyClient terminologyClient = mock(TerminologyClient.class,
+        withSettings().serializable());
+    final TerminologyClientFactory terminologyClientFactory = mock(TerminologyClientFactory.class,
+        withSettings().serializable());
+
+    // The projection has not been frozen, so the dataset from this parse is never executed.
+    final ParserContext parserContext = new ParserContextBuilder(spark, fhirContext)
+        .terminologyClient(terminologyClient)
+        .terminologyClientFactory(terminologyClientFactory)
+        .terminologyBroadcastThreshold(3)
+        .projection(new ResourceProjection())
+        .build();
+    final NamedFunctionInput memberOfInput = new NamedFunctionInput(parserContext, inputExpression,
+        Collections.singletonList(argumentExpression));
+    new MemberOfFunction().invoke(memberOfInput);
+
+    verify(terminologyClientFactory, never()).getKnownCodeSystems(any());
+    verify(terminologyClientFactory, never()).getCache();
+    verifyNoInteractions(terminologyClient);
+  }
+
+  @Test
+  public void memberOfResolvesDistinctCodingsOnce() {
+    final Coding coding1 = new Coding(LOINC_URL, "10337-4",
+        "Procollagen type I [Mass/volume] in Serum");
+    final Coding coding2 = new Coding(LOINC_URL, "10428-1",
+        "Varicella zoster virus immune globulin given [Volume]");
+    final Coding coding3 = new Coding(SNOMED_URL, "416399002",
+        "Procollagen type I amino-terminal propeptide level");
+
+    final CodeableConcept codeableConcept1 = new CodeableConcept(coding1);
+    codeableConcept1.addCoding(coding3);
+    final CodeableConcept codeableConcept2 = new CodeableConcept(coding2);
+    final CodeableConcept codeableConcept3 = new CodeableConcept(coding3);
+    final CodeableConcept codeableConcept4 = new CodeableConcept(coding2);
+    codeableConcept4.addCoding(coding3);
+
+    final Optional<ElementDefinition> optionalDefinition = FhirHelpers
+        .getChildOfResource(fhirContext, "DiagnosticReport", "code");
+    assertTrue(optionalDefinition.isPresent());
+    final ElementDefinition definition = optionalDefinition.get();
+
+    final Dataset<Row> inputDataset = new DatasetBuilder(spark)
+        .withIdColumn()
+        .withStructTypeColumns(codeableConceptStructType())
+        .withRow("diagnosticreport-1", rowFromCodeableConcept(codeableConcept1))
+        .withRow("diagnosticreport-2", rowFromCodeableConcept(codeableConcept2))
+        .withRow("diagnosticreport-3", rowFromCodeableConcept(codeableConcept3))
+        .withRow("diagnosticreport-4", rowFromCodeableConcept(codeableConcept4))
+        .withRow("diagnosticreport-5", rowFromCodeableConcept(codeableConcept1))
+        .withRow("diagnosticreport-6", null)
+        .buildWithStructValue();
+
+    final ElementPath inputExpression = new ElementPathBuilder(spark)
+        .dataset(inputDataset)
+        .idAndValueColumns()
+        .expression("DiagnosticReport.code")
+        .singular(true)
+        .definition(definition)
+        .buildDefined();
+
+    final StringLiteralPath argumentExpression = StringLiteralPath
+        .fromString("'" + MY_VALUE_SET_URL + "'", inputExpression);
+
+    // Create a mock terminology client, which only considers the first coding to be a member.
+    final TerminologyClient terminologyClient = mock(TerminologyClient.class,
+        withSettings().serializable());
+    final Answer<ValueSet> memberOfTxAnswerer = new MemberOfTxAnswerer(coding1);
+    when(terminologyClient.getServerBase()).thenReturn(TERMINOLOGY_SERVICE_URL);
+    when(terminologyClient.expand(any(ValueSet.class), any(IntegerType.class)))
+        .thenAnswer(memberOfTxAnswerer);
+    when(terminologyClient.searchCodeSystems(any(UriParam.class), any()))
+        .thenReturn(Collections.singletonList(new CodeSystem()));
+    final TerminologyClientFactory terminologyClientFactory = mock(TerminologyClientFactory.class,
+        withSettings().serializable());
+    // The factory is copied to each task, so it hands out the client through a static reference.
+    // This allows the requests made within each partition to be verified.
+    EXECUTOR_TERMINOLOGY_CLIENT.set(terminologyClient);
+    when(terminologyClientFactory.build(any())).thenAnswer(
+        (Answer<TerminologyClient> & Serializable) invocation -> EXECUTOR_TERMINOLOGY_CLIENT.get());
+
+    // Broadcasting is disabled, so the distinct codings are checked within a separate stage. That
+    // stage has a single partition, so all of the distinct codings are sent in one request.
+    final ParserContext parserContext = new ParserContextBuilder(spark, fhirContext)
+        .terminologyClient(terminologyClient)
+        .terminologyClientFactory(terminologyClientFactory)
+        .terminologyResolveDistinctCodings(true)
+        .build();
+
+    final NamedFunctionInput memberOfInput = new NamedFunctionInput(parserContext, inputExpression,
+        Collections.singletonList(argumentExpression));
+    final String shufflePartitions = spark.conf().get("spark.sql.shuffle.partitions");
+    spark.conf().set("spark.sql.shuffle.partitions", "1");
+    try {
+      final FhirPath result = new MemberOfFunction().invoke(memberOfInput);
+
+      final Dataset<Row> expectedResult = new DatasetBuilder(spark)
+          .withIdColumn()
+          .withColumn(DataTypes.BooleanType)
+          .withRow("diagnosticreport-1", true)
+          .withRow("diagnosticreport-2", false)
+          .withRow("diagnosticreport-3", false)
+          .withRow("diagnosticreport-4", false)
+          .withRow("diagnosticreport-5", true)
+          .withRow("diagnosticreport-6", null)
+          .build();
+      assertThat((BooleanPath) result)
+          .hasExpression("DiagnosticReport.code.memberOf('" + MY_VALUE_SET_URL + "')")
+          .isSingular()
+          .selectOrderedResult()
+          .hasRows(expectedResult);
+    } finally {
+      spark.conf().set("spark.sql.shuffle.partitions", shufflePartitions);
+      EXECUTOR_TERMINOLOGY_CLIENT.set(null);
+    }
+
+    // Each of the three distinct codings is sent to the terminology service once, within a single
+    // request.
+    final ArgumentCaptor<ValueSet> requests = ArgumentCaptor.forClass(ValueSet.class);
+    verify(terminologyClient, times(1)).expand(requests.capture(), any(IntegerType.class));
+    final long concepts = requests.getValue().getCompose().getInclude().stream()
+        .mapToLong(include -> include.getConcept().size())
+        .sum();
+    assertEquals(3, concepts);
+  }
+
   @Test
   public void throwsErrorIfInputTypeIsUnsupported() {
     final FhirPath mockContext = new ElementPathBuilder(spark).build();
@@ -11,16 +11,27 @@ import static au.csiro.pathling.test.fixtures.ConceptMapFixtures.createConceptMa
 import static au.csiro.pathling.test.fixtures.ConceptMapFixtures.newVersionedCoding;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import au.csiro.pathling.fhir.TerminologyClient;
+import au.csiro.pathling.fhir.TerminologyRequestPool;
 import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
 import au.csiro.pathling.test.fixtures.ConceptMapEntry;
 import java.util.*;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.ConceptMap;
 import org.hl7.fhir.r4.model.Enumerations.ConceptMapEquivalence;
+import org.hl7.fhir.r4.model.StringType;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
 @Tag("UnitTest")
 public class ClosureServiceTest {
@@ -82,4 +93,42 @@ public class ClosureServiceTest {
         Collections.singletonList(new SimpleCoding(CODING_1_3_1)));
     assertEquals(expectedMappings, ClosureService.conceptMapToClosure(complexMap).getMappings());
   }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testAddsBatchesToSameClosure() {
+    final TerminologyClient terminologyClient = mock(TerminologyClient.class);
+    when(terminologyClient.closure(any(), any()))
+        .thenReturn(createConceptMap())
+        .thenReturn(createConceptMap(ConceptMapEntry.subsumesOf(CODING_1_1_1, CODING_1_2_1)))
+        .thenReturn(createConceptMap(ConceptMapEntry.subsumesOf(CODING_1_1_1, CODING_1_3_1)));
+    final ClosureService closureService = new ClosureService(terminologyClient,
+        new TerminologyRequestPool(2, 2));
+
+    final List<Mapping> mappings = closureService.getSubsumesMappings(Arrays.asList(
+        new SimpleCoding(CODING_1_1_1), new SimpleCoding(CODING_1_2_1),
+        new SimpleCoding(CODING_1_3_1)));
+
+    // The closure is initialised once, then the codings are added in two batches.
+    final ArgumentCaptor<StringType> names = ArgumentCaptor.forClass(StringType.class);
+    final ArgumentCaptor<List<Coding>> batches = ArgumentCaptor.forClass(List.class);
+    verify(terminologyClient).closure(any(), isNull());
+    verify(terminologyClient, times(3)).closure(names.capture(), batches.capture());
+    assertEquals(1, names.getAllValues().stream().map(StringType::getValue).distinct().count());
+    assertEquals(Arrays.asList(2, 1), batches.getAllValues().subList(1, 3).stream()
+        .map(List::size)
+        .collect(Collectors.toList()));
+    assertEquals(Arrays.asList(
+        Mapping.of(new SimpleCoding(CODING_1_2_1), new SimpleCoding(CODING_1_1_1)),
+        Mapping.of(new SimpleCoding(CODING_1_3_1), new SimpleCoding(CODING_1_1_1))), mappings);
+  }
+
+  @Test
+  public void testSendsNoRequestsForNoCodings() {
+    final TerminologyClient terminologyClient = mock(TerminologyClient.class);
+    final ClosureService closureService = new ClosureService(terminologyClient);
+
+    assertTrue(closureService.getSubsumesMappings(Collections.emptyList()).isEmpty());
+    verify(terminologyClient, times(0)).closure(any(), any());
+  }
 }
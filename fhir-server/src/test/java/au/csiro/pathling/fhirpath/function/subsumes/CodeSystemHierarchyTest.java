@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.function.subsumes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
+import java.util.Arrays;
+import java.util.Collections;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemHierarchyMeaning;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author John Grimes
+ */
+@Tag("UnitTest")
+class CodeSystemHierarchyTest {
+
+  private static final String NESTED = "http://example.com/nested";
+  private static final String PROPERTIES = "http://example.com/properties";
+
+  @Test
+  void followsNestedConcepts() {
+    final CodeSystem codeSystem = new CodeSystem().setUrl(NESTED).setVersion("1");
+    final ConceptDefinitionComponent root = codeSystem.addConcept().setCode("root");
+    final ConceptDefinitionComponent middle = root.addConcept().setCode("middle");
+    middle.addConcept().setCode("leaf");
+    root.addConcept().setCode("sibling");
+
+    final CodeSystemHierarchy hierarchy = CodeSystemHierarchy
+        .fromCodeSystems(Collections.singletonList(codeSystem));
+
+    assertEquals(4, hierarchy.size());
+    assertTrue(hierarchy.subsumes(coding(NESTED, "root"), coding(NESTED, "leaf")));
+    assertTrue(hierarchy.subsumes(coding(NESTED, "middle"), coding(NESTED, "leaf")));
+    assertTrue(hierarchy.subsumes(coding(NESTED, "leaf"), coding(NESTED, "leaf")));
+    assertFalse(hierarchy.subsumes(coding(NESTED, "leaf"), coding(NESTED, "root")));
+    assertFalse(hierarchy.subsumes(coding(NESTED, "sibling"), coding(NESTED, "leaf")));
+
+    // Versioned codings are only covered if the version matches the one that was indexed.
+    assertTrue(hierarchy.covers(new SimpleCoding(NESTED, "leaf", "1")));
+    assertFalse(hierarchy.covers(new SimpleCoding(NESTED, "leaf", "2")));
+    assertTrue(hierarchy
+        .subsumes(new SimpleCoding(NESTED, "root", "1"), coding(NESTED, "leaf")));
+  }
+
+  @Test
+  void keepsVersionsOfCodeSystemsSeparate() {
+    final CodeSystem first = new CodeSystem().setUrl(NESTED).setVersion("1");
+    first.addConcept().setCode("a").addConcept().setCode("b");
+    final CodeSystem second = new CodeSystem().setUrl(NESTED).setVersion("2");
+    second.addConcept().setCode("b").addConcept().setCode("a");
+
+    final CodeSystemHierarchy hierarchy = CodeSystemHierarchy
+        .fromCodeSystems(Arrays.asList(first, second));
+
+    assertEquals(4, hierarchy.size());
+    assertTrue(hierarchy
+        .subsumes(new SimpleCoding(NESTED, "a", "1"), new SimpleCoding(NESTED, "b", "1")));
+    assertFalse(hierarchy
+        .subsumes(new SimpleCoding(NESTED, "b", "1"), new SimpleCoding(NESTED, "a", "1")));
+    assertTrue(hierarchy
+        .subsumes(new SimpleCoding(NESTED, "b", "2"), new SimpleCoding(NESTED, "a", "2")));
+    assertFalse(hierarchy
+        .subsumes(new SimpleCoding(NESTED, "a", "2"), new SimpleCoding(NESTED, "b", "2")));
+
+    // Codings from different versions are not related, and unversioned codings are left to the
+    // terminology service as it is not known which version they belong to.
+    assertFalse(hierarchy
+        .subsumes(new SimpleCoding(NESTED, "a", "1"), new SimpleCoding(NESTED, "b", "2")));
+    assertFalse(hierarchy.covers(coding(NESTED, "a")));
+  }
+
+  @Test
+  void followsParentAndChildProperties() {
+    final CodeSystem codeSystem = new CodeSystem().setUrl(PROPERTIES);
+    codeSystem.addProperty().setCode("broader")
+        .setUri("http://hl7.org/fhir/concept-properties#parent");
+    codeSystem.addConcept().setCode("a");
+    codeSystem.addConcept().setCode("b").addProperty().setCode("parent")
+        .setValue(new CodeType("a"));
+    codeSystem.addConcept().setCode("c").addProperty().setCode("broader")
+        .setValue(new CodeType("b"));
+    // The "d" concept has two parents.
+    final ConceptDefinitionComponent d = codeSystem.addConcept().setCode("d");
+    d.addProperty().setCode("parent").setValue(new CodeType("c"));
+    d.addProperty().setCode("parent").setValue(new CodeType("x"));
+    codeSystem.addConcept().setCode("e").addProperty().setCode("child")
+        .setValue(new CodeType("a"));
+
+    final CodeSystemHierarchy hierarchy = CodeSystemHierarchy
+        .fromCodeSystems(Collections.singletonList(codeSystem));
+
+    assertTrue(hierarchy.subsumes(coding(PROPERTIES, "a"), coding(PROPERTIES, "d")));
+    assertTrue(hierarchy.subsumes(coding(PROPERTIES, "x"), coding(PROPERTIES, "d")));
+    assertTrue(hierarchy.subsumes(coding(PROPERTIES, "e"), coding(PROPERTIES, "d")));
+    assertFalse(hierarchy.subsumes(coding(PROPERTIES, "x"), coding(PROPERTIES, "c")));
+    assertFalse(hierarchy.subsumes(coding(PROPERTIES, "d"), coding(PROPERTIES, "a")));
+  }
+
+  @Test
+  void handlesCycles() {
+    final CodeSystem codeSystem = new CodeSystem().setUrl(PROPERTIES);
+    codeSystem.addConcept().setCode("a").addProperty().setCode("parent")
+        .setValue(new CodeType("b"));
+    codeSystem.addConcept().setCode("b").addProperty().setCode("parent")
+        .setValue(new CodeType("a"));
+    codeSystem.addConcept().setCode("c").addProperty().setCode("parent")
+        .setValue(new CodeType("b"));
+
+    final CodeSystemHierarchy hierarchy = CodeSystemHierarchy
+        .fromCodeSystems(Collections.singletonList(codeSystem));
+
+    assertTrue(hierarchy.subsumes(coding(PROPERTIES, "a"), coding(PROPERTIES, "b")));
+    assertTrue(hierarchy.subsumes(coding(PROPERTIES, "b"), coding(PROPERTIES, "a")));
+    assertTrue(hierarchy.subsumes(coding(PROPERTIES, "a"), coding(PROPERTIES, "c")));
+    assertFalse(hierarchy.subsumes(coding(PROPERTIES, "c"), coding(PROPERTIES, "a")));
+  }
+
+  @Test
+  void ignoresCodeSystemsThatAreNotIsA() {
+    final CodeSystem codeSystem = new CodeSystem().setUrl(NESTED)
+        .setHierarchyMeaning(CodeSystemHierarchyMeaning.PARTOF);
+    codeSystem.addConcept().setCode("whole").addConcept().setCode("part");
+
+    final CodeSystemHierarchy hierarchy = CodeSystemHierarchy
+        .fromCodeSystems(Collections.singletonList(codeSystem));
+
+    assertFalse(hierarchy.covers(coding(NESTED, "part")));
+    assertFalse(hierarchy.subsumes(coding(NESTED, "whole"), coding(NESTED, "part")));
+  }
+
+  @Test
+  void doesNotRelateCodingsFromDifferentSystems() {
+    final CodeSystem nested = new CodeSystem().setUrl(NESTED);
+    nested.addConcept().setCode("a").addConcept().setCode("b");
+    final CodeSystem properties = new CodeSystem().setUrl(PROPERTIES);
+    properties.addConcept().setCode("b");
+
+    final CodeSystemHierarchy hierarchy = CodeSystemHierarchy
+        .fromCodeSystems(Arrays.asList(nested, properties));
+
+    assertTrue(hierarchy.anySubsumes(Collections.singletonList(coding(NESTED, "a")),
+        Arrays.asList(coding(PROPERTIES, "b"), coding(NESTED, "b"))));
+    assertFalse(hierarchy.anySubsumes(Collections.singletonList(coding(NESTED, "a")),
+        Collections.singletonList(coding(PROPERTIES, "b"))));
+    assertFalse(hierarchy.covers(coding("http://example.com/other", "a")));
+  }
+
+  private static SimpleCoding coding(final String system, final String code) {
+    return new SimpleCoding(system, code);
+  }
+
+}
@@ -15,14 +15,20 @@ import static au.csiro.pathling.test.helpers.SparkHelpers.rowFromCoding;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 import au.csiro.pathling.errors.InvalidUserInputError;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.NonLiteralPath;
+import au.csiro.pathling.fhirpath.ResourceProjection;
 import au.csiro.pathling.fhirpath.element.BooleanPath;
 import au.csiro.pathling.fhirpath.element.CodingPath;
 import au.csiro.pathling.fhirpath.element.ElementPath;
@@ -39,6 +45,10 @@ import au.csiro.pathling.test.builders.ParserContextBuilder;
 import au.csiro.pathling.test.fixtures.ConceptMapEntry;
 import au.csiro.pathling.test.fixtures.ConceptMapFixtures;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.param.UriParam;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -47,6 +57,7 @@ import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.sql.types.DataTypes;
+import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.ConceptMap;
@@ -54,6 +65,7 @@ import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
@@ -81,6 +93,8 @@ public class SubsumesFunctionTest {
   private static final String RES_ID4 = "condition-xyz4";
   private static final String RES_ID5 = "condition-xyz5";
 
+  private static final int BROADCAST_THRESHOLD = 100;
+
   // coding_large -- subsumes --> coding_medium --> subsumes --> coding_small
   private static final ConceptMap MAP_LARGE_MEDIUM_SMALL =
       ConceptMapFixtures.createConceptMap(ConceptMapEntry.subsumesOf(CODING_MEDIUM, CODING_LARGE),
@@ -112,6 +126,8 @@ public class SubsumesFunctionTest {
   @BeforeEach
   public void setUp() {
     when(terminologyClient.closure(any(), any())).thenReturn(MAP_LARGE_MEDIUM_SMALL);
+    when(terminologyClient.searchCodeSystems(any(UriParam.class), any()))
+        .thenReturn(Collections.singletonList(new CodeSystem()));
   }
 
   private CodingPath createCodingInput() {
@@ -299,9 +315,33 @@ public class SubsumesFunctionTest {
 
   private FhirPathAssertion assertCallSuccess(final NamedFunction function,
       final NonLiteralPath inputExpression, final FhirPath argumentExpression) {
+    return assertCallSuccess(function, inputExpression, argumentExpression, false);
+  }
+
+  private FhirPathAssertion assertCallSuccess(final NamedFunction function,
+      final NonLiteralPath inputExpression, final FhirPath argumentExpression,
+      final boolean resolveDistinctCodings) {
+    return assertCallSuccess(function, inputExpression, argumentExpression,
+        resolveDistinctCodings, terminologyClientFactory);
+  }
+
+  private FhirPathAssertion assertCallSuccess(final NamedFunction function,
+      final NonLiteralPath inputExpression, final FhirPath argumentExpression,
+      final boolean resolveDistinctCodings,
+      final TerminologyClientFactory terminologyClientFactory) {
+    return assertCallSuccess(function, inputExpression, argumentExpression,
+        resolveDistinctCodings, terminologyClientFactory, BROADCAST_THRESHOLD);
+  }
+
+  private FhirPathAssertion assertCallSuccess(final NamedFunction function,
+      final NonLiteralPath inputExpression, final FhirPath argumentExpression,
+      final boolean resolveDistinctCodings,
+      final TerminologyClientFactory terminologyClientFactory, final int broadcastThreshold) {
     final ParserContext parserContext = new ParserContextBuilder(spark, fhirContext)
         .terminologyClient(terminologyClient)
         .terminologyClientFactory(terminologyClientFactory)
+        .terminologyBroadcastThreshold(broadcastThreshold)
+        .terminologyResolveDistinctCodings(resolveDistinctCodings)
         .build();
 
     final NamedFunctionInput functionInput = new NamedFunctionInput(parserContext, inputExpression,
@@ -374,6 +414,104 @@ public class SubsumesFunctionTest {
         .hasRows(expectedSubsumedBy());
   }
 
+  //
+  // Test resolving the distinct codings across the whole input
+  //
+
+  @Test
+  public void testSubsumesWithDistinctCodingsCorrectly() {
+    assertCallSuccess(NamedFunction.getInstance("subsumes"), createCodeableConceptInput(),
+        createCodingArg(), true)
+        .selectOrderedResultWithEid()
+        .hasRows(expectedSubsumes());
+  }
+
+  @Test
+  public void testSubsumedByWithDistinctCodingsCorrectly() {
+    assertCallSuccess(NamedFunction.getInstance("subsumedBy"), createCodingInput(),
+        createCodeableConceptArg(), true)
+        .selectOrderedResultWithEid()
+        .hasRows(expectedSubsumedBy());
+  }
+
+  @Test
+  public void testSubsumesWithDistinctCodingsAboveThresholdCorrectly() {
+    // There are more distinct codings than the threshold, so they are not collected to the driver,
+    // and the relationships are instead found within each partition.
+    clearInvocations(terminologyClient);
+    assertCallSuccess(NamedFunction.getInstance("subsumes"), createCodeableConceptInput(),
+        createCodingArg(), true, terminologyClientFactory, 1)
+        .selectOrderedResultWithEid()
+        .hasRows(expectedSubsumes());
+    // The requests from each partition are made by the copies of the client on the executors.
+    verify(terminologyClient, never()).closure(any(), any());
+  }
+
+  @Test
+  public void testMakesNoRequestsWhileRecording() {
+    final TerminologyClientFactory factory = mock(TerminologyClientFactory.class,
+        withSettings().serializable());
+    clearInvocations(terminologyClient);
+
+    // The projection has not been frozen, so the dataset from this parse is never executed.
+    final ParserContext parserContext = new ParserContextBuilder(spark, fhirContext)
+        .terminologyClient(terminologyClient)
+        .terminologyClientFactory(factory)
+        .terminologyBroadcastThreshold(BROADCAST_THRESHOLD)
+        .terminologyResolveDistinctCodings(true)
+        .projection(new ResourceProjection())
+        .build();
+    NamedFunction.getInstance("subsumes").invoke(new NamedFunctionInput(parserContext,
+        createCodeableConceptInput(), Collections.singletonList(createCodingArg())));
+
+    verify(factory, never()).getKnownCodeSystems(any());
+    verify(factory, never()).getCache();
+    verifyNoInteractions(terminologyClient);
+  }
+
+  //
+  // Test using the hierarchies of code systems that have been loaded locally
+  //
+
+  @Test
+  public void testSubsumesUsingLocalHierarchyCorrectly(@TempDir final Path directory)
+      throws IOException {
+    assertCallSuccess(NamedFunction.getInstance("subsumes"), createCodeableConceptInput(),
+        createCodingArg(), false, localHierarchyFactory(directory))
+        .selectOrderedResultWithEid()
+        .hasRows(expectedSubsumes());
+  }
+
+  @Test
+  public void testSubsumedByUsingLocalHierarchyWithDistinctCodingsCorrectly(
+      @TempDir final Path directory) throws IOException {
+    assertCallSuccess(NamedFunction.getInstance("subsumedBy"), createCodingInput(),
+        createCodeableConceptArg(), true, localHierarchyFactory(directory))
+        .selectOrderedResultWithEid()
+        .hasRows(expectedSubsumedBy());
+  }
+
+  @Nonnull
+  private TerminologyClientFactory localHierarchyFactory(@Nonnull final Path directory)
+      throws IOException {
+    // The terminology service does not return any relationships, so they can only be found using
+    // the hierarchy that has been loaded locally.
+    when(terminologyClient.closure(any(), any()))
+        .thenReturn(ConceptMapFixtures.creatEmptyConceptMap());
+
+    final CodeSystem codeSystem = new CodeSystem().setUrl(TEST_SYSTEM);
+    codeSystem.addConcept().setCode(CODING_LARGE.getCode())
+        .addConcept().setCode(CODING_MEDIUM.getCode())
+        .addConcept().setCode(CODING_SMALL.getCode());
+    final Path codeSystems = directory.resolve("CodeSystem.ndjson");
+    Files.writeString(codeSystems, fhirContext.newJsonParser().encodeResourceToString(codeSystem));
+
+    // The clients built on the executors point to a server that does not exist, as all of the
+    // codings can be tested without it.
+    return new TerminologyClientFactory(fhirContext, "http://localhost:1/fhir", 1000, false, 0, 0,
+        null, 0, 0, 1, 0, codeSystems.toUri().toString());
+  }
+
   //
   // Test against nulls
   //
@@ -11,20 +11,25 @@ import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.ArgumentMatchers.refEq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import au.csiro.pathling.fhir.KnownCodeSystems;
+import au.csiro.pathling.fhir.TerminologyCache;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.fhirpath.encoding.SimpleCoding;
 import au.csiro.pathling.test.fixtures.ConceptMapFixtures;
 import ca.uhn.fhir.rest.param.UriParam;
+import java.time.Duration;
 import java.util.*;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.spark.broadcast.Broadcast;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.Coding;
 import org.junit.jupiter.api.BeforeEach;
@@ -88,6 +93,76 @@ public class SubsumptionMapperWithPreviewTest {
     verifyNoMoreInteractions(terminologyClient);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testUsesKnownCodeSystemsInsteadOfSearching() {
+    final KnownCodeSystems knownCodeSystems = mock(KnownCodeSystems.class);
+    when(knownCodeSystems.contains(SYSTEM1)).thenReturn(true);
+    final Broadcast<KnownCodeSystems> broadcast = mock(Broadcast.class);
+    when(broadcast.value()).thenReturn(knownCodeSystems);
+
+    final SubsumptionMapperWithPreview mapper = new SubsumptionMapperWithPreview("foo",
+        terminologyClientFactory, false, broadcast);
+    final List<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>> inputPairs = Arrays
+        .asList(
+            ImmutablePair.of(Collections.singletonList(CODING1_VERSION1),
+                Collections.singletonList(CODING2_VERSION1)),
+            ImmutablePair.of(Collections.singletonList(CODING1_UNVERSIONED),
+                Collections.singletonList(CODING1_VERSION1)));
+
+    mapper.preview(inputPairs.iterator());
+
+    // The code systems are not searched for, as the known code systems have been broadcast.
+    verify(terminologyClient).closure(any(), isNull());
+    verify(terminologyClient)
+        .closure(any(),
+            argThat(new CodingSetMatcher(Arrays.asList(CODING1_VERSION1, CODING1_UNVERSIONED))));
+    verifyNoMoreInteractions(terminologyClient);
+  }
+
+  @Test
+  public void testReusesCachedResultsAcrossPartitions() {
+    when(terminologyClient.searchCodeSystems(refEq(new UriParam(SYSTEM1)), any()))
+        .thenReturn(Collections.singletonList(new CodeSystem()));
+    when(terminologyClientFactory.getCache())
+        .thenReturn(Optional.of(new TerminologyCache(100, Duration.ofHours(1))));
+
+    final SubsumptionMapperWithPreview mapper = new SubsumptionMapperWithPreview("foo",
+        terminologyClientFactory, false);
+    final List<ImmutablePair<List<SimpleCoding>, List<SimpleCoding>>> inputPairs = Collections
+        .singletonList(ImmutablePair.of(Collections.singletonList(CODING1_VERSION1),
+            Collections.singletonList(CODING1_UNVERSIONED)));
+
+    // The second partition contains the same codings, so no further requests are needed.
+    mapper.preview(inputPairs.iterator());
+    mapper.preview(inputPairs.iterator());
+
+    verify(terminologyClientFactory, times(1)).build(any());
+    verify(terminologyClient).searchCodeSystems(refEq(new UriParam(SYSTEM1)), any());
+    verify(terminologyClient).closure(any(), isNull());
+    verify(terminologyClient)
+        .closure(any(),
+            argThat(new CodingSetMatcher(Arrays.asList(CODING1_VERSION1, CODING1_UNVERSIONED))));
+    verifyNoMoreInteractions(terminologyClient);
+
+    // Relationships are cached for each pair of codings, so a partition that contains a subset of
+    // these codings needs no further requests either.
+    mapper.preview(Collections.singletonList(
+        ImmutablePair.of(Collections.singletonList(CODING1_VERSION1),
+            Collections.<SimpleCoding>emptyList())).iterator());
+    verifyNoMoreInteractions(terminologyClient);
+
+    // A partition with a new coding needs a new closure, but the code system is not searched for
+    // again.
+    final SimpleCoding other = new SimpleCoding(SYSTEM1, "other", "version1");
+    mapper.preview(Collections.singletonList(
+        ImmutablePair.of(Collections.singletonList(CODING1_VERSION1),
+            Collections.singletonList(other))).iterator());
+    verify(terminologyClient, times(1)).searchCodeSystems(any(), any());
+    verify(terminologyClient)
+        .closure(any(), argThat(new CodingSetMatcher(Arrays.asList(CODING1_VERSION1, other))));
+  }
+
   @Test
   public void testFiltersUndefineCodingSets() {
 
@@ -103,11 +178,8 @@ public class SubsumptionMapperWithPreviewTest {
 
     mapper.preview(inputPairs.iterator());
 
-    // verify behaviour
-    verify(terminologyClient).closure(any(), isNull());
-    verify(terminologyClient)
-        .closure(any(),
-            argThat(new CodingSetMatcher(Collections.emptySet())));
+    // verify behaviour: there are no codings to find relationships between, so no closure is
+    // requested
     verifyNoMoreInteractions(terminologyClient);
   }
 
@@ -126,11 +198,8 @@ public class SubsumptionMapperWithPreviewTest {
 
     mapper.preview(inputPairs.iterator());
 
-    // verify behaviour
-    verify(terminologyClient).closure(any(), isNull());
-    verify(terminologyClient)
-        .closure(any(),
-            argThat(new CodingSetMatcher(Collections.emptySet())));
+    // verify behaviour: there are no codings to find relationships between, so no closure is
+    // requested
     verifyNoMoreInteractions(terminologyClient);
   }
 
@@ -8,6 +8,7 @@ package au.csiro.pathling.fhirpath.operator;
 
 import static au.csiro.pathling.test.assertions.Assertions.assertThat;
 import static au.csiro.pathling.test.builders.DatasetBuilder.makeEid;
+import static org.apache.spark.sql.functions.lit;
 import static org.junit.Assert.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -16,15 +17,21 @@ import static org.mockito.Mockito.when;
 
 import au.csiro.pathling.errors.InvalidUserInputError;
 import au.csiro.pathling.fhirpath.FhirPath;
+import au.csiro.pathling.fhirpath.NonLiteralPath;
 import au.csiro.pathling.fhirpath.ResourcePath;
+import au.csiro.pathling.fhirpath.Temporal;
+import au.csiro.pathling.fhirpath.element.DatePath;
 import au.csiro.pathling.fhirpath.element.ElementDefinition;
 import au.csiro.pathling.fhirpath.element.ElementPath;
 import au.csiro.pathling.fhirpath.element.StringPath;
+import au.csiro.pathling.fhirpath.literal.DateLiteralPath;
 import au.csiro.pathling.fhirpath.parser.ParserContext;
 import au.csiro.pathling.io.ResourceReader;
 import au.csiro.pathling.test.builders.*;
 import au.csiro.pathling.test.helpers.FhirHelpers;
 import ca.uhn.fhir.context.FhirContext;
+import java.sql.Timestamp;
+import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Optional;
@@ -240,6 +247,52 @@ public class PathTraversalOperatorTest {
         .hasRows(expectedDataset);
   }
 
+  @Test
+  public void singularTemporalTraversalUsesInstantColumn() throws ParseException {
+    // The instant for patient-2 deliberately disagrees with its birth date, so that the result of
+    // the comparison shows which of them was used.
+    final Dataset<Row> leftDataset = new ResourceDatasetBuilder(spark)
+        .withIdColumn()
+        .withColumn("birthDate", DataTypes.StringType)
+        .withColumn("_birthDate_instant", DataTypes.TimestampType)
+        .withRow("patient-1", "1983-06-21", Timestamp.valueOf("1983-06-21 00:00:00"))
+        .withRow("patient-2", "1975-02-01", Timestamp.valueOf("1990-01-01 00:00:00"))
+        .withRow("patient-3", null, null)
+        .build();
+    when(resourceReader.read(ResourceType.PATIENT)).thenReturn(leftDataset);
+    final ResourcePath left = new ResourcePathBuilder(spark)
+        .fhirContext(fhirContext)
+        .resourceType(ResourceType.PATIENT)
+        .resourceReader(resourceReader)
+        .singular(true)
+        .build();
+
+    final PathTraversalInput input = new PathTraversalInput(parserContext, left, "birthDate");
+    final FhirPath result = new PathTraversalOperator().invoke(input);
+    assertTrue(result instanceof DatePath);
+    assertTrue(((Temporal) result).getInstantColumn().isPresent());
+
+    final DateLiteralPath literal = DateLiteralPath.fromString("@1980-01-01", result);
+    final FhirPath comparison = Operator.getInstance(">")
+        .invoke(new OperatorInput(parserContext, result, literal));
+    assertThat(comparison).selectOrderedResult().hasRows(
+        RowFactory.create("patient-1", true),
+        RowFactory.create("patient-2", true),
+        RowFactory.create("patient-3", null)
+    );
+
+    // A copy with the same values keeps the instant, while one with different values does not.
+    final DatePath datePath = (DatePath) result;
+    final NonLiteralPath renamed = datePath.copy("%context", datePath.getDataset(),
+        datePath.getIdColumn(), datePath.getEidColumn(), datePath.getValueColumn(),
+        datePath.isSingular(), datePath.getThisColumn());
+    assertEquals(datePath.getInstantColumn(), ((Temporal) renamed).getInstantColumn());
+    final NonLiteralPath changed = datePath.copy("changed", datePath.getDataset(),
+        datePath.getIdColumn(), datePath.getEidColumn(), lit("2000-01-01"),
+        datePath.isSingular(), datePath.getThisColumn());
+    assertTrue(((Temporal) changed).getInstantColumn().isEmpty());
+  }
+
   @Test
   public void throwsErrorOnNonExistentChild() {
     final ResourcePath left = new ResourcePathBuilder(spark)
@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.fhirpath.parser;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.fhir.FhirPathLexer;
+import au.csiro.pathling.fhir.FhirPathParser;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the latency of producing a plan for a set of typical grouping and filter expressions,
+ * using full LL prediction, SLL prediction followed by LL where necessary, and the plan cache.
+ * Run using the {@code benchmark} profile, the number of iterations can be controlled using the
+ * {@code pathling.benchmark.iterations} system property.
+ *
+ * @author John Grimes
+ */
+@Tag("Benchmark")
+@Slf4j
+class ParserBenchmark {
+
+  private static final int ITERATIONS = Integer.getInteger("pathling.benchmark.iterations", 2000);
+  private static final int WARMUP_ITERATIONS = 200;
+
+  private static final List<String> EXPRESSIONS = List.of(
+      "gender",
+      "name.given.first()",
+      "birthDate > @1970-01-01 and active = true",
+      "reverseResolve(Condition.subject).code.coding.where(system = 'http://snomed.info/sct').code",
+      "reverseResolve(Encounter.subject).reasonCode"
+          + ".memberOf('http://snomed.info/sct?fhir_vs=refset/32570521000036109') contains true",
+      "(reasonCode.coding.display contains 'Viral pneumonia') and (class.code = 'AMB')",
+      "reverseResolve(Condition.subject).where(onsetDateTime > @2010-01-01).count() > 2",
+      "maritalStatus.coding.where($this.subsumedBy(http://snomed.info/sct|87512008)).empty()",
+      "address.where(use = 'home').postalCode.first()",
+      "telecom.where(system = 'phone' and use = 'mobile').empty().not()"
+  );
+
+  @Test
+  void cachedPlansAreFasterThanParsing() {
+    // Each unique variant of an expression is parsed once, so the cold measurements never hit the
+    // cache. The variants are produced by adding a trailing literal comparison.
+    final int[] counter = {0};
+    final Consumer<String> fullLl = expression -> parseWithFullLl(variant(expression, counter));
+    final Consumer<String> cold = expression -> Parser.plan(variant(expression, counter));
+    final Consumer<String> warm = Parser::plan;
+
+    measure(fullLl, WARMUP_ITERATIONS);
+    measure(cold, WARMUP_ITERATIONS);
+    measure(warm, WARMUP_ITERATIONS);
+
+    final double fullLlMicros = measure(fullLl, ITERATIONS);
+    final double coldMicros = measure(cold, ITERATIONS);
+    final double warmMicros = measure(warm, ITERATIONS);
+
+    log.info("Mean parse latency, full LL: {} µs", String.format("%.2f", fullLlMicros));
+    log.info("Mean parse latency, SLL then LL (cold): {} µs", String.format("%.2f", coldMicros));
+    log.info("Mean parse latency, cached (warm): {} µs", String.format("%.2f", warmMicros));
+    assertTrue(warmMicros < coldMicros);
+  }
+
+  /**
+   * @return the mean time taken to parse each expression, in microseconds
+   */
+  private static double measure(@Nonnull final Consumer<String> parse, final int iterations) {
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      EXPRESSIONS.forEach(parse);
+    }
+    final long elapsed = System.nanoTime() - start;
+    return elapsed / 1000.0 / ((long) iterations * EXPRESSIONS.size());
+  }
+
+  @Nonnull
+  private static String variant(@Nonnull final String expression, @Nonnull final int[] counter) {
+    return "(" + expression + ") = " + counter[0]++;
+  }
+
+  /**
+   * Parses an expression in the way that the parser did before the introduction of SLL prediction
+   * and the plan cache.
+   */
+  private static void parseWithFullLl(@Nonnull final String expression) {
+    final FhirPathLexer lexer = new FhirPathLexer(CharStreams.fromString(expression));
+    final FhirPathParser parser = new FhirPathParser(new CommonTokenStream(lexer));
+    parser.removeErrorListeners();
+    parser.addErrorListener(new ParserErrorListener());
+    parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+    parser.expression();
+  }
+
+}
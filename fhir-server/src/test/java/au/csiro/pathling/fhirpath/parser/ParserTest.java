@@ -10,8 +10,11 @@ import static au.csiro.pathling.test.assertions.Assertions.assertThat;
 import static au.csiro.pathling.test.fixtures.PatientListBuilder.*;
 import static au.csiro.pathling.test.helpers.TestHelpers.getResourceAsStream;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -19,6 +22,7 @@ import static org.mockito.Mockito.when;
 import au.csiro.pathling.errors.InvalidUserInputError;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
+import au.csiro.pathling.fhirpath.FhirPath;
 import au.csiro.pathling.fhirpath.ResourcePath;
 import au.csiro.pathling.fhirpath.element.BooleanPath;
 import au.csiro.pathling.fhirpath.element.IntegerPath;
@@ -26,6 +30,9 @@ import au.csiro.pathling.fhirpath.literal.CodingLiteralPath;
 import au.csiro.pathling.fhirpath.literal.DateLiteralPath;
 import au.csiro.pathling.fhirpath.literal.DateTimeLiteralPath;
 import au.csiro.pathling.fhirpath.literal.TimeLiteralPath;
+import au.csiro.pathling.fhirpath.parser.PlanNode.LiteralNode;
+import au.csiro.pathling.fhirpath.parser.PlanNode.LiteralType;
+import au.csiro.pathling.fhirpath.parser.PlanNode.OperatorNode;
 import au.csiro.pathling.io.ResourceReader;
 import au.csiro.pathling.test.TimingExtension;
 import au.csiro.pathling.test.assertions.FhirPathAssertion;
@@ -79,6 +86,7 @@ public class ParserTest {
   private IParser jsonParser;
 
   private Parser parser;
+  private ParserContext parserContext;
   private ResourceReader mockReader;
 
   @BeforeEach
@@ -91,7 +99,7 @@ public class ParserTest {
     final ResourcePath subjectResource = ResourcePath
         .build(fhirContext, mockReader, ResourceType.PATIENT, ResourceType.PATIENT.toCode(), true);
 
-    final ParserContext parserContext = new ParserContextBuilder(spark, fhirContext)
+    parserContext = new ParserContextBuilder(spark, fhirContext)
         .terminologyClientFactory(terminologyClientFactory)
         .terminologyClient(terminologyClient)
         .resourceReader(mockReader)
@@ -385,6 +393,18 @@ public class ParserTest {
         .hasRows(spark, "responses/ParserTest/testNestedWhereWithAggregationOnElement.csv");
   }
 
+  /**
+   * This tests that the items of a collection are retained by `where`, when the criteria use the
+   * first item of a collection that is empty for some of them.
+   */
+  @Test
+  public void testWhereWithFirstOfEmptyCollection() {
+    final List<String> first = resultsOf(parser.parse("name.where(prefix.first().empty()).family"));
+    final List<String> empty = resultsOf(parser.parse("name.where(prefix.empty()).family"));
+    assertEquals(empty, first);
+    assertTrue(first.stream().anyMatch(result -> !result.endsWith("|null")));
+  }
+
   @Test
   public void testBooleanOperatorWithTwoLiterals() {
     assertThatResultOf("true and false")
@@ -425,4 +445,102 @@ public class ParserTest {
             "(reasonCode.coding.display contains 'Viral pneumonia') and (class.code = 'AMB'"));
     assertEquals("Error parsing FHIRPath expression: missing ')' at '<EOF>'", error.getMessage());
   }
+
+  @Test
+  public void plansAreCached() {
+    final String expression = "reverseResolve(Condition.subject).code.coding"
+        + ".where(system = 'http://snomed.info/sct').code";
+    assertSame(Parser.plan(expression), Parser.plan(expression));
+  }
+
+  @Test
+  public void parserErrorIsNotCached() {
+    final String expression = "name.family.where(";
+    assertThrows(InvalidUserInputError.class, () -> parser.parse(expression));
+    assertThrows(InvalidUserInputError.class, () -> parser.parse(expression));
+  }
+
+  @Test
+  public void plansIgnoreParentheses() {
+    assertEquals(Parser.plan("name.given.first() = 'Karina848'"),
+        Parser.plan("(name.given.first()) = ('Karina848')"));
+  }
+
+  @Test
+  public void literalPlansKeepTypeAndText() {
+    final PlanNode plan = Parser.plan("birthDate = @1983-06-21");
+    assertTrue(plan instanceof OperatorNode);
+    assertEquals(new LiteralNode(LiteralType.DATE_TIME, "@1983-06-21"),
+        ((OperatorNode) plan).getRight());
+    final InvalidUserInputError error = assertThrows(InvalidUserInputError.class,
+        () -> parser.parse("multipleBirthInteger > 5 'mg'"));
+    assertEquals("Quantity literals are not supported", error.getMessage());
+  }
+
+  @Test
+  public void repeatedSubexpressionsAreShared() {
+    final PlanEvaluator evaluator = new PlanEvaluator(parserContext);
+    final FhirPath first = evaluator.evaluate(Parser.plan("name.given.first()"));
+    final FhirPath second = evaluator.evaluate(Parser.plan("(name.given.first())"));
+    assertSame(first, second);
+  }
+
+  @Test
+  public void comparisonWithLiteralDoesNotJoin() {
+    final FhirPath result = parser.parse("gender = 'female'");
+    assertFalse(result.getDataset().queryExecution().analyzed().toString().contains("Join"));
+  }
+
+  @Test
+  public void arrayFunctionsMatchExplodedEvaluation() {
+    // Evaluating within a grouping on the resource ID prevents the functions from being lowered.
+    final ParserContext groupedContext = new ParserContextBuilder(spark, fhirContext)
+        .terminologyClientFactory(terminologyClientFactory)
+        .terminologyClient(terminologyClient)
+        .resourceReader(mockReader)
+        .inputContext(parserContext.getInputContext())
+        .groupingColumns(Collections.singletonList(parserContext.getInputContext().getIdColumn()))
+        .build();
+    final Parser groupedParser = new Parser(groupedContext);
+
+    for (final String expression : Arrays.asList(
+        "name.count()",
+        "name.given.count()",
+        "name.where(use = 'official').count()",
+        "name.where(use != 'official' or family = 'Wuckert783').given.empty()",
+        "name.first().given.first()",
+        "Patient.identifier.where(system = 'https://github.com/synthetichealth/synthea').value"
+            + ".first()",
+        "communication.language.coding.empty()",
+        "maritalStatus.coding.count()")) {
+      final FhirPath lowered = parser.parse(expression);
+      final FhirPath exploded = groupedParser.parse(expression);
+      assertEquals(exploded.getExpression(), lowered.getExpression());
+      assertEquals(resultsById(exploded), resultsById(lowered), expression);
+    }
+  }
+
+  @Test
+  public void arrayFunctionsDoNotExplodeOrAggregate() {
+    final FhirPath result = parser.parse("name.where(use = 'official').given.count()");
+    final String plan = result.getDataset().queryExecution().optimizedPlan().toString();
+    assertFalse(plan.contains("Generate"));
+    assertFalse(plan.contains("Aggregate"));
+  }
+
+  private static List<String> resultsOf(final FhirPath result) {
+    return result.getDataset().select(result.getIdColumn(), result.getValueColumn())
+        .collectAsList().stream()
+        .map(row -> row.getString(0) + "|" + row.get(1))
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  private static Map<String, Object> resultsById(final FhirPath result) {
+    final Map<String, Object> results = new HashMap<>();
+    result.getDataset().select(result.getIdColumn(), result.getValueColumn()).collectAsList()
+        .forEach(row -> results.put(row.getString(0), row.get(1)));
+    return results;
+  }
+
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.io;
+
+import static org.apache.spark.sql.functions.lit;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.io.ResourceCache.Statistics;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nonnull;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("UnitTest")
+class ResourceCacheTest {
+
+  @Autowired
+  private SparkSession spark;
+
+  private final Map<ResourceType, Long> sizes = new EnumMap<>(ResourceType.class);
+
+  private final Map<ResourceType, Dataset<Row>> loaded = new EnumMap<>(ResourceType.class);
+
+  @BeforeEach
+  void setUp() {
+    spark.catalog().clearCache();
+    sizes.clear();
+    loaded.clear();
+    sizes.put(ResourceType.PATIENT, 100L);
+    sizes.put(ResourceType.CONDITION, 400L);
+    sizes.put(ResourceType.OBSERVATION, 600L);
+    sizes.put(ResourceType.ENCOUNTER, 2000L);
+  }
+
+  @Test
+  void recordsHitsAndMisses() {
+    final ResourceCache cache = buildCache(10, 1000);
+    final Dataset<Row> first = cache.get(ResourceType.PATIENT);
+    final Dataset<Row> second = cache.get(ResourceType.PATIENT);
+
+    assertSame(first, second);
+    assertTrue(isPersisted(first));
+    assertEquals(new Statistics(1, 1, 0, 100), cache.getStatistics().get(ResourceType.PATIENT));
+  }
+
+  @Test
+  void evictsLargeAndStaleTablesToStayWithinBudget() {
+    final ResourceCache cache = buildCache(10, 1000);
+    cache.get(ResourceType.CONDITION);
+    cache.get(ResourceType.PATIENT);
+    cache.get(ResourceType.PATIENT);
+
+    // Adding this table exceeds the budget, Condition is the largest and least recently used.
+    cache.get(ResourceType.OBSERVATION);
+
+    assertFalse(isPersisted(loaded.get(ResourceType.CONDITION)));
+    assertTrue(isPersisted(loaded.get(ResourceType.PATIENT)));
+    assertTrue(isPersisted(loaded.get(ResourceType.OBSERVATION)));
+    assertEquals(new Statistics(0, 1, 1, 0), cache.getStatistics().get(ResourceType.CONDITION));
+  }
+
+  @Test
+  void evictsToStayWithinMaximumSize() {
+    final ResourceCache cache = buildCache(1, 1000);
+    cache.get(ResourceType.PATIENT);
+    cache.get(ResourceType.CONDITION);
+
+    assertFalse(isPersisted(loaded.get(ResourceType.PATIENT)));
+    assertTrue(isPersisted(loaded.get(ResourceType.CONDITION)));
+  }
+
+  @Test
+  void doesNotPersistTablesLargerThanBudget() {
+    final ResourceCache cache = buildCache(10, 1000);
+    cache.get(ResourceType.PATIENT);
+    final Dataset<Row> encounters = cache.get(ResourceType.ENCOUNTER);
+
+    assertFalse(isPersisted(encounters));
+    assertTrue(isPersisted(loaded.get(ResourceType.PATIENT)));
+  }
+
+  @Test
+  void unpersistsOnInvalidation() {
+    final ResourceCache cache = buildCache(10, 1000);
+    cache.get(ResourceType.PATIENT);
+    cache.get(ResourceType.CONDITION);
+
+    cache.invalidate(ResourceType.PATIENT);
+    assertFalse(isPersisted(loaded.get(ResourceType.PATIENT)));
+    assertTrue(isPersisted(loaded.get(ResourceType.CONDITION)));
+
+    cache.invalidateAll();
+    assertFalse(isPersisted(loaded.get(ResourceType.CONDITION)));
+    assertEquals(0, cache.getStatistics().get(ResourceType.CONDITION).getBytes());
+  }
+
+  @Test
+  void doesNotCacheTablesLoadedDuringInvalidation() {
+    final AtomicReference<ResourceCache> cache = new AtomicReference<>();
+    final AtomicBoolean importing = new AtomicBoolean(true);
+    cache.set(new ResourceCache(resourceType -> {
+      final Dataset<Row> dataset = spark.range(sizes.get(resourceType)).toDF();
+      loaded.put(resourceType, dataset);
+      // An import commits after the table has been listed, but before it has been cached.
+      if (importing.getAndSet(false)) {
+        cache.get().invalidate(resourceType);
+      }
+      return dataset;
+    }, dataset -> 100L, StorageLevel.MEMORY_ONLY(), 10, 1000));
+
+    final Dataset<Row> stale = cache.get().get(ResourceType.PATIENT);
+    assertFalse(isPersisted(stale));
+    assertEquals(new Statistics(0, 1, 0, 0), cache.get().getStatistics().get(ResourceType.PATIENT));
+
+    // The next request loads the table again, and this time it is cached.
+    final Dataset<Row> fresh = cache.get().get(ResourceType.PATIENT);
+    assertTrue(isPersisted(fresh));
+    assertSame(fresh, cache.get().get(ResourceType.PATIENT));
+    assertEquals(new Statistics(1, 2, 0, 100),
+        cache.get().getStatistics().get(ResourceType.PATIENT));
+  }
+
+  @Test
+  void widensCachedColumnsOnDemand() {
+    final ResourceCache cache = new ResourceCache(resourceType -> spark.range(100)
+        .withColumn("a", lit(1))
+        .withColumn("b", lit(2)),
+        dataset -> 100L * dataset.columns().length, StorageLevel.MEMORY_ONLY(), 10, 1000);
+
+    final Dataset<Row> narrow = cache.get(ResourceType.PATIENT, Optional.of(Set.of("id")));
+    assertArrayEquals(new String[]{"id"}, narrow.columns());
+
+    // Requesting a column that is not cached replaces the table with a wider one.
+    final Dataset<Row> wide = cache.get(ResourceType.PATIENT, Optional.of(Set.of("b", "id")));
+    assertArrayEquals(new String[]{"id", "b"}, wide.columns());
+    assertEquals(new Statistics(0, 2, 0, 200), cache.getStatistics().get(ResourceType.PATIENT));
+
+    // Requesting a subset of the cached columns is served from the cache.
+    final Dataset<Row> subset = cache.get(ResourceType.PATIENT, Optional.of(Set.of("b")));
+    assertArrayEquals(new String[]{"b"}, subset.columns());
+    assertEquals(100, subset.count());
+    assertEquals(new Statistics(1, 2, 0, 200), cache.getStatistics().get(ResourceType.PATIENT));
+  }
+
+  @Nonnull
+  private ResourceCache buildCache(final long maximumSize, final long maximumBytes) {
+    return new ResourceCache(resourceType -> {
+      // Each table needs a distinct plan, as Spark identifies cached data by its plan.
+      final Dataset<Row> dataset = spark.range(sizes.get(resourceType)).toDF();
+      loaded.put(resourceType, dataset);
+      return dataset;
+    }, dataset -> loaded.entrySet().stream()
+        .filter(entry -> entry.getValue() == dataset)
+        .map(entry -> sizes.get(entry.getKey()))
+        .findFirst()
+        .orElseThrow(), StorageLevel.MEMORY_ONLY(), maximumSize, maximumBytes);
+  }
+
+  private static boolean isPersisted(@Nonnull final Dataset<Row> dataset) {
+    return !dataset.storageLevel().equals(StorageLevel.NONE());
+  }
+
+}
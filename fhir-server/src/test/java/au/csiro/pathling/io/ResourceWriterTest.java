@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.Configuration;
+import au.csiro.pathling.Configuration.Storage;
+import ca.uhn.fhir.context.FhirContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("UnitTest")
+class ResourceWriterTest {
+
+  private static final StructType SCHEMA = new StructType()
+      .add("id", DataTypes.StringType)
+      .add("gender", DataTypes.StringType);
+
+  @Autowired
+  private SparkSession spark;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @TempDir
+  Path warehouse;
+
+  private ResourceWriter resourceWriter;
+
+  private File table;
+
+  @BeforeEach
+  void setUp() {
+    final Configuration configuration = new Configuration();
+    final Storage storage = new Storage();
+    storage.setWarehouseUrl(warehouse.toUri().toString().replaceFirst("/$", ""));
+    storage.setDatabaseName("default");
+    configuration.setStorage(storage);
+    resourceWriter = new ResourceWriter(configuration, spark, fhirContext);
+    table = warehouse.resolve("default").resolve("Patient.parquet").toFile();
+  }
+
+  @Test
+  void mergeCreatesTableIfAbsent() {
+    resourceWriter.merge(ResourceType.PATIENT, patients("a", "male", "b", "female"));
+
+    assertEquals(Map.of("a", "male", "b", "female"), readTable());
+  }
+
+  @Test
+  void mergeReplacesMatchingResourcesAndAddsOthers() {
+    resourceWriter.write(ResourceType.PATIENT, patients("a", "male", "b", "female"));
+    resourceWriter.merge(ResourceType.PATIENT, patients("b", "other", "c", "unknown"));
+
+    assertEquals(Map.of("a", "male", "b", "other", "c", "unknown"), readTable());
+  }
+
+  @Test
+  void mergeOnlyRewritesAffectedFiles() {
+    resourceWriter.write(ResourceType.PATIENT, patients("a", "male", "b", "female"));
+    final Set<String> original = dataFiles();
+    // This adds a second file to the table, without touching the first.
+    resourceWriter.merge(ResourceType.PATIENT, patients("c", "unknown"));
+    final Set<String> afterAdd = dataFiles();
+    assertEquals(2, afterAdd.size());
+    assertTrue(afterAdd.containsAll(original));
+
+    // Replacing a resource in the second file leaves the first file in place.
+    resourceWriter.merge(ResourceType.PATIENT, patients("c", "other"));
+    final Set<String> afterReplace = dataFiles();
+    assertEquals(2, afterReplace.size());
+    assertTrue(afterReplace.containsAll(original));
+
+    assertEquals(Map.of("a", "male", "b", "female", "c", "other"), readTable());
+  }
+
+  @Test
+  void mergeKeepsOneOfEachIncomingId() {
+    resourceWriter.write(ResourceType.PATIENT, patients("a", "male"));
+    resourceWriter.merge(ResourceType.PATIENT, patients("b", "female", "b", "other"));
+
+    final Map<String, String> merged = readTable();
+    assertEquals(Set.of("a", "b"), merged.keySet());
+    assertTrue(Set.of("female", "other").contains(merged.get("b")));
+  }
+
+  @Test
+  void mergeCompletesInterruptedCommit() throws IOException {
+    resourceWriter.write(ResourceType.PATIENT, patients("a", "male", "b", "female"));
+    // Simulate a merge that was interrupted after staging its files, but before committing them.
+    final File staging = new File(table, "_merge-interrupted");
+    patients("a", "male", "b", "other").write().parquet(staging.toURI().toString());
+    Files.write(staging.toPath().resolve("_superseded"), dataFiles().stream()
+        .map(name -> new File(table, name).toURI().toString())
+        .collect(Collectors.toList()));
+    assertEquals(Map.of("a", "male", "b", "female"), readTable());
+
+    resourceWriter.merge(ResourceType.PATIENT, patients("c", "unknown"));
+
+    assertEquals(Map.of("a", "male", "b", "other", "c", "unknown"), readTable());
+    assertFalse(staging.exists());
+  }
+
+  @Test
+  void mergeDiscardsIncompleteStaging() {
+    resourceWriter.write(ResourceType.PATIENT, patients("a", "male", "b", "female"));
+    // Simulate a merge that was interrupted while staging its files.
+    final File staging = new File(table, "_merge-incomplete");
+    patients("b", "other").write().parquet(staging.toURI().toString());
+
+    resourceWriter.merge(ResourceType.PATIENT, patients("c", "unknown"));
+
+    assertEquals(Map.of("a", "male", "b", "female", "c", "unknown"), readTable());
+    assertFalse(staging.exists());
+  }
+
+  @Test
+  void writeAddsInstantColumns() {
+    final StructType schema = new StructType()
+        .add("id", DataTypes.StringType)
+        .add("birthDate", DataTypes.StringType);
+    final List<Row> rows = Arrays.asList(
+        RowFactory.create("a", "1983-06-21"),
+        RowFactory.create("b", "1975-02"),
+        RowFactory.create("c", null));
+    resourceWriter.write(ResourceType.PATIENT, spark.createDataFrame(rows, schema));
+
+    // Partial dates are represented by the instant at the start of the period.
+    final Map<String, Optional<Timestamp>> instants = spark.read()
+        .parquet(table.toURI().toString())
+        .select("id", "_birthDate_instant")
+        .collectAsList().stream()
+        .collect(Collectors.toMap(row -> row.getString(0),
+            row -> Optional.ofNullable(row.getTimestamp(1))));
+    assertEquals(Map.of(
+        "a", Optional.of(Timestamp.valueOf("1983-06-21 00:00:00")),
+        "b", Optional.of(Timestamp.valueOf("1975-02-01 00:00:00")),
+        "c", Optional.empty()), instants);
+  }
+
+  @Test
+  void mergeAddsInstantColumnsToFilesWithoutThem() {
+    // Simulate a table written before the instant columns were added, in two files.
+    final StructType schema = new StructType()
+        .add("id", DataTypes.StringType)
+        .add("birthDate", DataTypes.StringType);
+    final String tableUrl = table.toURI().toString();
+    spark.createDataFrame(Arrays.asList(RowFactory.create("a", "1983-06-21")), schema)
+        .write().parquet(tableUrl);
+    spark.createDataFrame(Arrays.asList(RowFactory.create("b", "1975-02")), schema)
+        .write().mode(SaveMode.Append).parquet(tableUrl);
+    assertEquals(2, dataFiles().size());
+
+    // The merge does not replace any of the existing resources.
+    resourceWriter.merge(ResourceType.PATIENT, spark.createDataFrame(Arrays.asList(
+        RowFactory.create("c", "2001-01-01"), RowFactory.create("d", null)), schema));
+
+    for (final String file : dataFiles()) {
+      assertTrue(Arrays.asList(spark.read().parquet(new File(table, file).toURI().toString())
+          .columns()).contains("_birthDate_instant"), file);
+    }
+    final Map<String, Optional<Timestamp>> instants = spark.read()
+        .option("mergeSchema", true)
+        .parquet(tableUrl)
+        .select("id", "_birthDate_instant")
+        .collectAsList().stream()
+        .collect(Collectors.toMap(row -> row.getString(0),
+            row -> Optional.ofNullable(row.getTimestamp(1))));
+    assertEquals(Map.of(
+        "a", Optional.of(Timestamp.valueOf("1983-06-21 00:00:00")),
+        "b", Optional.of(Timestamp.valueOf("1975-02-01 00:00:00")),
+        "c", Optional.of(Timestamp.valueOf("2001-01-01 00:00:00")),
+        "d", Optional.empty()), instants);
+
+    // Once every file has the instant columns, a further merge does not rewrite them.
+    final Set<String> backfilled = dataFiles();
+    resourceWriter.merge(ResourceType.PATIENT, spark.createDataFrame(Arrays.asList(
+        RowFactory.create("e", "2010-10-10")), schema));
+    assertTrue(dataFiles().containsAll(backfilled));
+  }
+
+  @Nonnull
+  private Dataset<Row> patients(@Nonnull final String... idsAndGenders) {
+    final List<Row> rows = new ArrayList<>();
+    for (int i = 0; i < idsAndGenders.length; i += 2) {
+      rows.add(RowFactory.create(idsAndGenders[i], idsAndGenders[i + 1]));
+    }
+    return spark.createDataFrame(rows, SCHEMA);
+  }
+
+  @Nonnull
+  private Map<String, String> readTable() {
+    return spark.read().parquet(table.toURI().toString()).collectAsList().stream()
+        .collect(Collectors.toMap(row -> row.getString(0), row -> row.getString(1)));
+  }
+
+  @Nonnull
+  private Set<String> dataFiles() {
+    final File[] files = table.listFiles((dir, name) -> name.endsWith(".parquet"));
+    assertTrue(files != null);
+    return Arrays.stream(files).map(File::getName).collect(Collectors.toSet());
+  }
+
+}
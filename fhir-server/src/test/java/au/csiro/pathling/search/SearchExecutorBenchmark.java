@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.search;
+
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.syntheticResources;
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.time;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+import au.csiro.pathling.Configuration;
+import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.test.helpers.BenchmarkHelpers.Timed;
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Compares the time taken to retrieve shallow and deep pages of search results from a large table,
+ * and fails if the deep pages are much slower than the shallow ones. Run using the {@code
+ * benchmark} profile, the number of rows can be controlled using the {@code
+ * pathling.benchmark.rows} system property.
+ *
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("Benchmark")
+@Slf4j
+class SearchExecutorBenchmark {
+
+  private static final long ROWS = Long.getLong("pathling.benchmark.rows", 10_000_000L);
+  private static final int PAGE_SIZE = 20;
+  private static final int PAGES = 500;
+
+  /**
+   * The number of pages at each end of the range whose timings are compared. The median of several
+   * pages is used, so that a single slow page (e.g. due to garbage collection) does not decide the
+   * outcome.
+   */
+  private static final int SAMPLE_PAGES = 10;
+
+  /**
+   * The factor by which the deepest pages may be slower than the shallowest pages. With offset
+   * pagination, the time taken grows with the depth of the page, and the deepest pages take many
+   * times longer than this.
+   */
+  private static final double MAX_SLOWDOWN = 3.0;
+
+  /**
+   * An allowance added to the bound, so that very fast shallow pages do not make it unreasonably
+   * tight.
+   */
+  private static final long SLACK_MILLIS = 50;
+
+  @Autowired
+  private Configuration configuration;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private SparkSession sparkSession;
+
+  @Autowired
+  private FhirEncoders fhirEncoders;
+
+  @Test
+  void deepPagesTakeSimilarTimeToShallowPages() {
+    final Dataset<Row> observations = syntheticResources(sparkSession, ResourceType.OBSERVATION,
+        ROWS);
+    final SearchExecutorBuilder builder = new SearchExecutorBuilder(configuration, fhirContext,
+        sparkSession, fhirEncoders)
+        .withSubjectResource(ResourceType.OBSERVATION);
+    when(builder.getResourceReader().read(ResourceType.OBSERVATION)).thenReturn(observations);
+    final SearchExecutor executor = builder.build();
+
+    // Retrieving the total materializes the cached result, as it would within a real search.
+    assertEquals(ROWS, (long) executor.size());
+
+    final long[] millis = new long[PAGES];
+    String previousLastId = "";
+    for (int page = 0; page < PAGES; page++) {
+      final int fromIndex = page * PAGE_SIZE;
+      final Timed<List<IBaseResource>> timed = time(
+          () -> executor.getResources(fromIndex, fromIndex + PAGE_SIZE));
+      final List<IBaseResource> resources = timed.getResult();
+      assertEquals(PAGE_SIZE, resources.size());
+
+      // Check that the pages are contiguous and in order.
+      final String firstId = resources.get(0).getIdElement().getIdPart();
+      assertEquals(String.format("%010d", fromIndex), firstId);
+      assertTrue(firstId.compareTo(previousLastId) > 0);
+      previousLastId = resources.get(resources.size() - 1).getIdElement().getIdPart();
+      millis[page] = timed.getMillis();
+    }
+
+    // The first page is left out of the shallow sample, as it includes the time taken to warm up.
+    final long shallow = median(Arrays.copyOfRange(millis, 1, SAMPLE_PAGES + 1));
+    final long deep = median(Arrays.copyOfRange(millis, PAGES - SAMPLE_PAGES, PAGES));
+    log.info("Search paging over {} rows: median of shallow pages took {} ms, median of pages "
+        + "near {} took {} ms", ROWS, shallow, PAGES, deep);
+    final long bound = (long) (shallow * MAX_SLOWDOWN) + SLACK_MILLIS;
+    assertTrue(deep <= bound,
+        "Deep pages took " + deep + " ms, which is more than the bound of " + bound + " ms");
+  }
+
+  private static long median(@Nonnull final long[] values) {
+    final long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+}
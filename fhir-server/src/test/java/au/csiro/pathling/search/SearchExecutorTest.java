@@ -11,6 +11,7 @@ import static au.csiro.pathling.test.helpers.TestHelpers.getResourceAsString;
 import static au.csiro.pathling.test.helpers.TestHelpers.mockResourceReader;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.when;
 
@@ -22,9 +23,12 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.NavigableMap;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import org.apache.spark.sql.SparkSession;
@@ -85,6 +89,38 @@ class SearchExecutorTest {
     assertResponse("SearchExecutorTest/simpleSearchWithMemberOf.Bundle.json", executor);
   }
 
+  @Test
+  void pagesAreContiguousAndOrderedById() {
+    final SearchExecutor executor = searchBuilder()
+        .withSubjectResource(ResourceType.PATIENT)
+        .build();
+    final List<String> allIds = idsOf(executor.getResources(0, 9));
+    assertEquals(allIds.stream().sorted().collect(Collectors.toList()), allIds);
+
+    // Retrieve the pages in sequence, so that each page is seeked from the end of the last one.
+    final List<String> pagedIds = new ArrayList<>();
+    pagedIds.addAll(idsOf(executor.getResources(0, 3)));
+    pagedIds.addAll(idsOf(executor.getResources(3, 6)));
+    pagedIds.addAll(idsOf(executor.getResources(6, 9)));
+    assertEquals(allIds, pagedIds);
+
+    // Retrieve pages that do not start at a known page boundary.
+    assertEquals(allIds.subList(4, 8), idsOf(executor.getResources(4, 8)));
+    assertEquals(allIds.subList(7, 9), idsOf(executor.getResources(7, 9)));
+  }
+
+  @Test
+  void bookmarksAreBounded() {
+    final NavigableMap<Integer, String> bookmarks = new ConcurrentSkipListMap<>();
+    for (int offset = 1; offset <= 100; offset++) {
+      SearchExecutor.addBookmark(bookmarks, offset, "id-" + offset, 10);
+      assertTrue(bookmarks.size() <= 10);
+      assertEquals("id-" + offset, bookmarks.get(offset));
+    }
+    // The bookmarks that remain are still spread across the results.
+    assertTrue(bookmarks.firstKey() < 10);
+  }
+
   @Test
   void throwsInvalidInputOnNonBooleanFilter() {
     final StringAndListParam params = new StringAndListParam();
@@ -111,6 +147,13 @@ class SearchExecutorTest {
     assertEquals("Filter expression cannot be blank", error.getMessage());
   }
 
+  @Nonnull
+  private static List<String> idsOf(@Nonnull final List<IBaseResource> resources) {
+    return resources.stream()
+        .map(resource -> resource.getIdElement().getIdPart())
+        .collect(Collectors.toList());
+  }
+
   @Nonnull
   private SearchExecutorBuilder searchBuilder() {
     return new SearchExecutorBuilder(configuration, fhirContext, sparkSession,
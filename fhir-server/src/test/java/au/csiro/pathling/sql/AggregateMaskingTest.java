@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.sql;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.count;
+import static org.apache.spark.sql.functions.countDistinct;
+import static org.apache.spark.sql.functions.first;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.when;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.test.assertions.DatasetAssert;
+import au.csiro.pathling.test.builders.DatasetBuilder;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("UnitTest")
+class AggregateMaskingTest {
+
+  @Autowired
+  private SparkSession spark;
+
+  @Test
+  void nullIgnoringAggregatesAreMaskable() {
+    assertTrue(AggregateMasking.isMaskable(count(col("value"))));
+    assertTrue(AggregateMasking.isMaskable(
+        when(countDistinct(col("value")).isNull(), 0).otherwise(countDistinct(col("value")))));
+    assertTrue(AggregateMasking.isMaskable(first(col("value"), true)));
+    assertTrue(AggregateMasking.isMaskable(SqlExtensions.minBy(col("value"), col("tag"))));
+
+    assertFalse(AggregateMasking.isMaskable(first(col("value"), false)));
+    assertFalse(AggregateMasking.isMaskable(col("value")));
+  }
+
+  @Test
+  void maskedAggregatesOnlySeeMatchingRows() {
+    final Dataset<Row> dataset = new DatasetBuilder(spark)
+        .withColumn("group", DataTypes.StringType)
+        .withColumn("tag", DataTypes.IntegerType)
+        .withColumn("value", DataTypes.StringType)
+        .withRow("a", 0, "x")
+        .withRow("a", 0, "x")
+        .withRow("a", 1, "y")
+        .withRow("b", 1, "z")
+        .withRow("b", 1, null)
+        .build();
+
+    final Column tagZero = col("tag").equalTo(0);
+    final Column tagOne = col("tag").equalTo(1);
+    final Dataset<Row> result = dataset.groupBy(col("group"))
+        .agg(AggregateMasking.mask(count(col("value")), tagZero).alias("count"),
+            AggregateMasking.mask(countDistinct(col("value")), tagOne).alias("distinct"),
+            AggregateMasking.mask(first(col("value"), true), tagOne).alias("first"),
+            AggregateMasking.mask(count(lit(1)), tagOne).alias("rows"));
+
+    final Dataset<Row> expected = new DatasetBuilder(spark)
+        .withColumn("group", DataTypes.StringType)
+        .withColumn("count", DataTypes.LongType)
+        .withColumn("distinct", DataTypes.LongType)
+        .withColumn("first", DataTypes.StringType)
+        .withColumn("rows", DataTypes.LongType)
+        .withRow("a", 2L, 1L, "y", 1L)
+        .withRow("b", 0L, 1L, "z", 2L)
+        .build();
+
+    new DatasetAssert(result.orderBy("group")).hasRows(expected);
+  }
+
+}
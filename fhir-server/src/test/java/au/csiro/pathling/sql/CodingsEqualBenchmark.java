@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.sql;
+
+import static au.csiro.pathling.sql.SqlExtensions.codingsEqual;
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.time;
+import static org.apache.spark.sql.functions.callUDF;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.format_string;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.struct;
+import static org.apache.spark.sql.functions.when;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import au.csiro.pathling.test.helpers.BenchmarkHelpers.Timed;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.api.java.UDF2;
+import org.apache.spark.sql.types.DataTypes;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Compares the time taken to compare a column of Codings with a literal Coding, using the
+ * {@link CodingsEqual} expression and the Java UDF that it replaced. Run using the {@code
+ * benchmark} profile, the number of rows can be controlled using the {@code
+ * pathling.benchmark.rows} system property.
+ *
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("Benchmark")
+@Slf4j
+class CodingsEqualBenchmark {
+
+  private static final long ROWS = Long.getLong("pathling.benchmark.rows", 20_000_000L);
+  private static final long DISTINCT_CODES = 100L;
+
+  @Autowired
+  private SparkSession spark;
+
+  @Test
+  void expressionIsFasterThanUdf() {
+    spark.udf().register("codings_equal_udf", new CodingsEqualUdf(), DataTypes.BooleanType);
+    final Column seq = col("seq");
+    final Dataset<Row> codings = spark.range(ROWS).toDF("seq")
+        .select(struct(
+            lit(null).cast(DataTypes.StringType).alias("id"),
+            lit("http://snomed.info/sct").alias("system"),
+            when(seq.mod(2).equalTo(0), lit("20210731")).alias("version"),
+            format_string("%d", seq.mod(DISTINCT_CODES)).alias("code"),
+            lit(null).cast(DataTypes.StringType).alias("display"),
+            lit(null).cast(DataTypes.BooleanType).alias("userSelected")).alias("coding"));
+    final Column literal = struct(
+        lit("http://snomed.info/sct").alias("system"),
+        lit("20210731").alias("version"),
+        lit("0").alias("code"));
+
+    // Execute each query once before timing, so that neither measurement includes warm-up costs.
+    count(codings, callUDF("codings_equal_udf", col("coding"), literal));
+    count(codings, codingsEqual(col("coding"), literal));
+
+    final Timed<Long> udf = time(
+        () -> count(codings, callUDF("codings_equal_udf", col("coding"), literal)));
+    final Timed<Long> expression = time(
+        () -> count(codings, codingsEqual(col("coding"), literal)));
+
+    assertEquals((ROWS + DISTINCT_CODES - 1) / DISTINCT_CODES, (long) udf.getResult());
+    assertEquals(udf.getResult(), expression.getResult());
+    log.info("Coding comparison over {} rows: UDF took {} ms, expression took {} ms", ROWS,
+        udf.getMillis(), expression.getMillis());
+  }
+
+  private static long count(@Nonnull final Dataset<Row> codings,
+      @Nonnull final Column comparison) {
+    return codings.where(comparison).count();
+  }
+
+  /**
+   * The UDF that was previously used to compare Codings.
+   */
+  private static class CodingsEqualUdf implements UDF2<Row, Row, Boolean> {
+
+    private static final long serialVersionUID = -8947535869559021947L;
+
+    @Nullable
+    @Override
+    public Boolean call(@Nullable final Row left, @Nullable final Row right) {
+      if (left == null || right == null) {
+        return null;
+      }
+
+      final String leftSystem = left.getString(left.fieldIndex("system"));
+      final String leftCode = left.getString(left.fieldIndex("code"));
+      final String leftVersion = left.getString(left.fieldIndex("version"));
+      final String rightSystem = right.getString(right.fieldIndex("system"));
+      final String rightCode = right.getString(right.fieldIndex("code"));
+      final String rightVersion = right.getString(right.fieldIndex("version"));
+
+      final boolean eitherCodingIsIncomplete =
+          leftSystem == null || leftCode == null || rightSystem == null || rightCode == null;
+      if (eitherCodingIsIncomplete) {
+        return null;
+      }
+
+      final boolean eitherCodingIsMissingVersion = leftVersion == null || rightVersion == null;
+      final boolean versionAgnosticTest =
+          leftSystem.equals(rightSystem) && leftCode.equals(rightCode);
+      if (eitherCodingIsMissingVersion) {
+        return versionAgnosticTest;
+      } else {
+        return versionAgnosticTest && leftVersion.equals(rightVersion);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.sql;
+
+import static au.csiro.pathling.sql.SqlExtensions.codingsEqual;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.expr;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("UnitTest")
+class CodingsEqualTest {
+
+  // The fields of the two Codings are in a different order, to check that they are looked up by
+  // name.
+  private static final StructType LEFT = new StructType()
+      .add("id", DataTypes.StringType)
+      .add("system", DataTypes.StringType)
+      .add("version", DataTypes.StringType)
+      .add("code", DataTypes.StringType);
+
+  private static final StructType RIGHT = new StructType()
+      .add("code", DataTypes.StringType)
+      .add("system", DataTypes.StringType)
+      .add("version", DataTypes.StringType);
+
+  private static final StructType SCHEMA = new StructType()
+      .add("left", LEFT)
+      .add("right", RIGHT)
+      .add("expected", DataTypes.BooleanType);
+
+  @Autowired
+  private SparkSession spark;
+
+  @Test
+  void interpretedComparison() {
+    // A projection directly over local data is evaluated by the optimizer, without code generation.
+    final Dataset<Row> dataset = spark.createDataFrame(cases(), SCHEMA);
+    assertMatchesExpected(dataset, codingsEqual(col("left"), col("right")));
+  }
+
+  @Test
+  void generatedComparison() {
+    // Fail rather than falling back to interpreted evaluation if the generated code is invalid.
+    spark.conf().set("spark.sql.codegen.factoryMode", "CODEGEN_ONLY");
+    spark.conf().set("spark.sql.codegen.fallback", "false");
+    try {
+      final Dataset<Row> dataset = spark.createDataFrame(cases(), SCHEMA).repartition(2);
+      assertMatchesExpected(dataset, codingsEqual(col("left"), col("right")));
+    } finally {
+      spark.conf().unset("spark.sql.codegen.factoryMode");
+      spark.conf().unset("spark.sql.codegen.fallback");
+    }
+  }
+
+  @Test
+  void registeredAsFunction() {
+    final Dataset<Row> dataset = spark.createDataFrame(cases(), SCHEMA).repartition(2);
+    assertMatchesExpected(dataset, expr("codings_equal(left, right)"));
+  }
+
+  private static void assertMatchesExpected(@Nonnull final Dataset<Row> dataset,
+      @Nonnull final Column comparison) {
+    final List<Row> results = dataset.select(comparison, col("expected")).collectAsList();
+    assertEquals(cases().size(), results.size());
+    for (final Row row : results) {
+      assertEquals(row.get(1), row.get(0));
+    }
+  }
+
+  @Nonnull
+  private static List<Row> cases() {
+    return Arrays.asList(
+        RowFactory.create(left("s", "1", "c"), right("s", "1", "c"), true),
+        RowFactory.create(left("s", "1", "c"), right("s", "2", "c"), false),
+        RowFactory.create(left("s", null, "c"), right("s", "2", "c"), true),
+        RowFactory.create(left("s", "1", "c"), right("s", null, "c"), true),
+        RowFactory.create(left("s", "1", "c"), right("t", "1", "c"), false),
+        RowFactory.create(left("s", "1", "c"), right("s", "1", "d"), false),
+        RowFactory.create(left(null, "1", "c"), right("s", "1", "c"), null),
+        RowFactory.create(left("s", "1", null), right("s", "1", "c"), null),
+        RowFactory.create(left("s", "1", "c"), right("s", "1", null), null),
+        RowFactory.create(null, right("s", "1", "c"), null),
+        RowFactory.create(left("s", "1", "c"), null, null)
+    );
+  }
+
+  @Nonnull
+  private static Row left(@Nullable final String system, @Nullable final String version,
+      @Nullable final String code) {
+    return RowFactory.create("id", system, version, code);
+  }
+
+  @Nonnull
+  private static Row right(@Nullable final String system, @Nullable final String version,
+      @Nullable final String code) {
+    return RowFactory.create(code, system, version);
+  }
+
+}
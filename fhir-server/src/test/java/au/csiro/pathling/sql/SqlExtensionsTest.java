@@ -6,6 +6,11 @@
 
 package au.csiro.pathling.sql;
 
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.length;
+import static org.apache.spark.sql.functions.upper;
+import static org.apache.spark.sql.functions.when;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import au.csiro.pathling.test.assertions.DatasetAssert;
 import au.csiro.pathling.test.builders.DatasetBuilder;
@@ -18,6 +23,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.Metadata;
@@ -104,4 +110,96 @@ public class SqlExtensionsTest {
     new DatasetAssert(resultDataset).hasRows(expectedDataset);
   }
 
+  @Test
+  public void testMapWithPartitionPreviewSpillsRows() {
+    // Force the rows to be spilled to disk, and check that the preview only receives each distinct
+    // value once.
+    spark.conf().set(MapWithPartitionPreviewExec.BufferInMemoryThresholdKey(), "0");
+    spark.conf().set(MapWithPartitionPreviewExec.BufferSpillThresholdKey(), "2");
+    try {
+      final Dataset<Row> dataset = new DatasetBuilder(spark)
+          .withIdColumn()
+          .withColumn("gender", DataTypes.StringType)
+          .withRow("patient-1", "value0")
+          .withRow("patient-2", "value0")
+          .withRow("patient-3", null)
+          .withRow("patient-4", "value1")
+          .withRow("patient-5", "value0")
+          .withRow("patient-6", "value2")
+          .build().repartition(1);
+
+      final Dataset<Row> resultDataset = SqlExtensions.mapWithPartitionPreview(dataset,
+          dataset.col("gender"),
+          SqlExtensionsTest::stringDecoder,
+          new TestMapperWithPreview(),
+          new StructField("myResult", DataTypes.IntegerType, true, Metadata.empty())
+      );
+
+      final Dataset<Row> expectedDataset = new DatasetBuilder(spark)
+          .withIdColumn()
+          .withColumn("gender", DataTypes.StringType)
+          .withColumn("myResult", DataTypes.IntegerType)
+          .withRow("patient-1", "value0", 0)
+          .withRow("patient-2", "value0", 0)
+          .withRow("patient-3", null, null)
+          .withRow("patient-4", "value1", 1)
+          .withRow("patient-5", "value0", 0)
+          .withRow("patient-6", "value2", 2)
+          .build();
+
+      new DatasetAssert(resultDataset).hasRows(expectedDataset);
+    } finally {
+      spark.conf().unset(MapWithPartitionPreviewExec.BufferInMemoryThresholdKey());
+      spark.conf().unset(MapWithPartitionPreviewExec.BufferSpillThresholdKey());
+    }
+  }
+
+  @Test
+  public void testCollapseProjections() {
+    final Dataset<Row> dataset = new DatasetBuilder(spark)
+        .withColumn("id", DataTypes.StringType)
+        .withColumn("gender", DataTypes.StringType)
+        .withRow("patient-1", "female")
+        .withRow("patient-2", null)
+        .build();
+
+    final Dataset<Row> projected = dataset
+        .select(col("id"), upper(col("gender")).alias("upper"))
+        .select(col("id"), col("upper"), length(col("upper")).alias("length"));
+    assertEquals(2, countProjections(projected));
+
+    final Dataset<Row> collapsed = SqlExtensions.collapseProjections(projected);
+    assertEquals(1, countProjections(collapsed));
+
+    new DatasetAssert(collapsed).hasRows(
+        RowFactory.create("patient-1", "FEMALE", 6),
+        RowFactory.create("patient-2", null, null));
+  }
+
+  @Test
+  public void testMinBy() {
+    final Dataset<Row> dataset = new DatasetBuilder(spark)
+        .withColumn("id", DataTypes.StringType)
+        .withColumn("index", DataTypes.IntegerType)
+        .withColumn("value", DataTypes.StringType)
+        .withRow("patient-1", 2, "c")
+        .withRow("patient-1", 0, null)
+        .withRow("patient-1", 1, "b")
+        .withRow("patient-2", 0, null)
+        .build();
+
+    final Dataset<Row> result = dataset.groupBy(col("id"))
+        .agg(SqlExtensions.minBy(col("value"),
+            when(col("value").isNotNull(), col("index"))).alias("first"))
+        .orderBy(col("id"));
+
+    new DatasetAssert(result).hasRows(
+        RowFactory.create("patient-1", "b"),
+        RowFactory.create("patient-2", null));
+  }
+
+  private static int countProjections(@Nonnull final Dataset<Row> dataset) {
+    return dataset.logicalPlan().treeString().split("Project \\[", -1).length - 1;
+  }
+
 }
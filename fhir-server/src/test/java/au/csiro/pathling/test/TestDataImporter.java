@@ -8,14 +8,17 @@ package au.csiro.pathling.test;
 
 import au.csiro.pathling.encoders.FhirEncoders;
 import au.csiro.pathling.fhir.FhirContextFactory;
+import au.csiro.pathling.fhirpath.ResourceDefinition;
+import au.csiro.pathling.io.TemporalColumns;
+import au.csiro.pathling.update.ResourceParser;
 import java.io.File;
 import java.io.FileFilter;
 import java.util.Objects;
 import javax.annotation.Nonnull;
 import jodd.io.filter.WildcardFileFilter;
 import lombok.extern.slf4j.Slf4j;
+import ca.uhn.fhir.context.FhirContext;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.spark.api.java.function.MapFunction;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.SaveMode;
 import org.apache.spark.sql.SparkSession;
@@ -75,16 +78,19 @@ public class TestDataImporter implements CommandLineRunner {
       final Dataset<String> jsonStrings = spark.read().textFile(srcFile.getPath());
       final ExpressionEncoder<IBaseResource> fhirEncoder = fhirEncoders
           .of(subjectResource.toCode());
-      final FhirContextFactory localFhirContextFactory = new FhirContextFactory(
-          fhirEncoders.getFhirVersion().newContext());
-      final Dataset<IBaseResource> resourcesDataset = jsonStrings
-          .map((MapFunction<String, IBaseResource>) json -> localFhirContextFactory
-              .build().newJsonParser().parseResource(json), fhirEncoder);
+      final FhirContext fhirContext = fhirEncoders.getFhirVersion().newContext();
+      final FhirContextFactory localFhirContextFactory = new FhirContextFactory(fhirContext);
+      final Dataset<IBaseResource> resourcesDataset = jsonStrings.mapPartitions(
+          new ResourceParser(localFhirContextFactory, subjectResource.toCode()), fhirEncoder);
+      final ResourceDefinition definition = new ResourceDefinition(subjectResource,
+          fhirContext.getResourceDefinition(subjectResource.toCode()));
       final String outputParquet =
           targetPath + "/" + subjectResource.toCode() + ".parquet";
 
+      // The instant columns are added in the same way as they are during import.
       log.info("Writing: " + outputParquet);
-      resourcesDataset.write().mode(SaveMode.Overwrite).parquet(outputParquet);
+      TemporalColumns.withInstantColumns(resourcesDataset, definition)
+          .write().mode(SaveMode.Overwrite).parquet(outputParquet);
     }
   }
 
@@ -13,6 +13,7 @@ import static org.mockito.Mockito.when;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.fhirpath.FhirPath;
+import au.csiro.pathling.fhirpath.ResourceProjection;
 import au.csiro.pathling.fhirpath.parser.ParserContext;
 import au.csiro.pathling.io.ResourceReader;
 import au.csiro.pathling.test.DefaultAnswer;
@@ -51,6 +52,13 @@ public class ParserContextBuilder {
   @Nonnull
   private Optional<List<Column>> groupingColumns;
 
+  @Nonnull
+  private Optional<ResourceProjection> projection;
+
+  private int terminologyBroadcastThreshold;
+
+  private boolean terminologyResolveDistinctCodings;
+
   public ParserContextBuilder(@Nonnull final SparkSession spark,
       @Nonnull final FhirContext fhirContext) {
     this.fhirContext = fhirContext;
@@ -60,6 +68,7 @@ public class ParserContextBuilder {
     when(inputContext.getDataset()).thenReturn(spark.emptyDataFrame());
     resourceReader = Mockito.mock(ResourceReader.class, new DefaultAnswer());
     groupingColumns = Optional.empty();
+    projection = Optional.empty();
   }
 
   @Nonnull
@@ -106,11 +115,32 @@ public class ParserContextBuilder {
     return this;
   }
 
+  @Nonnull
+  public ParserContextBuilder projection(@Nonnull final ResourceProjection projection) {
+    this.projection = Optional.of(projection);
+    return this;
+  }
+
+  @Nonnull
+  public ParserContextBuilder terminologyBroadcastThreshold(
+      final int terminologyBroadcastThreshold) {
+    this.terminologyBroadcastThreshold = terminologyBroadcastThreshold;
+    return this;
+  }
+
+  @Nonnull
+  public ParserContextBuilder terminologyResolveDistinctCodings(
+      final boolean terminologyResolveDistinctCodings) {
+    this.terminologyResolveDistinctCodings = terminologyResolveDistinctCodings;
+    return this;
+  }
+
   @Nonnull
   public ParserContext build() {
     return new ParserContext(inputContext, fhirContext, spark, resourceReader,
         Optional.ofNullable(terminologyClient), Optional.ofNullable(terminologyClientFactory),
-        groupingColumns);
+        groupingColumns, projection, terminologyBroadcastThreshold,
+        terminologyResolveDistinctCodings);
   }
 
 }
@@ -166,12 +166,13 @@ public class ResourcePathBuilder {
     try {
       final Constructor<ResourcePath> constructor = ResourcePath.class
           .getDeclaredConstructor(String.class, Dataset.class, Column.class, Optional.class,
-              Column.class, boolean.class, Optional.class, ResourceDefinition.class, Map.class);
+              Column.class, boolean.class, Optional.class, ResourceDefinition.class, Map.class,
+              Optional.class);
       constructor.setAccessible(true);
       return constructor
           .newInstance(expression, datasetWithColumn.getDataset(), idColumn, eidColumn,
               datasetWithColumn.getColumn(), singular, Optional.ofNullable(thisColumn), definition,
-              elementsToColumns);
+              elementsToColumns, Optional.empty());
     } catch (final NoSuchMethodException | IllegalAccessException | InvocationTargetException | InstantiationException e) {
       throw new RuntimeException("Problem building ResourcePath", e);
     }
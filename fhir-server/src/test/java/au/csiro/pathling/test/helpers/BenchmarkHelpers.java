@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.test.helpers;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.format_string;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.struct;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import lombok.Value;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * Utilities for building synthetic data sets and timing operations within benchmarks.
+ *
+ * @author John Grimes
+ */
+public abstract class BenchmarkHelpers {
+
+  /**
+   * Builds a synthetic table of resources with the same schema as the test data for the specified
+   * resource type. The ID column is populated with sequential, zero-padded values, and any columns
+   * with overrides are populated with the supplied expressions. All other columns are null.
+   * <p>
+   * The table is written to Parquet sorted by ID (in the same way as the {@link
+   * au.csiro.pathling.io.ResourceWriter}), and then read back.
+   *
+   * @param spark the current {@link SparkSession}
+   * @param resourceType the type of resource to build
+   * @param rows the number of rows to generate
+   * @param overrides a list of columns to use in place of the null values, aliased to the name of
+   * the element that they replace
+   * @return a {@link Dataset} backed by the new Parquet table
+   */
+  @Nonnull
+  public static Dataset<Row> syntheticResources(@Nonnull final SparkSession spark,
+      @Nonnull final ResourceType resourceType, final long rows,
+      @Nonnull final Column... overrides) {
+    final Dataset<Row> range = spark.range(rows).toDF("seq");
+
+    final List<String> overridden = namesOf(overrides);
+    final List<Column> selection = new ArrayList<>();
+    for (final StructField field : templateSchema(spark, resourceType).fields()) {
+      final int index = overridden.indexOf(field.name());
+      if (field.name().equals("id")) {
+        selection.add(format_string("%010d", col("seq")).alias("id"));
+      } else if (index >= 0) {
+        selection.add(overrides[index].cast(field.dataType()).alias(field.name()));
+      } else {
+        selection.add(lit(null).cast(field.dataType()).alias(field.name()));
+      }
+    }
+
+    final String tableUrl;
+    try {
+      tableUrl = Files.createTempDirectory("pathling-benchmark-").resolve(
+          resourceType.toCode() + ".parquet").toUri().toString();
+    } catch (final IOException e) {
+      throw new RuntimeException("Problem creating benchmark table location", e);
+    }
+    range.select(selection.toArray(new Column[0]))
+        .orderBy("id")
+        .write()
+        .mode(SaveMode.Overwrite)
+        .parquet(tableUrl);
+    return spark.read().parquet(tableUrl);
+  }
+
+  /**
+   * @param spark the current {@link SparkSession}
+   * @param resourceType a type of resource
+   * @return the schema of the test data for the resource type
+   */
+  @Nonnull
+  public static StructType templateSchema(@Nonnull final SparkSession spark,
+      @Nonnull final ResourceType resourceType) {
+    final String testDataUrl = new File(
+        "src/test/resources/test-data/parquet/" + resourceType.toCode() + ".parquet")
+        .getAbsoluteFile().toURI().toString();
+    return spark.read().parquet(testDataUrl).schema();
+  }
+
+  /**
+   * Builds a struct of the specified type, for use within the overrides of {@link
+   * #syntheticResources}. Any fields with overrides are populated with the supplied expressions,
+   * and all other fields are null.
+   *
+   * @param type the type of the struct
+   * @param overrides a list of columns to use in place of the null values, aliased to the name of
+   * the field that they replace
+   * @return a new struct {@link Column}
+   */
+  @Nonnull
+  public static Column syntheticStruct(@Nonnull final StructType type,
+      @Nonnull final Column... overrides) {
+    final List<String> overridden = namesOf(overrides);
+    final List<Column> fields = new ArrayList<>();
+    for (final StructField field : type.fields()) {
+      final int index = overridden.indexOf(field.name());
+      final Column value = index >= 0
+                           ? overrides[index]
+                           : lit(null);
+      fields.add(value.cast(field.dataType()).alias(field.name()));
+    }
+    return struct(fields.toArray(new Column[0]));
+  }
+
+  @Nonnull
+  private static List<String> namesOf(@Nonnull final Column... columns) {
+    final List<String> names = new ArrayList<>();
+    for (final Column column : columns) {
+      names.add(column.named().name());
+    }
+    return names;
+  }
+
+  /**
+   * Executes an operation, and measures how long it takes.
+   *
+   * @param operation the operation to execute
+   * @param <T> the type of the result of the operation
+   * @return the result, along with the elapsed time
+   */
+  @Nonnull
+  public static <T> Timed<T> time(@Nonnull final Supplier<T> operation) {
+    final long start = System.nanoTime();
+    final T result = operation.get();
+    final long elapsed = (System.nanoTime() - start) / 1_000_000;
+    return new Timed<>(result, elapsed);
+  }
+
+  /**
+   * The result of an operation, along with how long it took in milliseconds.
+   *
+   * @param <T> the type of the result
+   */
+  @Value
+  public static class Timed<T> {
+
+    T result;
+
+    long millis;
+
+  }
+
+}
@@ -9,6 +9,8 @@ package au.csiro.pathling.test.helpers;
 import static au.csiro.pathling.utilities.Preconditions.checkNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
 
 import au.csiro.pathling.io.ResourceReader;
@@ -21,9 +23,11 @@ import java.net.URL;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.stream.Stream;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.commons.io.IOUtils;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
@@ -87,6 +91,14 @@ public abstract class TestHelpers {
         assertNotNull(dataset);
 
         when(mockReader.read(resourceType)).thenReturn(dataset);
+        when(mockReader.readSchema(resourceType)).thenReturn(dataset);
+        when(mockReader.read(eq(resourceType), anySet())).thenAnswer(invocation -> {
+          final Set<String> columns = invocation.getArgument(1);
+          return dataset.select(Stream.of(dataset.columns())
+              .filter(columns::contains)
+              .map(dataset::col)
+              .toArray(Column[]::new));
+        });
         when(mockReader.getAvailableResourceTypes())
             .thenReturn(new HashSet<>(Arrays.asList(resourceTypes)));
       } catch (final MalformedURLException e) {
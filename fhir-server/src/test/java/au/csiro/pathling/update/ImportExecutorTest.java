@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import au.csiro.pathling.Configuration;
+import au.csiro.pathling.caching.CacheManager;
+import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.errors.InvalidUserInputError;
+import au.csiro.pathling.errors.SecurityError;
+import au.csiro.pathling.fhir.FhirContextFactory;
+import au.csiro.pathling.io.AccessRules;
+import au.csiro.pathling.io.ResourceReader;
+import au.csiro.pathling.io.ResourceWriter;
+import ca.uhn.fhir.context.FhirContext;
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.UrlType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("UnitTest")
+class ImportExecutorTest {
+
+  @Autowired
+  private Configuration configuration;
+
+  @Autowired
+  private SparkSession spark;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private FhirEncoders fhirEncoders;
+
+  private ResourceReader resourceReader;
+
+  private ResourceWriter resourceWriter;
+
+  private CacheManager cacheManager;
+
+  private AccessRules accessRules;
+
+  private ImportExecutor executor;
+
+  @BeforeEach
+  void setUp() {
+    resourceReader = mock(ResourceReader.class);
+    resourceWriter = mock(ResourceWriter.class);
+    cacheManager = mock(CacheManager.class);
+    accessRules = mock(AccessRules.class);
+    executor = new ImportExecutor(configuration, spark, resourceReader, resourceWriter,
+        fhirEncoders, new FhirContextFactory(fhirContext), cacheManager, accessRules);
+  }
+
+  @Test
+  void importsEachSource() {
+    final Parameters parameters = new Parameters();
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    addSource(parameters, ResourceType.CONDITION, testDataUrl("Condition"));
+    addSource(parameters, ResourceType.OBSERVATION, testDataUrl("Observation"));
+
+    final OperationOutcome outcome = executor.execute(parameters);
+
+    verify(resourceWriter).write(eq(ResourceType.PATIENT), any());
+    verify(resourceWriter).write(eq(ResourceType.CONDITION), any());
+    verify(resourceWriter).write(eq(ResourceType.OBSERVATION), any());
+    verify(resourceReader).updateAvailableResourceTypes();
+    verify(cacheManager).invalidate(
+        Set.of(ResourceType.PATIENT, ResourceType.CONDITION, ResourceType.OBSERVATION));
+    assertEquals(List.of(IssueSeverity.INFORMATION, IssueSeverity.INFORMATION,
+        IssueSeverity.INFORMATION, IssueSeverity.INFORMATION), severitiesOf(outcome));
+    assertEquals("Data import completed successfully",
+        outcome.getIssueFirstRep().getDiagnostics());
+  }
+
+  @Test
+  void failedSourceDoesNotPreventOtherSources() {
+    final Parameters parameters = new Parameters();
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    addSource(parameters, ResourceType.CONDITION, "file:///some/nonexistent/Condition.ndjson");
+
+    final OperationOutcome outcome = executor.execute(parameters);
+
+    verify(resourceWriter).write(eq(ResourceType.PATIENT), any());
+    verify(resourceWriter, never()).write(eq(ResourceType.CONDITION), any());
+    verify(cacheManager).invalidate(Set.of(ResourceType.PATIENT));
+    assertEquals(List.of(IssueSeverity.INFORMATION, IssueSeverity.INFORMATION,
+        IssueSeverity.ERROR), severitiesOf(outcome));
+    assertEquals("Data import completed with errors",
+        outcome.getIssueFirstRep().getDiagnostics());
+  }
+
+  @Test
+  void throwsWhenNoSourcesCanBeImported() {
+    final Parameters parameters = new Parameters();
+    addSource(parameters, ResourceType.CONDITION, "file:///some/nonexistent/Condition.ndjson");
+
+    final InvalidUserInputError error = assertThrows(InvalidUserInputError.class,
+        () -> executor.execute(parameters));
+    assertEquals("Error reading from URL: file:///some/nonexistent/Condition.ndjson",
+        error.getMessage());
+    verify(cacheManager, never()).invalidate(any());
+  }
+
+  @Test
+  void mergesSourceWhenRequested() {
+    final Parameters parameters = new Parameters();
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    parameters.getParameterFirstRep().addPart().setName("mode").setValue(new CodeType("merge"));
+
+    executor.execute(parameters);
+
+    verify(resourceWriter).merge(eq(ResourceType.PATIENT), any());
+    verify(resourceWriter, never()).write(any(), any());
+  }
+
+  @Test
+  void throwsOnUnsupportedMode() {
+    final Parameters parameters = new Parameters();
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    parameters.getParameterFirstRep().addPart().setName("mode").setValue(new CodeType("append"));
+
+    final InvalidUserInputError error = assertThrows(InvalidUserInputError.class,
+        () -> executor.execute(parameters));
+    assertEquals("Unsupported import mode: append", error.getMessage());
+  }
+
+  @Test
+  void throwsOnMissingUrlBeforeImportingAnySource() {
+    final Parameters parameters = new Parameters();
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    parameters.addParameter().setName("source").addPart()
+        .setName("resourceType").setValue(new CodeType("Condition"));
+
+    final InvalidUserInputError error = assertThrows(InvalidUserInputError.class,
+        () -> executor.execute(parameters));
+    assertEquals("Must provide url for each source", error.getMessage());
+    verify(resourceWriter, never()).write(any(), any());
+  }
+
+  @Test
+  void throwsOnDisallowedUrlBeforeImportingAnySource() {
+    final Parameters parameters = new Parameters();
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    addSource(parameters, ResourceType.CONDITION, testDataUrl("Condition"));
+    doThrow(new SecurityError("Not allowed")).when(accessRules)
+        .checkCanImportFrom(testDataUrl("Condition"));
+
+    final InvalidUserInputError error = assertThrows(InvalidUserInputError.class,
+        () -> executor.execute(parameters));
+    assertEquals("Not allowed to import from URL: " + testDataUrl("Condition"),
+        error.getMessage());
+    verify(resourceWriter, never()).write(any(), any());
+  }
+
+  @Test
+  void importsSourcesOfSameTypeInTurn() {
+    final Parameters parameters = new Parameters();
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    addSource(parameters, ResourceType.PATIENT, testDataUrl("Patient"));
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    doAnswer(invocation -> {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      Thread.sleep(200);
+      running.decrementAndGet();
+      return null;
+    }).when(resourceWriter).write(eq(ResourceType.PATIENT), any());
+
+    final OperationOutcome outcome = executor.execute(parameters);
+
+    verify(resourceWriter, times(3)).write(eq(ResourceType.PATIENT), any());
+    assertEquals(1, maxRunning.get());
+    assertEquals("Data import completed successfully",
+        outcome.getIssueFirstRep().getDiagnostics());
+  }
+
+  private static void addSource(@Nonnull final Parameters parameters,
+      @Nonnull final ResourceType resourceType, @Nonnull final String url) {
+    final ParametersParameterComponent source = parameters.addParameter().setName("source");
+    source.addPart().setName("resourceType").setValue(new CodeType(resourceType.toCode()));
+    source.addPart().setName("url").setValue(new UrlType(url));
+  }
+
+  @Nonnull
+  private static String testDataUrl(@Nonnull final String resourceCode) {
+    return new File("src/test/resources/test-data/fhir/" + resourceCode + ".ndjson").toURI()
+        .toString();
+  }
+
+  @Nonnull
+  private static List<IssueSeverity> severitiesOf(@Nonnull final OperationOutcome outcome) {
+    return outcome.getIssue().stream()
+        .map(OperationOutcomeIssueComponent::getSeverity)
+        .collect(Collectors.toList());
+  }
+
+}
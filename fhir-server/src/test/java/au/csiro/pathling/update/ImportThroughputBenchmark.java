@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import static au.csiro.pathling.test.helpers.BenchmarkHelpers.time;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.fhir.FhirContextFactory;
+import au.csiro.pathling.test.helpers.BenchmarkHelpers.Timed;
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Compares the time taken and the garbage collection time incurred when importing a large number
+ * of resources, using the HAPI parser and the direct JSON decoder. Run using the {@code benchmark}
+ * profile, the number of copies of the test data can be controlled using the {@code
+ * pathling.benchmark.copies} system property.
+ *
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("Benchmark")
+@Slf4j
+class ImportThroughputBenchmark {
+
+  private static final int COPIES = Integer.getInteger("pathling.benchmark.copies", 200);
+  private static final String RESOURCE_CODE = "Observation";
+
+  @Autowired
+  private SparkSession spark;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private FhirEncoders fhirEncoders;
+
+  @Test
+  void decoderIsFasterThanParser() {
+    final int copies = COPIES;
+    final Dataset<String> jsonStrings = spark.read()
+        .textFile("src/test/resources/test-data/fhir/" + RESOURCE_CODE + ".ndjson")
+        .flatMap((FlatMapFunction<String, String>) json -> Collections.nCopies(copies, json)
+            .iterator(), Encoders.STRING())
+        .cache();
+    final long records = jsonStrings.count();
+    final FhirContextFactory fhirContextFactory = new FhirContextFactory(fhirContext);
+    final ExpressionEncoder<IBaseResource> encoder = fhirEncoders.of(RESOURCE_CODE);
+
+    final Measurement parsed = measure(() -> jsonStrings.mapPartitions(
+        new ResourceParser(fhirContextFactory, RESOURCE_CODE), encoder));
+    final Measurement decoded = measure(() -> ResourceDecoder.decode(jsonStrings,
+        fhirContextFactory, encoder.schema(), RESOURCE_CODE));
+    jsonStrings.unpersist();
+
+    log.info("Importing {} {} resources using the parser took {} ms ({} ms GC)", records,
+        RESOURCE_CODE, parsed.getMillis(), parsed.getGcMillis());
+    log.info("Importing {} {} resources using the decoder took {} ms ({} ms GC)", records,
+        RESOURCE_CODE, decoded.getMillis(), decoded.getGcMillis());
+    assertTrue(decoded.getMillis() < parsed.getMillis());
+  }
+
+  @Nonnull
+  private Measurement measure(@Nonnull final Supplier<Dataset<?>> resources) {
+    final long gcBefore = gcMillis();
+    final Timed<Void> timed = time(() -> {
+      try {
+        resources.get().write().mode(SaveMode.Overwrite).parquet(
+            Files.createTempDirectory("pathling-benchmark-").toUri().toString());
+      } catch (final IOException e) {
+        throw new RuntimeException("Problem creating benchmark table location", e);
+      }
+      return null;
+    });
+    return new Measurement(timed.getMillis(), gcMillis() - gcBefore);
+  }
+
+  private static long gcMillis() {
+    return ManagementFactory.getGarbageCollectorMXBeans().stream()
+        .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+        .sum();
+  }
+
+  @lombok.Value
+  private static class Measurement {
+
+    long millis;
+
+    long gcMillis;
+
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.fhir.FhirContextFactory;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Stream;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
+import org.apache.spark.sql.types.StructType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("UnitTest")
+class ResourceDecoderTest {
+
+  @Autowired
+  private SparkSession spark;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private FhirEncoders fhirEncoders;
+
+  static Stream<ResourceType> parameters() {
+    return Stream.of(ResourceType.PATIENT, ResourceType.CONDITION, ResourceType.OBSERVATION,
+        ResourceType.ENCOUNTER, ResourceType.EXPLANATIONOFBENEFIT, ResourceType.CLAIM,
+        ResourceType.MEDICATIONREQUEST, ResourceType.IMMUNIZATION, ResourceType.ORGANIZATION,
+        ResourceType.PRACTITIONER, ResourceType.DIAGNOSTICREPORT, ResourceType.CAREPLAN,
+        ResourceType.IMAGINGSTUDY, ResourceType.PROCEDURE, ResourceType.GOAL,
+        ResourceType.ALLERGYINTOLERANCE);
+  }
+
+  @ParameterizedTest
+  @MethodSource("parameters")
+  void decodesSameRowsAsEncoders(final ResourceType resourceType) {
+    final Dataset<String> jsonStrings = spark.read()
+        .textFile("src/test/resources/test-data/fhir/" + resourceType.toCode() + ".ndjson");
+    final ExpressionEncoder<IBaseResource> encoder = fhirEncoders.of(resourceType.toCode());
+
+    final Dataset<Row> expected = jsonStrings.mapPartitions(
+        new ResourceParser(new FhirContextFactory(fhirContext), resourceType.toCode()), encoder)
+        .toDF();
+    final Dataset<Row> actual = ResourceDecoder.decode(jsonStrings,
+        new FhirContextFactory(fhirContext), encoder.schema(), resourceType.toCode());
+
+    assertEquals(expected.schema(), actual.schema());
+    final List<Row> missing = expected.except(actual).collectAsList();
+    final List<Row> unexpected = actual.except(expected).collectAsList();
+    assertEquals(List.of(), missing, "Rows missing from decoded " + resourceType.toCode());
+    assertEquals(List.of(), unexpected, "Unexpected decoded rows for " + resourceType.toCode());
+    assertEquals(expected.count(), actual.count());
+  }
+
+  @Test
+  void throwsOnMismatchedStructure() {
+    final StructType schema = fhirEncoders.of("Patient").schema();
+    final JsonResourceDecoder decoder = new JsonResourceDecoder(
+        new FhirContextFactory(fhirContext), "Patient", schema);
+    final byte[] json = "{\"resourceType\":\"Patient\",\"active\":\"yes\"}"
+        .getBytes(StandardCharsets.UTF_8);
+    assertThrows(DataFormatException.class, () -> decoder.decode(json));
+  }
+
+  @Test
+  void throwsOnStructureWithinString() {
+    final JsonResourceDecoder decoder = decoderFor("Patient");
+    // Without checking the token, the inner field would be read as a field of the resource.
+    final byte[] json = "{\"resourceType\":\"Patient\",\"gender\":{\"active\":true}}"
+        .getBytes(StandardCharsets.UTF_8);
+    assertThrows(DataFormatException.class, () -> decoder.decode(json));
+  }
+
+  @Test
+  void throwsOnMismatchedTimestamp() {
+    final JsonResourceDecoder decoder = decoderFor("Observation");
+    final byte[] array = ("{\"resourceType\":\"Observation\","
+        + "\"issued\":[\"2013-04-03T15:30:10+01:00\"]}").getBytes(StandardCharsets.UTF_8);
+    assertThrows(DataFormatException.class, () -> decoder.decode(array));
+
+    final byte[] unparseable = "{\"resourceType\":\"Observation\",\"issued\":\"2013-13-45\"}"
+        .getBytes(StandardCharsets.UTF_8);
+    final DataFormatException error = assertThrows(DataFormatException.class,
+        () -> decoder.decode(unparseable));
+    assertEquals("Unexpected value for element issued: 2013-13-45", error.getMessage());
+  }
+
+  @Test
+  void throwsOnMismatchedBinary() {
+    final JsonResourceDecoder decoder = decoderFor("Patient");
+    final byte[] json = "{\"resourceType\":\"Patient\",\"photo\":[{\"data\":{\"x\":1}}]}"
+        .getBytes(StandardCharsets.UTF_8);
+    assertThrows(DataFormatException.class, () -> decoder.decode(json));
+  }
+
+  @Test
+  void throwsOnMismatchedResourceType() {
+    final StructType schema = fhirEncoders.of("Patient").schema();
+    final JsonResourceDecoder decoder = new JsonResourceDecoder(
+        new FhirContextFactory(fhirContext), "Patient", schema);
+    final byte[] observation = "{\"resourceType\":\"Observation\",\"id\":\"abc\"}"
+        .getBytes(StandardCharsets.UTF_8);
+    final DataFormatException error = assertThrows(DataFormatException.class,
+        () -> decoder.decode(observation));
+    assertEquals("Resource type Observation does not match the type being imported: Patient",
+        error.getMessage());
+
+    final byte[] untyped = "{\"id\":\"abc\"}".getBytes(StandardCharsets.UTF_8);
+    assertThrows(DataFormatException.class, () -> decoder.decode(untyped));
+  }
+
+  private JsonResourceDecoder decoderFor(final String resourceCode) {
+    return new JsonResourceDecoder(new FhirContextFactory(fhirContext), resourceCode,
+        fhirEncoders.of(resourceCode).schema());
+  }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.fhir.FhirContextFactory;
+import ca.uhn.fhir.context.FhirContext;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author John Grimes
+ */
+@SpringBootTest
+@Tag("UnitTest")
+class ResourceParserTest {
+
+  @Autowired
+  private SparkSession spark;
+
+  @Autowired
+  private FhirContext fhirContext;
+
+  @Autowired
+  private FhirEncoders fhirEncoders;
+
+  @Test
+  void parsesEachRecordWithinMultiplePartitions() {
+    final Dataset<String> jsonStrings = spark.read()
+        .textFile("src/test/resources/test-data/fhir/Patient.ndjson")
+        .repartition(3);
+    final List<String> expected = jsonStrings.collectAsList().stream()
+        .map(json -> fhirContext.newJsonParser().parseResource(json).getIdElement().getIdPart())
+        .sorted()
+        .collect(Collectors.toList());
+
+    final Dataset<IBaseResource> resources = jsonStrings.mapPartitions(
+        new ResourceParser(new FhirContextFactory(fhirContext), "Patient"),
+        fhirEncoders.of("Patient"));
+    final List<String> actual = resources.collectAsList().stream()
+        .map(resource -> resource.getIdElement().getIdPart())
+        .sorted()
+        .collect(Collectors.toList());
+
+    assertEquals(9, actual.size());
+    assertEquals(expected, actual);
+  }
+
+}